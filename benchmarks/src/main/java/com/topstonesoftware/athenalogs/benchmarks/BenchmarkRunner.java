@@ -0,0 +1,32 @@
+package com.topstonesoftware.athenalogs.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * <p>
+ * Run the benchmarks with the JMH GC profiler, so that the allocation rate (gc.alloc.rate.norm, the bytes
+ * allocated per operation) is reported with the throughput. The command line takes the standard JMH options.
+ * For example, to run the tree benchmarks for 1,000,000 paths:
+ * </p>
+ * <pre>
+ *     java -jar target/benchmarks.jar DirTreeBenchmark -p numPaths=1000000
+ * </pre>
+ */
+public class BenchmarkRunner {
+
+    private BenchmarkRunner() {}
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
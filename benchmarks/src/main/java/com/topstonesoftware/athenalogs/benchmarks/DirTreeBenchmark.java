@@ -0,0 +1,124 @@
+package com.topstonesoftware.athenalogs.benchmarks;
+
+import com.topstonesoftware.athenalogs.DirTreeNode;
+import com.topstonesoftware.athenalogs.LogDataFacets;
+import com.topstonesoftware.athenalogs.RefCountAggregator;
+import com.topstonesoftware.athenalogs.SegmentDictionary;
+import com.topstonesoftware.athenalogs.TreeRenderer;
+import org.apache.commons.lang3.tuple.Pair;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Benchmarks for the page path tree: building the tree from a path list, filling in the reference counts and
+ * rendering the tree (see TreeRenderer). The paths are generated by SyntheticLogGenerator with a fixed seed, so each run uses the
+ * same tree.
+ * </p>
+ * <p>
+ *     The tree for 10,000,000 paths takes several GB of heap, so the forked JVM is given a large heap.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DirTreeBenchmark {
+    private static final long SEED = 42;
+    private static final String DOMAIN = "bearcave.com";
+
+    @Param({"10000", "100000", "1000000", "10000000"})
+    public int numPaths;
+
+    private List<Pair<String, Integer>> pathCounts;
+    private DirTreeNode tree;
+    private LogDataFacets facets;
+    private PrintStream nullStream;
+    private TreeRenderer textRenderer;
+    private TreeRenderer jsonRenderer;
+    private TreeRenderer prunedRenderer;
+
+    @Setup
+    public void setup() {
+        pathCounts = new SyntheticLogGenerator(SEED, DOMAIN).generatePathCounts(numPaths);
+        // The tree methods do not use the connection
+        facets = new LogDataFacets(null, "orclogdb", "httplogs");
+        tree = facets.buildDirTree(pathCounts);
+        nullStream = new PrintStream(OutputStream.nullOutputStream());
+        textRenderer = TreeRenderer.builder().build();
+        jsonRenderer = TreeRenderer.builder().format(TreeRenderer.Format.JSON).build();
+        prunedRenderer = TreeRenderer.builder().maxDepth(4).topChildren(20).build();
+    }
+
+    /**
+     * Build the tree with DirTreeNode.addPath, without the reference count aggregation
+     */
+    @Benchmark
+    public DirTreeNode addPath() {
+        DirTreeNode root = new DirTreeNode("/");
+        SegmentDictionary segments = new SegmentDictionary();
+        for (Pair<String, Integer> pathInfo : pathCounts) {
+            root.addPath(pathInfo.getLeft(), pathInfo.getRight(), segments);
+        }
+        return root;
+    }
+
+    /**
+     * Build the tree with DirTreeNode.addPathCount, which sums the counts as the paths are added (the way
+     * LogDataFacets.buildPathTree builds the tree from a query result)
+     */
+    @Benchmark
+    public DirTreeNode addPathCount() {
+        DirTreeNode root = new DirTreeNode("/");
+        SegmentDictionary segments = new SegmentDictionary();
+        for (Pair<String, Integer> pathInfo : pathCounts) {
+            root.addPathCount(pathInfo.getLeft(), pathInfo.getRight(), segments);
+        }
+        return root;
+    }
+
+    /**
+     * Build the tree and fill in the reference counts
+     */
+    @Benchmark
+    public DirTreeNode buildDirTree() {
+        return facets.buildDirTree(pathCounts);
+    }
+
+    @Benchmark
+    public long fillInRefCounts() {
+        return facets.fillInRefCounts(tree);
+    }
+
+    @Benchmark
+    public long aggregateParallel() {
+        return RefCountAggregator.aggregateParallel(tree);
+    }
+
+    /**
+     * Render the tree as text to a stream that discards the output, so the time is the time to format the tree
+     */
+    @Benchmark
+    public void renderText() {
+        textRenderer.render(tree, nullStream);
+    }
+
+    @Benchmark
+    public void renderJson() {
+        jsonRenderer.render(tree, nullStream);
+    }
+
+    /**
+     * Render the top 20 children of each node, to a depth of 4. The pruned sub-trees are not visited.
+     */
+    @Benchmark
+    public void renderPruned() {
+        prunedRenderer.render(tree, nullStream);
+    }
+}
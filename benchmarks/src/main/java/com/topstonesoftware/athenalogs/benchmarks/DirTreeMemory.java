@@ -0,0 +1,86 @@
+package com.topstonesoftware.athenalogs.benchmarks;
+
+import com.topstonesoftware.athenalogs.DirTreeNode;
+import com.topstonesoftware.athenalogs.SegmentDictionary;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.List;
+
+/**
+ * <p>
+ * Measure the heap that a page path tree retains, for the earlier HashMap based node (HashMapDirTreeNode) and for
+ * DirTreeNode. Both trees are built from the same synthetic path list (see SyntheticLogGenerator). The retained
+ * heap is the used heap after a full collection with the tree referenced, less the used heap before the tree was
+ * built. The path list is referenced for the whole run, so it is not counted.
+ * </p>
+ * <p>
+ *     The JMH GC profiler (see BenchmarkRunner) reports the bytes allocated to build a tree, which include the
+ *     garbage. This program reports the bytes that stay in the heap. Run it with the serial collector, so that the
+ *     used heap after System.gc() is the live data:
+ * </p>
+ * <pre>
+ *     java -XX:+UseSerialGC -Xmx4g -cp target/benchmarks.jar com.topstonesoftware.athenalogs.benchmarks.DirTreeMemory 1000000
+ * </pre>
+ */
+public class DirTreeMemory {
+    private static final long SEED = 42;
+    private static final String DOMAIN = "bearcave.com";
+    private static final int DEFAULT_NUM_PATHS = 1_000_000;
+    private static final int GC_PASSES = 4;
+    private static final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+
+    private DirTreeMemory() {}
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        for (int i = 0; i < GC_PASSES; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return memoryBean.getHeapMemoryUsage().getUsed();
+    }
+
+    private static String megabytes(long bytes) {
+        return String.format("%,.1f MB", bytes / (1024.0 * 1024.0));
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int numPaths = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_NUM_PATHS;
+        List<Pair<String, Integer>> pathCounts = new SyntheticLogGenerator(SEED, DOMAIN).generatePathCounts(numPaths);
+        System.out.printf("%,d paths, Java %s%n", pathCounts.size(), System.getProperty("java.version"));
+
+        long before = usedHeapAfterGc();
+        HashMapDirTreeNode mapTree = new HashMapDirTreeNode("/");
+        for (Pair<String, Integer> pathInfo : pathCounts) {
+            mapTree.addPath(pathInfo.getLeft(), pathInfo.getRight());
+        }
+        long mapBytes = usedHeapAfterGc() - before;
+        long mapNodes = mapTree.countNodes();
+        System.out.printf("%-24s %,12d nodes %14s %8.1f bytes/node%n", "HashMapDirTreeNode", mapNodes,
+                megabytes(mapBytes), (double) mapBytes / mapNodes);
+        mapTree = null;
+
+        before = usedHeapAfterGc();
+        DirTreeNode tree = new DirTreeNode("/");
+        SegmentDictionary segments = new SegmentDictionary();
+        for (Pair<String, Integer> pathInfo : pathCounts) {
+            tree.addPath(pathInfo.getLeft(), pathInfo.getRight(), segments);
+        }
+        // The dictionary is only used while the tree is built
+        segments = null;
+        long treeBytes = usedHeapAfterGc() - before;
+        long treeNodes = countNodes(tree);
+        System.out.printf("%-24s %,12d nodes %14s %8.1f bytes/node%n", "DirTreeNode", treeNodes,
+                megabytes(treeBytes), (double) treeBytes / treeNodes);
+        System.out.printf("DirTreeNode / HashMapDirTreeNode: %.2f%n", (double) treeBytes / mapBytes);
+    }
+
+    private static long countNodes(DirTreeNode node) {
+        long nodes = 1;
+        for (int i = 0; i < node.getChildCount(); i++) {
+            nodes += countNodes(node.getChild(i));
+        }
+        return nodes;
+    }
+}
@@ -0,0 +1,62 @@
+package com.topstonesoftware.athenalogs.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The earlier DirTreeNode, with the children in a HashMap and a boxed Integer count. It is kept here as the
+ * baseline for the tree memory measurement (see DirTreeMemory).
+ */
+public class HashMapDirTreeNode {
+    private final String dirName;
+    private final Map<String, HashMapDirTreeNode> childMap = new HashMap<>();
+    private Integer pageRefCnt = null;
+
+    public HashMapDirTreeNode(String name) {
+        this.dirName = name;
+    }
+
+    public String getDirName() {
+        return dirName;
+    }
+
+    public Integer getPageRefCnt() {
+        return pageRefCnt;
+    }
+
+    public HashMapDirTreeNode addChild(String name) {
+        return childMap.computeIfAbsent(name, HashMapDirTreeNode::new);
+    }
+
+    /**
+     * Add a path and its reference count as a sub-tree to this node, as the earlier DirTreeNode.addPath did
+     */
+    public void addPath(String path, int refCnt) {
+        int end = path.length();
+        while (end > 0 && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        if (end > 0 || path.isEmpty()) {
+            HashMapDirTreeNode root = this;
+            int start = 0;
+            int slash;
+            while ((slash = path.indexOf('/', start)) >= 0 && slash < end) {
+                root = root.addChild(path.substring(start, slash));
+                start = slash + 1;
+            }
+            root = root.addChild(path.substring(start, end));
+            root.pageRefCnt = refCnt;
+        }
+    }
+
+    /**
+     * @return the number of nodes in the sub-tree, including this node
+     */
+    public long countNodes() {
+        long nodes = 1;
+        for (HashMapDirTreeNode child : childMap.values()) {
+            nodes += child.countNodes();
+        }
+        return nodes;
+    }
+}
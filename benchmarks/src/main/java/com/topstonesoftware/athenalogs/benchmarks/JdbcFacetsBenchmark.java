@@ -0,0 +1,84 @@
+package com.topstonesoftware.athenalogs.benchmarks;
+
+import com.topstonesoftware.athenalogs.DirTreeNode;
+import com.topstonesoftware.athenalogs.LogDataFacets;
+import org.apache.commons.lang3.tuple.Pair;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Benchmarks for the LogDataFacets queries over an in-memory H2 database, which stands in for Athena. The log
+ * table is loaded with synthetic log rows (see SyntheticLogGenerator). The time includes the H2 query time, so
+ * these benchmarks compare the client side processing (the referrer merge in getReferrers, building the path tree
+ * from the result set) rather than measuring Athena.
+ * </p>
+ * <p>
+ *     The default sizes stop at 1,000,000 log rows, since the H2 table is held in memory. Larger sizes can be set
+ *     on the command line (e.g., -p numRows=10000000), with a larger heap.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class JdbcFacetsBenchmark {
+    private static final long SEED = 42;
+    private static final String DOMAIN = "bearcave.com";
+    private static final String DATABASE = "orclogdb";
+    private static final String TABLE = "httplogs";
+    private static final int ROWS_PER_PAGE = 10;
+    private static final int TOP_REFERRERS = 10;
+
+    @Param({"10000", "100000", "1000000"})
+    public int numRows;
+
+    private Connection conn;
+    private LogDataFacets facets;
+
+    @Setup
+    public void setup() throws SQLException {
+        conn = DriverManager.getConnection("jdbc:h2:mem:logs_" + numRows + ";NON_KEYWORDS=KEY,VALUE");
+        SyntheticLogGenerator generator = new SyntheticLogGenerator(SEED, DOMAIN);
+        generator.loadLogTable(conn, DATABASE, TABLE, numRows, Math.max(100, numRows / ROWS_PER_PAGE));
+        facets = new LogDataFacets(conn, DATABASE, TABLE);
+        // The facet methods log query errors and return an empty result, which would make the benchmark
+        // meaningless, so check that the queries work before the benchmark runs.
+        if (facets.getReferrers(DOMAIN).isEmpty() || facets.buildPathTree(DOMAIN).getChildCount() == 0) {
+            throw new IllegalStateException("The facet queries returned no results for " + DOMAIN);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        conn.close();
+    }
+
+    /**
+     * The referrer query and the merge of the referrer counts
+     */
+    @Benchmark
+    public List<Pair<String, Integer>> getReferrers() {
+        return facets.getReferrers(DOMAIN);
+    }
+
+    @Benchmark
+    public List<Pair<String, Integer>> getTopReferrers() {
+        return facets.getTopReferrers(conn, DATABASE, TABLE, DOMAIN, TOP_REFERRERS).getReferrers();
+    }
+
+    /**
+     * The path query, with the tree built from the result set
+     */
+    @Benchmark
+    public DirTreeNode buildPathTree() {
+        return facets.buildPathTree(DOMAIN);
+    }
+}
@@ -0,0 +1,242 @@
+package com.topstonesoftware.athenalogs.benchmarks;
+
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * <p>
+ * Generate synthetic S3 web log data for the benchmarks. The data is generated from a seeded random number
+ * generator, so a generator with the same seed always produces the same data.
+ * </p>
+ * <ul>
+ *     <li>The page paths are in a directory tree. Each directory is added under a randomly chosen earlier
+ *     directory, so the tree has a few wide directories near the root and deep paths (up to MAX_DEPTH
+ *     directories) below them. Directory names are drawn from a small vocabulary, so names repeat.</li>
+ *     <li>Page popularity follows a Zipf distribution: the page with rank k is read about 1/k times as often as the
+ *     most popular page.</li>
+ *     <li>Referrers are noisy, like the referrers in real S3 logs: the "-" marker, http and https, with and
+ *     without www., quoted strings, search URLs, Amazon internal 52.219 addresses and references from the domain
+ *     itself. The referrer sites also follow a Zipf distribution.</li>
+ * </ul>
+ * <p>
+ *     The log rows can be loaded into a JDBC database (for example, an in-memory H2 database) with the same
+ *     columns as the Athena log table (see LogDDL), so that the LogDataFacets queries can be run without Athena.
+ * </p>
+ */
+public class SyntheticLogGenerator {
+    private static final String[] DIR_NAMES = {
+            "software", "misl", "misl_tech", "images", "bookrev", "finance", "java", "xml", "signal", "wavelets",
+            "hurst", "idft", "docs", "blog", "archive", "notes", "src", "python", "ml", "stats", "papers", "misl_other"
+    };
+    private static final String[] PAGE_NAMES = {
+            "index", "about", "notes", "overview", "tutorial", "review", "license", "download", "faq", "links",
+            "divide", "neuromancer", "wrds_data", "nigerian_scam", "xmlpull_license"
+    };
+    private static final String[] REFERRER_SITES = {
+            "google.com", "bing.com", "duckduckgo.com", "google.co.uk", "google.ca", "google.com.au", "google.de",
+            "news.ycombinator.com", "reddit.com", "stackoverflow.com", "github.com", "en.wikipedia.org", "t.co",
+            "facebook.com", "linkedin.com", "baidu.com", "yandex.ru"
+    };
+    /** The number of referrer sites after REFERRER_SITES in the long tail of rarely seen sites */
+    private static final int REFERRER_TAIL = 5000;
+    private static final String[] USER_AGENTS = {
+            "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/91.0 Safari/537.36",
+            "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_7) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/14.1 Safari/605.1.15",
+            "Mozilla/5.0 (compatible; Googlebot/2.1; +http://www.google.com/bot.html)",
+            "Mozilla/5.0 (compatible; bingbot/2.0; +http://www.bing.com/bingbot.htm)"
+    };
+    private static final String OTHER_DOMAIN = "topstonesoftware.com";
+    private static final int MAX_DEPTH = 12;
+    private static final int PAGES_PER_DIRECTORY = 16;
+    private static final double PAGE_EXPONENT = 1.0;
+    private static final double REFERRER_EXPONENT = 1.2;
+    private static final int MAX_PAGE_COUNT = 1_000_000;
+    private static final LocalDateTime FIRST_REQUEST = LocalDateTime.of(2021, 1, 1, 0, 0);
+    private static final int REQUEST_DAYS = 180;
+    private static final int INSERT_BATCH_SIZE = 10_000;
+    private final Random random;
+    private final String domain;
+    private final ZipfSampler referrerSampler = new ZipfSampler(REFERRER_SITES.length + REFERRER_TAIL, REFERRER_EXPONENT);
+
+    /**
+     * @param seed the random number generator seed
+     * @param domain the domain for the log data (e.g., bearcave.com)
+     */
+    public SyntheticLogGenerator(long seed, String domain) {
+        this.random = new Random(seed);
+        this.domain = domain;
+    }
+
+    private String[] buildDirectories(int numDirectories) {
+        String[] directories = new String[numDirectories];
+        int[] depth = new int[numDirectories];
+        directories[0] = "";
+        for (int i = 1; i < numDirectories; i++) {
+            int parent = random.nextInt(i);
+            if (depth[parent] >= MAX_DEPTH) {
+                parent = 0;
+            }
+            String name = DIR_NAMES[random.nextInt(DIR_NAMES.length)];
+            if (random.nextInt(4) != 0) {
+                name = name + "_" + Integer.toString(i, 36);
+            }
+            directories[i] = directories[parent] + name + "/";
+            depth[i] = depth[parent] + 1;
+        }
+        return directories;
+    }
+
+    /**
+     * Generate distinct page paths (S3 keys), for example:
+     * <pre>
+     *     misl_1k/software_2c/signal/overview_5f.html
+     * </pre>
+     *
+     * @param numPaths the number of paths
+     * @return the paths. The array index is the popularity rank of the page, minus one.
+     */
+    public String[] generatePaths(int numPaths) {
+        String[] directories = buildDirectories(Math.max(2, numPaths / PAGES_PER_DIRECTORY));
+        String[] paths = new String[numPaths];
+        for (int i = 0; i < numPaths; i++) {
+            String directory = directories[random.nextInt(directories.length)];
+            String extension = (random.nextInt(5) == 0) ? ".htm" : ".html";
+            paths[i] = directory + PAGE_NAMES[random.nextInt(PAGE_NAMES.length)] + "_" + Integer.toString(i, 36) + extension;
+        }
+        return paths;
+    }
+
+    /**
+     * Generate a list of page paths and reference counts in the form returned by LogDataFacets.getPaths. The count
+     * for the page with rank k is MAX_PAGE_COUNT / k (at least one).
+     *
+     * @param numPaths the number of paths
+     * @return the path and count pairs, in descending count order
+     */
+    public List<Pair<String, Integer>> generatePathCounts(int numPaths) {
+        String[] paths = generatePaths(numPaths);
+        List<Pair<String, Integer>> pathCounts = new ArrayList<>(numPaths);
+        for (int i = 0; i < numPaths; i++) {
+            int count = Math.max(1, (int) (MAX_PAGE_COUNT / Math.pow(i + 1.0, PAGE_EXPONENT)));
+            pathCounts.add(new ImmutablePair<>(paths[i], count));
+        }
+        return pathCounts;
+    }
+
+    private String randomWord() {
+        return PAGE_NAMES[random.nextInt(PAGE_NAMES.length)];
+    }
+
+    /**
+     * @return a referrer string like the referrers in the S3 logs
+     */
+    public String nextReferrer() {
+        double r = random.nextDouble();
+        String referrer;
+        if (r < 0.30) {
+            referrer = "-";
+        } else if (r < 0.33) {
+            referrer = "http://52.219." + random.nextInt(256) + "." + random.nextInt(256) + "/";
+        } else if (r < 0.38) {
+            referrer = "https://www.google.com/search?q=" + randomWord() + "+" + randomWord();
+        } else if (r < 0.45) {
+            referrer = "https://" + domain + "/" + randomWord() + ".html";
+        } else {
+            int rank = referrerSampler.sample(random);
+            String site = (rank <= REFERRER_SITES.length) ? REFERRER_SITES[rank - 1] : "blog" + rank + ".example.org";
+            String scheme = random.nextBoolean() ? "https://" : "http://";
+            String www = random.nextBoolean() ? "www." : "";
+            String path = (random.nextInt(4) == 0) ? "/" + randomWord() + "/" : "/";
+            referrer = scheme + www + site + path;
+            if (random.nextInt(20) == 0) {
+                referrer = "\"" + referrer + "\"";
+            }
+        }
+        return referrer;
+    }
+
+    private static String createTableSql(String database, String table) {
+        return "create table " + database + "." + table + " (\n" +
+               "    bucket_name varchar,\n" +
+               "    request_date timestamp,\n" +
+               "    remote_ip varchar,\n" +
+               "    operation varchar,\n" +
+               "    key varchar,\n" +
+               "    request_uri varchar,\n" +
+               "    http_status int,\n" +
+               "    total_time int,\n" +
+               "    referrer varchar,\n" +
+               "    user_agent varchar,\n" +
+               "    version_id varchar,\n" +
+               "    end_point varchar\n" +
+               ")";
+    }
+
+    /**
+     * <p>
+     * Create a log table and load synthetic log rows into it. About 90% of the rows are for the generator domain
+     * and the rest are for a second domain. Most of the rows are requests for HTML pages (chosen by Zipf page
+     * popularity), and the rest are requests for images and style sheets. Most requests have an HTTP 200 status.
+     * </p>
+     * <p>
+     *     For H2 the connection URL should include NON_KEYWORDS=KEY,VALUE, since key is a column name.
+     * </p>
+     *
+     * @param conn the database connection
+     * @param database the database (schema) name, which is created if it does not exist
+     * @param table the log table name
+     * @param numRows the number of log rows
+     * @param numPages the number of distinct page paths
+     */
+    public void loadLogTable(Connection conn, String database, String table, int numRows, int numPages) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("create schema if not exists " + database);
+            stmt.execute(createTableSql(database, table));
+        }
+        String[] pages = generatePaths(numPages);
+        ZipfSampler pageSampler = new ZipfSampler(numPages, PAGE_EXPONENT);
+        String insert = "insert into " + database + "." + table + " values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (PreparedStatement stmt = conn.prepareStatement(insert)) {
+            for (int i = 0; i < numRows; i++) {
+                String bucket = (random.nextInt(10) == 0) ? OTHER_DOMAIN : domain;
+                String key;
+                if (random.nextInt(100) < 85) {
+                    key = pages[pageSampler.sample(random) - 1];
+                } else {
+                    key = (random.nextBoolean()) ? "images/img_" + random.nextInt(500) + ".jpg" : "css/site.css";
+                }
+                int statusSelect = random.nextInt(100);
+                int status = (statusSelect < 90) ? 200 : (statusSelect < 97) ? 404 : 304;
+                LocalDateTime requestDate = FIRST_REQUEST.plusSeconds(random.nextInt(REQUEST_DAYS * 24 * 60 * 60));
+                stmt.setString(1, bucket);
+                stmt.setTimestamp(2, Timestamp.valueOf(requestDate));
+                stmt.setString(3, random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256));
+                stmt.setString(4, "REST.GET.OBJECT");
+                stmt.setString(5, key);
+                stmt.setString(6, "GET /" + key + " HTTP/1.1");
+                stmt.setInt(7, status);
+                stmt.setInt(8, 1 + random.nextInt(200));
+                stmt.setString(9, nextReferrer());
+                stmt.setString(10, USER_AGENTS[random.nextInt(USER_AGENTS.length)]);
+                stmt.setString(11, "-");
+                stmt.setString(12, bucket);
+                stmt.addBatch();
+                if ((i + 1) % INSERT_BATCH_SIZE == 0) {
+                    stmt.executeBatch();
+                }
+            }
+            stmt.executeBatch();
+            conn.commit();
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+}
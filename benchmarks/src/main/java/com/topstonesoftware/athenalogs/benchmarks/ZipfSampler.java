@@ -0,0 +1,94 @@
+package com.topstonesoftware.athenalogs.benchmarks;
+
+import java.util.Random;
+
+/**
+ * <p>
+ * Sample ranks 1 ... n from a Zipf distribution, where the probability of rank k is proportional to 1 / k^exponent.
+ * Web page and referrer popularity roughly follow this distribution: a few pages get most of the requests and
+ * there is a long tail of pages that are rarely read.
+ * </p>
+ * <p>
+ *     The sampler uses rejection-inversion (W. Hormann and G. Derflinger, "Rejection-inversion to generate
+ *     variates from monotone discrete distributions", 1996), so it does not build a table of the n probabilities.
+ *     A sampler over 10,000,000 ranks takes no more memory than a sampler over 10.
+ * </p>
+ */
+public class ZipfSampler {
+    private final int numberOfElements;
+    private final double exponent;
+    private final double hIntegralX1;
+    private final double hIntegralNumberOfElements;
+    private final double s;
+
+    /**
+     * @param numberOfElements the number of ranks (n)
+     * @param exponent the Zipf exponent. An exponent near 1 is typical for web page popularity.
+     */
+    public ZipfSampler(int numberOfElements, double exponent) {
+        if (numberOfElements < 1 || exponent <= 0) {
+            throw new IllegalArgumentException("numberOfElements = " + numberOfElements + ", exponent = " + exponent);
+        }
+        this.numberOfElements = numberOfElements;
+        this.exponent = exponent;
+        this.hIntegralX1 = hIntegral(1.5) - 1d;
+        this.hIntegralNumberOfElements = hIntegral(numberOfElements + 0.5);
+        this.s = 2d - hIntegralInverse(hIntegral(2.5) - h(2));
+    }
+
+    /**
+     * @return a rank, from 1 to numberOfElements
+     */
+    public int sample(Random random) {
+        while (true) {
+            double u = hIntegralNumberOfElements + random.nextDouble() * (hIntegralX1 - hIntegralNumberOfElements);
+            double x = hIntegralInverse(u);
+            int k = (int) (x + 0.5);
+            if (k < 1) {
+                k = 1;
+            } else if (k > numberOfElements) {
+                k = numberOfElements;
+            }
+            if (k - x <= s || u >= hIntegral(k + 0.5) - h(k)) {
+                return k;
+            }
+        }
+    }
+
+    /**
+     * H(x) = ((x^(1 - exponent)) - 1) / (1 - exponent), the integral of h(x)
+     */
+    private double hIntegral(double x) {
+        double logX = Math.log(x);
+        return helper2((1d - exponent) * logX) * logX;
+    }
+
+    /**
+     * h(x) = 1 / x^exponent
+     */
+    private double h(double x) {
+        return Math.exp(-exponent * Math.log(x));
+    }
+
+    private double hIntegralInverse(double x) {
+        double t = x * (1d - exponent);
+        if (t < -1d) {
+            t = -1d;
+        }
+        return Math.exp(helper1(t) * x);
+    }
+
+    /**
+     * log(1 + x) / x, with a Taylor series near zero
+     */
+    private static double helper1(double x) {
+        return (Math.abs(x) > 1e-8) ? Math.log1p(x) / x : 1d - x * (0.5 - x * (1d / 3d - 0.25 * x));
+    }
+
+    /**
+     * (exp(x) - 1) / x, with a Taylor series near zero
+     */
+    private static double helper2(double x) {
+        return (Math.abs(x) > 1e-8) ? Math.expm1(x) / x : 1d + x * 0.5 * (1d + x * (1d / 3d) * (1d + 0.25 * x));
+    }
+}
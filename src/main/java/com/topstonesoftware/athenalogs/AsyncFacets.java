@@ -0,0 +1,183 @@
+package com.topstonesoftware.athenalogs;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.stream.Collector;
+
+/**
+ * <p>
+ * Compute the path tree and referrer facets with asynchronous queries (see QueryExecutor). The queries are the
+ * same as the LogDataFacets queries, including the partition and rollup settings of the LogDataFacets object. The
+ * facet methods return futures, so several facets (for one or more domains) can be in flight at the same time
+ * without a thread or a connection for each one.
+ * </p>
+ * <p>
+ *     The query result file is read in parallel chunks (see CsvResultReader). The rows of each chunk go directly
+ *     into a DirTreeNode tree or a referrer count map for the chunk, and the chunk results are then combined.
+ * </p>
+ * <p>
+ *     If a query scheduler is set (see setScheduler) the queries wait for a slot in the workgroup, with the JDBC
+ *     queries, and throttled queries are started again (see QueryScheduler.submit).
+ * </p>
+ * <p>
+ *     The queries are recorded in QueryMetrics. The fetch time is the time to read and process the result file.
+ *     If a query or the read of its result file fails, the future completes exceptionally with a
+ *     FacetQueryException, rather than with an empty facet.
+ * </p>
+ */
+@Slf4j
+public class AsyncFacets {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncFacets.class);
+    private static final long NANOS_PER_MILLI = 1_000_000;
+    private final LogDataFacets queries;
+    private final QueryExecutor queryExecutor;
+    private final CsvResultReader resultReader;
+    private QueryScheduler scheduler = null;
+    private String workgroup = null;
+    private QueryScheduler.Priority priority = QueryScheduler.Priority.INTERACTIVE;
+
+    /**
+     * @param queries the facets that the queries are taken from. The connection is not used.
+     * @param queryExecutor the executor for the queries
+     * @param resultReader the reader for the query result files
+     */
+    public AsyncFacets(LogDataFacets queries, QueryExecutor queryExecutor, CsvResultReader resultReader) {
+        this.queries = queries;
+        this.queryExecutor = queryExecutor;
+        this.resultReader = resultReader;
+    }
+
+    /**
+     * Admit the queries through a query scheduler (see QueryScheduler.submit)
+     *
+     * @param scheduler the query scheduler, or null to start the queries directly
+     * @param workgroup the Athena workgroup of the queries (see AthenaDB.getWorkgroup)
+     * @param priority the priority of the queries
+     */
+    public void setScheduler(QueryScheduler scheduler, String workgroup, QueryScheduler.Priority priority) {
+        this.scheduler = scheduler;
+        this.workgroup = workgroup;
+        this.priority = priority;
+    }
+
+    /**
+     * Replace the statement parameters (?) with SQL literals, since a query that is started with the Athena API
+     * does not have parameters. A ? inside a quoted string is not replaced.
+     */
+    static String inlineParams(String sql, List<Object> params) {
+        StringBuilder inlined = new StringBuilder();
+        boolean inString = false;
+        int paramIx = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            char ch = sql.charAt(i);
+            if (ch == '\'') {
+                inString = !inString;
+                inlined.append(ch);
+            } else if (ch == '?' && !inString) {
+                if (paramIx >= params.size()) {
+                    throw new IllegalArgumentException("There are more parameters in the query than values");
+                }
+                Object param = params.get(paramIx++);
+                if (param instanceof Integer) {
+                    inlined.append(param);
+                } else {
+                    inlined.append('\'').append(param.toString().replace("'", "''")).append('\'');
+                }
+            } else {
+                inlined.append(ch);
+            }
+        }
+        return inlined.toString();
+    }
+
+    /**
+     * Run a query and collect the rows of its result file.
+     */
+    private <A, R> CompletableFuture<R> run(String label, String sql, Collector<String[], A, R> collector) {
+        QueryStats stats = new QueryStats(label, sql);
+        LongAdder rowCount = new LongAdder();
+        BiConsumer<A, String[]> accumulator = collector.accumulator();
+        Collector<String[], A, R> countingCollector = Collector.of(collector.supplier(), (acc, row) -> {
+            rowCount.increment();
+            accumulator.accept(acc, row);
+        }, collector.combiner(), collector.finisher());
+        long start = System.nanoTime();
+        CompletableFuture<AsyncQueryResult> submitted = (scheduler != null)
+                ? scheduler.submit(workgroup, priority, label, () -> queryExecutor.submit(sql))
+                : queryExecutor.submit(sql);
+        return submitted.thenCompose(result -> {
+            stats.setQueryId(result.getQueryId());
+            stats.setExecuteMillis((System.nanoTime() - start) / NANOS_PER_MILLI);
+            return resultReader.read(result.getOutputLocation(), countingCollector);
+        }).handle((result, error) -> {
+            stats.setWallMillis((System.nanoTime() - start) / NANOS_PER_MILLI);
+            stats.setFetchMillis(stats.getWallMillis() - stats.getExecuteMillis());
+            stats.setRowsFetched(rowCount.sum());
+            stats.setFailed(error != null);
+            QueryMetrics.global().record(stats);
+            if (error != null) {
+                logger.error("{}: {}", label, error.getLocalizedMessage());
+                throw FacetQueryException.wrap(label, error);
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Build the page path tree for a domain (see LogDataFacets.buildPathTree)
+     *
+     * @return a future for the root of the tree, with the reference counts filled in
+     */
+    public CompletableFuture<DirTreeNode> buildPathTree(String domain) {
+        List<Object> params = new ArrayList<>();
+        String sql = inlineParams(queries.buildPathQuery(domain, params), params);
+        Collector<String[], DirTreeNode, DirTreeNode> treeCollector = Collector.of(
+                () -> new DirTreeNode("/"),
+                (tree, row) -> {
+                    if (row.length >= 2 && row[0] != null && row[1] != null) {
+                        tree.addPathCount(row[0], Long.parseLong(row[1]));
+                    }
+                },
+                (tree, other) -> {
+                    tree.addTree(other);
+                    return tree;
+                });
+        return run("buildPathTree", sql, treeCollector);
+    }
+
+    /**
+     * Get the referrers for a domain (see LogDataFacets.getReferrers)
+     *
+     * @return a future for the referrer names and counts, in descending count order
+     */
+    public CompletableFuture<List<Pair<String, Integer>>> getReferrers(String domain) {
+        List<Object> params = new ArrayList<>();
+        String sql = inlineParams(queries.buildReferrerQuery(domain, params), params);
+        Collector<String[], Map<String, Long>, List<Pair<String, Integer>>> referrerCollector = Collector.of(
+                HashMap::new,
+                (counts, row) -> {
+                    if (row.length >= 2 && row[0] != null && row[1] != null && !row[0].equals("-")) {
+                        counts.merge(row[0], Long.parseLong(row[1]), Long::sum);
+                    }
+                },
+                (counts, other) -> {
+                    other.forEach((referrer, count) -> counts.merge(referrer, count, Long::sum));
+                    return counts;
+                },
+                counts -> {
+                    List<Pair<String, Integer>> pairList = new ArrayList<>();
+                    counts.forEach((referrer, count) -> pairList.add(new ImmutablePair<>(referrer, (int) Math.min(count, Integer.MAX_VALUE))));
+                    pairList.sort(Collections.reverseOrder(Comparator.comparing(Pair::getRight)));
+                    return pairList;
+                });
+        return run("getReferrers", sql, referrerCollector);
+    }
+}
@@ -0,0 +1,18 @@
+package com.topstonesoftware.athenalogs;
+
+import lombok.Getter;
+
+/**
+ * The result of an asynchronous query: the query ID and the location of the CSV result file (e.g.,
+ * s3://ianlkaplan-athena-scratch/0b1c2d3e-4f50-6172-8394-a5b6c7d8e9f0.csv).
+ */
+@Getter
+public class AsyncQueryResult {
+    private final String queryId;
+    private final String outputLocation;
+
+    public AsyncQueryResult(String queryId, String outputLocation) {
+        this.queryId = queryId;
+        this.outputLocation = outputLocation;
+    }
+}
@@ -0,0 +1,247 @@
+package com.topstonesoftware.athenalogs;
+
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * A fixed size pool of Athena JDBC connections. Opening an Athena connection loads the driver configuration and
+ * authenticates the credentials, so a long running or multi-query program can save the connection latency by
+ * reusing "warm" connections.
+ * </p>
+ * <ul>
+ *     <li>At most maxSize connections are borrowed at one time. A borrow blocks until a connection is returned.</li>
+ *     <li>An idle connection is validated when it is borrowed. A connection that is not valid is closed and
+ *     replaced.</li>
+ *     <li>Connections that have been idle for longer than maxIdleMillis are closed by a background task.</li>
+ * </ul>
+ * <p>
+ *     A borrowed connection is returned to the pool by its close() method, so it can be used in a
+ *     try-with-resources block in the same way as a connection from the DriverManager.
+ * </p>
+ */
+@Slf4j
+public class AthenaConnectionPool implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(AthenaConnectionPool.class);
+    public static final long DEFAULT_MAX_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+    /**
+     * Opens a new physical connection.
+     */
+    public interface ConnectionFactory {
+        Connection open() throws SQLException;
+    }
+
+    private static class IdleConnection {
+        final Connection conn;
+        final long idleSince;
+
+        IdleConnection(Connection conn, long idleSince) {
+            this.conn = conn;
+            this.idleSince = idleSince;
+        }
+    }
+
+    private final ConnectionFactory factory;
+    private final long maxIdleMillis;
+    private final Semaphore permits;
+    private final Deque<IdleConnection> idleConnections = new ArrayDeque<>();
+    private final ScheduledExecutorService evictor;
+    private boolean closed = false;
+
+    public AthenaConnectionPool(ConnectionFactory factory, int maxSize, long maxIdleMillis) {
+        this.factory = factory;
+        this.maxIdleMillis = maxIdleMillis;
+        this.permits = new Semaphore(maxSize, true);
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "athena-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1000, maxIdleMillis / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public AthenaConnectionPool(ConnectionFactory factory, int maxSize) {
+        this(factory, maxSize, DEFAULT_MAX_IDLE_MILLIS);
+    }
+
+    private static void closeQuietly(Connection conn) {
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            logger.error("closeQuietly: {}", e.getLocalizedMessage());
+        }
+    }
+
+    private static boolean isValid(Connection conn) {
+        boolean valid = false;
+        try {
+            valid = (!conn.isClosed()) && conn.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            logger.error("isValid: {}", e.getLocalizedMessage());
+        }
+        return valid;
+    }
+
+    private synchronized IdleConnection pollIdle() {
+        return idleConnections.pollFirst();
+    }
+
+    /**
+     * Borrow a connection from the pool. The most recently returned connection is used first, so the connections
+     * that are not needed stay idle and are evicted.
+     *
+     * @return a pooled connection. Closing the connection returns it to the pool.
+     * @throws SQLException if the pool is closed or a new connection cannot be opened
+     */
+    public Connection borrow() throws SQLException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a pooled connection");
+        }
+        try {
+            synchronized (this) {
+                if (closed) {
+                    throw new SQLException("The connection pool is closed");
+                }
+            }
+            Connection conn = null;
+            IdleConnection idle;
+            while (conn == null && (idle = pollIdle()) != null) {
+                if (isValid(idle.conn)) {
+                    conn = idle.conn;
+                } else {
+                    closeQuietly(idle.conn);
+                }
+            }
+            if (conn == null) {
+                conn = factory.open();
+            }
+            return wrap(conn);
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void release(Connection conn) {
+        boolean keep;
+        synchronized (this) {
+            keep = !closed;
+            if (keep) {
+                idleConnections.addFirst(new IdleConnection(conn, System.currentTimeMillis()));
+            }
+        }
+        if (!keep) {
+            closeQuietly(conn);
+        }
+        permits.release();
+    }
+
+    /**
+     * Wrap a physical connection so that close() returns it to the pool rather than closing it.
+     */
+    private Connection wrap(Connection conn) {
+        boolean[] returned = { false };
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class<?>[]{ Connection.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "close":
+                            synchronized (returned) {
+                                if (!returned[0]) {
+                                    returned[0] = true;
+                                    release(conn);
+                                }
+                            }
+                            return null;
+                        case "isClosed":
+                            synchronized (returned) {
+                                if (returned[0]) {
+                                    return true;
+                                }
+                            }
+                            break;
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        default:
+                            break;
+                    }
+                    synchronized (returned) {
+                        if (returned[0]) {
+                            throw new SQLException("The connection has been returned to the pool");
+                        }
+                    }
+                    try {
+                        return method.invoke(conn, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    /**
+     * Close the connections that have been idle for longer than maxIdleMillis.
+     */
+    private void evictIdle() {
+        long cutoff = System.currentTimeMillis() - maxIdleMillis;
+        List<Connection> evicted = new ArrayList<>();
+        synchronized (this) {
+            // The oldest idle connections are at the end of the deque
+            while (!idleConnections.isEmpty() && idleConnections.peekLast().idleSince < cutoff) {
+                evicted.add(idleConnections.pollLast().conn);
+            }
+        }
+        for (Connection conn : evicted) {
+            closeQuietly(conn);
+        }
+        if (!evicted.isEmpty()) {
+            logger.info("evictIdle: closed {} idle connections", evicted.size());
+        }
+    }
+
+    public synchronized int getIdleCount() {
+        return idleConnections.size();
+    }
+
+    /**
+     * Close the idle connections and stop the eviction task. Connections that are borrowed when the pool is
+     * closed are closed when they are returned.
+     */
+    @Override
+    public void close() {
+        List<Connection> idle = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            for (IdleConnection idleConn : idleConnections) {
+                idle.add(idleConn.conn);
+            }
+            idleConnections.clear();
+        }
+        evictor.shutdownNow();
+        for (Connection conn : idle) {
+            closeQuietly(conn);
+        }
+    }
+}
@@ -1,20 +1,115 @@
 package com.topstonesoftware.athenalogs;
 
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.athena.AmazonAthena;
+import com.amazonaws.services.athena.AmazonAthenaClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
 
+/**
+ * <p>
+ * Athena database connections and DDL support.
+ * </p>
+ * <p>
+ *     If the AthenaDB object is constructed with a pool size, getAthenaConnection() borrows connections from an
+ *     AthenaConnectionPool and closing a connection returns it to the pool. The AthenaDB object should then be
+ *     closed when the program is done with it, which closes the pooled connections.
+ * </p>
+ */
 @Slf4j
-public class AthenaDB {
+public class AthenaDB implements AutoCloseable {
     private static final Logger logger = LoggerFactory.getLogger(AthenaDB.class);
-    private static final String ATHENA_BUCKET = "s3://ianlkaplan-athena-scratch";
-    private static final String ID = "AWS_ATHENA_KEY_ID";
-    private static final String KEY = "AWS_ATHENA_ACCESS_KEY";
-    private static final String REGION = "AWS_REGION";
+    static final String ATHENA_BUCKET = "s3://ianlkaplan-athena-scratch";
+    static final String ID = "AWS_ATHENA_KEY_ID";
+    static final String KEY = "AWS_ATHENA_ACCESS_KEY";
+    static final String REGION = "AWS_REGION";
+    static final String WORKGROUP = "AWS_ATHENA_WORKGROUP";
+    /** The Athena workgroup that queries run in if no workgroup is set */
+    public static final String DEFAULT_WORKGROUP = "primary";
+    /** The AWS API clients are thread safe, so one client of each kind is shared by the program */
+    private static AmazonAthena sharedAthenaClient = null;
+    private static AmazonS3 sharedS3Client = null;
+    private final Properties properties;
+    private final AthenaConnectionPool connectionPool;
+
+    public AthenaDB() {
+        this(0);
+    }
+
+    /**
+     * @param poolSize the maximum number of pooled connections. If the size is zero, connections are not pooled.
+     */
+    public AthenaDB(int poolSize) {
+        this.properties = buildProperties();
+        this.connectionPool = (poolSize > 0) ? new AthenaConnectionPool(this::openConnection, poolSize) : null;
+    }
+
+    /**
+     * @return the AWS credentials for the AWS API clients (S3, Athena), from the same environment variables that
+     * are used for the Athena connection, or an empty Optional if the variables are not set.
+     */
+    static Optional<AWSCredentialsProvider> getAwsCredentials() {
+        Optional<AWSCredentialsProvider> optCredentials = Optional.empty();
+        String id = System.getenv(ID);
+        String key = System.getenv(KEY);
+        String region = System.getenv(REGION);
+        if (id != null && (!id.isEmpty()) && key != null && (!key.isEmpty()) && region != null) {
+            optCredentials = Optional.of(new AWSStaticCredentialsProvider(new BasicAWSCredentials(id, key)));
+        }
+        return optCredentials;
+    }
+
+    static String getAwsRegion() {
+        return System.getenv(REGION);
+    }
+
+    /**
+     * @return the Athena API client (see AthenaQueryExecutor and AthenaStatistics), or an empty Optional if the AWS
+     * credentials are not set. The client is built on the first call and shared.
+     */
+    static synchronized Optional<AmazonAthena> athenaClient() {
+        if (sharedAthenaClient == null) {
+            sharedAthenaClient = getAwsCredentials().map(credentials -> AmazonAthenaClientBuilder.standard()
+                    .withRegion(getAwsRegion())
+                    .withCredentials(credentials)
+                    .build()).orElse(null);
+            if (sharedAthenaClient == null) {
+                logger.error("athenaClient: AWS credentials are not set in the environment");
+            }
+        }
+        return Optional.ofNullable(sharedAthenaClient);
+    }
+
+    /**
+     * @return the S3 client (see S3ObjectStore and S3Lister), or an empty Optional if the AWS credentials are not
+     * set. The client is built on the first call and shared.
+     */
+    static synchronized Optional<AmazonS3> s3Client() {
+        if (sharedS3Client == null) {
+            sharedS3Client = getAwsCredentials().map(credentials -> AmazonS3ClientBuilder.standard()
+                    .withRegion(getAwsRegion())
+                    .withCredentials(credentials)
+                    .build()).orElse(null);
+            if (sharedS3Client == null) {
+                logger.error("s3Client: AWS credentials are not set in the environment");
+            }
+        }
+        return Optional.ofNullable(sharedS3Client);
+    }
 
     private Properties buildProperties() {
         Properties properties = new Properties();
@@ -26,16 +121,32 @@ public class AthenaDB {
             properties.put("Password", key);
             properties.put("S3OutputLocation", ATHENA_BUCKET);
             properties.put("AwsDataCatalog", "AwsDataCatalog");
+            String workgroup = System.getenv(WORKGROUP);
+            if (workgroup != null && !workgroup.isEmpty()) {
+                properties.put("Workgroup", workgroup);
+            }
         }
         return properties;
     }
 
+    /**
+     * @return the Athena workgroup of the connections, from the AWS_ATHENA_WORKGROUP environment variable, or the
+     * primary workgroup. The query scheduler limits the queries that run at the same time in each workgroup
+     * (see QueryScheduler).
+     */
+    public String getWorkgroup() {
+        return properties.getProperty("Workgroup", DEFAULT_WORKGROUP);
+    }
+
+    private Connection openConnection() throws SQLException {
+        String regionStr = System.getenv(REGION);
+        return DriverManager.getConnection("jdbc:awsathena://AwsRegion=" + regionStr, properties);
+    }
+
     public Optional<Connection> getAthenaConnection() throws SQLException {
         Optional<Connection> optConnection = Optional.empty();
-        Properties properties = buildProperties();
         if (properties.size() > 0) {
-            String regionStr = System.getenv(REGION);
-            Connection conn = DriverManager.getConnection("jdbc:awsathena://AwsRegion=" + regionStr, properties);
+            Connection conn = (connectionPool != null) ? connectionPool.borrow() : openConnection();
             optConnection = Optional.of(conn);
         } else {
             logger.error("Error in properties");
@@ -43,44 +154,230 @@ public class AthenaDB {
         return optConnection;
     }
 
-    public static int executeUpdate(Connection conn, String sql) throws SQLException {
-        try(Statement stmt = conn.createStatement()) {
-            return stmt.executeUpdate(sql);
+    @Override
+    public void close() {
+        if (connectionPool != null) {
+            connectionPool.close();
         }
     }
 
+    public static int executeUpdate(Connection conn, String sql) throws SQLException {
+        return InstrumentedQuery.executeUpdate(conn, "executeUpdate", sql);
+    }
+
     public static boolean execute(Connection conn, String sql) throws SQLException {
-        try(Statement stmt = conn.createStatement()) {
-            return stmt.execute(sql);
+        return InstrumentedQuery.execute(conn, "execute", sql);
+    }
+
+    /**
+     * @param label the name of the statement in the query metrics (see QueryMetrics)
+     */
+    public static boolean execute(Connection conn, String label, String sql) throws SQLException {
+        return InstrumentedQuery.execute(conn, label, sql);
+    }
+
+
+    /**
+     * Check whether a table exists. The show tables statement is given the table name as its pattern, so only the
+     * matching table is returned rather than every table in the database. The result is checked for an exact
+     * match, since * and | are wildcard characters in the pattern.
+     *
+     * @param database the database name
+     * @param tableName the table name
+     * @return true if the table is in the database
+     */
+    public static boolean hasTable(Connection conn, String database, String tableName) throws SQLException {
+        final String query = "show tables in " + database + " '" + tableName.replace("'", "''") + "'";
+        List<String> tables = new ArrayList<>();
+        InstrumentedQuery.query(conn, "hasTable", query, result -> tables.add(result.getString(1)));
+        return tables.stream().anyMatch(tableName::equalsIgnoreCase);
+    }
+
+    /**
+     * Create the database if it is not in the catalog cache.
+     */
+    private static void buildDatabase(Connection conn, CatalogCache catalog, String database) throws SQLException {
+        if (! catalog.hasDatabase(database)) {
+            final String createDB = "create database if not exists " + database;
+            AthenaDB.executeUpdate(conn, createDB);
+            catalog.putDatabase(database);
+        }
+    }
+
+    /**
+     * Create a table, if it does not exist. The check is skipped if the catalog cache has the table with the same
+     * DDL.
+     */
+    private static void buildTable(Connection conn, CatalogCache catalog, String database, String table,
+                                   String createTableDDL) throws SQLException {
+        if (! catalog.isTableCurrent(database, table, createTableDDL)) {
+            if (! AthenaDB.hasTable(conn, database, table)) {
+                AthenaDB.execute(conn, createTableDDL);
+            }
+            catalog.putTable(database, table, createTableDDL);
         }
     }
 
+    public static void buildDatabaseAndTable(Connection conn, String database, String logTable, String orcFilePath) throws SQLException {
+        buildDatabaseAndTable(conn, CatalogCache.empty(), database, logTable, orcFilePath);
+    }
+
+    /**
+     * Build the database and the log table. The statements for the database and table are skipped if they are in
+     * the catalog cache (see CatalogCache).
+     */
+    public static void buildDatabaseAndTable(Connection conn, CatalogCache catalog, String database, String logTable,
+                                             String orcFilePath) throws SQLException {
+        buildDatabase(conn, catalog, database);
+        buildTable(conn, catalog, database, logTable, LogDDL.getLogTableDDL(database, logTable, orcFilePath));
+        catalog.save();
+    }
 
-    public static boolean hasTable(Connection conn, String tableName) throws SQLException {
-        final String query = "show tables in orclogdb";
-        boolean foundTable = false;
-        try (Statement stmt = conn.createStatement()) {
-            try (ResultSet result = stmt.executeQuery(query)) {
-                while (result.next()) {
-                    String table = result.getString("tab_name");
-                    if (table != null && table.length() > 0 && table.equals(tableName)) {
-                        foundTable = true;
-                        break;
+    /**
+     * <p>
+     * Get the values of a partition column. The show partitions statement reads the table metadata, so no data is
+     * scanned. Each row has the form column=value (e.g., domain=bearcave.com). For a table that is partitioned by
+     * more than one column the columns are separated by a "/", so a value can be in more than one row.
+     * </p>
+     *
+     * @return a list of the distinct partition values for the column, in the order they are listed
+     */
+    public static List<String> getPartitionValues(Connection conn, String database, String tableName, String column) throws SQLException {
+        final String query = "show partitions " + database + "." + tableName;
+        final String prefix = column + "=";
+        Set<String> values = new LinkedHashSet<>();
+        InstrumentedQuery.query(conn, "showPartitions", query, result -> {
+            String partition = result.getString(1);
+            if (partition != null) {
+                for (String partitionValue : partition.split("/")) {
+                    if (partitionValue.startsWith(prefix)) {
+                        values.add(partitionValue.substring(prefix.length()));
                     }
                 }
             }
-        }
-        return foundTable;
+        });
+        return new ArrayList<>(values);
     }
 
+    /**
+     * Get the partition values for a table that is partitioned by domain.
+     *
+     * @return a list of the domain partition values
+     */
+    public static List<String> getPartitionDomains(Connection conn, String database, String tableName) throws SQLException {
+        return getPartitionValues(conn, database, tableName, LogDDL.PARTITION_COLUMN);
+    }
 
-    public static void buildDatabaseAndTable(Connection conn, String database, String logTable, String orcFilePath) throws SQLException {
-        final String createDB = "create database if not exists " + database;
-        AthenaDB.executeUpdate(conn, createDB);
-        if (! AthenaDB.hasTable(conn, logTable)) {
-            String createTableQuery = LogDDL.getLogTableDDL(database, logTable, orcFilePath);
-            AthenaDB.execute(conn, createTableQuery);
+    /**
+     * <p>
+     * Build the database and a log table that is partitioned by domain. The domain partitions are then added (or
+     * refreshed) with an alter table statement, so that a query with a where clause on the domain column only
+     * scans the ORC files for that domain.
+     * </p>
+     * <p>
+     *     The domains are the S3 path prefixes under the ORC file path (see S3Lister). Note that if a table with
+     *     the same name was built without partitions, it must be dropped first.
+     * </p>
+     *
+     * @param domains the domain prefixes under the ORC file path (e.g., bearcave.com, topstonesoftware.com)
+     */
+    public static void buildDatabaseAndTable(Connection conn, String database, String logTable, String orcFilePath,
+                                             List<String> domains) throws SQLException {
+        buildDatabaseAndTable(conn, CatalogCache.empty(), database, logTable, orcFilePath, domains);
+    }
+
+    /**
+     * Build the database and a log table that is partitioned by domain (see above). The statements for the
+     * database, the table and the partitions are skipped if they are in the catalog cache with the same DDL, so a
+     * new domain partition causes the partitions to be added again.
+     */
+    public static void buildDatabaseAndTable(Connection conn, CatalogCache catalog, String database, String logTable,
+                                             String orcFilePath, List<String> domains) throws SQLException {
+        buildDatabase(conn, catalog, database);
+        buildTable(conn, catalog, database, logTable, LogDDL.getPartitionedLogTableDDL(database, logTable, orcFilePath));
+        if (! domains.isEmpty()) {
+            String addPartitions = LogDDL.getAddPartitionsDDL(database, logTable, orcFilePath, domains);
+            if (! catalog.isPartitionsCurrent(database, logTable, addPartitions)) {
+                AthenaDB.execute(conn, addPartitions);
+                catalog.putPartitions(database, logTable, addPartitions);
+            }
+        } else {
+            logger.error("buildDatabaseAndTable: no domain partitions found under {}", orcFilePath);
+        }
+        catalog.save();
+    }
+
+    /**
+     * Build the database and a log table that is partitioned by domain and day (see
+     * LogDDL.getDatePartitionedLogTableDDL), and add the (domain, day) partitions. As for the domain partitions,
+     * the partition statements are skipped if the partition list is unchanged in the catalog cache. A new day
+     * changes the list, and the statements add the new partitions (the existing partitions are skipped by the
+     * "if not exists" clause).
+     *
+     * @param domainDays the days for each domain (see S3Lister.listDatePartitions)
+     */
+    public static void buildDatabaseAndDatedTable(Connection conn, CatalogCache catalog, String database, String logTable,
+                                                  String orcFilePath, Map<String, List<String>> domainDays) throws SQLException {
+        buildDatabase(conn, catalog, database);
+        buildTable(conn, catalog, database, logTable, LogDDL.getDatePartitionedLogTableDDL(database, logTable, orcFilePath));
+        List<String> addPartitions = LogDDL.getAddDatePartitionsDDL(database, logTable, orcFilePath, domainDays);
+        if (! addPartitions.isEmpty()) {
+            String partitionsDDL = String.join("\n", addPartitions);
+            if (! catalog.isPartitionsCurrent(database, logTable, partitionsDDL)) {
+                for (String addPartitionsStatement : addPartitions) {
+                    AthenaDB.execute(conn, "addDatePartitions", addPartitionsStatement);
+                }
+                catalog.putPartitions(database, logTable, partitionsDDL);
+            }
+        } else {
+            logger.error("buildDatabaseAndDatedTable: no date partitions found under {}", orcFilePath);
         }
+        catalog.save();
+    }
+
+    /**
+     * Point a (domain, day) partition of a date partitioned log table at a new location, for example the compacted
+     * ORC files for the partition (see LogCompactor). The location is changed in one catalog update, so the queries
+     * that are running read the old files and the later queries read the new files. The old files are not deleted.
+     *
+     * @param s3Location the new location, a bucket and path without the s3:// prefix
+     */
+    public static void setDatePartitionLocation(Connection conn, String database, String logTable, String domain,
+                                                String day, String s3Location) throws SQLException {
+        AthenaDB.execute(conn, "setPartitionLocation",
+                LogDDL.getSetDatePartitionLocationDDL(database, logTable, domain, day, s3Location));
+    }
+
+    /**
+     * Read the location of a (domain, day) partition of a date partitioned log table from the catalog. The describe
+     * statement lists the partition metadata, one item per row, and the location row has the form
+     * "Location:  s3://bucket/path".
+     *
+     * @return the location, a bucket and path without the s3:// prefix, or an empty Optional if the partition
+     * does not have a location
+     */
+    public static Optional<String> getDatePartitionLocation(Connection conn, String database, String logTable,
+                                                            String domain, String day) throws SQLException {
+        final String locationLabel = "Location:";
+        List<String> locations = new ArrayList<>();
+        InstrumentedQuery.query(conn, "describePartition",
+                LogDDL.getDescribeDatePartitionDDL(database, logTable, domain, day), result -> {
+            StringBuilder row = new StringBuilder();
+            for (int i = 1; i <= result.getMetaData().getColumnCount(); i++) {
+                String column = result.getString(i);
+                if (column != null) {
+                    row.append(column).append(' ');
+                }
+            }
+            String line = row.toString().trim();
+            if (line.startsWith(locationLabel)) {
+                locations.add(line.substring(locationLabel.length()).trim());
+            }
+        });
+        return locations.stream()
+                .findFirst()
+                .filter(location -> !location.isEmpty())
+                .map(location -> location.startsWith("s3://") ? location.substring("s3://".length()) : location);
     }
 
 }
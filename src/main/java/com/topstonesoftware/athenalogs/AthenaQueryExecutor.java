@@ -0,0 +1,102 @@
+package com.topstonesoftware.athenalogs;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.athena.AmazonAthena;
+import com.amazonaws.services.athena.model.*;
+
+import java.sql.SQLException;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Run Athena queries with the Athena API (StartQueryExecution), rather than through JDBC. The query state is
+ * polled with GetQueryExecution. The poll interval starts at INITIAL_POLL_MILLIS and doubles after each poll, up
+ * to MAX_POLL_MILLIS, so a short query is seen as done soon after it finishes and a long query is not polled more
+ * often than it needs to be.
+ * </p>
+ * <p>
+ *     The Athena API calls and the polling are done on a single scheduler thread, so submit() does not block and
+ *     many queries can be in flight without a thread for each one.
+ * </p>
+ */
+public class AthenaQueryExecutor implements QueryExecutor, AutoCloseable {
+    private static final long INITIAL_POLL_MILLIS = 200;
+    private static final long MAX_POLL_MILLIS = 5000;
+    private static final String SUCCEEDED = "SUCCEEDED";
+    private static final String FAILED = "FAILED";
+    private static final String CANCELLED = "CANCELLED";
+    private final AmazonAthena athenaClient;
+    private final String database;
+    private final String outputLocation;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param athenaClient the Athena API client
+     * @param database the database for the queries
+     * @param outputLocation the S3 location for the query result files (e.g., s3://ianlkaplan-athena-scratch)
+     */
+    public AthenaQueryExecutor(AmazonAthena athenaClient, String database, String outputLocation) {
+        this.athenaClient = athenaClient;
+        this.database = database;
+        this.outputLocation = outputLocation;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "athena-query-poller");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Build an executor with the shared Athena client (see AthenaDB.athenaClient) and the result location of the
+     * Athena connection. Closing the executor does not shut down the shared client.
+     */
+    public static Optional<AthenaQueryExecutor> fromEnvironment(String database) {
+        return AthenaDB.athenaClient().map(client -> new AthenaQueryExecutor(client, database, AthenaDB.ATHENA_BUCKET));
+    }
+
+    @Override
+    public CompletableFuture<AsyncQueryResult> submit(String sql) {
+        CompletableFuture<AsyncQueryResult> future = new CompletableFuture<>();
+        scheduler.execute(() -> {
+            try {
+                StartQueryExecutionRequest request = new StartQueryExecutionRequest()
+                        .withQueryString(sql)
+                        .withQueryExecutionContext(new QueryExecutionContext().withDatabase(database))
+                        .withResultConfiguration(new ResultConfiguration().withOutputLocation(outputLocation));
+                String queryId = athenaClient.startQueryExecution(request).getQueryExecutionId();
+                scheduler.schedule(() -> poll(queryId, future, INITIAL_POLL_MILLIS), INITIAL_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (AmazonClientException e) {
+                future.completeExceptionally(new SQLException("submit: " + e.getLocalizedMessage(), e));
+            }
+        });
+        return future;
+    }
+
+    private void poll(String queryId, CompletableFuture<AsyncQueryResult> future, long pollMillis) {
+        try {
+            QueryExecution execution = athenaClient.getQueryExecution(
+                    new GetQueryExecutionRequest().withQueryExecutionId(queryId)).getQueryExecution();
+            String state = execution.getStatus().getState();
+            if (SUCCEEDED.equals(state)) {
+                future.complete(new AsyncQueryResult(queryId, execution.getResultConfiguration().getOutputLocation()));
+            } else if (FAILED.equals(state) || CANCELLED.equals(state)) {
+                future.completeExceptionally(new SQLException("Query " + queryId + " " + state + ": " +
+                        execution.getStatus().getStateChangeReason()));
+            } else if (! future.isDone()) {
+                long nextPollMillis = Math.min(pollMillis * 2, MAX_POLL_MILLIS);
+                scheduler.schedule(() -> poll(queryId, future, nextPollMillis), nextPollMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (AmazonClientException e) {
+            future.completeExceptionally(new SQLException("poll: " + e.getLocalizedMessage(), e));
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
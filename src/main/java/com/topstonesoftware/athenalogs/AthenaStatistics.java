@@ -0,0 +1,57 @@
+package com.topstonesoftware.athenalogs;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.athena.AmazonAthena;
+import com.amazonaws.services.athena.model.GetQueryExecutionRequest;
+import com.amazonaws.services.athena.model.QueryExecutionStatistics;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Optional;
+
+/**
+ * Read the execution statistics for an Athena query (the queue time, the engine execution time and the bytes
+ * scanned) with the Athena GetQueryExecution API.
+ */
+@Slf4j
+public class AthenaStatistics {
+    private static final Logger logger = LoggerFactory.getLogger(AthenaStatistics.class);
+    private final AmazonAthena athenaClient;
+
+    public AthenaStatistics(AmazonAthena athenaClient) {
+        this.athenaClient = athenaClient;
+    }
+
+    /**
+     * Read the statistics with the shared Athena client (see AthenaDB.athenaClient), which uses the same environment
+     * variables as the Athena connection.
+     */
+    public static Optional<AthenaStatistics> fromEnvironment() {
+        return AthenaDB.athenaClient().map(AthenaStatistics::new);
+    }
+
+    private static long valueOrUnknown(Long value) {
+        return (value != null) ? value : QueryStats.UNKNOWN;
+    }
+
+    /**
+     * Fill in the Athena statistics for a query. The statistics are not changed if the query has no query ID or
+     * the statistics cannot be read.
+     */
+    public void addStatistics(QueryStats stats) {
+        if (stats.getQueryId() != null) {
+            try {
+                GetQueryExecutionRequest request = new GetQueryExecutionRequest().withQueryExecutionId(stats.getQueryId());
+                QueryExecutionStatistics statistics = athenaClient.getQueryExecution(request).getQueryExecution().getStatistics();
+                if (statistics != null) {
+                    stats.setQueueMillis(valueOrUnknown(statistics.getQueryQueueTimeInMillis()));
+                    stats.setEngineMillis(valueOrUnknown(statistics.getEngineExecutionTimeInMillis()));
+                    stats.setBytesScanned(valueOrUnknown(statistics.getDataScannedInBytes()));
+                }
+            } catch (AmazonClientException e) {
+                logger.error("addStatistics: {}", e.getLocalizedMessage());
+            }
+        }
+    }
+}
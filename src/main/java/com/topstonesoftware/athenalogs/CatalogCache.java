@@ -0,0 +1,152 @@
+package com.topstonesoftware.athenalogs;
+
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * <p>
+ * A local cache of the Athena catalog objects that the program has created: databases, tables and table partitions.
+ * Each table and partition set is stored with a fingerprint (the SHA-256 hash) of the DDL that built it:
+ * </p>
+ * <pre>
+ *     database.orclogdb=-,1625097600000
+ *     table.orclogdb.httplogs=3f1a...,1625097600000
+ *     partitions.orclogdb.httplogs=9c2e...,1625097600000
+ * </pre>
+ * <p>
+ *     If the DDL for an object has not changed since it was run (and the entry has not expired) the DDL statements
+ *     for it are skipped, which saves the Athena round trips at startup. When the DDL changes (for example, a new
+ *     domain partition) the fingerprint does not match and the DDL is run again.
+ * </p>
+ * <p>
+ *     The cache can not see changes that are made outside of the program, such as a dropped table. Entries expire
+ *     after the time-to-live, so the catalog is checked again from time to time, and the cache file can be deleted
+ *     to force a check.
+ * </p>
+ */
+@Slf4j
+public class CatalogCache {
+    private static final Logger logger = LoggerFactory.getLogger(CatalogCache.class);
+    private static final String NO_FINGERPRINT = "-";
+    private final Path cacheFile;
+    private final long ttlMillis;
+    private final Properties entries = new Properties();
+    private boolean changed = false;
+
+    /**
+     * @param cacheFile the cache file, or null for a cache that is not saved
+     * @param ttlMillis the time-to-live for a cache entry
+     */
+    public CatalogCache(Path cacheFile, long ttlMillis) {
+        this.cacheFile = cacheFile;
+        this.ttlMillis = ttlMillis;
+        if (cacheFile != null && Files.exists(cacheFile)) {
+            try (InputStream in = Files.newInputStream(cacheFile)) {
+                entries.load(in);
+            } catch (IOException | IllegalArgumentException e) {
+                logger.error("CatalogCache: could not read {}: {}", cacheFile, e.getLocalizedMessage());
+                entries.clear();
+            }
+        }
+    }
+
+    /**
+     * @return a cache that is empty and is not saved, so every DDL statement is run
+     */
+    public static CatalogCache empty() {
+        return new CatalogCache(null, -1);
+    }
+
+    private static String fingerprint(String ddl) {
+        return FacetCache.hashKey(ddl.trim().replaceAll("\\s+", " "));
+    }
+
+    private synchronized boolean isCurrent(String key, String fingerprint) {
+        String entry = entries.getProperty(key);
+        if (entry == null) {
+            return false;
+        }
+        int comma = entry.lastIndexOf(',');
+        try {
+            long createdMillis = Long.parseLong(entry.substring(comma + 1));
+            return comma > 0 && entry.substring(0, comma).equals(fingerprint) &&
+                   System.currentTimeMillis() - createdMillis <= ttlMillis;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private synchronized void put(String key, String fingerprint) {
+        entries.setProperty(key, fingerprint + "," + System.currentTimeMillis());
+        changed = true;
+    }
+
+    public boolean hasDatabase(String database) {
+        return isCurrent("database." + database, NO_FINGERPRINT);
+    }
+
+    public void putDatabase(String database) {
+        put("database." + database, NO_FINGERPRINT);
+    }
+
+    /**
+     * @return true if the table was built with the same DDL
+     */
+    public boolean isTableCurrent(String database, String table, String ddl) {
+        return isCurrent("table." + database + "." + table, fingerprint(ddl));
+    }
+
+    public void putTable(String database, String table, String ddl) {
+        put("table." + database + "." + table, fingerprint(ddl));
+    }
+
+    /**
+     * @return true if the partitions were added with the same DDL (see LogDDL.getAddPartitionsDDL)
+     */
+    public boolean isPartitionsCurrent(String database, String table, String ddl) {
+        return isCurrent("partitions." + database + "." + table, fingerprint(ddl));
+    }
+
+    public void putPartitions(String database, String table, String ddl) {
+        put("partitions." + database + "." + table, fingerprint(ddl));
+    }
+
+    /**
+     * Remove the entries for a table, for example after the table is dropped.
+     */
+    public synchronized void invalidateTable(String database, String table) {
+        String suffix = "." + database + "." + table;
+        changed |= entries.remove("table" + suffix) != null;
+        changed |= entries.remove("partitions" + suffix) != null;
+    }
+
+    /**
+     * Write the cache file, if there are changes. The file is written to a temporary file and renamed, so a
+     * reader never sees a partial file.
+     */
+    public synchronized void save() {
+        if (cacheFile != null && changed) {
+            try {
+                Path dir = cacheFile.toAbsolutePath().getParent();
+                Files.createDirectories(dir);
+                Path tmpFile = Files.createTempFile(dir, "catalog", ".tmp");
+                try (OutputStream out = Files.newOutputStream(tmpFile)) {
+                    entries.store(out, "athena_logs catalog cache");
+                }
+                Files.move(tmpFile, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+                changed = false;
+            } catch (IOException e) {
+                logger.error("save: {}", e.getLocalizedMessage());
+            }
+        }
+    }
+}
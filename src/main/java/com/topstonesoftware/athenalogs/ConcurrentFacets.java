@@ -0,0 +1,189 @@
+package com.topstonesoftware.athenalogs;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.*;
+
+/**
+ * <p>
+ * Run the independent facet queries for a domain report at the same time. An Athena query spends most of its
+ * time queued or scanning the ORC data, so when the queries are run one after another the report time is the sum
+ * of the query times. When they run concurrently the report time is close to the time of the slowest query.
+ * </p>
+ * <p>
+ *     Each query runs on its own connection, since a JDBC connection should not be shared between threads. The
+ *     number of queries in flight is bounded by the size of the thread pool.
+ * </p>
+ */
+@Slf4j
+public class ConcurrentFacets {
+    private static final Logger logger = LoggerFactory.getLogger(ConcurrentFacets.class);
+    public static final int DEFAULT_MAX_QUERIES = 3;
+    public static final int TOP_REFERRERS = 10;
+    private final AthenaDB athenaDB;
+    private final String database;
+    private final String logTable;
+    private final boolean partitioned;
+    private final int maxQueries;
+    private boolean datePartitioned = false;
+    private TimeRange timeRange = null;
+    private FacetCache resultCache = null;
+    private String tableFingerprint = "";
+    private String rollupTable = null;
+    private LocalDate rolledUpThrough = null;
+    private QueryScheduler scheduler = null;
+    private String workgroup = null;
+    private QueryScheduler.Priority priority = QueryScheduler.Priority.INTERACTIVE;
+    private ScanEstimator scanEstimator = null;
+
+    public ConcurrentFacets(AthenaDB athenaDB, String database, String logTable, boolean partitioned, int maxQueries) {
+        this.athenaDB = athenaDB;
+        this.database = database;
+        this.logTable = logTable;
+        this.partitioned = partitioned;
+        this.maxQueries = maxQueries;
+    }
+
+    public ConcurrentFacets(AthenaDB athenaDB, String database, String logTable, boolean partitioned) {
+        this(athenaDB, database, logTable, partitioned, DEFAULT_MAX_QUERIES);
+    }
+
+    /**
+     * Use a result cache for the facet queries (see LogDataFacets.setResultCache)
+     */
+    public void setResultCache(FacetCache resultCache, String tableFingerprint) {
+        this.resultCache = resultCache;
+        this.tableFingerprint = tableFingerprint;
+    }
+
+    /**
+     * Read the path and referrer counts from a daily rollup table (see LogDataFacets.setRollup)
+     */
+    public void setRollup(String rollupTable, LocalDate rolledUpThrough) {
+        this.rollupTable = rollupTable;
+        this.rolledUpThrough = rolledUpThrough;
+    }
+
+    /**
+     * @param datePartitioned true if the log table is also partitioned by day (see LogDDL.getDatePartitionedLogTableDDL)
+     */
+    public void setDatePartitioned(boolean datePartitioned) {
+        this.datePartitioned = datePartitioned;
+    }
+
+    /**
+     * Limit the facets to the requests in a time range (see LogDataFacets.setTimeRange)
+     */
+    public void setTimeRange(TimeRange timeRange) {
+        this.timeRange = timeRange;
+    }
+
+    /**
+     * Run the facet queries through a query scheduler (see LogDataFacets.setScheduler)
+     */
+    public void setScheduler(QueryScheduler scheduler, String workgroup, QueryScheduler.Priority priority) {
+        this.scheduler = scheduler;
+        this.workgroup = workgroup;
+        this.priority = priority;
+    }
+
+    /**
+     * Charge the facet queries to a scan budget (see LogDataFacets.setScanEstimator). The queries share the budget.
+     */
+    public void setScanEstimator(ScanEstimator scanEstimator) {
+        this.scanEstimator = scanEstimator;
+    }
+
+    private interface FacetQuery<T> {
+        T query(LogDataFacets facets, Connection conn);
+    }
+
+    /**
+     * Open a connection for a single facet query and close it when the query is done.
+     *
+     * @throws FacetQueryException if there is no connection for the query
+     */
+    private <T> Callable<T> withConnection(String facetName, FacetQuery<T> facetQuery) {
+        return () -> {
+            Optional<Connection> optConn;
+            try {
+                optConn = athenaDB.getAthenaConnection();
+            } catch (SQLException e) {
+                throw new FacetQueryException(facetName, e);
+            }
+            if (optConn.isEmpty()) {
+                throw new FacetQueryException(facetName, "there is no Athena connection");
+            }
+            try (Connection conn = optConn.get()) {
+                LogDataFacets facets = new LogDataFacets(conn, database, logTable, partitioned, datePartitioned);
+                facets.setTimeRange(timeRange);
+                if (resultCache != null) {
+                    facets.setResultCache(resultCache, tableFingerprint);
+                }
+                if (rollupTable != null) {
+                    facets.setRollup(rollupTable, rolledUpThrough);
+                }
+                if (scheduler != null) {
+                    facets.setScheduler(scheduler, workgroup, priority);
+                }
+                facets.setScanEstimator(scanEstimator);
+                return facetQuery.query(facets, conn);
+            }
+        };
+    }
+
+    /**
+     * @throws FacetQueryException if the facet query failed or was interrupted, so that the report is not built
+     * from an empty result
+     * @throws ScanBudgetException if the facet query was over the scan budget
+     */
+    private <T> T getResult(Future<T> future, String facetName) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FacetQueryException(facetName, "interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ScanBudgetException) {
+                throw (ScanBudgetException) e.getCause();
+            }
+            throw FacetQueryException.wrap(facetName, e);
+        }
+    }
+
+    /**
+     * Run the end point, path and top referrer queries concurrently. The results are collected in the same order as
+     * they would be by the sequential queries, so the report does not depend on which query finishes first.
+     *
+     * @param domain the domain for the path and referrer queries
+     * @return the combined results of the facet queries
+     * @throws FacetQueryException if any of the facet queries failed
+     */
+    public FacetReport runFacets(String domain) {
+        ExecutorService executor = Executors.newFixedThreadPool(maxQueries);
+        try {
+            Future<List<String>> domainFuture = executor.submit(
+                    withConnection("getEndPoints", (facets, conn) -> facets.getEndPoints()));
+            Future<DirTreeNode> pathFuture = executor.submit(
+                    withConnection("buildPathTree", (facets, conn) -> facets.buildPathTree(conn, database, logTable, domain)));
+            Future<List<Pair<String, Integer>>> referrerFuture = executor.submit(
+                    withConnection("getReferrers",
+                            (facets, conn) -> facets.getTopReferrers(conn, database, logTable, domain, TOP_REFERRERS).getReferrers()));
+            List<String> domains = getResult(domainFuture, "getEndPoints");
+            DirTreeNode pathTree = getResult(pathFuture, "buildPathTree");
+            List<Pair<String, Integer>> referrers = getResult(referrerFuture, "getReferrers");
+            return new FacetReport(domains, pathTree, referrers);
+        } finally {
+            // If a query failed the report is not built, so the queries that are still running are interrupted
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.topstonesoftware.athenalogs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.stream.Collector;
+
+/**
+ * <p>
+ * Read an Athena CSV query result file in parallel byte range chunks. Each chunk is read on its own thread, with
+ * its own range request, and its rows are collected into its own accumulator. The accumulators are then combined,
+ * in chunk order, with the collector combiner. For a large result (e.g., all of the paths for a big site) this is
+ * much faster than paging the result through the JDBC driver.
+ * </p>
+ * <p>
+ *     The chunks are split at line boundaries: a chunk reads the lines that start in its byte range. The first
+ *     partial line of a chunk belongs to the previous chunk, and the last line of a chunk is read past the end of
+ *     the range. The first line of the file is the column header, which is skipped.
+ * </p>
+ * <p>
+ *     Athena quotes every field, doubles the quotes in a value and writes a null as an empty, unquoted field.
+ *     The rows are split on the newline character, so the values must not contain newlines. This is true for the
+ *     S3 log values (each log record is one line).
+ * </p>
+ */
+public class CsvResultReader {
+    public static final long DEFAULT_CHUNK_SIZE = 8L * 1024 * 1024;
+    /** The limit on the length of a line that extends past the end of a chunk */
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private final ObjectStore objectStore;
+    private final ExecutorService readPool;
+    private final long chunkSize;
+
+    /**
+     * @param objectStore the store for the result files
+     * @param readPool the threads that read the chunks
+     * @param chunkSize the size of a chunk in bytes
+     */
+    public CsvResultReader(ObjectStore objectStore, ExecutorService readPool, long chunkSize) {
+        this.objectStore = objectStore;
+        this.readPool = readPool;
+        this.chunkSize = chunkSize;
+    }
+
+    public CsvResultReader(ObjectStore objectStore, ExecutorService readPool) {
+        this(objectStore, readPool, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Parse a CSV line.
+     *
+     * @return the field values. An empty unquoted field is a null value.
+     */
+    static String[] parseCsvLine(String line) {
+        List<String> fields = new ArrayList<>();
+        int length = line.length();
+        int i = 0;
+        boolean moreFields = true;
+        while (moreFields) {
+            if (i < length && line.charAt(i) == '"') {
+                StringBuilder field = new StringBuilder();
+                i++;
+                boolean inQuotes = true;
+                while (i < length && inQuotes) {
+                    char ch = line.charAt(i);
+                    if (ch == '"' && i + 1 < length && line.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i += 2;
+                    } else if (ch == '"') {
+                        inQuotes = false;
+                        i++;
+                    } else {
+                        field.append(ch);
+                        i++;
+                    }
+                }
+                fields.add(field.toString());
+            } else {
+                int comma = line.indexOf(',', i);
+                int fieldEnd = (comma < 0) ? length : comma;
+                fields.add((fieldEnd > i) ? line.substring(i, fieldEnd) : null);
+                i = fieldEnd;
+            }
+            if (i < length && line.charAt(i) == ',') {
+                i++;
+            } else {
+                moreFields = false;
+            }
+        }
+        return fields.toArray(new String[0]);
+    }
+
+    private static <A> void acceptLine(byte[] line, int lineLength, A accumulator, BiConsumer<A, String[]> rowConsumer) {
+        int length = (lineLength > 0 && line[lineLength - 1] == '\r') ? lineLength - 1 : lineLength;
+        rowConsumer.accept(accumulator, parseCsvLine(new String(line, 0, length, StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Read the rows that start in [chunkStart, chunkEnd) into an accumulator.
+     */
+    private <A> A readChunk(String location, long fileSize, long chunkStart, long chunkEnd, A accumulator,
+                            BiConsumer<A, String[]> rowConsumer) throws IOException {
+        // Start one byte early, so that if the chunk starts at a line boundary the newline is skipped
+        long readStart = (chunkStart == 0) ? 0 : chunkStart - 1;
+        long readEnd = Math.min(fileSize, chunkEnd + MAX_LINE_LENGTH);
+        boolean skipPartialLine = chunkStart > 0;
+        boolean isHeader = chunkStart == 0;
+        byte[] line = new byte[256];
+        int lineLength = 0;
+        long lineStart = readStart;
+        long offset = readStart;
+        boolean done = false;
+        try (InputStream in = objectStore.openRange(location, readStart, readEnd)) {
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            int bytesRead;
+            while (!done && (bytesRead = in.read(buffer)) > 0) {
+                for (int i = 0; i < bytesRead && !done; i++) {
+                    byte b = buffer[i];
+                    offset++;
+                    if (skipPartialLine) {
+                        if (b == '\n') {
+                            skipPartialLine = false;
+                            lineStart = offset;
+                            done = lineStart >= chunkEnd;
+                        }
+                    } else if (b == '\n') {
+                        if (isHeader) {
+                            isHeader = false;
+                        } else {
+                            acceptLine(line, lineLength, accumulator, rowConsumer);
+                        }
+                        lineLength = 0;
+                        lineStart = offset;
+                        done = lineStart >= chunkEnd;
+                    } else {
+                        if (lineLength == line.length) {
+                            line = Arrays.copyOf(line, line.length * 2);
+                        }
+                        line[lineLength++] = b;
+                    }
+                }
+            }
+        }
+        if (!done && !skipPartialLine && lineLength > 0 && lineStart < chunkEnd) {
+            if (offset < fileSize) {
+                throw new IOException("A line in " + location + " at offset " + lineStart + " is longer than " + MAX_LINE_LENGTH + " bytes");
+            }
+            if (!isHeader) {
+                acceptLine(line, lineLength, accumulator, rowConsumer);
+            }
+        }
+        return accumulator;
+    }
+
+    /**
+     * Read a CSV result file in parallel chunks.
+     *
+     * @param location the location of the result file in the object store
+     * @param collector the collector for the rows. Its accumulator does not need to be thread safe, since each
+     *                  chunk has its own.
+     * @return a future for the collected result. If the file cannot be read the future completes exceptionally
+     * with an UncheckedIOException.
+     */
+    public <A, R> CompletableFuture<R> read(String location, Collector<String[], A, R> collector) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return objectStore.getSize(location);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, readPool).thenCompose(fileSize -> {
+            List<CompletableFuture<A>> chunks = new ArrayList<>();
+            for (long chunkStart = 0; chunkStart < fileSize; chunkStart += chunkSize) {
+                final long start = chunkStart;
+                final long end = Math.min(fileSize, chunkStart + chunkSize);
+                chunks.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return readChunk(location, fileSize, start, end, collector.supplier().get(), collector.accumulator());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, readPool));
+            }
+            return CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+                BinaryOperator<A> combiner = collector.combiner();
+                A result = chunks.isEmpty() ? collector.supplier().get() : chunks.get(0).join();
+                for (int i = 1; i < chunks.size(); i++) {
+                    result = combiner.apply(result, chunks.get(i).join());
+                }
+                return collector.finisher().apply(result);
+            });
+        });
+    }
+}
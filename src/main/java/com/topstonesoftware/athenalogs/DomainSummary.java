@@ -0,0 +1,33 @@
+package com.topstonesoftware.athenalogs;
+
+import lombok.Getter;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * The approximate traffic summary for a domain over a range of days: the number of page requests, the number of
+ * unique visitors (distinct remote IP addresses) and the request time percentiles (see
+ * LogDataFacets.getDomainSummary).
+ */
+@Getter
+public class DomainSummary {
+    private final String domain;
+    private final LocalDate startDay;
+    private final LocalDate endDay;
+    private final long requests;
+    private final long uniqueVisitors;
+    /** (percentile, request time in milliseconds) pairs, for example (0.9, 38) */
+    private final List<Pair<Double, Long>> latencyPercentiles;
+
+    public DomainSummary(String domain, LocalDate startDay, LocalDate endDay, long requests, long uniqueVisitors,
+                         List<Pair<Double, Long>> latencyPercentiles) {
+        this.domain = domain;
+        this.startDay = startDay;
+        this.endDay = endDay;
+        this.requests = requests;
+        this.uniqueVisitors = uniqueVisitors;
+        this.latencyPercentiles = latencyPercentiles;
+    }
+}
@@ -0,0 +1,321 @@
+package com.topstonesoftware.athenalogs;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p>
+ * A cache for facet query results (lists of String, Integer pairs). Repeated path and referrer queries for the same
+ * domain return the same result until new log data is added, so the cache can save the Athena latency and the
+ * cost of the scan.
+ * </p>
+ * <p>
+ *     The cache key is built from the SQL (with the white space normalized), the bound parameter values and a
+ *     table fingerprint. The fingerprint should change when log data is added (see S3Lister.getPathFingerprint),
+ *     so that a stale result is not found under the new key.
+ * </p>
+ * <p>
+ *     There are two cache tiers:
+ * </p>
+ * <ul>
+ *     <li>An in-memory LRU map with a maximum number of entries.</li>
+ *     <li>A directory of gzipped files, one per key, which survives a restart. When the total file size is over
+ *     the maximum, the oldest files are deleted.</li>
+ * </ul>
+ * <p>
+ *     Entries older than the time-to-live are treated as a miss and removed.
+ * </p>
+ * <p>
+ *     The cache is shared by the server request threads, so the locks are only held for the map updates. The
+ *     LRU map has one lock and the index of the disk files (in the order they were written, with their sizes)
+ *     has another. The files are read, written and deleted outside of the locks. The directory is listed once,
+ *     when the cache is built, and the total file size is then kept up to date as files are written and deleted.
+ * </p>
+ */
+@Slf4j
+public class FacetCache {
+    private static final Logger logger = LoggerFactory.getLogger(FacetCache.class);
+    public static final int DEFAULT_MEMORY_ENTRIES = 64;
+    public static final long DEFAULT_MAX_DISK_BYTES = 256L * 1024 * 1024;
+    private static final String FILE_SUFFIX = ".facet.gz";
+
+    private static class CacheEntry {
+        final long createdMillis;
+        final List<Pair<String, Integer>> values;
+
+        CacheEntry(long createdMillis, List<Pair<String, Integer>> values) {
+            this.createdMillis = createdMillis;
+            this.values = values;
+        }
+    }
+
+    private final Map<String, CacheEntry> memoryCache;
+    private final Path cacheDir;
+    private final long ttlMillis;
+    private final long maxDiskBytes;
+    /** The disk tier files, in the order they were written, with their sizes */
+    private final Map<Path, Long> diskFiles = new LinkedHashMap<>();
+    private long diskBytes = 0;
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param cacheDir the directory for the disk tier, or null for a memory only cache
+     * @param ttlMillis the time-to-live for a cache entry
+     * @param maxMemoryEntries the maximum number of entries in the in-memory LRU tier
+     * @param maxDiskBytes the maximum total size of the disk tier files
+     */
+    public FacetCache(Path cacheDir, long ttlMillis, int maxMemoryEntries, long maxDiskBytes) throws IOException {
+        this.cacheDir = cacheDir;
+        this.ttlMillis = ttlMillis;
+        this.maxDiskBytes = maxDiskBytes;
+        this.memoryCache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > maxMemoryEntries;
+            }
+        };
+        if (cacheDir != null) {
+            Files.createDirectories(cacheDir);
+            loadDiskIndex();
+        }
+    }
+
+    public FacetCache(Path cacheDir, long ttlMillis) throws IOException {
+        this(cacheDir, ttlMillis, DEFAULT_MEMORY_ENTRIES, DEFAULT_MAX_DISK_BYTES);
+    }
+
+    /**
+     * Build a cache key from a query, its parameters and the table fingerprint. Runs of white space in the SQL
+     * are replaced by a single space, so that formatting differences do not change the key.
+     */
+    public static String buildKey(String sql, List<String> params, String tableFingerprint) {
+        String normalizedSql = sql.trim().replaceAll("\\s+", " ");
+        return normalizedSql + "\n" + String.join("\u0000", params) + "\n" + tableFingerprint;
+    }
+
+    /**
+     * @return the SHA-256 hash of a string, in hex
+     */
+    static String hashKey(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+
+    private boolean isExpired(CacheEntry entry) {
+        return System.currentTimeMillis() - entry.createdMillis > ttlMillis;
+    }
+
+    /**
+     * @return the cached result, if there is a result for the key that has not expired
+     */
+    public Optional<List<Pair<String, Integer>>> get(String key) {
+        CacheEntry entry;
+        synchronized (memoryCache) {
+            entry = memoryCache.get(key);
+            if (entry != null && isExpired(entry)) {
+                memoryCache.remove(key);
+                entry = null;
+            }
+        }
+        if (entry != null) {
+            memoryHits.incrementAndGet();
+        } else {
+            entry = readEntry(key);
+            if (entry != null) {
+                diskHits.incrementAndGet();
+                synchronized (memoryCache) {
+                    memoryCache.put(key, entry);
+                }
+            }
+        }
+        Optional<List<Pair<String, Integer>>> result = Optional.empty();
+        if (entry != null) {
+            result = Optional.of(new ArrayList<>(entry.values));
+        } else {
+            misses.incrementAndGet();
+        }
+        return result;
+    }
+
+    public void put(String key, List<Pair<String, Integer>> values) {
+        CacheEntry entry = new CacheEntry(System.currentTimeMillis(), Collections.unmodifiableList(new ArrayList<>(values)));
+        synchronized (memoryCache) {
+            memoryCache.put(key, entry);
+        }
+        writeEntry(key, entry);
+    }
+
+    private CacheEntry readEntry(String key) {
+        CacheEntry entry = null;
+        if (cacheDir != null) {
+            Path file = cacheDir.resolve(hashKey(key) + FILE_SUFFIX);
+            if (Files.exists(file)) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))))) {
+                    long created = in.readLong();
+                    String storedKey = readString(in);
+                    int size = in.readInt();
+                    List<Pair<String, Integer>> values = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        String str = readString(in);
+                        values.add(new ImmutablePair<>(str, in.readInt()));
+                    }
+                    CacheEntry diskEntry = new CacheEntry(created, Collections.unmodifiableList(values));
+                    if (storedKey.equals(key) && !isExpired(diskEntry)) {
+                        entry = diskEntry;
+                    } else {
+                        removeDiskFile(file);
+                        Files.deleteIfExists(file);
+                    }
+                } catch (IOException e) {
+                    logger.error("readEntry: {}", e.getLocalizedMessage());
+                }
+            }
+        }
+        return entry;
+    }
+
+    private void writeEntry(String key, CacheEntry entry) {
+        if (cacheDir != null) {
+            Path file = cacheDir.resolve(hashKey(key) + FILE_SUFFIX);
+            try {
+                // Write to a temporary file and rename it, so a reader never sees a partial entry
+                Path tmpFile = Files.createTempFile(cacheDir, "entry", ".tmp");
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tmpFile))))) {
+                    out.writeLong(entry.createdMillis);
+                    writeString(out, key);
+                    out.writeInt(entry.values.size());
+                    for (Pair<String, Integer> pair : entry.values) {
+                        writeString(out, pair.getLeft());
+                        out.writeInt(pair.getRight());
+                    }
+                }
+                long size = Files.size(tmpFile);
+                Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+                for (Path evicted : addDiskFile(file, size)) {
+                    Files.deleteIfExists(evicted);
+                }
+            } catch (IOException e) {
+                logger.error("writeEntry: {}", e.getLocalizedMessage());
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Build the index of the disk files from the cache directory, oldest first, and delete the oldest files if
+     * the total size is over the maximum.
+     */
+    private void loadDiskIndex() throws IOException {
+        List<File> files;
+        try (Stream<Path> paths = Files.list(cacheDir)) {
+            files = paths.filter(p -> p.toString().endsWith(FILE_SUFFIX))
+                    .map(Path::toFile)
+                    .sorted(Comparator.comparingLong(File::lastModified))
+                    .collect(Collectors.toList());
+        }
+        List<Path> evicted = new ArrayList<>();
+        for (File file : files) {
+            evicted.addAll(addDiskFile(file.toPath(), file.length()));
+        }
+        for (Path file : evicted) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Add a file that was written to the disk index, as the newest file, and remove the oldest files from the
+     * index until the total size is under the maximum.
+     *
+     * @return the files that were removed from the index, which the caller deletes
+     */
+    private List<Path> addDiskFile(Path file, long size) {
+        List<Path> evicted = new ArrayList<>();
+        synchronized (diskFiles) {
+            Long oldSize = diskFiles.remove(file);
+            diskBytes += size - (oldSize != null ? oldSize : 0);
+            diskFiles.put(file, size);
+            Iterator<Map.Entry<Path, Long>> oldest = diskFiles.entrySet().iterator();
+            while (diskBytes > maxDiskBytes && oldest.hasNext()) {
+                Map.Entry<Path, Long> entry = oldest.next();
+                diskBytes -= entry.getValue();
+                evicted.add(entry.getKey());
+                oldest.remove();
+            }
+        }
+        return evicted;
+    }
+
+    private void removeDiskFile(Path file) {
+        synchronized (diskFiles) {
+            Long size = diskFiles.remove(file);
+            if (size != null) {
+                diskBytes -= size;
+            }
+        }
+    }
+
+    /**
+     * @return the total size of the disk tier files
+     */
+    public long getDiskBytes() {
+        synchronized (diskFiles) {
+            return diskBytes;
+        }
+    }
+
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("memory hits: %d, disk hits: %d, misses: %d", getMemoryHits(), getDiskHits(), getMisses());
+    }
+}
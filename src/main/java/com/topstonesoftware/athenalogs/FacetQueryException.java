@@ -0,0 +1,72 @@
+package com.topstonesoftware.athenalogs;
+
+import java.sql.SQLException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A facet query failed. The facet methods throw this exception, rather than returning an empty result, so that a
+ * failed or throttled query is not reported as a domain without data.
+ */
+public class FacetQueryException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    private final String facet;
+
+    /**
+     * @param facet the name of the facet query (e.g., getPaths)
+     * @param cause the query error
+     */
+    public FacetQueryException(String facet, SQLException cause) {
+        super(facet + ": " + cause.getLocalizedMessage(), cause);
+        this.facet = facet;
+    }
+
+    /**
+     * @param facet the name of the facet query
+     * @param cause the error that stopped the query, for example an I/O error while the result file was read
+     */
+    public FacetQueryException(String facet, Throwable cause) {
+        super(facet + ": " + cause, cause);
+        this.facet = facet;
+    }
+
+    /**
+     * @param facet the name of the facet query
+     * @param message the reason the query could not run, for example that there is no Athena connection
+     */
+    public FacetQueryException(String facet, String message) {
+        super(facet + ": " + message);
+        this.facet = facet;
+    }
+
+    /**
+     * Wrap the error from a future or a thread pool task. The CompletionException or ExecutionException wrapper is
+     * removed, and a FacetQueryException is returned as it is.
+     *
+     * @param facet the name of the facet query
+     * @param error the error
+     * @return the facet query exception for the error
+     */
+    public static FacetQueryException wrap(String facet, Throwable error) {
+        Throwable cause = error;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof FacetQueryException) {
+            return (FacetQueryException) cause;
+        }
+        return (cause instanceof SQLException) ? new FacetQueryException(facet, (SQLException) cause)
+                                               : new FacetQueryException(facet, cause);
+    }
+
+    public String getFacet() {
+        return facet;
+    }
+
+    /**
+     * @return true if the query failed because Athena throttled it, after the retries (see QueryScheduler)
+     */
+    public boolean isThrottled() {
+        return getCause() instanceof SQLException && QueryScheduler.isThrottlingError((SQLException) getCause());
+    }
+}
@@ -0,0 +1,23 @@
+package com.topstonesoftware.athenalogs;
+
+import lombok.Getter;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.util.List;
+
+/**
+ * The results of the facet queries for a domain report: the domains in the log table, the page path tree
+ * (with reference counts) for the domain and the referrer sites for the domain.
+ */
+@Getter
+public class FacetReport {
+    private final List<String> domains;
+    private final DirTreeNode pathTree;
+    private final List<Pair<String, Integer>> referrers;
+
+    public FacetReport(List<String> domains, DirTreeNode pathTree, List<Pair<String, Integer>> referrers) {
+        this.domains = domains;
+        this.pathTree = pathTree;
+        this.referrers = referrers;
+    }
+}
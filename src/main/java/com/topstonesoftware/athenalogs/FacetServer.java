@@ -0,0 +1,543 @@
+package com.topstonesoftware.athenalogs;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * <p>
+ * Serve the facets over HTTP on the local host, so that a dashboard can read them without starting the program
+ * for each report. The server keeps its state warm between requests: the pooled Athena connections, the facet
+ * result cache (see FacetCache) and the domain list and path trees that were built most recently. The warm
+ * values are kept in a least recently used map of MAX_WARM_VALUES entries, since a client time range is part of
+ * the key, and a value is removed when it has been kept for the warm time (DEFAULT_WARM_TTL_MINUTES).
+ * </p>
+ * <p>
+ *     The fingerprint of the log table files (see S3Lister.getPathFingerprint) is read again every
+ *     DEFAULT_FINGERPRINT_REFRESH_MINUTES. It is part of the result cache keys and of the warm value keys, so when
+ *     new log files arrive the next request runs the query on the new data, rather than being answered from a
+ *     value computed before the files arrived.
+ * </p>
+ * <pre>
+ *     GET /domains                                 the domains in the log table
+ *     GET /paths?domain=bearcave.com&amp;limit=100     the page paths and counts
+ *     GET /referrers?domain=bearcave.com&amp;limit=10  the referrers and counts
+ *     GET /tree?domain=bearcave.com&amp;format=json&amp;maxDepth=3&amp;minCount=10&amp;topChildren=20
+ *     GET /series?domain=bearcave.com&amp;interval=hour&amp;prefix=software/&amp;days=2
+ * </pre>
+ * <p>
+ *     The responses are JSON, except for a tree in the text, ndjson or csv format (see TreeRenderer).
+ * </p>
+ * <p>
+ *     The paths, referrers, tree and series requests take an optional time range (see TimeRange.parse):
+ *     start=2021-07-01&amp;end=2021-07-07, or days=7 for the last seven days. A series without a time range
+ *     covers the last DEFAULT_SERIES_DAYS days.
+ * </p>
+ * <p>
+ *     The requests are handled on a bounded thread pool. When the pool's queue is full, a new request is handled
+ *     on the server's dispatch thread, which slows down the acceptance of more requests. Identical requests that
+ *     arrive while a request is running wait for its result (see SingleFlight), so a burst of dashboard requests
+ *     for the same domain runs one Athena query.
+ * </p>
+ * <p>
+ *     If a facet query fails the request fails, with a 503 (Service Unavailable) status if Athena throttled the
+ *     query, so a dashboard does not show an empty facet.
+ * </p>
+ */
+@Slf4j
+public class FacetServer {
+    private static final Logger logger = LoggerFactory.getLogger(FacetServer.class);
+    public static final int DEFAULT_THREADS = 8;
+    /** The time that a domain list, referrer list or path tree is kept warm */
+    public static final long DEFAULT_WARM_TTL_MINUTES = 5;
+    /** The time between reads of the table fingerprint */
+    public static final long DEFAULT_FINGERPRINT_REFRESH_MINUTES = 5;
+    private static final int QUEUE_SIZE = 64;
+    private static final int DEFAULT_REFERRER_LIMIT = 100;
+    private static final int DEFAULT_SERIES_DAYS = 7;
+    /** The number of domain lists, referrer lists and path trees that are kept warm */
+    private static final int MAX_WARM_VALUES = 64;
+    private static final String JSON_TYPE = "application/json; charset=utf-8";
+    private static final String TEXT_TYPE = "text/plain; charset=utf-8";
+    private static final String CSV_TYPE = "text/csv; charset=utf-8";
+    private final AthenaDB athenaDB;
+    private final String database;
+    private final String logTable;
+    private final boolean partitioned;
+    private boolean datePartitioned = false;
+    private final int threads;
+    private final long warmTtlMillis;
+    private final SingleFlight<String, Object> singleFlight = new SingleFlight<>();
+    private final Map<String, WarmValue> warmValues = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, WarmValue> eldest) {
+            return size() > MAX_WARM_VALUES;
+        }
+    };
+    private FacetCache resultCache = null;
+    private volatile String tableFingerprint = "";
+    private Supplier<String> fingerprintSource = null;
+    private long fingerprintRefreshMillis = 0;
+    private ScheduledExecutorService fingerprintRefresher = null;
+    private String rollupTable = null;
+    private LocalDate rolledUpThrough = null;
+    private QueryScheduler scheduler = null;
+    private String workgroup = null;
+    private HttpServer server = null;
+    private ThreadPoolExecutor executor = null;
+
+    private static class WarmValue {
+        final long createdMillis;
+        final Object value;
+
+        WarmValue(long createdMillis, Object value) {
+            this.createdMillis = createdMillis;
+            this.value = value;
+        }
+    }
+
+    /**
+     * A request error that is returned to the client with an HTTP status.
+     */
+    private static class RequestException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        private final int status;
+
+        RequestException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /**
+     * @param athenaDB the Athena connections. The AthenaDB should have a connection pool of at least threads
+     *                 connections.
+     * @param database the database name
+     * @param logTable the log table name
+     * @param partitioned true if the log table is partitioned by domain
+     * @param threads the number of request threads
+     * @param warmTtlMillis the time that a domain list or path tree is kept
+     */
+    public FacetServer(AthenaDB athenaDB, String database, String logTable, boolean partitioned, int threads,
+                       long warmTtlMillis) {
+        this.athenaDB = athenaDB;
+        this.database = database;
+        this.logTable = logTable;
+        this.partitioned = partitioned;
+        this.threads = threads;
+        this.warmTtlMillis = warmTtlMillis;
+    }
+
+    /**
+     * Use a result cache for the facet queries (see LogDataFacets.setResultCache). The table fingerprint is read
+     * now and then again every refreshMillis while the server runs.
+     *
+     * @param fingerprintSource reads the fingerprint of the log table files
+     * @param refreshMillis the time between reads of the fingerprint, or 0 to read it only once
+     */
+    public void setResultCache(FacetCache resultCache, Supplier<String> fingerprintSource, long refreshMillis) {
+        this.resultCache = resultCache;
+        this.fingerprintSource = fingerprintSource;
+        this.fingerprintRefreshMillis = refreshMillis;
+        this.tableFingerprint = fingerprintSource.get();
+    }
+
+    /**
+     * Read the table fingerprint again. If it changed, the warm values are dropped, since they were computed from
+     * the earlier files.
+     */
+    private void refreshFingerprint() {
+        try {
+            String fingerprint = fingerprintSource.get();
+            if (!fingerprint.equals(tableFingerprint)) {
+                tableFingerprint = fingerprint;
+                synchronized (warmValues) {
+                    warmValues.clear();
+                }
+                logger.info("refreshFingerprint: the files of {}.{} changed", database, logTable);
+            }
+        } catch (RuntimeException e) {
+            logger.error("refreshFingerprint: {}", e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Read the path and referrer counts from a daily rollup table (see LogDataFacets.setRollup)
+     */
+    public void setRollup(String rollupTable, LocalDate rolledUpThrough) {
+        this.rollupTable = rollupTable;
+        this.rolledUpThrough = rolledUpThrough;
+    }
+
+    /**
+     * @param datePartitioned true if the log table is also partitioned by day (see LogDDL.getDatePartitionedLogTableDDL)
+     */
+    public void setDatePartitioned(boolean datePartitioned) {
+        this.datePartitioned = datePartitioned;
+    }
+
+    /**
+     * Run the facet queries through a query scheduler, as interactive queries (see LogDataFacets.setScheduler)
+     */
+    public void setScheduler(QueryScheduler scheduler, String workgroup) {
+        this.scheduler = scheduler;
+        this.workgroup = workgroup;
+    }
+
+    /**
+     * Start the server on the loopback address.
+     *
+     * @param port the port, or 0 for any free port
+     * @return the port the server listens on
+     */
+    public int start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(QUEUE_SIZE),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        server.setExecutor(executor);
+        server.createContext("/domains", handler(this::handleDomains));
+        server.createContext("/paths", handler(this::handlePaths));
+        server.createContext("/referrers", handler(this::handleReferrers));
+        server.createContext("/tree", handler(this::handleTree));
+        server.createContext("/series", handler(this::handleSeries));
+        server.start();
+        if (fingerprintSource != null && fingerprintRefreshMillis > 0) {
+            fingerprintRefresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "fingerprint-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+            fingerprintRefresher.scheduleWithFixedDelay(this::refreshFingerprint, fingerprintRefreshMillis,
+                    fingerprintRefreshMillis, TimeUnit.MILLISECONDS);
+        }
+        logger.info("start: serving facets for {}.{} on port {}", database, logTable, server.getAddress().getPort());
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stop the server. The requests that are running are given a short time to finish.
+     */
+    public void stop() {
+        if (server != null) {
+            server.stop(1);
+            executor.shutdown();
+            if (fingerprintRefresher != null) {
+                fingerprintRefresher.shutdownNow();
+                fingerprintRefresher = null;
+            }
+            server = null;
+        }
+    }
+
+    private interface FacetHandler {
+        void handle(HttpExchange exchange, Map<String, String> params) throws IOException;
+    }
+
+    private HttpHandler handler(FacetHandler facetHandler) {
+        return exchange -> {
+            try {
+                if (!exchange.getRequestMethod().equals("GET")) {
+                    throw new RequestException(405, "Only GET is supported");
+                }
+                facetHandler.handle(exchange, parseQuery(exchange.getRequestURI().getRawQuery()));
+            } catch (RequestException e) {
+                sendError(exchange, e.status, e.getMessage());
+            } catch (FacetQueryException e) {
+                logger.error("{}: {}", exchange.getRequestURI().getPath(), e.getLocalizedMessage());
+                if (e.isThrottled()) {
+                    exchange.getResponseHeaders().set("Retry-After", "30");
+                    sendError(exchange, 503, "The facet query was throttled, retry later");
+                } else {
+                    sendError(exchange, 500, "The facet query failed");
+                }
+            } catch (RuntimeException e) {
+                logger.error("{}: {}", exchange.getRequestURI().getPath(), e.getLocalizedMessage());
+                sendError(exchange, 500, "The facet query failed");
+            } finally {
+                exchange.close();
+            }
+        };
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery != null) {
+            for (String param : rawQuery.split("&")) {
+                int eq = param.indexOf('=');
+                if (eq > 0) {
+                    params.put(URLDecoder.decode(param.substring(0, eq), StandardCharsets.UTF_8),
+                               URLDecoder.decode(param.substring(eq + 1), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return params;
+    }
+
+    private static String requireDomain(Map<String, String> params) {
+        String domain = params.get("domain");
+        if (domain == null || domain.isEmpty()) {
+            throw new RequestException(400, "The domain parameter is required");
+        }
+        return domain;
+    }
+
+    private static int intParam(Map<String, String> params, String name, int defaultValue) {
+        String value = params.get(name);
+        try {
+            return (value != null) ? Integer.parseInt(value) : defaultValue;
+        } catch (NumberFormatException e) {
+            throw new RequestException(400, "The " + name + " parameter must be an integer");
+        }
+    }
+
+    /**
+     * @return the time range from the start and end parameters or the days parameter, or null if there is no range
+     */
+    private static TimeRange timeRangeParam(Map<String, String> params) {
+        String start = params.get("start");
+        String end = params.get("end");
+        try {
+            if (start != null || end != null) {
+                if (start == null || end == null) {
+                    throw new RequestException(400, "The start and end parameters must be used together");
+                }
+                return TimeRange.parse(start, end);
+            }
+            if (params.containsKey("days")) {
+                int days = intParam(params, "days", 0);
+                if (days < 1) {
+                    throw new RequestException(400, "The days parameter must be at least 1");
+                }
+                return TimeRange.lastDays(days);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new RequestException(400, e.getLocalizedMessage());
+        }
+        return null;
+    }
+
+    /**
+     * @return the suffix for the key of a result in a time range
+     */
+    private static String rangeKey(TimeRange range) {
+        return (range != null) ? "@" + range : "";
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) {
+        try {
+            byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", TEXT_TYPE);
+            exchange.sendResponseHeaders(status, body.length);
+            exchange.getResponseBody().write(body);
+        } catch (IOException e) {
+            logger.error("sendError: {}", e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Start a streamed (chunked) response and return a writer for the body.
+     */
+    private static Writer startResponse(HttpExchange exchange, String contentType) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(200, 0);
+        return new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Run a facet query on a pooled connection.
+     *
+     * @param range the time range of the facet, or null for all of the requests
+     * @throws FacetQueryException if there is no connection or the query failed
+     */
+    private <T> T withFacets(TimeRange range, Function<LogDataFacets, T> facetQuery) {
+        try {
+            Optional<Connection> optConn = athenaDB.getAthenaConnection();
+            if (optConn.isEmpty()) {
+                throw new FacetQueryException("withFacets", "there is no Athena connection");
+            }
+            try (Connection conn = optConn.get()) {
+                LogDataFacets facets = new LogDataFacets(conn, database, logTable, partitioned, datePartitioned);
+                facets.setTimeRange(range);
+                if (resultCache != null) {
+                    facets.setResultCache(resultCache, tableFingerprint);
+                }
+                if (rollupTable != null) {
+                    facets.setRollup(rollupTable, rolledUpThrough);
+                }
+                if (scheduler != null) {
+                    facets.setScheduler(scheduler, workgroup, QueryScheduler.Priority.INTERACTIVE);
+                }
+                return facetQuery.apply(facets);
+            }
+        } catch (SQLException e) {
+            throw new FacetQueryException("withFacets", e);
+        }
+    }
+
+    /**
+     * @return the key with the table fingerprint, so that a result for earlier files is not used
+     */
+    private String versionedKey(String key) {
+        return tableFingerprint + "|" + key;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T runVersioned(String versionedKey, Supplier<T> request) {
+        return (T) singleFlight.run(versionedKey, request::get);
+    }
+
+    /**
+     * Run a request, or wait for the identical request that is in flight (see SingleFlight)
+     */
+    private <T> T runOnce(String key, Supplier<T> request) {
+        return runVersioned(versionedKey(key), request);
+    }
+
+    /**
+     * Get a value that is kept warm between requests, or load it. Identical loads that overlap run once.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T getWarm(String key, Supplier<T> loader) {
+        String warmKey = versionedKey(key);
+        synchronized (warmValues) {
+            WarmValue warm = warmValues.get(warmKey);
+            if (warm != null) {
+                if (System.currentTimeMillis() - warm.createdMillis < warmTtlMillis) {
+                    return (T) warm.value;
+                }
+                warmValues.remove(warmKey);
+            }
+        }
+        return runVersioned(warmKey, () -> {
+            T value = loader.get();
+            long now = System.currentTimeMillis();
+            synchronized (warmValues) {
+                warmValues.values().removeIf(warm -> now - warm.createdMillis >= warmTtlMillis);
+                warmValues.put(warmKey, new WarmValue(now, value));
+            }
+            return value;
+        });
+    }
+
+    private void handleDomains(HttpExchange exchange, Map<String, String> params) throws IOException {
+        List<String> domains = getWarm("domains", () -> withFacets(null, LogDataFacets::getEndPoints));
+        try (Writer out = startResponse(exchange, JSON_TYPE)) {
+            out.write('[');
+            for (int i = 0; i < domains.size(); i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                TreeRenderer.writeJsonString(out, domains.get(i));
+            }
+            out.write("]\n");
+        }
+    }
+
+    private static void writeCounts(Writer out, List<Pair<String, Integer>> counts, String nameField, int limit)
+            throws IOException {
+        out.write('[');
+        for (int i = 0; i < Math.min(limit, counts.size()); i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            out.write("{\"" + nameField + "\":");
+            TreeRenderer.writeJsonString(out, counts.get(i).getLeft());
+            out.write(",\"count\":" + counts.get(i).getRight() + "}");
+        }
+        out.write("]\n");
+    }
+
+    private void handlePaths(HttpExchange exchange, Map<String, String> params) throws IOException {
+        String domain = requireDomain(params);
+        int limit = intParam(params, "limit", Integer.MAX_VALUE);
+        TimeRange range = timeRangeParam(params);
+        // The path list can be large, so it is not kept as a warm value (the result cache keeps it)
+        List<Pair<String, Integer>> paths = runOnce("paths:" + domain + rangeKey(range),
+                () -> withFacets(range, facets -> facets.getPaths(domain)));
+        try (Writer out = startResponse(exchange, JSON_TYPE)) {
+            writeCounts(out, paths, "path", limit);
+        }
+    }
+
+    private void handleReferrers(HttpExchange exchange, Map<String, String> params) throws IOException {
+        String domain = requireDomain(params);
+        int limit = intParam(params, "limit", DEFAULT_REFERRER_LIMIT);
+        TimeRange range = timeRangeParam(params);
+        List<Pair<String, Integer>> referrers = getWarm("referrers:" + domain + rangeKey(range),
+                () -> withFacets(range, facets -> facets.getReferrers(domain)));
+        try (Writer out = startResponse(exchange, JSON_TYPE)) {
+            writeCounts(out, referrers, "referrer", limit);
+        }
+    }
+
+    private void handleTree(HttpExchange exchange, Map<String, String> params) throws IOException {
+        String domain = requireDomain(params);
+        TreeRenderer.Format format;
+        try {
+            format = TreeRenderer.Format.valueOf(params.getOrDefault("format", "json").toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new RequestException(400, "The format must be text, json, ndjson or csv");
+        }
+        TreeRenderer renderer = TreeRenderer.builder()
+                .format(format)
+                .maxDepth(intParam(params, "maxDepth", Integer.MAX_VALUE))
+                .minCount(intParam(params, "minCount", 0))
+                .topChildren(intParam(params, "topChildren", 0))
+                .build();
+        TimeRange range = timeRangeParam(params);
+        DirTreeNode tree = getWarm("tree:" + domain + rangeKey(range),
+                () -> withFacets(range, facets -> facets.buildPathTree(domain)));
+        String contentType = (format == TreeRenderer.Format.JSON || format == TreeRenderer.Format.NDJSON) ? JSON_TYPE
+                : (format == TreeRenderer.Format.CSV) ? CSV_TYPE : TEXT_TYPE;
+        try (Writer out = startResponse(exchange, contentType)) {
+            renderer.render(tree, out);
+        }
+    }
+
+    private void handleSeries(HttpExchange exchange, Map<String, String> params) throws IOException {
+        String domain = requireDomain(params);
+        TrafficPoint.Interval interval;
+        try {
+            interval = TrafficPoint.Interval.valueOf(params.getOrDefault("interval", "day").toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new RequestException(400, "The interval must be hour or day");
+        }
+        String prefix = params.get("prefix");
+        TimeRange requestRange = timeRangeParam(params);
+        TimeRange range = (requestRange != null) ? requestRange : TimeRange.lastDays(DEFAULT_SERIES_DAYS);
+        List<TrafficPoint> series = runOnce("series:" + domain + ":" + interval + ":" + prefix + rangeKey(range),
+                () -> withFacets(null, facets -> facets.getTrafficSeries(domain, prefix, interval, range)));
+        try (Writer out = startResponse(exchange, JSON_TYPE)) {
+            out.write('[');
+            for (int i = 0; i < series.size(); i++) {
+                TrafficPoint point = series.get(i);
+                if (i > 0) {
+                    out.write(',');
+                }
+                out.write("{\"start\":\"" + point.getBucketStart() + "\",\"requests\":" + point.getRequests());
+                for (Pair<Double, Long> percentile : point.getLatencyPercentiles()) {
+                    out.write(",\"" + LogDataFacets.percentileColumn(percentile.getLeft()) + "\":" + percentile.getRight());
+                }
+                out.write('}');
+            }
+            out.write("]\n");
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.topstonesoftware.athenalogs;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.util.List;
+
+/**
+ * <p>
+ * The web log facets for a log data source. LogDataFacets computes the facets with Athena queries over the ORC
+ * files in S3. OrcFileFacets computes the same facets over ORC files in the local file system, for offline
+ * reports and testing.
+ * </p>
+ */
+public interface FacetSource {
+
+    /**
+     * @return the domains (S3 end points) in the log data
+     */
+    List<String> getEndPoints();
+
+    /**
+     * @return the HTML page paths for a domain, and their reference counts, in descending count order
+     */
+    List<Pair<String, Integer>> getPaths(String domain);
+
+    /**
+     * @return the HTML page path tree for a domain, with the reference counts filled in
+     */
+    DirTreeNode buildPathTree(String domain);
+
+    /**
+     * @return the (normalized) referrers for a domain, and their counts, in descending count order
+     */
+    List<Pair<String, Integer>> getReferrers(String domain);
+
+    /**
+     * Limit the path and referrer facets to the requests in a time range.
+     *
+     * @param timeRange the time range, or null for all of the requests
+     */
+    void setTimeRange(TimeRange timeRange);
+}
@@ -0,0 +1,200 @@
+package com.topstonesoftware.athenalogs;
+
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.sql.*;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * <p>
+ * Run SQL statements and record their measurements (see QueryStats) in QueryMetrics.global(). The AthenaDB,
+ * LogDataFacets and LogRollup statements are all run through this class, so each statement is measured the same
+ * way.
+ * </p>
+ * <p>
+ *     The Athena query ID is read from the statement or the result set with reflection (the JDBC interfaces do
+ *     not have a query ID), so the code does not depend on the classes of a particular driver version. If the
+ *     driver does not have a getQueryId or getQueryExecutionId method the Athena statistics are not available,
+ *     but the client side times are still recorded.
+ * </p>
+ * <p>
+ *     A statement listener can be set for a thread (see setStatementListener). It is passed each statement that
+ *     the thread creates, so that another thread can cancel the statement (see QueryScheduler).
+ * </p>
+ */
+@Slf4j
+public class InstrumentedQuery {
+    private static final Logger logger = LoggerFactory.getLogger(InstrumentedQuery.class);
+    private static final String[] QUERY_ID_METHODS = {"getQueryId", "getQueryExecutionId"};
+    private static final long NANOS_PER_MILLI = 1_000_000;
+    private static final ThreadLocal<Consumer<Statement>> statementListener = new ThreadLocal<>();
+
+    /**
+     * Process a result row. The handler should not call ResultSet.next()
+     */
+    public interface RowHandler {
+        void handleRow(ResultSet rslt) throws SQLException;
+    }
+
+    private interface StatementAction<T> {
+        T run(Statement stmt) throws SQLException;
+    }
+
+    private InstrumentedQuery() {}
+
+    /**
+     * Set the listener for the statements that are created by the current thread.
+     *
+     * @param listener the listener, or null to remove the listener
+     */
+    static void setStatementListener(Consumer<Statement> listener) {
+        if (listener != null) {
+            statementListener.set(listener);
+        } else {
+            statementListener.remove();
+        }
+    }
+
+    private static void notifyListener(Statement stmt) {
+        Consumer<Statement> listener = statementListener.get();
+        if (listener != null) {
+            listener.accept(stmt);
+        }
+    }
+
+    /**
+     * Set the statement parameters, in order. The parameters are Integer or String values.
+     */
+    private static void bindParams(PreparedStatement stmt, List<Object> params) throws SQLException {
+        for (int i = 0; i < params.size(); i++) {
+            Object param = params.get(i);
+            if (param instanceof Integer) {
+                stmt.setInt(i + 1, (Integer) param);
+            } else {
+                stmt.setString(i + 1, param.toString());
+            }
+        }
+    }
+
+    /**
+     * @return the Athena query ID from the first object that has one, or null
+     */
+    private static String findQueryId(Object... sources) {
+        String queryId = null;
+        for (int i = 0; i < sources.length && queryId == null; i++) {
+            Object source = sources[i];
+            for (int j = 0; j < QUERY_ID_METHODS.length && source != null && queryId == null; j++) {
+                try {
+                    Method method = source.getClass().getMethod(QUERY_ID_METHODS[j]);
+                    method.setAccessible(true);
+                    Object id = method.invoke(source);
+                    if (id != null) {
+                        queryId = id.toString();
+                    }
+                } catch (ReflectiveOperationException | RuntimeException e) {
+                    logger.debug("findQueryId: {} {}", source.getClass().getName(), e.getClass().getSimpleName());
+                }
+            }
+        }
+        return queryId;
+    }
+
+    private static long millisSince(long startNanos) {
+        return (System.nanoTime() - startNanos) / NANOS_PER_MILLI;
+    }
+
+    /**
+     * Run a query and pass each result row to the row handler. If there are no parameters the query is run
+     * with a Statement, otherwise with a PreparedStatement.
+     *
+     * @param label the name of the query in the metrics (e.g., getPaths)
+     * @param sql the query
+     * @param params the query parameters (Integer or String values), in order
+     * @param handler the result row handler
+     * @return the query measurements
+     */
+    public static QueryStats query(Connection conn, String label, String sql, List<Object> params, RowHandler handler) throws SQLException {
+        QueryStats stats = new QueryStats(label, sql);
+        long start = System.nanoTime();
+        try {
+            Statement stmt = params.isEmpty() ? conn.createStatement() : conn.prepareStatement(sql);
+            try (stmt) {
+                notifyListener(stmt);
+                ResultSet result;
+                if (stmt instanceof PreparedStatement) {
+                    PreparedStatement preparedStmt = (PreparedStatement) stmt;
+                    bindParams(preparedStmt, params);
+                    result = preparedStmt.executeQuery();
+                } else {
+                    result = stmt.executeQuery(sql);
+                }
+                stats.setExecuteMillis(millisSince(start));
+                try (result) {
+                    long fetchNanos = 0;
+                    long clientNanos = 0;
+                    long rows = 0;
+                    boolean hasRow;
+                    do {
+                        long fetchStart = System.nanoTime();
+                        hasRow = result.next();
+                        long clientStart = System.nanoTime();
+                        fetchNanos += clientStart - fetchStart;
+                        if (hasRow) {
+                            rows++;
+                            handler.handleRow(result);
+                            clientNanos += System.nanoTime() - clientStart;
+                        }
+                    } while (hasRow);
+                    stats.setFetchMillis(fetchNanos / NANOS_PER_MILLI);
+                    stats.setClientMillis(clientNanos / NANOS_PER_MILLI);
+                    stats.setRowsFetched(rows);
+                    stats.setQueryId(findQueryId(result, stmt));
+                }
+            }
+        } catch (SQLException e) {
+            stats.setFailed(true);
+            throw e;
+        } finally {
+            stats.setWallMillis(millisSince(start));
+            QueryMetrics.global().record(stats);
+        }
+        return stats;
+    }
+
+    public static QueryStats query(Connection conn, String label, String sql, RowHandler handler) throws SQLException {
+        return query(conn, label, sql, List.of(), handler);
+    }
+
+    private static <T> T run(Connection conn, String label, String sql, StatementAction<T> action) throws SQLException {
+        QueryStats stats = new QueryStats(label, sql);
+        long start = System.nanoTime();
+        try (Statement stmt = conn.createStatement()) {
+            notifyListener(stmt);
+            T result = action.run(stmt);
+            stats.setExecuteMillis(millisSince(start));
+            stats.setQueryId(findQueryId(stmt));
+            return result;
+        } catch (SQLException e) {
+            stats.setFailed(true);
+            throw e;
+        } finally {
+            stats.setWallMillis(millisSince(start));
+            QueryMetrics.global().record(stats);
+        }
+    }
+
+    /**
+     * Run a statement that does not return a result set (e.g., DDL or insert into)
+     */
+    public static boolean execute(Connection conn, String label, String sql) throws SQLException {
+        return run(conn, label, sql, stmt -> stmt.execute(sql));
+    }
+
+    public static int executeUpdate(Connection conn, String label, String sql) throws SQLException {
+        return run(conn, label, sql, stmt -> stmt.executeUpdate(sql));
+    }
+}
@@ -0,0 +1,95 @@
+package com.topstonesoftware.athenalogs;
+
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * <p>
+ * A local directory stand-in for the S3 listing (see S3Lister). A path is resolved under the root directory, so a
+ * copy of the S3 layout (or a tree of empty files of the right sizes) can be used to plan the queries without AWS
+ * access:
+ * </p>
+ * <pre>
+ *     /data/listing/ianlkaplan-logs.orc/user/iank/http_logs/bearcave.com/part-00000.orc
+ * </pre>
+ */
+@Slf4j
+public class LocalObjectLister implements ObjectLister {
+    private static final Logger logger = LoggerFactory.getLogger(LocalObjectLister.class);
+    private final Path rootDir;
+
+    /**
+     * @param rootDir the directory that holds the bucket directories
+     */
+    public LocalObjectLister(Path rootDir) {
+        this.rootDir = rootDir;
+    }
+
+    @Override
+    public Map<String, Long> listObjectSizes(String path) {
+        String relativePath = path.startsWith("s3://") ? path.substring("s3://".length()) : path;
+        Path dir = rootDir.resolve(relativePath);
+        Map<String, Long> sizes = new TreeMap<>();
+        if (Files.isDirectory(dir)) {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.filter(Files::isRegularFile).forEach(file -> {
+                    try {
+                        sizes.put(dir.relativize(file).toString().replace('\\', '/'), Files.size(file));
+                    } catch (IOException e) {
+                        logger.error("listObjectSizes: {}", e.getLocalizedMessage());
+                    }
+                });
+            } catch (IOException e) {
+                logger.error("listObjectSizes: {}", e.getLocalizedMessage());
+            }
+        }
+        return sizes;
+    }
+
+    @Override
+    public Map<String, Long> listModifiedTimes(String path) {
+        String relativePath = path.startsWith("s3://") ? path.substring("s3://".length()) : path;
+        Path dir = rootDir.resolve(relativePath);
+        Map<String, Long> times = new TreeMap<>();
+        if (Files.isDirectory(dir)) {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.filter(Files::isRegularFile).forEach(file -> {
+                    try {
+                        times.put(dir.relativize(file).toString().replace('\\', '/'), Files.getLastModifiedTime(file).toMillis());
+                    } catch (IOException e) {
+                        logger.error("listModifiedTimes: {}", e.getLocalizedMessage());
+                    }
+                });
+            } catch (IOException e) {
+                logger.error("listModifiedTimes: {}", e.getLocalizedMessage());
+            }
+        }
+        return times;
+    }
+
+    @Override
+    public void deleteObjects(String path) throws IOException {
+        String relativePath = path.startsWith("s3://") ? path.substring("s3://".length()) : path;
+        Path dir = rootDir.resolve(relativePath);
+        if (Files.isDirectory(dir)) {
+            List<Path> paths;
+            try (Stream<Path> files = Files.walk(dir)) {
+                paths = files.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+            }
+            for (Path file : paths) {
+                Files.delete(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.topstonesoftware.athenalogs;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * A local file stand-in for S3ObjectStore. The locations are file URIs (file:///tmp/results/query.csv) or file
+ * paths.
+ */
+public class LocalObjectStore implements ObjectStore {
+
+    private static Path toPath(String location) {
+        return location.startsWith("file:") ? Paths.get(URI.create(location)) : Paths.get(location);
+    }
+
+    @Override
+    public long getSize(String location) throws IOException {
+        return Files.size(toPath(location));
+    }
+
+    @Override
+    public InputStream openRange(String location, long start, long end) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(toPath(location).toFile(), "r")) {
+            long rangeEnd = Math.min(end, file.length());
+            byte[] bytes = new byte[(int) Math.max(0, rangeEnd - start)];
+            file.seek(start);
+            file.readFully(bytes);
+            return new ByteArrayInputStream(bytes);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.topstonesoftware.athenalogs;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+/**
+ * <p>
+ * A local stand-in for AthenaQueryExecutor. The result file for a query is found by a resolver function (for
+ * example, a map from the SQL to CSV files that were saved from earlier Athena queries, or files written by a
+ * test). The queries complete on an Executor, so the caller sees the same asynchronous behavior as with Athena.
+ * </p>
+ * <p>
+ *     This, with LocalObjectStore, allows AsyncFacets to be run without AWS.
+ * </p>
+ */
+public class LocalQueryExecutor implements QueryExecutor {
+    private final Function<String, Path> resultResolver;
+    private final Executor executor;
+
+    /**
+     * @param resultResolver returns the CSV result file for a query, or null if there is no result for the query
+     * @param executor the executor that completes the queries
+     */
+    public LocalQueryExecutor(Function<String, Path> resultResolver, Executor executor) {
+        this.resultResolver = resultResolver;
+        this.executor = executor;
+    }
+
+    @Override
+    public CompletableFuture<AsyncQueryResult> submit(String sql) {
+        CompletableFuture<AsyncQueryResult> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            Path resultFile = resultResolver.apply(sql);
+            if (resultFile != null) {
+                future.complete(new AsyncQueryResult(UUID.randomUUID().toString(), resultFile.toUri().toString()));
+            } else {
+                future.completeExceptionally(new SQLException("No local result for the query: " + sql));
+            }
+        });
+        return future;
+    }
+}
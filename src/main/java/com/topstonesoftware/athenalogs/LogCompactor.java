@@ -0,0 +1,331 @@
+package com.topstonesoftware.athenalogs;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+
+/**
+ * <p>
+ * Compact the small ORC files of a date partitioned log table (see LogDDL.getDatePartitionedLogTableDDL). The log
+ * files are written in small pieces through the day, and Athena opens each file of a partition, so a query on a
+ * partition of many small files spends more time opening files than scanning them. A partition is rewritten into
+ * a few large ORC files with a create table as select (CTAS) statement:
+ * </p>
+ * <pre>
+ *     create table orclogdb.httplogs_compact_1626825600000
+ *     with (format = 'ORC', orc_compression = 'ZLIB',
+ *           external_location = 's3://ianlkaplan-logs.orc/user/iank/http_logs_compact/bearcave.com/dt=2021-07-01/1626825600000/')
+ *     as select bucket_name, request_date, ... from orclogdb.httplogs
+ *     where domain = 'bearcave.com' and dt = '2021-07-01'
+ *     order by bucket_name, key
+ * </pre>
+ * <p>
+ *     The rows are sorted by bucket_name and key, so the ORC stripe statistics for these columns have narrow
+ *     ranges and a query for a page or a path prefix can skip most stripes. With bloom filters the ORC files also
+ *     hold bloom filters for the key and referrer columns, which skip the stripes for an equality test (this needs
+ *     an Athena engine version that accepts the orc_bloom_filter_columns table property).
+ * </p>
+ * <p>
+ *     The compacted files are written under the compact path, outside of the log table location, so that the
+ *     partition does not read the old and the new files at the same time. When the CTAS statement is done the
+ *     partition is pointed at the new files (see AthenaDB.setDatePartitionLocation) and the temporary table is
+ *     dropped. The table is external, so dropping it does not delete the files. The old files are left in place
+ *     for the queries that are still reading them. If the CTAS statement or the location change fails, or the
+ *     partition is skipped, the files that the CTAS statement wrote are deleted.
+ * </p>
+ * <p>
+ *     New log files for a day are written to the old location, and the log files for a day can be delivered hours
+ *     after the day ends. So a day is only compacted after a settle period past its end (UTC), and the old
+ *     partition is listed again just before the location change: if the files changed while the CTAS statement
+ *     ran, the partition is skipped (a later run compacts it). A partition whose catalog location is already
+ *     under the compact path has been compacted and is skipped, unless a file in the old location was written
+ *     after the compaction started (the compacted location ends with that time). Those late files are not read
+ *     through the compacted location, so the partition is pointed back at the old location, which holds every
+ *     log file of the day, and compacted again. The earlier compacted files are left in place for the queries
+ *     that are still reading them.
+ * </p>
+ */
+@Slf4j
+public class LogCompactor {
+    private static final Logger logger = LoggerFactory.getLogger(LogCompactor.class);
+    /** A partition whose average file size is below this size is compacted */
+    public static final long DEFAULT_SMALL_FILE_BYTES = 64L * 1024 * 1024;
+    /** A partition with fewer files than this is not compacted */
+    public static final int DEFAULT_MIN_FILES = 4;
+    /** A day is compacted this many hours after it ends */
+    public static final long DEFAULT_SETTLE_HOURS = 6;
+    private static final String COMPACT_SUFFIX = "_compact_";
+    private final String database;
+    private final String logTable;
+    private final String orcPath;
+    private final String compactPath;
+    private final long smallFileBytes;
+    private final int minFiles;
+    private final Duration settlePeriod;
+    private final boolean bloomFilters;
+
+    /**
+     * A (domain, day) partition to compact, with the object keys that were listed for it
+     */
+    @Getter
+    public static class SmallFilePartition {
+        private final String domain;
+        private final String day;
+        /** The keys of the partition files, relative to the partition path */
+        private final Set<String> keys;
+        /** The compacted location of a partition that has late files, or null if it was not compacted */
+        private final String compactedLocation;
+
+        SmallFilePartition(String domain, String day, Set<String> keys, String compactedLocation) {
+            this.domain = domain;
+            this.day = day;
+            this.keys = keys;
+            this.compactedLocation = compactedLocation;
+        }
+    }
+
+    /**
+     * @param database the database name
+     * @param logTable the date partitioned log table
+     * @param orcPath the S3 bucket and path of the log table ORC files
+     * @param compactPath the S3 bucket and path for the compacted ORC files. The path must be outside of the log
+     *                    table location.
+     * @param smallFileBytes a partition whose average file size is below this size is compacted
+     * @param minFiles a partition with fewer files is not compacted
+     * @param settleHours a day is compacted this many hours after it ends (UTC)
+     * @param bloomFilters if true the compacted files have bloom filters for the key and referrer columns
+     */
+    public LogCompactor(String database, String logTable, String orcPath, String compactPath, long smallFileBytes,
+                        int minFiles, long settleHours, boolean bloomFilters) {
+        this.database = database;
+        this.logTable = logTable;
+        this.orcPath = orcPath.endsWith("/") ? orcPath : orcPath + "/";
+        this.compactPath = compactPath.endsWith("/") ? compactPath : compactPath + "/";
+        this.smallFileBytes = smallFileBytes;
+        this.minFiles = minFiles;
+        this.settlePeriod = Duration.ofHours(settleHours);
+        this.bloomFilters = bloomFilters;
+        if (this.compactPath.startsWith(this.orcPath)) {
+            throw new IllegalArgumentException("The compact path " + compactPath + " is inside of the log table location " + orcPath);
+        }
+    }
+
+    public LogCompactor(String database, String logTable, String orcPath, String compactPath) {
+        this(database, logTable, orcPath, compactPath, DEFAULT_SMALL_FILE_BYTES, DEFAULT_MIN_FILES, DEFAULT_SETTLE_HOURS, false);
+    }
+
+    /**
+     * @param key an object key relative to the ORC path, for example bearcave.com/dt=2021-07-01/part-00000.orc
+     * @return the (domain, day) partition of the object, or null if the key is not in a day partition
+     */
+    private static Pair<String, String> datePartition(String key) {
+        String[] parts = key.split("/");
+        String dayPrefix = LogDDL.DATE_PARTITION_COLUMN + "=";
+        return (parts.length > 2 && parts[1].startsWith(dayPrefix))
+                ? new ImmutablePair<>(parts[0], parts[1].substring(dayPrefix.length())) : null;
+    }
+
+    /**
+     * @return the path of a (domain, day) partition under the log table ORC path
+     */
+    private String partitionPath(String domain, String day) {
+        return orcPath + domain + "/" + LogDDL.DATE_PARTITION_COLUMN + "=" + day + "/";
+    }
+
+    /**
+     * @return the last day that ended at least the settle period ago
+     */
+    private String lastSettledDay() {
+        return LocalDateTime.now(ZoneOffset.UTC).minus(settlePeriod).toLocalDate().minusDays(1).toString();
+    }
+
+    /**
+     * Find the partitions to compact: the days that ended at least the settle period ago, with at least minFiles
+     * files and an average file size below smallFileBytes, whose catalog location is not under the compact path.
+     * A compacted partition is compacted again if a file in its old location was written after the compaction
+     * started.
+     *
+     * @param lister the object listing for the log table path
+     * @return the partitions, in domain and day order
+     */
+    public List<SmallFilePartition> findSmallFilePartitions(Connection conn, ObjectLister lister) throws SQLException {
+        Map<Pair<String, String>, Set<String>> partitionKeys = new TreeMap<>();
+        Map<Pair<String, String>, Long> partitionBytes = new HashMap<>();
+        for (Map.Entry<String, Long> object : lister.listObjectSizes(orcPath).entrySet()) {
+            Pair<String, String> partition = datePartition(object.getKey());
+            if (partition != null) {
+                String key = object.getKey().substring(object.getKey().indexOf('/', partition.getLeft().length() + 1) + 1);
+                partitionKeys.computeIfAbsent(partition, p -> new TreeSet<>()).add(key);
+                partitionBytes.merge(partition, object.getValue(), Long::sum);
+            }
+        }
+        String lastDay = lastSettledDay();
+        Map<String, Long> modifiedTimes = null;
+        List<SmallFilePartition> partitions = new ArrayList<>();
+        for (Map.Entry<Pair<String, String>, Set<String>> entry : partitionKeys.entrySet()) {
+            String domain = entry.getKey().getLeft();
+            String day = entry.getKey().getRight();
+            long files = entry.getValue().size();
+            long bytes = partitionBytes.get(entry.getKey());
+            if (day.compareTo(lastDay) <= 0 && files >= minFiles && bytes / files < smallFileBytes) {
+                Optional<String> compacted = getCompactedLocation(conn, domain, day);
+                if (compacted.isEmpty()) {
+                    partitions.add(new SmallFilePartition(domain, day, entry.getValue(), null));
+                } else {
+                    if (modifiedTimes == null) {
+                        modifiedTimes = lister.listModifiedTimes(orcPath);
+                    }
+                    if (hasLateFiles(modifiedTimes, domain, day, entry.getValue(), compacted.get())) {
+                        partitions.add(new SmallFilePartition(domain, day, entry.getValue(), compacted.get()));
+                    }
+                }
+            }
+        }
+        return partitions;
+    }
+
+    /**
+     * @return the catalog location of the partition if it is under the compact path
+     */
+    private Optional<String> getCompactedLocation(Connection conn, String domain, String day) throws SQLException {
+        return AthenaDB.getDatePartitionLocation(conn, database, logTable, domain, day)
+                .filter(location -> location.startsWith(compactPath));
+    }
+
+    /**
+     * @param modifiedTimes the modification times of the objects under the ORC path
+     * @param keys the keys of the partition files, relative to the partition path
+     * @param compactedLocation a location written by compactPartition, which ends with the time that the
+     *                          compaction started
+     * @return true if a file in the old location of the partition was written after the compaction started
+     */
+    private boolean hasLateFiles(Map<String, Long> modifiedTimes, String domain, String day, Set<String> keys,
+                                 String compactedLocation) {
+        String location = compactedLocation.endsWith("/")
+                ? compactedLocation.substring(0, compactedLocation.length() - 1) : compactedLocation;
+        long compactedMillis;
+        try {
+            compactedMillis = Long.parseLong(location.substring(location.lastIndexOf('/') + 1));
+        } catch (NumberFormatException e) {
+            logger.warn("hasLateFiles: the time of the compacted location s3://{} of {} {} is not known", compactedLocation, domain, day);
+            return false;
+        }
+        String partitionPrefix = domain + "/" + LogDDL.DATE_PARTITION_COLUMN + "=" + day + "/";
+        long lateFiles = keys.stream()
+                .map(key -> modifiedTimes.get(partitionPrefix + key))
+                .filter(modified -> modified != null && modified > compactedMillis)
+                .count();
+        if (lateFiles > 0) {
+            logger.warn("hasLateFiles: {} files of {} {} were written after the compaction into s3://{}, the partition is compacted again",
+                    lateFiles, domain, day, compactedLocation);
+        }
+        return lateFiles > 0;
+    }
+
+    /**
+     * @return the CTAS statement that writes the sorted rows of a partition to a new location
+     */
+    String buildCompactQuery(String tempTable, String domain, String day, String location) {
+        String query = """
+        create table DBTEMP
+        with (format = 'ORC', orc_compression = 'ZLIB', external_location = 's3://LOCATION'BLOOM_FILTERS)
+        as select COLUMNS from DBTABLE
+        where PARTITION_COLUMN = 'DOMAIN' and DATE_COLUMN = 'DAY'
+        order by bucket_name, key""";
+        return query.replace("DBTEMP", database + "." + tempTable)
+                    .replace("LOCATION", location)
+                    .replace("BLOOM_FILTERS", bloomFilters ? ",\n      orc_bloom_filter_columns = ARRAY['key', 'referrer']" : "")
+                    .replace("COLUMNS", LogDDL.getColumnList())
+                    .replace("DBTABLE", database + "." + logTable)
+                    .replace("PARTITION_COLUMN", LogDDL.PARTITION_COLUMN)
+                    .replace("DOMAIN", domain.replace("'", "''"))
+                    .replace("DATE_COLUMN", LogDDL.DATE_PARTITION_COLUMN)
+                    .replace("DAY", day.replace("'", "''"));
+    }
+
+    /**
+     * Delete the files that a CTAS statement wrote, when they are not used for the partition. An error is logged,
+     * rather than thrown, so that it does not replace the error of the compaction.
+     */
+    private void deleteCompactedFiles(ObjectLister lister, String location) {
+        try {
+            lister.deleteObjects(location);
+        } catch (IOException e) {
+            logger.error("deleteCompactedFiles: the files under s3://{} were not deleted: {}", location, e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Compact one (domain, day) partition and point the partition at the compacted files. The partition is listed
+     * again before the location change, and if its files are not the files that were listed when the partition
+     * was found, the location is not changed. A partition that was compacted before is first pointed back at its
+     * old location, so that the compaction reads the late files.
+     *
+     * @param lister the object listing for the log table path, which also deletes the compacted files when they
+     *               are not used
+     * @return the location of the compacted files, a bucket and path without the s3:// prefix, or an empty
+     * Optional if the partition files changed
+     */
+    public Optional<String> compactPartition(Connection conn, ObjectLister lister, SmallFilePartition partition)
+            throws SQLException {
+        String domain = partition.getDomain();
+        String day = partition.getDay();
+        long version = System.currentTimeMillis();
+        String tempTable = logTable + COMPACT_SUFFIX + version;
+        String location = compactPath + domain + "/" + LogDDL.DATE_PARTITION_COLUMN + "=" + day + "/" + version + "/";
+        boolean swapped = false;
+        if (partition.getCompactedLocation() != null) {
+            AthenaDB.setDatePartitionLocation(conn, database, logTable, domain, day, partitionPath(domain, day));
+        }
+        try {
+            AthenaDB.execute(conn, "compactPartition", buildCompactQuery(tempTable, domain, day, location));
+            Set<String> keys = lister.listObjectSizes(partitionPath(domain, day)).keySet();
+            if (keys.equals(partition.getKeys())) {
+                AthenaDB.setDatePartitionLocation(conn, database, logTable, domain, day, location);
+                swapped = true;
+            } else {
+                logger.warn("compactPartition: the files of {} {} changed during the compaction ({} files, {} before), the partition was not compacted",
+                        domain, day, keys.size(), partition.getKeys().size());
+            }
+        } finally {
+            if (!swapped) {
+                deleteCompactedFiles(lister, location);
+            }
+            AthenaDB.execute(conn, "dropCompactTable", "drop table if exists " + database + "." + tempTable);
+        }
+        if (swapped) {
+            logger.info("compactPartition: {} {} compacted into s3://{}", domain, day, location);
+        }
+        return swapped ? Optional.of(location) : Optional.empty();
+    }
+
+    /**
+     * Compact the partitions with small files (see findSmallFilePartitions). The partitions are compacted one at a
+     * time, so if a statement fails the partitions that were compacted keep their new location.
+     *
+     * @param lister the object listing for the log table path
+     * @return the number of partitions that were compacted
+     */
+    public int compact(Connection conn, ObjectLister lister) throws SQLException {
+        List<SmallFilePartition> partitions = findSmallFilePartitions(conn, lister);
+        logger.info("compact: {} partitions of {}.{} have small files", partitions.size(), database, logTable);
+        int compacted = 0;
+        for (SmallFilePartition partition : partitions) {
+            if (compactPartition(conn, lister, partition).isPresent()) {
+                compacted++;
+            }
+        }
+        return compacted;
+    }
+}
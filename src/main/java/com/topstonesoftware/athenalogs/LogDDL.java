@@ -1,6 +1,38 @@
 package com.topstonesoftware.athenalogs;
 
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+
 public class LogDDL {
+    /** The partition column for a table partitioned by the domain prefix in the ORC file path */
+    public static final String PARTITION_COLUMN = "domain";
+    /** The date partition column, a yyyy-MM-dd string, for a table partitioned by domain and request date */
+    public static final String DATE_PARTITION_COLUMN = "dt";
+    /** The maximum number of partitions in one alter table statement, which keeps the statement size bounded */
+    private static final int MAX_PARTITIONS_PER_STATEMENT = 500;
+    private static final String STRING_TYPE = "string";
+    private static final String INT_TYPE = "int";
+    private static final String TIMESTAMP_TYPE = "timestamp";
+    /** The log table columns (name, type), in the order of the columns in the ORC files */
+    private static final List<Pair<String, String>> COLUMNS = List.of(
+            new ImmutablePair<>("bucket_name", STRING_TYPE),
+            new ImmutablePair<>("request_date", TIMESTAMP_TYPE),
+            new ImmutablePair<>("remote_ip", STRING_TYPE),
+            new ImmutablePair<>("operation", STRING_TYPE),
+            new ImmutablePair<>("key", STRING_TYPE),
+            new ImmutablePair<>("request_uri", STRING_TYPE),
+            new ImmutablePair<>("http_status", INT_TYPE),
+            new ImmutablePair<>("total_time", INT_TYPE),
+            new ImmutablePair<>("referrer", STRING_TYPE),
+            new ImmutablePair<>("user_agent", STRING_TYPE),
+            new ImmutablePair<>("version_id", STRING_TYPE),
+            new ImmutablePair<>("end_point", STRING_TYPE)
+    );
 
     private LogDDL() {}
 
@@ -8,32 +40,159 @@ public class LogDDL {
         return "`" + str + "`";
     }
 
-    public static String getLogTableDDL(String database, String tableName, String s3OrcFilePath) {
-        final String formatStr = "%s%s %s,%n";
-        final String stringType = "string";
-        final String intType = "int";
-        final String timestampType = "timestamp";
+    private static String quoteValue(String str) {
+        return "'" + str.replace("'", "''") + "'";
+    }
+
+    private static String buildTableDDL(String database, String tableName, String s3OrcFilePath, String partitionClause) {
         String spacing = String.format("%4s", " ");
-        return "create external table " +
-                quoteStr(database + "." + tableName) +
-                " (\n" +
-                String.format(formatStr, spacing, quoteStr("bucket_name"), stringType) +
-                String.format(formatStr, spacing, quoteStr("request_date"), timestampType) +
-                String.format(formatStr, spacing, quoteStr("remote_ip"), stringType) +
-                String.format(formatStr, spacing, quoteStr("operation"), stringType) +
-                String.format(formatStr, spacing, quoteStr("key"), stringType) +
-                String.format(formatStr, spacing, quoteStr("request_uri"), stringType) +
-                String.format(formatStr, spacing, quoteStr("http_status"), intType) +
-                String.format(formatStr, spacing, quoteStr("total_time"), intType) +
-                String.format(formatStr, spacing, quoteStr("referrer"), stringType) +
-                String.format(formatStr, spacing, quoteStr("user_agent"), stringType) +
-                String.format(formatStr, spacing, quoteStr("version_id"), stringType) +
-                String.format("%s%s %s%n", spacing, quoteStr("end_point"), stringType) +
+        StringBuilder ddl = new StringBuilder("create external table " + quoteStr(database + "." + tableName) + " (\n");
+        for (int i = 0; i < COLUMNS.size(); i++) {
+            String separator = (i < COLUMNS.size() - 1) ? "," : "";
+            ddl.append(String.format("%s%s %s%s%n", spacing, quoteStr(COLUMNS.get(i).getLeft()), COLUMNS.get(i).getRight(), separator));
+        }
+        return ddl +
                 " )\n" +
-                // "partitioned by (domain string)\n" +
+                partitionClause +
                 "stored as ORC\n" +
                 "location 's3://" + s3OrcFilePath + "'\n" +
                 "tblproperties (\"orc.compress\"=\"ZLIB\")";
     }
 
+    /**
+     * @return the position of a column in the log table (and in the ORC file schema), or -1 if there is no column
+     * with the name
+     */
+    public static int columnIndex(String columnName) {
+        int index = -1;
+        for (int i = 0; i < COLUMNS.size() && index < 0; i++) {
+            if (COLUMNS.get(i).getLeft().equals(columnName)) {
+                index = i;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return the log table column names, in ORC file order, separated by commas
+     */
+    public static String getColumnList() {
+        StringJoiner columns = new StringJoiner(", ");
+        for (Pair<String, String> column : COLUMNS) {
+            columns.add(column.getLeft());
+        }
+        return columns.toString();
+    }
+
+    public static String getLogTableDDL(String database, String tableName, String s3OrcFilePath) {
+        return buildTableDDL(database, tableName, s3OrcFilePath, "");
+    }
+
+    /**
+     * The DDL for a log table that is partitioned by domain. The table will not return any data until the
+     * domain partitions are associated with their S3 path prefixes (see getAddPartitionsDDL).
+     */
+    public static String getPartitionedLogTableDDL(String database, String tableName, String s3OrcFilePath) {
+        return buildTableDDL(database, tableName, s3OrcFilePath, "partitioned by (" + PARTITION_COLUMN + " string)\n");
+    }
+
+    /**
+     * <p>
+     * The DDL for a log table that is partitioned by domain and by the request day. The ORC files for a domain
+     * and day are under a Hive style dt=yyyy-MM-dd path prefix:
+     * </p>
+     * <pre>
+     *     ianlkaplan-logs.orc/user/iank/http_logs/bearcave.com/dt=2021-07-01/
+     * </pre>
+     * <p>
+     *     A query with a range predicate on the dt column (see TimeRange) only reads the files for the days in the
+     *     range. The partitions are added with getAddDatePartitionsDDL.
+     * </p>
+     */
+    public static String getDatePartitionedLogTableDDL(String database, String tableName, String s3OrcFilePath) {
+        return buildTableDDL(database, tableName, s3OrcFilePath,
+                "partitioned by (" + PARTITION_COLUMN + " string, " + DATE_PARTITION_COLUMN + " string)\n");
+    }
+
+    /**
+     * Build the alter table statements that add the (domain, day) partitions of a date partitioned log table
+     * (see getDatePartitionedLogTableDDL). The partitions are split into statements of at most
+     * MAX_PARTITIONS_PER_STATEMENT partitions. Like getAddPartitionsDDL, the statements can be run again.
+     *
+     * @param domainDays the days (yyyy-MM-dd) for each domain
+     * @return the alter table statements
+     */
+    public static List<String> getAddDatePartitionsDDL(String database, String tableName, String s3OrcFilePath,
+                                                       Map<String, List<String>> domainDays) {
+        String basePath = s3OrcFilePath.endsWith("/") ? s3OrcFilePath : s3OrcFilePath + "/";
+        String alterTable = "alter table " + database + "." + tableName + " add if not exists\n";
+        List<String> statements = new ArrayList<>();
+        StringBuilder ddl = new StringBuilder(alterTable);
+        int partitions = 0;
+        for (Map.Entry<String, List<String>> entry : domainDays.entrySet()) {
+            String domain = entry.getKey();
+            for (String day : entry.getValue()) {
+                ddl.append(String.format("%4spartition (%s=%s, %s=%s) location %s%n", " ", PARTITION_COLUMN,
+                        quoteValue(domain), DATE_PARTITION_COLUMN, quoteValue(day),
+                        quoteValue("s3://" + basePath + domain + "/" + DATE_PARTITION_COLUMN + "=" + day + "/")));
+                partitions++;
+                if (partitions == MAX_PARTITIONS_PER_STATEMENT) {
+                    statements.add(ddl.toString());
+                    ddl = new StringBuilder(alterTable);
+                    partitions = 0;
+                }
+            }
+        }
+        if (partitions > 0) {
+            statements.add(ddl.toString());
+        }
+        return statements;
+    }
+
+    /**
+     * Build the statement that points a (domain, day) partition of a date partitioned log table at a new S3
+     * location. The Glue catalog updates the location in one step, so a query reads either the old files or the
+     * new files (see LogCompactor).
+     *
+     * @param s3Location the new location, a bucket and path without the s3:// prefix
+     */
+    public static String getSetDatePartitionLocationDDL(String database, String tableName, String domain, String day,
+                                                        String s3Location) {
+        return String.format("alter table %s.%s partition (%s=%s, %s=%s) set location %s", database, tableName,
+                PARTITION_COLUMN, quoteValue(domain), DATE_PARTITION_COLUMN, quoteValue(day),
+                quoteValue("s3://" + s3Location));
+    }
+
+    /**
+     * Build the statement that describes a (domain, day) partition of a date partitioned log table. The output
+     * includes the partition location, which is read from the catalog without scanning any data.
+     */
+    public static String getDescribeDatePartitionDDL(String database, String tableName, String domain, String day) {
+        return String.format("describe formatted %s.%s partition (%s=%s, %s=%s)", database, tableName,
+                PARTITION_COLUMN, quoteValue(domain), DATE_PARTITION_COLUMN, quoteValue(day));
+    }
+
+    /**
+     * <p>
+     * Build an alter table statement that associates each domain partition with its S3 path prefix. For example:
+     * </p>
+     * <pre>
+     * alter table orclogdb.httplogs add if not exists
+     *     partition (domain='bearcave.com') location 's3://ianlkaplan-logs.orc/user/iank/http_logs/bearcave.com/'
+     *     partition (domain='topstonesoftware.com') location 's3://ianlkaplan-logs.orc/user/iank/http_logs/topstonesoftware.com/'
+     * </pre>
+     * <p>
+     *     The "if not exists" clause makes the statement safe to run again when new domains are added.
+     * </p>
+     */
+    public static String getAddPartitionsDDL(String database, String tableName, String s3OrcFilePath, List<String> domains) {
+        String basePath = s3OrcFilePath.endsWith("/") ? s3OrcFilePath : s3OrcFilePath + "/";
+        StringBuilder ddl = new StringBuilder("alter table " + database + "." + tableName + " add if not exists\n");
+        for (String domain : domains) {
+            ddl.append(String.format("%4spartition (%s=%s) location %s%n", " ", PARTITION_COLUMN,
+                    quoteValue(domain), quoteValue("s3://" + basePath + domain + "/")));
+        }
+        return ddl.toString();
+    }
+
 }
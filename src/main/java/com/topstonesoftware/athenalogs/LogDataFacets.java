@@ -8,50 +8,331 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.*;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class queries the Athena web log database for various types of information. This code assumes that the
  * queries run over ORC files constructed from AWS S3 web log data. See https://github.com/IanLKaplan/s3logreader
  * The class assumes that the database has a single table for the log data. This table may include S3 web log
  * data for more than one web domain.
+ * <p>
+ *     If the table is partitioned by domain (see LogDDL.getPartitionedLogTableDDL) the queries also filter on the
+ *     partition column so that Athena only reads the ORC files for the domain.
+ * </p>
+ * <p>
+ *     If a daily rollup of the log table is set (see setRollup and LogRollup) the path and referrer queries read
+ *     the counts for the rolled up days from the rollup table and only read the log table for the days after the
+ *     rollup.
+ * </p>
+ * <p>
+ *     The unique visitor and request time facets are approximate (approx_distinct and approx_percentile), since
+ *     exact distinct counts and percentiles over the log history are expensive. If a daily sketch table is set
+ *     (see setSketches and LogSketches) the stored sketches for the days in a range are merged, so the log data
+ *     is only read for the days after the sketches.
+ * </p>
+ * <p>
+ *     If a time range is set (see setTimeRange) the facets only count the requests in the range. For a table that
+ *     is partitioned by date Athena only reads the partitions for the days in the range.
+ * </p>
+ * <p>
+ *     If a query fails the facet methods throw a FacetQueryException, rather than returning an empty result. If a
+ *     query scheduler is set (see setScheduler) the queries wait for a slot in the workgroup and throttled queries
+ *     are retried.
+ * </p>
+ * <p>
+ *     If a scan estimator is set (see setScanEstimator) each log table query is charged to the scan budget
+ *     before it runs, and a query that would exceed the budget is not started.
+ * </p>
  */
 @Slf4j
-public class LogDataFacets {
+public class LogDataFacets implements FacetSource {
     private static final Logger logger = LoggerFactory.getLogger(LogDataFacets.class);
     private final Connection conn;
     private final String database;
     private final String logTable;
+    /** The referrer with the http://, https://, www. prefixes and the quotes removed */
+    static final String NORMALIZED_REFERRER =
+            "replace(replace(replace(replace(referrer, 'http://', ''), 'https://', ''), 'www.', ''), '\"', '')";
+    /** The number of paths at which the reference count aggregation is done in parallel */
+    private static final int PARALLEL_AGGREGATION_SIZE = 100_000;
+    /** The name of the top K path tree node that holds the count for the paths that are not in the top K */
+    public static final String OTHER_PATHS = "(other)";
+    /** The request time percentiles for the approximate facets */
+    private static final double[] LATENCY_PERCENTILES = {0.5, 0.9, 0.99};
+    private final boolean partitioned;
+    private final boolean datePartitioned;
+    private TimeRange timeRange = null;
+    private FacetCache resultCache = null;
+    private String tableFingerprint = "";
+    private String rollupTable = null;
+    private LocalDate rolledUpThrough = null;
+    private String sketchTable = null;
+    private LocalDate sketchedThrough = null;
+    private QueryScheduler scheduler = null;
+    private String workgroup = null;
+    private QueryScheduler.Priority priority = QueryScheduler.Priority.INTERACTIVE;
+    private ScanEstimator scanEstimator = null;
 
     public LogDataFacets(Connection conn, String database, String logTable) {
+        this(conn, database, logTable, false);
+    }
+
+    public LogDataFacets(Connection conn, String database, String logTable, boolean partitioned) {
+        this(conn, database, logTable, partitioned, false);
+    }
+
+    /**
+     * @param partitioned true if the log table is partitioned by domain
+     * @param datePartitioned true if the log table is also partitioned by day (see
+     *                        LogDDL.getDatePartitionedLogTableDDL)
+     */
+    public LogDataFacets(Connection conn, String database, String logTable, boolean partitioned, boolean datePartitioned) {
         this.conn = conn;
         this.database = database;
         this.logTable = logTable;
+        this.partitioned = partitioned || datePartitioned;
+        this.datePartitioned = datePartitioned;
     }
 
     /**
-     * Get the s3 endpoints which correspond to the domain names (e.g., bearcave.com)
+     * Use a result cache for the path and referrer queries.
      *
-     * @return a list of end point names.
+     * @param resultCache the cache for query results
+     * @param tableFingerprint a fingerprint for the log table data (see S3Lister.getPathFingerprint), which is
+     *                         included in the cache key so that results are not used after new data is added.
      */
-    public List<String> getEndPoints() {
-        final String query = "select distinct bucket_name as domain from " + database + "." + logTable;
-        List<String> domainList = new ArrayList<>();
+    public void setResultCache(FacetCache resultCache, String tableFingerprint) {
+        this.resultCache = resultCache;
+        this.tableFingerprint = tableFingerprint;
+    }
+
+    /**
+     * <p>
+     * Read the path and referrer counts from a daily rollup table (see LogRollup). The counts for the days up to
+     * and including the last rolled up day are read from the rollup table and the counts for the later days are
+     * read from the log table and added to them. Since the ORC files keep the minimum and maximum request_date for
+     * each stripe, Athena can skip most of the log table data for the later days.
+     * </p>
+     *
+     * @param rollupTable the rollup table, which is in the same database as the log table
+     * @param rolledUpThrough the last day in the rollup table (see LogRollup.refresh)
+     */
+    public void setRollup(String rollupTable, LocalDate rolledUpThrough) {
+        this.rollupTable = rollupTable;
+        this.rolledUpThrough = rolledUpThrough;
+    }
+
+    /**
+     * Compute the approximate facets from a daily sketch table (see LogSketches). For the days up to and including
+     * the last day in the sketch table the stored sketches are merged. The sketches for the later days are computed
+     * from the log table and merged with them.
+     *
+     * @param sketchTable the sketch table, which is in the same database as the log table
+     * @param sketchedThrough the last day in the sketch table (see LogSketches.refresh)
+     */
+    public void setSketches(String sketchTable, LocalDate sketchedThrough) {
+        this.sketchTable = sketchTable;
+        this.sketchedThrough = sketchedThrough;
+    }
+
+    /**
+     * Limit the facets to the requests in a time range. A daily rollup (see setRollup) is only used for a range of
+     * whole days.
+     *
+     * @param timeRange the time range, or null for all of the requests
+     */
+    @Override
+    public void setTimeRange(TimeRange timeRange) {
+        this.timeRange = timeRange;
+    }
+
+    /**
+     * @return the predicate, starting with "and", that selects the log rows in the time range, or an empty string
+     * if there is no time range
+     */
+    private String timeRangePredicate() {
+        return (timeRange != null) ? "and " + timeRange.logPredicate(datePartitioned) : "";
+    }
+
+    /**
+     * Run the queries through a query scheduler (see QueryScheduler).
+     *
+     * @param scheduler the query scheduler
+     * @param workgroup the Athena workgroup of the connections (see AthenaDB.getWorkgroup)
+     * @param priority the priority of the queries
+     */
+    public void setScheduler(QueryScheduler scheduler, String workgroup, QueryScheduler.Priority priority) {
+        this.scheduler = scheduler;
+        this.workgroup = workgroup;
+        this.priority = priority;
+    }
+
+    /**
+     * Charge the log table queries to a scan budget (see ScanEstimator). A facet that is read from the result cache
+     * is not charged. If a path or referrer query would exceed the budget and there is a rollup (see setRollup),
+     * the facet is read from the rollup alone, so it does not count the requests after the rolled up days. The
+     * report is then incomplete (see ScanEstimator.getRollupOnlyThrough).
+     *
+     * @param scanEstimator the scan estimator, or null for no budget
+     */
+    public void setScanEstimator(ScanEstimator scanEstimator) {
+        this.scanEstimator = scanEstimator;
+    }
+
+    /**
+     * @param domain the domain, or null for a query over all of the domains
+     * @return true if a path or referrer facet should be read from the rollup alone, since the query on the log
+     * table would not fit in the scan budget
+     */
+    private boolean isRollupOnly(String domain) {
+        boolean rollupOnly = scanEstimator != null && hasRollup() &&
+               !scanEstimator.fits(scanEstimator.estimateBytes(domain, timeRange, rollupTable, rolledUpThrough, false));
+        if (rollupOnly) {
+            logger.warn("isRollupOnly: the {} facets are read from {} alone and do not count the requests after {}",
+                    (domain != null) ? domain : "all domain", rollupTable, rolledUpThrough);
+        }
+        return rollupOnly;
+    }
+
+    /**
+     * Charge a query in the time range to the scan budget, if there is one.
+     *
+     * @param readsRollup true if the query reads the rollup for the rolled up days, when there is a rollup
+     * @param rollupOnly true if the query reads the rollup alone (see isRollupOnly)
+     * @throws ScanBudgetException if the query would exceed the budget
+     */
+    private void chargeScan(String label, String domain, boolean readsRollup, boolean rollupOnly) {
+        boolean rollup = readsRollup && hasRollup();
+        chargeScan(label, domain, timeRange, rollup ? rollupTable : null, rolledUpThrough, rollup && rollupOnly);
+    }
+
+    /**
+     * @param dailyTable the rollup or sketch table that the query reads through dailyThrough, or null
+     */
+    private void chargeScan(String label, String domain, TimeRange range, String dailyTable, LocalDate dailyThrough,
+                            boolean dailyOnly) {
+        if (scanEstimator != null) {
+            long bytes = scanEstimator.estimateBytes(domain, range, dailyTable, dailyThrough, dailyOnly);
+            scanEstimator.charge(label, domain, dailyOnly ? ScanEstimator.Source.ROLLUP : ScanEstimator.Source.LOG_TABLE, bytes,
+                    dailyOnly ? dailyThrough : null);
+        }
+    }
+
+    private void recordCached(String label, String domain) {
+        if (scanEstimator != null) {
+            scanEstimator.recordCached(label, domain);
+        }
+    }
+
+    /**
+     * Run a query task, through the query scheduler if one is set. The task can be run more than once, so it
+     * must build its result from scratch.
+     *
+     * @throws FacetQueryException if the query fails
+     */
+    private <T> T runQuery(Connection conn, String label, QueryScheduler.QueryTask<T> task) {
         try {
-            try (Statement stmt = conn.createStatement()) {
-                try (ResultSet result = stmt.executeQuery(query)) {
-                    while (result.next()) {
-                        String domain = result.getString("domain");
-                        if (domain != null) {
-                            domainList.add(domain);
-                        }
-                    }
-                }
-            }
+            return (scheduler != null) ? scheduler.run(workgroup, priority, label, conn, task) : task.run(conn);
         } catch (SQLException e) {
-            logger.error("getEndPoints: {}", e.getLocalizedMessage());
+            logger.error("{}: {}", label, e.getLocalizedMessage());
+            throw new FacetQueryException(label, e);
+        }
+    }
+
+    /**
+     * @return true if the counts are read from the rollup table. A rollup holds whole days, so it is not used for a
+     * time range that starts or ends within a day.
+     */
+    private boolean hasRollup() {
+        return rollupTable != null && rolledUpThrough != null && (timeRange == null || timeRange.isWholeDays());
+    }
+
+    /**
+     * @return the predicate that selects the log rows after the rollup, or an empty string if there is no rollup.
+     * For a date partitioned table the predicate includes the dt partition column, so the rolled up days are not read.
+     */
+    private String afterRollupPredicate() {
+        if (!hasRollup()) {
+            return "";
+        }
+        String afterRollup = "and request_date >= timestamp '" + rolledUpThrough.plusDays(1) + " 00:00:00'";
+        return datePartitioned ? afterRollup + " and " + LogDDL.DATE_PARTITION_COLUMN + " > '" + rolledUpThrough + "'"
+                               : afterRollup;
+    }
+
+    /**
+     * @return the predicate that selects the rollup rows for a domain. The day limit keeps the rollup and log
+     * table counts from overlapping if the rollup is refreshed while the facets are in use.
+     */
+    private String rollupPredicate() {
+        String dayRange = (timeRange != null) ? " and " + timeRange.dayPredicate(LogRollup.DAY_COLUMN) : "";
+        return "bucket_name = ? and " + LogRollup.DAY_COLUMN + " <= '" + rolledUpThrough + "'" + dayRange;
+    }
+
+    private Optional<List<Pair<String, Integer>>> getCachedResult(String cacheKey) {
+        return (resultCache != null) ? resultCache.get(cacheKey) : Optional.empty();
+    }
+
+    private void cacheResult(String cacheKey, List<Pair<String, Integer>> result) {
+        if (resultCache != null) {
+            resultCache.put(cacheKey, result);
+        }
+    }
+
+    /**
+     * @return the where clause predicate that selects a domain. For a partitioned table this includes the
+     * partition column, which limits the files scanned to the domain partition.
+     */
+    private String domainPredicate() {
+        return partitioned ? LogDDL.PARTITION_COLUMN + " = ? and bucket_name = ?" : "bucket_name = ?";
+    }
+
+    /**
+     * Add the domain values for the domainPredicate parameters to a statement parameter list.
+     */
+    private void addDomainParams(List<Object> params, String domain) {
+        if (partitioned) {
+            params.add(domain);
+        }
+        params.add(domain);
+    }
+
+    private static List<String> cacheParams(List<Object> params) {
+        List<String> paramStrings = new ArrayList<>();
+        for (Object param : params) {
+            paramStrings.add(param.toString());
+        }
+        return paramStrings;
+    }
+
+    /**
+     * Get the s3 endpoints which correspond to the domain names (e.g., bearcave.com). For a partitioned table
+     * the domains are read from the partition metadata, which avoids a scan of the log data. Otherwise, if there
+     * is a time range, the domains are the domains with requests in the range.
+     *
+     * @return a list of end point names.
+     */
+    @Override
+    public List<String> getEndPoints() {
+        if (partitioned) {
+            return runQuery(conn, "getEndPoints", queryConn -> AthenaDB.getPartitionDomains(queryConn, database, logTable));
         }
-        return domainList;
+        final String query = "select distinct bucket_name as domain from " + database + "." + logTable +
+                             ((timeRange != null) ? "\nwhere " + timeRange.logPredicate(datePartitioned) : "");
+        chargeScan("getEndPoints", null, false, false);
+        return runQuery(conn, "getEndPoints", queryConn -> {
+            List<String> domainList = new ArrayList<>();
+            InstrumentedQuery.query(queryConn, "getEndPoints", query, result -> {
+                String domain = result.getString("domain");
+                if (domain != null) {
+                    domainList.add(domain);
+                }
+            });
+            return domainList;
+        });
     }
 
 
@@ -79,50 +360,159 @@ public class LogDataFacets {
      * @return a list of page paths
      */
     public List<Pair<String, Integer>> getPaths(Connection conn, String database, String table, String domain) {
-        List<Pair<String, Integer>> pathList = new ArrayList<>();
-        String dbTable = database + "." + table;
-        String query = "select key as path, count(key) as count from " + dbTable + "\n" +
-                       "where bucket_name = ? and http_status = 200 and (key like '%.html' or key like '%.htm')\n" +
-                       "group by key\n" +
-                       "order by count desc";
-        try {
-            try (PreparedStatement stmt = conn.prepareStatement(query)) {
-                stmt.setString(1, domain);
-                try (ResultSet rslt = stmt.executeQuery()) {
-                    while (rslt.next()) {
-                        String path = rslt.getString("path");
-                        Integer count = rslt.getInt("count");
-                        Pair<String, Integer> pair = new ImmutablePair<>(path, count);
-                        pathList.add(pair);
-                    }
-                }
-            }
-        } catch (SQLException e) {
-            logger.error("getPaths: {}", e.getLocalizedMessage());
+        List<Object> params = new ArrayList<>();
+        boolean rollupOnly = isRollupOnly(domain);
+        String query = buildPathQuery(database, table, domain, true, rollupOnly, params);
+        String cacheKey = FacetCache.buildKey(query, cacheParams(params), tableFingerprint);
+        Optional<List<Pair<String, Integer>>> cachedPaths = getCachedResult(cacheKey);
+        if (cachedPaths.isPresent()) {
+            recordCached("getPaths", domain);
+            return cachedPaths.get();
         }
+        chargeScan("getPaths", domain, true, rollupOnly);
+        List<Pair<String, Integer>> pathList = runQuery(conn, "getPaths", queryConn -> {
+            List<Pair<String, Integer>> rows = new ArrayList<>();
+            InstrumentedQuery.query(queryConn, "getPaths", query, params, rslt -> {
+                String path = rslt.getString("path");
+                Integer count = rslt.getInt("count");
+                Pair<String, Integer> pair = new ImmutablePair<>(path, count);
+                rows.add(pair);
+            });
+            return rows;
+        });
+        cacheResult(cacheKey, pathList);
         return pathList;
     }
 
+    @Override
+    public List<Pair<String, Integer>> getPaths(String domain) {
+        return getPaths(conn, database, logTable, domain);
+    }
+
     /**
-     * The web page reference counts initially exist at the leaves of the directory tree.
-     * Propagate the counts upward and sum them for each root in the tree.
+     * Build the page path count query. If there is a rollup the counts from the rollup table and the counts for
+     * the later days from the log table are added together.
      *
-     * @param root The current tree root.
-     * @return the reference coujnt for that node/root
-     */
-    public Integer fillInRefCounts(DirTreeNode root) {
-        List<DirTreeNode> children = root.getChildren();
-        Integer sum = 0;
-        if (! children.isEmpty()) {
-            for (DirTreeNode node : children) {
-                Integer cnt = fillInRefCounts( node );
-                sum += cnt;
+     * @param ordered if true the result is in descending count order. Sorting a large result is skipped when the
+     *                order is not needed (see getTopPaths).
+     * @param rollupOnly if true, and there is a rollup, the counts are read from the rollup table alone
+     * @param params the list that the statement parameters are added to
+     */
+    private String buildPathQuery(String database, String table, String domain, boolean ordered, boolean rollupOnly,
+                                  List<Object> params) {
+        String dbTable = database + "." + table;
+        String logQuery = "select key as path, count(key) as count from " + dbTable + "\n" +
+                          "where " + domainPredicate() + " and http_status = 200 and (key like '%.html' or key like '%.htm')" +
+                          ((timeRange != null) ? "\n" + timeRangePredicate() : "");
+        String query;
+        if (hasRollup()) {
+            query = """
+            select path, sum(count) as count from (
+                select key as path, sum(hits) as count from ROLLUP_TABLE
+                where ROLLUP_PREDICATE
+                group by key
+                LOG_COUNTS
+            ) as path_counts
+            group by path
+            ORDER_BY""";
+            String logCounts = """
+                union all
+                LOG_QUERY
+                AFTER_ROLLUP
+                group by key""";
+            query = query.replace("\nORDER_BY", ordered ? "\norder by count desc" : "")
+                         .replace("ROLLUP_TABLE", database + "." + rollupTable)
+                         .replace("ROLLUP_PREDICATE", rollupPredicate())
+                         .replace("\n    LOG_COUNTS", rollupOnly ? "" : "\n" + logCounts.indent(4).stripTrailing())
+                         .replace("LOG_QUERY", logQuery)
+                         .replace("AFTER_ROLLUP", afterRollupPredicate());
+            params.add(domain);
+            if (rollupOnly) {
+                return query;
             }
-            root.setPageRefCnt( sum );
         } else {
-            sum = root.getPageRefCnt();
+            query = logQuery + "\n" +
+                    "group by key" +
+                    (ordered ? "\norder by count desc" : "");
+        }
+        addDomainParams(params, domain);
+        return query;
+    }
+
+    /**
+     * The getPaths query for this object's log table (see AsyncFacets)
+     *
+     * @param params the list that the statement parameters are added to
+     */
+    String buildPathQuery(String domain, List<Object> params) {
+        boolean rollupOnly = isRollupOnly(domain);
+        chargeScan("buildPathTree", domain, true, rollupOnly);
+        return buildPathQuery(database, logTable, domain, true, rollupOnly, params);
+    }
+
+    /**
+     * <p>
+     * Build the page path tree for a domain directly from the query result. Each result row is added to the tree
+     * as it is read, so the path list from getPaths is never built. For a site with a large number of pages the
+     * memory used is the memory for the tree, not the tree and the list.
+     * </p>
+     * <p>
+     *     The reference counts of the interior nodes are summed as the paths are added (see
+     *     DirTreeNode.addPathCount), so no aggregation pass is needed. If there is a cached result for the path
+     *     query it is used to build the tree. If a result cache is set, the rows are also collected as they are
+     *     read and cached under the getPaths key, so a later getPaths or buildPathTree call does not run the query.
+     * </p>
+     *
+     * @return the root of the path tree, with the reference counts filled in
+     */
+    public DirTreeNode buildPathTree(Connection conn, String database, String table, String domain) {
+        List<Object> params = new ArrayList<>();
+        boolean rollupOnly = isRollupOnly(domain);
+        String query = buildPathQuery(database, table, domain, true, rollupOnly, params);
+        String cacheKey = FacetCache.buildKey(query, cacheParams(params), tableFingerprint);
+        Optional<List<Pair<String, Integer>>> cachedPaths = getCachedResult(cacheKey);
+        if (cachedPaths.isPresent()) {
+            recordCached("buildPathTree", domain);
+            return buildDirTree(cachedPaths.get());
         }
-        return sum;
+        chargeScan("buildPathTree", domain, true, rollupOnly);
+        List<Pair<String, Integer>> pathRows = new ArrayList<>();
+        DirTreeNode pathTree = runQuery(conn, "buildPathTree", queryConn -> {
+            DirTreeNode rootNode = new DirTreeNode("/");
+            SegmentDictionary segments = new SegmentDictionary();
+            // The task may be run again (see runQuery), so the rows from an earlier attempt are dropped
+            pathRows.clear();
+            InstrumentedQuery.query(queryConn, "buildPathTree", query, params, rslt -> {
+                String path = rslt.getString(1);
+                int count = rslt.getInt(2);
+                if (path != null) {
+                    rootNode.addPathCount(path, count, segments);
+                    if (resultCache != null) {
+                        pathRows.add(new ImmutablePair<>(path, count));
+                    }
+                }
+            });
+            return rootNode;
+        });
+        cacheResult(cacheKey, pathRows);
+        return pathTree;
+    }
+
+    @Override
+    public DirTreeNode buildPathTree(String domain) {
+        return buildPathTree(conn, database, logTable, domain);
+    }
+
+    /**
+     * The web page reference counts initially exist at the leaves of the directory tree.
+     * Propagate the counts upward and sum them for each root in the tree. The tree is walked without recursion
+     * (see RefCountAggregator), so the tree depth is not limited by the stack size.
+     *
+     * @param root The current tree root.
+     * @return the reference count for that node/root
+     */
+    public long fillInRefCounts(DirTreeNode root) {
+        return RefCountAggregator.aggregate(root);
     }
 
     /**
@@ -132,11 +522,16 @@ public class LogDataFacets {
      */
     public DirTreeNode buildDirTree(@NotNull List<Pair<String, Integer>> pathList) {
         DirTreeNode rootNode = new DirTreeNode("/");
+        SegmentDictionary segments = new SegmentDictionary();
         for (Pair<String, Integer> pathInfo : pathList) {
-            rootNode.addPath(pathInfo);
+            rootNode.addPath(pathInfo.getLeft(), pathInfo.getRight(), segments);
         }
         // Fill in the page reference counts
-        fillInRefCounts(rootNode);
+        if (pathList.size() >= PARALLEL_AGGREGATION_SIZE) {
+            RefCountAggregator.aggregateParallel(rootNode);
+        } else {
+            fillInRefCounts(rootNode);
+        }
         return rootNode;
     }
 
@@ -146,12 +541,10 @@ public class LogDataFacets {
      *     be google or other search engines or web pages with a link to the domain pages.
      * </p>
      * <p>
-     *     An example of the raw output from the query is shown below:
+     *     An example of the output from the query is shown below:
      * </p>
      * <pre>
-     * -,45575
-     * google.com/,25709
-     * google.com/,2559
+     * google.com/,28268
      * google.co.uk/,1996
      * duckduckgo.com/,1238
      * google.ca/,769
@@ -160,7 +553,9 @@ public class LogDataFacets {
      * google.de/,241
      * </pre>
      * <p>
-     *     In this output each of the strings is enclosed by a double quote.
+     *     In this output each of the strings is enclosed by a double quote. The counts for the raw referrers with
+     *     the same normalized name (e.g., http://www.google.com/ and https://www.google.com/) are summed by the
+     *     query, which also does the ordering, so the rows are returned in the result order.
      * </p>
      * <p>
      *  Some notes on the SQL:
@@ -169,7 +564,8 @@ public class LogDataFacets {
      *     <li>An attempt is made to filter out Amazon internal references by filtering out the Amazon IP string 52.219</li>
      *     <li>An attempt is made to filter out search strings</li>
      *     <li>References within the domain are filtered out (e.g., one domain page referring to another.</li>
-     *     <li>There is a reference "-" (quotes in the string) which is a bad domain reference marker. This is filtered out.</li>
+     *     <li>There is a reference "-" (quotes in the string) which is a bad domain reference marker. This is filtered out
+     *     by the query.</li>
      * </ul>
      * @param conn the database connectoin
      * @param database the database name
@@ -178,51 +574,710 @@ public class LogDataFacets {
      * @return a list of referrer domain/path names and counts
      */
     public List<Pair<String, Integer>> getReferrers(Connection conn, String database, String table, String domain) {
-        String dbTableName = database + "." + table;
+        List<Object> params = new ArrayList<>();
+        boolean rollupOnly = isRollupOnly(domain);
+        String query = buildReferrerQuery(database, table, domain, true, rollupOnly, params);
+        String cacheKey = FacetCache.buildKey(query, cacheParams(params), tableFingerprint);
+        Optional<List<Pair<String, Integer>>> cachedReferrers = getCachedResult(cacheKey);
+        if (cachedReferrers.isPresent()) {
+            recordCached("getReferrers", domain);
+            return cachedReferrers.get();
+        }
+        chargeScan("getReferrers", domain, true, rollupOnly);
+        List<Pair<String, Integer>> pairList = runQuery(conn, "getReferrers", queryConn -> {
+            List<Pair<String, Integer>> rows = new ArrayList<>();
+            InstrumentedQuery.query(queryConn, "getReferrers", query, params, rslt ->
+                    rows.add(new ImmutablePair<>(rslt.getString("referrer"), rslt.getInt("count"))));
+            return rows;
+        });
+        cacheResult(cacheKey, pairList);
+        return pairList;
+    }  // getReferrers
+
+    @Override
+    public List<Pair<String, Integer>> getReferrers(String domain) {
+        return getReferrers(conn, database, logTable, domain);
+    }
+
+    /**
+     * The "-" marker is removed, as in getTopReferrers.
+     *
+     * @param ordered if true the result is in descending count order
+     * @param rollupOnly if true, and there is a rollup, the counts are read from the rollup table alone
+     * @param params the list that the statement parameters are added to
+     */
+    private String buildReferrerQuery(String database, String table, String domain, boolean ordered, boolean rollupOnly,
+                                      List<Object> params) {
         String query = """
-        select replace(replace(replace(replace(referrer, 'http://', ''), 'https://', ''), 'www.', ''), '"', '') as referrer, count(referrer) as count from DBTABLE 
-        where bucket_name = ? and http_status = 200 and
-        referrer not like '%52.219.%' and referrer not like '%search%'
-        and referrer not like ?
-        and (key like '%.html' or key like '%.htm')
+        select referrer, sum(count) as count from (
+        REFERRER_COUNTS
+        ) as referrer_counts
+        where referrer <> '-'
         group by referrer
-        order by count desc
+        ORDER_BY""";
+        return query.replace("\nORDER_BY", ordered ? "\norder by count desc" : "")
+                    .replace("REFERRER_COUNTS", buildReferrerCountQuery(database, table, domain, rollupOnly, params));
+    }
+
+    /**
+     * The getReferrers query for this object's log table (see AsyncFacets)
+     *
+     * @param params the list that the statement parameters are added to
+     */
+    String buildReferrerQuery(String domain, List<Object> params) {
+        boolean rollupOnly = isRollupOnly(domain);
+        chargeScan("getReferrers", domain, true, rollupOnly);
+        return buildReferrerQuery(database, logTable, domain, true, rollupOnly, params);
+    }
+
+    /**
+     * Build a query for the normalized referrer counts for a domain, with the referrer filters described for
+     * getReferrers. A referrer may be in more than one result row (for example, the raw referrers
+     * http://google.com/ and https://www.google.com/), so the query is used as a sub-query whose counts are summed.
+     * If there is a rollup the rows for the rolled up days are read from the rollup table, where the referrers
+     * are already normalized.
+     *
+     * @param rollupOnly if true, and there is a rollup, the counts are read from the rollup table alone
+     * @param params the list that the statement parameters are added to
+     */
+    private String buildReferrerCountQuery(String database, String table, String domain, boolean rollupOnly,
+                                           List<Object> params) {
+        String logQuery = """
+            select NORMALIZED_REFERRER as referrer, count(referrer) as count from DBTABLE
+            where DOMAIN_PREDICATE and http_status = 200 and
+            referrer not like '%52.219.%' and referrer not like '%search%'
+            and referrer not like ?
+            and (key like '%.html' or key like '%.htm')
+            TIME_RANGE
+            AFTER_ROLLUP
+            group by referrer""";
+        logQuery = logQuery.replace("NORMALIZED_REFERRER", NORMALIZED_REFERRER)
+                           .replace("DBTABLE", database + "." + table)
+                           .replace("DOMAIN_PREDICATE", domainPredicate())
+                           .replace("AFTER_ROLLUP", afterRollupPredicate())
+                           .replace("\nTIME_RANGE", (timeRange != null) ? "\n" + timeRangePredicate() : "");
+        String query = logQuery;
+        if (hasRollup()) {
+            String rollupQuery = """
+            select referrer, sum(referrer_hits) as count from ROLLUP_TABLE
+            where ROLLUP_PREDICATE and
+            referrer not like '%52.219.%' and referrer not like '%search%'
+            and referrer not like ?
+            group by referrer
+            union all
+            """;
+            rollupQuery = rollupQuery.replace("ROLLUP_TABLE", database + "." + rollupTable)
+                                     .replace("ROLLUP_PREDICATE", rollupPredicate());
+            params.add(domain);
+            params.add("%" + domain + "%");
+            if (rollupOnly) {
+                return rollupQuery.substring(0, rollupQuery.lastIndexOf("\nunion all"));
+            }
+            query = rollupQuery + logQuery;
+        }
+        addDomainParams(params, domain);
+        params.add("%" + domain + "%");
+        return query;
+    }
+
+    /**
+     * <p>
+     *     Return the top referrers for a domain, one page at a time. The filters and the referrer normalization
+     *     (http://, https://, www. and quotes removed) are the same as in getReferrers, but the "-" marker is
+     *     removed and the ordering and limit are done by Athena. The result transfer
+     *     and client processing are proportional to the page size rather than to the number of distinct raw
+     *     referrers.
+     * </p>
+     * <p>
+     *     Referrers with the same count are ordered by name. A page starts after the cursor position from the
+     *     previous page (keyset pagination), so later pages do not re-read the earlier rows.
+     * </p>
+     *
+     * @param conn the database connection
+     * @param database the database name
+     * @param table the log table name
+     * @param domain the domain to filter the results on
+     * @param pageSize the maximum number of referrers to return
+     * @param cursor the cursor from the previous page, or null for the first page
+     * @return a page of referrer domain/path names and counts, in descending count order
+     */
+    public ReferrerPage getTopReferrers(Connection conn, String database, String table, String domain, int pageSize,
+                                        ReferrerPage.Cursor cursor) {
+        List<Object> params = new ArrayList<>();
+        String query = """
+        with refs as (
+        REFERRER_COUNTS
+        )
+        select referrer, sum(count) as count from refs
+        where referrer <> '-'
+        group by referrer
+        CURSOR_PREDICATE
+        order by count desc, referrer asc
+        limit PAGE_SIZE
         """;
-        query = query.replace("DBTABLE", dbTableName);
-        Map<String, Integer> pairMap = new HashMap<>();
-        List<Pair<String, Integer>> pairList = new ArrayList<>();
-        try {
-            try (PreparedStatement stmt = conn.prepareStatement(query)) {
-                stmt.setString(1, domain);
-                stmt.setString(2, "%" + domain + "%");
-                try (ResultSet rslt = stmt.executeQuery()) {
-                    while (rslt.next()) {
+        String cursorPredicate = (cursor != null) ? "having sum(count) < ? or (sum(count) = ? and referrer > ?)" : "";
+        boolean rollupOnly = isRollupOnly(domain);
+        query = query.replace("REFERRER_COUNTS", buildReferrerCountQuery(database, table, domain, rollupOnly, params))
+                     .replace("CURSOR_PREDICATE", cursorPredicate)
+                     .replace("PAGE_SIZE", String.valueOf(pageSize));
+        if (cursor != null) {
+            params.add(cursor.getCount());
+            params.add(cursor.getCount());
+            params.add(cursor.getReferrer());
+        }
+        String cacheKey = FacetCache.buildKey(query, cacheParams(params), tableFingerprint);
+        Optional<List<Pair<String, Integer>>> cachedReferrers = getCachedResult(cacheKey);
+        if (cachedReferrers.isPresent()) {
+            recordCached("getTopReferrers", domain);
+            return new ReferrerPage(cachedReferrers.get(), pageSize);
+        }
+        chargeScan("getTopReferrers", domain, true, rollupOnly);
+        String pageQuery = query;
+        List<Pair<String, Integer>> pairList = runQuery(conn, "getTopReferrers", queryConn -> {
+            List<Pair<String, Integer>> rows = new ArrayList<>();
+            InstrumentedQuery.query(queryConn, "getTopReferrers", pageQuery, params, rslt ->
+                    rows.add(new ImmutablePair<>(rslt.getString("referrer"), rslt.getInt("count"))));
+            return rows;
+        });
+        cacheResult(cacheKey, pairList);
+        return new ReferrerPage(pairList, pageSize);
+    }
+
+    public ReferrerPage getTopReferrers(Connection conn, String database, String table, String domain, int pageSize) {
+        return getTopReferrers(conn, database, table, domain, pageSize, null);
+    }
+
+    /**
+     * @return the where clause for the getCombinedReport slice: the domain partition, for a partitioned table,
+     * and the time range
+     */
+    private String buildSliceFilter() {
+        List<String> filters = new ArrayList<>();
+        if (partitioned) {
+            filters.add(LogDDL.PARTITION_COLUMN + " = ?");
+        }
+        if (timeRange != null) {
+            filters.add(timeRange.logPredicate(datePartitioned));
+        }
+        return filters.isEmpty() ? "" : "where " + String.join(" and ", filters);
+    }
+
+    /**
+     * <p>
+     *     Compute the domain list, the page path counts and the referrer counts for a domain report in a single
+     *     query. The path and referrer facets read the same slice of the log data and, for a table that is not
+     *     partitioned, the domain list reads the whole table. Rather than scanning the data three times, the
+     *     query scans it once and computes the three groupings with GROUPING SETS:
+     * </p>
+     * <ul>
+     *     <li>(bucket_name): the domains in the table</li>
+     *     <li>(path): the page path counts. The path is null for rows outside the path facet slice.</li>
+     *     <li>(referrer): the normalized referrer counts. The referrer is null for rows outside the referrer
+     *     facet slice.</li>
+     * </ul>
+     * <p>
+     *     The grouping() value identifies the grouping set for each result row, and the rows are split back into
+     *     the domain list, the path tree and the referrer list. The filters are the same as the filters in getPaths
+     *     and getReferrers.
+     * </p>
+     * <p>
+     *     For a partitioned table the domains are read from the partition metadata and the query only scans the
+     *     domain partition. Otherwise, if there is a time range, the domain list has the domains with requests in
+     *     the range.
+     * </p>
+     * <p>
+     *     The domain list needs the log table, so this query does not read from a rollup table (see setRollup).
+     * </p>
+     *
+     * @param conn the database connection
+     * @param domain the domain for the path and referrer facets
+     * @return the report, with the referrers in descending count order
+     */
+    public FacetReport getCombinedReport(Connection conn, String domain) {
+        String query = """
+        with slice as (
+            select bucket_name,
+                   if(PAGE_FILTER, key) as path,
+                   if(PAGE_FILTER and referrer not like '%52.219.%' and referrer not like '%search%'
+                      and referrer not like ?, NORMALIZED_REFERRER) as referrer
+            from DBTABLE
+            SLICE_FILTER
+        )
+        select grouping(bucket_name, path, referrer) as grouping_id, bucket_name, path, referrer,
+               count(path) as path_count, count(referrer) as referrer_count
+        from slice
+        group by grouping sets ((bucket_name), (path), (referrer))
+        """;
+        final String pageFilter = "bucket_name = ? and http_status = 200 and (key like '%.html' or key like '%.htm')";
+        // grouping() sets a bit for each argument that is not in the grouping set
+        final int domainSet = 0b011;
+        final int pathSet = 0b101;
+        final int referrerSet = 0b110;
+        query = query.replace("PAGE_FILTER", pageFilter)
+                     .replace("NORMALIZED_REFERRER", NORMALIZED_REFERRER)
+                     .replace("DBTABLE", database + "." + logTable)
+                     .replace("SLICE_FILTER", buildSliceFilter());
+        List<Object> params = new ArrayList<>(List.of(domain, domain, "%" + domain + "%"));
+        if (partitioned) {
+            params.add(domain);
+        }
+        String reportQuery = query;
+        // The combined query reads the whole table for the domain list unless the table is partitioned
+        chargeScan("getCombinedReport", partitioned ? domain : null, false, false);
+        return runQuery(conn, "getCombinedReport", queryConn -> {
+            List<String> domainList = new ArrayList<>();
+            DirTreeNode pathTree = new DirTreeNode("/");
+            SegmentDictionary segments = new SegmentDictionary();
+            List<Pair<String, Integer>> referrerList = new ArrayList<>();
+            InstrumentedQuery.query(queryConn, "getCombinedReport", reportQuery, params, rslt -> {
+                int groupingId = rslt.getInt("grouping_id");
+                if (groupingId == domainSet) {
+                    String bucket = rslt.getString("bucket_name");
+                    if (bucket != null) {
+                        domainList.add(bucket);
+                    }
+                } else if (groupingId == pathSet) {
+                    String path = rslt.getString("path");
+                    if (path != null) {
+                        pathTree.addPathCount(path, rslt.getLong("path_count"), segments);
+                    }
+                } else if (groupingId == referrerSet) {
+                    String ref = rslt.getString("referrer");
+                    if (ref != null && !ref.equals("-")) {
+                        referrerList.add(new ImmutablePair<>(ref, rslt.getInt("referrer_count")));
+                    }
+                }
+            });
+            if (partitioned) {
+                domainList.clear();
+                domainList.addAll(AthenaDB.getPartitionDomains(queryConn, database, logTable));
+            }
+            referrerList.sort(Collections.reverseOrder(Comparator.comparing(Pair::getRight)));
+            return new FacetReport(domainList, pathTree, referrerList);
+        });
+    }
+
+    /**
+     * <p>
+     *     Compute the path and referrer facets for every domain in the log table with a single query. Reporting on
+     *     each domain with its own path and referrer queries scans the log data twice per domain. This query scans
+     *     it once and groups the page rows with GROUPING SETS ((bucket_name, path), (bucket_name, referrer)). The
+     *     grouping() value identifies the grouping set for each result row.
+     * </p>
+     * <p>
+     *     The filters are the same as the filters in getPaths and getReferrers. The filter on references from
+     *     within the domain compares the referrer with the bucket_name of each row.
+     * </p>
+     * <p>
+     *     The path rows are collected by domain as they are fetched and the domain path trees are then built in
+     *     parallel (on the common ForkJoinPool). Like getCombinedReport, this query reads the log table, not a
+     *     rollup table.
+     * </p>
+     *
+     * @param conn the database connection
+     * @return the report for each domain, in domain name order. The domain list of each report is the list of
+     * all of the domains. For a table that is not partitioned, a domain without any HTML page requests is not
+     * included.
+     */
+    public Map<String, FacetReport> getAllDomainReports(Connection conn) {
+        String query = """
+        with slice as (
+            select bucket_name, key as path,
+                   if(referrer not like '%52.219.%' and referrer not like '%search%'
+                      and strpos(referrer, bucket_name) = 0, NORMALIZED_REFERRER) as referrer
+            from DBTABLE
+            where http_status = 200 and (key like '%.html' or key like '%.htm') TIME_RANGE
+        )
+        select grouping(path, referrer) as grouping_id, bucket_name, path, referrer,
+               count(path) as path_count, count(referrer) as referrer_count
+        from slice
+        group by grouping sets ((bucket_name, path), (bucket_name, referrer))
+        """;
+        // grouping() sets a bit for each argument that is not in the grouping set
+        final int pathSet = 0b01;
+        final int referrerSet = 0b10;
+        query = query.replace("NORMALIZED_REFERRER", NORMALIZED_REFERRER)
+                     .replace("DBTABLE", database + "." + logTable)
+                     .replace(" TIME_RANGE", (timeRange != null) ? " " + timeRangePredicate() : "");
+        String reportQuery = query;
+        chargeScan("getAllDomainReports", null, false, false);
+        Pair<Map<String, List<Pair<String, Long>>>, Map<String, List<Pair<String, Integer>>>> domainRows =
+                runQuery(conn, "getAllDomainReports", queryConn -> {
+            Map<String, List<Pair<String, Long>>> domainPaths = new TreeMap<>();
+            Map<String, List<Pair<String, Integer>>> domainReferrers = new HashMap<>();
+            InstrumentedQuery.query(queryConn, "getAllDomainReports", reportQuery, rslt -> {
+                String bucket = rslt.getString("bucket_name");
+                if (bucket != null) {
+                    int groupingId = rslt.getInt("grouping_id");
+                    if (groupingId == pathSet) {
+                        String path = rslt.getString("path");
+                        if (path != null) {
+                            domainPaths.computeIfAbsent(bucket, k -> new ArrayList<>())
+                                       .add(new ImmutablePair<>(path, rslt.getLong("path_count")));
+                        }
+                    } else if (groupingId == referrerSet) {
                         String ref = rslt.getString("referrer");
-                        if (! ref.equals("-")) {
-                            Integer count = rslt.getInt("count");
-                            if (pairMap.containsKey(ref)) {
-                                Integer existingCount = pairMap.get(ref);
-                                pairMap.put(ref, existingCount + count);
-                            } else {
-                                pairMap.put(ref, count);
-                            }
+                        if (ref != null && !ref.equals("-")) {
+                            domainReferrers.computeIfAbsent(bucket, k -> new ArrayList<>())
+                                           .add(new ImmutablePair<>(ref, rslt.getInt("referrer_count")));
                         }
                     }
                 }
+            });
+            return new ImmutablePair<>(domainPaths, domainReferrers);
+        });
+        Map<String, List<Pair<String, Long>>> domainPaths = domainRows.getLeft();
+        Map<String, List<Pair<String, Integer>>> domainReferrers = domainRows.getRight();
+        // For a partitioned table the domains without page requests are read from the partition metadata
+        if (partitioned) {
+            for (String domain : getEndPoints()) {
+                domainPaths.computeIfAbsent(domain, k -> new ArrayList<>());
             }
-            if (pairMap.size() > 0) {
-                Set<Map.Entry<String, Integer>> mapSet = pairMap.entrySet();
-                for (Map.Entry<String, Integer> val : mapSet) {
-                    Pair<String, Integer> pair = new ImmutablePair<>(val.getKey(), val.getValue());
-                    pairList.add( pair );
-                }
+        }
+        List<String> domainList = new ArrayList<>(domainPaths.keySet());
+        Map<String, DirTreeNode> domainTrees = new ConcurrentHashMap<>();
+        domainPaths.entrySet().parallelStream().forEach(entry -> {
+            DirTreeNode rootNode = new DirTreeNode("/");
+            SegmentDictionary segments = new SegmentDictionary();
+            for (Pair<String, Long> pathCount : entry.getValue()) {
+                rootNode.addPathCount(pathCount.getLeft(), pathCount.getRight(), segments);
             }
-        } catch (SQLException e) {
-            logger.error("getPaths: {}", e.getLocalizedMessage());
+            domainTrees.put(entry.getKey(), rootNode);
+        });
+        Map<String, FacetReport> reports = new TreeMap<>();
+        for (String domain : domainPaths.keySet()) {
+            List<Pair<String, Integer>> referrerList = domainReferrers.getOrDefault(domain, new ArrayList<>());
+            referrerList.sort(Collections.reverseOrder(Comparator.comparing(Pair::getRight)));
+            reports.put(domain, new FacetReport(domainList, domainTrees.get(domain), referrerList));
         }
-        // Sort the result in descending order
-        pairList.sort(Collections.reverseOrder(Comparator.comparing(Pair::getRight)));
-        return pairList;
-    }  // getReferrers
+        return reports;
+    }
+
+    static String percentileColumn(double percentile) {
+        return "p" + Math.round(percentile * 100);
+    }
+
+    /**
+     * <p>
+     * Build a query for the approximate unique visitors, request count and request time percentiles of the
+     * HTML page requests for a domain in the days [startDay, endDay]. Without a sketch table the query uses
+     * approx_distinct and approx_percentile over the log table:
+     * </p>
+     * <pre>
+     *     select approx_distinct(remote_ip) as visitors, count(*) as requests,
+     *            approx_percentile(total_time, 0.5) as p50, ...
+     * </pre>
+     * <p>
+     *     With a sketch table the stored sketches for the days in the range are merged with sketches of the log
+     *     rows for the days after the sketch table:
+     * </p>
+     * <pre>
+     *     select cardinality(merge(visitors)) as visitors, sum(requests) as requests,
+     *            value_at_quantile(merge(latency), 0.5) as p50, ...
+     *     from (select ... from sketch table union all select ..., approx_set(remote_ip), qdigest_agg(...) from log table)
+     * </pre>
+     *
+     * @param byPage if true the result has a row for each page key, otherwise one row for the domain
+     * @param params the list that the statement parameters are added to
+     */
+    private String buildApproxQuery(String domain, LocalDate startDay, LocalDate endDay, boolean byPage,
+                                    List<Object> params) {
+        String keyColumn = byPage ? "key, " : "";
+        String groupBy = byPage ? "\ngroup by key" : "";
+        String pageFilter = "http_status = 200 and (key like '%.html' or key like '%.htm')";
+        StringBuilder columns = new StringBuilder();
+        String query;
+        boolean useSketches = usesSketches(startDay);
+        if (useSketches) {
+            for (double percentile : LATENCY_PERCENTILES) {
+                columns.append(", value_at_quantile(merge(latency), ").append(percentile).append(") as ")
+                       .append(percentileColumn(percentile));
+            }
+            LocalDate sketchEnd = endDay.isBefore(sketchedThrough) ? endDay : sketchedThrough;
+            String sketchQuery = """
+                select key, requests, cast(visitors as HyperLogLog) as visitors,
+                       cast(latency as qdigest(bigint)) as latency
+                from SKETCH_TABLE
+                where bucket_name = ? and DAY_COLUMN >= 'START_DAY' and DAY_COLUMN <= 'END_DAY'""";
+            sketchQuery = sketchQuery.replace("SKETCH_TABLE", database + "." + sketchTable)
+                                     .replace("DAY_COLUMN", LogRollup.DAY_COLUMN)
+                                     .replace("START_DAY", startDay.toString())
+                                     .replace("END_DAY", sketchEnd.toString());
+            params.add(domain);
+            if (endDay.isAfter(sketchedThrough)) {
+                String logQuery = """
+                union all
+                select key, count(*) as requests, approx_set(remote_ip) as visitors,
+                       qdigest_agg(cast(total_time as bigint)) as latency
+                from DBTABLE
+                where DOMAIN_PREDICATE and PAGE_FILTER
+                and DAY_RANGE
+                group by key""";
+                sketchQuery = sketchQuery + "\n" + logQuery.replace("DBTABLE", database + "." + logTable)
+                        .replace("DOMAIN_PREDICATE", domainPredicate())
+                        .replace("PAGE_FILTER", pageFilter)
+                        .replace("DAY_RANGE", TimeRange.ofDays(sketchedThrough.plusDays(1), endDay).logPredicate(datePartitioned));
+                addDomainParams(params, domain);
+            }
+            query = """
+            select KEY_COLUMN cardinality(merge(visitors)) as visitors, sum(requests) as requests PERCENTILES
+            from (
+            SKETCHES
+            ) as sketches
+            GROUP_BY""";
+            query = query.replace("SKETCHES", sketchQuery);
+        } else {
+            for (double percentile : LATENCY_PERCENTILES) {
+                columns.append(", approx_percentile(total_time, ").append(percentile).append(") as ")
+                       .append(percentileColumn(percentile));
+            }
+            query = """
+            select KEY_COLUMN approx_distinct(remote_ip) as visitors, count(*) as requests PERCENTILES
+            from DBTABLE
+            where DOMAIN_PREDICATE and PAGE_FILTER
+            and DAY_RANGE
+            GROUP_BY""";
+            query = query.replace("DBTABLE", database + "." + logTable)
+                         .replace("DOMAIN_PREDICATE", domainPredicate())
+                         .replace("PAGE_FILTER", pageFilter)
+                         .replace("DAY_RANGE", TimeRange.ofDays(startDay, endDay).logPredicate(datePartitioned));
+            addDomainParams(params, domain);
+        }
+        return query.replace("KEY_COLUMN ", keyColumn)
+                    .replace(" PERCENTILES", columns.toString())
+                    .replace("\nGROUP_BY", groupBy);
+    }
+
+    /**
+     * @return true if the approximate facets for a range that starts on startDay are merged from the sketch table
+     */
+    private boolean usesSketches(LocalDate startDay) {
+        return sketchTable != null && sketchedThrough != null && !startDay.isAfter(sketchedThrough);
+    }
+
+    /**
+     * Charge an approximate facet query to the scan budget. The sketch table is read for the sketched days.
+     */
+    private void chargeApproxScan(String label, String domain, LocalDate startDay, LocalDate endDay) {
+        boolean useSketches = usesSketches(startDay);
+        chargeScan(label, domain, TimeRange.ofDays(startDay, endDay), useSketches ? sketchTable : null,
+                   sketchedThrough, false);
+    }
+
+    /**
+     * Get the approximate number of unique visitors (distinct remote IP addresses) for the pages of a domain in a
+     * range of days. The counts are approximate (the HyperLogLog standard error is about 2.3%).
+     *
+     * @param conn the database connection
+     * @param domain the domain
+     * @param startDay the first day of the range
+     * @param endDay the last day of the range (inclusive)
+     * @param maxPages the maximum number of pages to return
+     * @return the page paths and visitor counts, in descending visitor order
+     */
+    public List<Pair<String, Integer>> getPageVisitors(Connection conn, String domain, LocalDate startDay,
+                                                       LocalDate endDay, int maxPages) {
+        List<Object> params = new ArrayList<>();
+        String query = buildApproxQuery(domain, startDay, endDay, true, params) + "\n" +
+                       "order by visitors desc\n" +
+                       "limit " + maxPages;
+        chargeApproxScan("getPageVisitors", domain, startDay, endDay);
+        return runQuery(conn, "getPageVisitors", queryConn -> {
+            List<Pair<String, Integer>> pageList = new ArrayList<>();
+            InstrumentedQuery.query(queryConn, "getPageVisitors", query, params, rslt ->
+                    pageList.add(new ImmutablePair<>(rslt.getString("key"), rslt.getInt("visitors"))));
+            return pageList;
+        });
+    }
+
+    /**
+     * Get the approximate unique visitors and request time percentiles (the median, 90th and 99th percentiles)
+     * for the HTML page requests of a domain in a range of days.
+     *
+     * @param conn the database connection
+     * @param domain the domain
+     * @param startDay the first day of the range
+     * @param endDay the last day of the range (inclusive)
+     * @return the summary, or an empty Optional if the query returns no row
+     */
+    public Optional<DomainSummary> getDomainSummary(Connection conn, String domain, LocalDate startDay, LocalDate endDay) {
+        List<Object> params = new ArrayList<>();
+        String query = buildApproxQuery(domain, startDay, endDay, false, params);
+        chargeApproxScan("getDomainSummary", domain, startDay, endDay);
+        return runQuery(conn, "getDomainSummary", queryConn -> {
+            List<DomainSummary> summaries = new ArrayList<>();
+            InstrumentedQuery.query(queryConn, "getDomainSummary", query, params, rslt -> {
+                List<Pair<Double, Long>> percentiles = new ArrayList<>();
+                for (double percentile : LATENCY_PERCENTILES) {
+                    percentiles.add(new ImmutablePair<>(percentile, rslt.getLong(percentileColumn(percentile))));
+                }
+                summaries.add(new DomainSummary(domain, startDay, endDay, rslt.getLong("requests"),
+                        rslt.getLong("visitors"), percentiles));
+            });
+            return summaries.stream().findFirst();
+        });
+    }
+
+    /**
+     * <p>
+     * Get the hourly or daily request counts and request time percentiles for a domain, or for the keys under a
+     * path prefix, in a time range. All of the requests are counted, not only the HTML page requests:
+     * </p>
+     * <pre>
+     *     select date_trunc('hour', request_date) as bucket_start, count(*) as requests,
+     *            approx_percentile(total_time, 0.5) as p50, ...
+     *     from orclogdb.httplogs
+     *     where bucket_name = ? and request_date >= timestamp '2021-07-01 00:00:00' and ... and key like ?
+     *     group by 1
+     * </pre>
+     * <p>
+     *     The time range is required, so a series never scans the whole log history, and for a date partitioned
+     *     table only the partitions for the days in the range are read. The buckets without requests are added to
+     *     the series with a request count of zero, so the series has a point for each hour or day in the range.
+     * </p>
+     *
+     * @param conn the database connection
+     * @param domain the domain
+     * @param pathPrefix a key prefix (e.g., software/java/), or null for all of the domain requests
+     * @param interval the time bucket
+     * @param range the time range of the series
+     * @return the series, in time order
+     */
+    public List<TrafficPoint> getTrafficSeries(Connection conn, String domain, String pathPrefix,
+                                               TrafficPoint.Interval interval, TimeRange range) {
+        StringBuilder columns = new StringBuilder();
+        for (double percentile : LATENCY_PERCENTILES) {
+            columns.append(", approx_percentile(total_time, ").append(percentile).append(") as ")
+                   .append(percentileColumn(percentile));
+        }
+        String query = """
+        select date_trunc('INTERVAL', request_date) as bucket_start, count(*) as requests PERCENTILES
+        from DBTABLE
+        where DOMAIN_PREDICATE and TIME_RANGE PREFIX_FILTER
+        group by 1
+        order by 1""";
+        String prefix = (pathPrefix != null && pathPrefix.startsWith("/")) ? pathPrefix.substring(1) : pathPrefix;
+        query = query.replace("INTERVAL", interval.getSqlUnit())
+                     .replace(" PERCENTILES", columns.toString())
+                     .replace("DBTABLE", database + "." + logTable)
+                     .replace("DOMAIN_PREDICATE", domainPredicate())
+                     .replace("TIME_RANGE", range.logPredicate(datePartitioned))
+                     .replace(" PREFIX_FILTER", (prefix != null && !prefix.isEmpty()) ? " and key like ? escape '\\'" : "");
+        List<Object> params = new ArrayList<>();
+        addDomainParams(params, domain);
+        if (prefix != null && !prefix.isEmpty()) {
+            params.add(prefix.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%");
+        }
+        String seriesQuery = query;
+        chargeScan("getTrafficSeries", domain, range, null, null, false);
+        Map<LocalDateTime, TrafficPoint> points = runQuery(conn, "getTrafficSeries", queryConn -> {
+            Map<LocalDateTime, TrafficPoint> bucketPoints = new HashMap<>();
+            InstrumentedQuery.query(queryConn, "getTrafficSeries", seriesQuery, params, rslt -> {
+                Timestamp bucketStart = rslt.getTimestamp("bucket_start");
+                if (bucketStart != null) {
+                    List<Pair<Double, Long>> percentiles = new ArrayList<>();
+                    for (double percentile : LATENCY_PERCENTILES) {
+                        percentiles.add(new ImmutablePair<>(percentile, rslt.getLong(percentileColumn(percentile))));
+                    }
+                    LocalDateTime start = bucketStart.toLocalDateTime();
+                    bucketPoints.put(start, new TrafficPoint(start, rslt.getLong("requests"), percentiles));
+                }
+            });
+            return bucketPoints;
+        });
+        List<TrafficPoint> series = new ArrayList<>();
+        for (LocalDateTime bucket = interval.truncate(range.getStart()); bucket.isBefore(range.getEnd());
+             bucket = bucket.plus(1, interval.getUnit())) {
+            TrafficPoint point = points.get(bucket);
+            series.add((point != null) ? point : new TrafficPoint(bucket, 0, Collections.emptyList()));
+        }
+        return series;
+    }
+
+    public List<TrafficPoint> getTrafficSeries(String domain, String pathPrefix, TrafficPoint.Interval interval,
+                                               TimeRange range) {
+        return getTrafficSeries(conn, domain, pathPrefix, interval, range);
+    }
+
+    /**
+     * <p>
+     * Find the most requested page paths for a domain with a bounded amount of client memory. The path count rows
+     * are streamed into a Space-Saving summary that holds at most capacity paths, so the client memory does not
+     * grow with the number of distinct paths (for example, a long tail of one-hit scanner URLs). The query result
+     * is not sorted, since the order is not needed.
+     * </p>
+     * <p>
+     *     The summary counts are upper bounds on the true counts, with an error of at most (total count) / capacity
+     *     (see SpaceSaving). A capacity of several times the number of paths that are reported keeps the error of
+     *     the top paths small.
+     * </p>
+     *
+     * @param conn the database connection
+     * @param domain the domain
+     * @param capacity the maximum number of paths kept in the summary
+     * @return the path summary
+     */
+    public SpaceSaving<String> getPathHeavyHitters(Connection conn, String domain, int capacity) {
+        List<Object> params = new ArrayList<>();
+        boolean rollupOnly = isRollupOnly(domain);
+        String query = buildPathQuery(database, logTable, domain, false, rollupOnly, params);
+        chargeScan("getPathHeavyHitters", domain, true, rollupOnly);
+        return runQuery(conn, "getPathHeavyHitters", queryConn -> {
+            SpaceSaving<String> summary = new SpaceSaving<>(capacity);
+            InstrumentedQuery.query(queryConn, "getPathHeavyHitters", query, params, rslt -> {
+                String path = rslt.getString(1);
+                if (path != null) {
+                    summary.add(path, rslt.getLong(2));
+                }
+            });
+            return summary;
+        });
+    }
+
+    /**
+     * Find the top referrers for a domain with a bounded amount of client memory (see getPathHeavyHitters). The
+     * referrer filters are the same as in getReferrers.
+     *
+     * @param conn the database connection
+     * @param domain the domain
+     * @param capacity the maximum number of referrers kept in the summary
+     * @return the referrer summary
+     */
+    public SpaceSaving<String> getReferrerHeavyHitters(Connection conn, String domain, int capacity) {
+        List<Object> params = new ArrayList<>();
+        boolean rollupOnly = isRollupOnly(domain);
+        String query = buildReferrerQuery(database, logTable, domain, false, rollupOnly, params);
+        chargeScan("getReferrerHeavyHitters", domain, true, rollupOnly);
+        return runQuery(conn, "getReferrerHeavyHitters", queryConn -> {
+            SpaceSaving<String> summary = new SpaceSaving<>(capacity);
+            InstrumentedQuery.query(queryConn, "getReferrerHeavyHitters", query, params, rslt -> {
+                String ref = rslt.getString("referrer");
+                if (ref != null) {
+                    summary.add(ref, rslt.getLong("count"));
+                }
+            });
+            return summary;
+        });
+    }
+
+    /**
+     * Build a path tree from the top K paths in a path summary. The count for the rest of the paths is added to
+     * the tree as the OTHER_PATHS node under the root, so the root count is the total count for the domain.
+     *
+     * @param pathSummary the path summary (see getPathHeavyHitters)
+     * @param k the number of paths in the tree
+     * @return the root of the tree, with the reference counts filled in
+     */
+    public static DirTreeNode buildTopKPathTree(SpaceSaving<String> pathSummary, int k) {
+        DirTreeNode rootNode = new DirTreeNode("/");
+        for (SpaceSaving.HeavyHitter<String> path : pathSummary.getTop(k)) {
+            rootNode.addPathCount(path.getItem(), path.getCount());
+        }
+        long otherCount = pathSummary.getOtherCount(k);
+        if (otherCount > 0) {
+            rootNode.addPathCount(OTHER_PATHS, otherCount);
+        }
+        return rootNode;
+    }
 
 }
@@ -0,0 +1,177 @@
+package com.topstonesoftware.athenalogs;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * <p>
+ * A daily rollup of the log table. The path and referrer facets only use the HTTP 200 requests for HTML pages,
+ * and for these rows they only need the domain, the page key and the referrer. The rollup table holds the
+ * counts for each (domain, day, key, normalized referrer):
+ * </p>
+ * <pre>
+ *     bucket_name, key, referrer, hits, referrer_hits, request_day
+ *     bearcave.com, software/divide.htm, google.com/, 12, 12, 2021-07-01
+ * </pre>
+ * <p>
+ *     hits is the number of requests (count(*)) and referrer_hits is the number of requests with a referrer
+ *     (count(referrer)). The rollup table is stored as ORC and is partitioned by day, so it is far smaller than
+ *     the log data and a facet query over it scans a fraction of the data (see LogDataFacets.setRollup).
+ * </p>
+ * <p>
+ *     A subclass can roll up other per-day values by overriding buildRollupSelect (see LogSketches).
+ * </p>
+ * <p>
+ *     The table is built with a create table as select (CTAS) statement and each refresh adds only the days that
+ *     are not already in the rollup with an insert into statement. The current day is not rolled up, since it is
+ *     not complete. Athena limits the number of partitions that one CTAS or insert into statement can write to 100,
+ *     so the new days are added in batches.
+ * </p>
+ */
+@Slf4j
+public class LogRollup {
+    private static final Logger logger = LoggerFactory.getLogger(LogRollup.class);
+    /** The partition column of the rollup table, a yyyy-MM-dd string */
+    public static final String DAY_COLUMN = "request_day";
+    private static final String ROLLUP_SUFFIX = "_daily";
+    private static final int MAX_PARTITIONS_PER_QUERY = 100;
+    protected final String database;
+    protected final String logTable;
+    @Getter
+    private final String rollupTable;
+    private final String rollupPath;
+
+    /**
+     * @param database the database name
+     * @param logTable the log table that is rolled up
+     * @param rollupPath the S3 bucket and path for the rollup table ORC files. The path should be empty, or
+     *                   only hold the files for this rollup table.
+     */
+    public LogRollup(String database, String logTable, String rollupPath) {
+        this(database, logTable, rollupPath, ROLLUP_SUFFIX);
+    }
+
+    /**
+     * @param tableSuffix the suffix that is added to the log table name to form the rollup table name
+     */
+    protected LogRollup(String database, String logTable, String rollupPath, String tableSuffix) {
+        this.database = database;
+        this.logTable = logTable;
+        this.rollupTable = logTable + tableSuffix;
+        this.rollupPath = rollupPath.endsWith("/") ? rollupPath : rollupPath + "/";
+    }
+
+    /**
+     * @return the predicate that selects the log rows for the days in [startDay, endDay)
+     */
+    protected static String dayRangePredicate(LocalDate startDay, LocalDate endDay) {
+        return "request_date >= timestamp '" + startDay + " 00:00:00' and request_date < timestamp '" + endDay + " 00:00:00'";
+    }
+
+    /**
+     * @return the select statement that rolls up the log rows for the days in [startDay, endDay). The day
+     * partition column must be the last column.
+     */
+    protected String buildRollupSelect(LocalDate startDay, LocalDate endDay) {
+        String query = """
+        select bucket_name, key, NORMALIZED_REFERRER as referrer,
+               count(*) as hits, count(referrer) as referrer_hits,
+               cast(date(request_date) as varchar) as DAY_COLUMN
+        from DBTABLE
+        where http_status = 200 and (key like '%.html' or key like '%.htm')
+        and DAY_RANGE
+        group by bucket_name, key, NORMALIZED_REFERRER, date(request_date)
+        """;
+        return query.replace("NORMALIZED_REFERRER", LogDataFacets.NORMALIZED_REFERRER)
+                    .replace("DAY_COLUMN", DAY_COLUMN)
+                    .replace("DBTABLE", database + "." + logTable)
+                    .replace("DAY_RANGE", dayRangePredicate(startDay, endDay));
+    }
+
+    private String buildCreateRollup(LocalDate startDay, LocalDate endDay) {
+        return "create table " + database + "." + rollupTable + "\n" +
+               "with (format = 'ORC', orc_compression = 'ZLIB', external_location = 's3://" + rollupPath + "',\n" +
+               "      partitioned_by = ARRAY['" + DAY_COLUMN + "'])\n" +
+               "as\n" + buildRollupSelect(startDay, endDay);
+    }
+
+    private String buildInsertRollup(LocalDate startDay, LocalDate endDay) {
+        return "insert into " + database + "." + rollupTable + "\n" + buildRollupSelect(startDay, endDay);
+    }
+
+    /**
+     * @return the days in the rollup table, in ascending order
+     */
+    public List<LocalDate> getRolledUpDays(Connection conn) throws SQLException {
+        List<LocalDate> days = new ArrayList<>();
+        for (String day : AthenaDB.getPartitionValues(conn, database, rollupTable, DAY_COLUMN)) {
+            days.add(LocalDate.parse(day));
+        }
+        days.sort(null);
+        return days;
+    }
+
+    /**
+     * Find the complete days in the log table after a given day. Only the request_date column is read and, since
+     * the ORC files keep the minimum and maximum request_date for each stripe, the stripes before the start day
+     * can be skipped.
+     *
+     * @param afterDay the last day in the rollup, or null if the rollup is empty
+     * @return the days, up to (but not including) the current day, in ascending order
+     */
+    private List<LocalDate> getNewLogDays(Connection conn, LocalDate afterDay) throws SQLException {
+        String startPredicate = (afterDay != null)
+                ? "request_date >= timestamp '" + afterDay.plusDays(1) + " 00:00:00' and " : "";
+        String query = "select distinct date(request_date) as day from " + database + "." + logTable + "\n" +
+                       "where " + startPredicate + "request_date < cast(current_date as timestamp)\n" +
+                       "order by day";
+        List<LocalDate> days = new ArrayList<>();
+        InstrumentedQuery.query(conn, "rollupNewDays", query, result -> {
+            Date day = result.getDate("day");
+            if (day != null) {
+                days.add(day.toLocalDate());
+            }
+        });
+        return days;
+    }
+
+    /**
+     * <p>
+     * Build the rollup table, if it does not exist, and add the log days that are not yet rolled up. The days are
+     * added in ascending order, so if a refresh fails the rollup still holds every day up to its last day.
+     * </p>
+     * <p>
+     *     Log rows that are written for a day after the day is rolled up are not added to the rollup.
+     * </p>
+     *
+     * @return the last day in the rollup, or an empty Optional if the rollup is empty
+     */
+    public Optional<LocalDate> refresh(Connection conn) throws SQLException {
+        boolean hasRollup = AthenaDB.hasTable(conn, database, rollupTable);
+        List<LocalDate> rolledUpDays = hasRollup ? getRolledUpDays(conn) : new ArrayList<>();
+        LocalDate lastDay = rolledUpDays.isEmpty() ? null : rolledUpDays.get(rolledUpDays.size() - 1);
+        List<LocalDate> newDays = getNewLogDays(conn, lastDay);
+        for (int start = 0; start < newDays.size(); start += MAX_PARTITIONS_PER_QUERY) {
+            int end = Math.min(start + MAX_PARTITIONS_PER_QUERY, newDays.size());
+            LocalDate startDay = newDays.get(start);
+            LocalDate endDay = newDays.get(end - 1).plusDays(1);
+            if (hasRollup) {
+                AthenaDB.execute(conn, "rollupInsert", buildInsertRollup(startDay, endDay));
+            } else {
+                AthenaDB.execute(conn, "rollupCreate", buildCreateRollup(startDay, endDay));
+                hasRollup = true;
+            }
+            lastDay = newDays.get(end - 1);
+            logger.info("refresh: rolled up {} to {} into {}", startDay, lastDay, rollupTable);
+        }
+        return Optional.ofNullable(lastDay);
+    }
+}
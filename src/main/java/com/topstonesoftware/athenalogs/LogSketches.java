@@ -0,0 +1,56 @@
+package com.topstonesoftware.athenalogs;
+
+import java.time.LocalDate;
+
+/**
+ * <p>
+ * A daily table of approximate (sketch) aggregates of the log table. For each (domain, day, page key) the table
+ * holds a HyperLogLog sketch of the visitor IP addresses and a quantile digest of the request times:
+ * </p>
+ * <pre>
+ *     bucket_name, key, requests, visitors, latency, request_day
+ *     bearcave.com, software/divide.htm, 12, &lt;HyperLogLog varbinary&gt;, &lt;qdigest varbinary&gt;, 2021-07-01
+ * </pre>
+ * <p>
+ *     Unlike a count, a distinct count or a percentile can not be summed across days. The sketches can be merged:
+ *     merge(HyperLogLog) is the sketch of the union of the IP addresses and merge(qdigest) is the digest of all of
+ *     the request times. So the unique visitors and the latency percentiles for any range of days (and for a page
+ *     or a whole domain) are computed from the small sketch table without a scan of the log data (see
+ *     LogDataFacets.setSketches).
+ * </p>
+ * <p>
+ *     The sketches are stored as varbinary columns, since ORC has no sketch types, and are cast back to their
+ *     types when they are merged. The table is built and refreshed in the same way as the daily rollup (see
+ *     LogRollup).
+ * </p>
+ */
+public class LogSketches extends LogRollup {
+    private static final String SKETCH_SUFFIX = "_sketches";
+
+    /**
+     * @param database the database name
+     * @param logTable the log table that the sketches are computed from
+     * @param sketchPath the S3 bucket and path for the sketch table ORC files. The path should be empty, or
+     *                   only hold the files for this sketch table.
+     */
+    public LogSketches(String database, String logTable, String sketchPath) {
+        super(database, logTable, sketchPath, SKETCH_SUFFIX);
+    }
+
+    @Override
+    protected String buildRollupSelect(LocalDate startDay, LocalDate endDay) {
+        String query = """
+        select bucket_name, key, count(*) as requests,
+               cast(approx_set(remote_ip) as varbinary) as visitors,
+               cast(qdigest_agg(cast(total_time as bigint)) as varbinary) as latency,
+               cast(date(request_date) as varchar) as DAY_COLUMN
+        from DBTABLE
+        where http_status = 200 and (key like '%.html' or key like '%.htm')
+        and DAY_RANGE
+        group by bucket_name, key, date(request_date)
+        """;
+        return query.replace("DAY_COLUMN", DAY_COLUMN)
+                    .replace("DBTABLE", database + "." + logTable)
+                    .replace("DAY_RANGE", dayRangePredicate(startDay, endDay));
+    }
+}
@@ -1,17 +1,37 @@
 package com.topstonesoftware.athenalogs;
 
 import lombok.Builder;
-import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.cli.*;
+import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -37,6 +57,112 @@ import java.util.Optional;
  * <pre>
  *     --orcPath ianlkaplan-logs.orc/user/iank/http_logs --dbName orclogdb --tableName httplogs --domain bearcave.com
  * </pre>
+ * <p>
+ *     With the --partitioned flag the log table is partitioned by domain. The domain partitions are the S3 path
+ *     prefixes under the ORC path and they are added (or refreshed) each time the program runs.
+ * </p>
+ * <p>
+ *     With the --concurrent flag the facet queries are run at the same time, each on its own connection. With the
+ *     --combined flag the facets are computed by one query, which scans the log data once.
+ * </p>
+ * <p>
+ *     With --localOrc the facets are computed from ORC files in a local directory (for example, a downloaded copy
+ *     of the ORC log files) without an Athena connection:
+ * </p>
+ * <pre>
+ *     --localOrc /data/http_logs --domain bearcave.com
+ * </pre>
+ * <p>
+ *     A time range (--startDate and --endDate, or --days) limits the local facets to the request_date range, as it
+ *     does for the Athena queries.
+ * </p>
+ * <p>
+ *     With --rollupPath a daily rollup of the log table is built (or brought up to date) in the S3 path and the path
+ *     and referrer facets are read from it (see LogRollup):
+ * </p>
+ * <pre>
+ *     --rollupPath ianlkaplan-logs.orc/user/iank/http_logs_daily ...
+ * </pre>
+ * <p>
+ *     With the --async flag the path and referrer queries are started with the Athena API and their result files are
+ *     read from the S3 query output location in parallel chunks (see AsyncFacets), rather than paged through the
+ *     JDBC driver.
+ * </p>
+ * <p>
+ *     With the --allDomains flag (in place of --domain) a report is built for every domain in the log table. The
+ *     path and referrer counts for all of the domains are computed by one query (see
+ *     LogDataFacets.getAllDomainReports). With --outputDir each domain report is written to the file
+ *     &lt;domain&gt;.txt in the directory:
+ * </p>
+ * <pre>
+ *     --orcPath ianlkaplan-logs.orc/user/iank/http_logs --dbName orclogdb --tableName httplogs --allDomains --outputDir reports
+ * </pre>
+ * <p>
+ *     The path tree is rendered by a TreeRenderer. --treeFormat selects text (the default), json, ndjson or csv
+ *     output, and --maxDepth, --minCount and --topChildren prune the tree. With --treeFile the tree is written to a
+ *     file. With --allDomains and --outputDir, a tree in a machine readable format is written to its own file,
+ *     &lt;domain&gt;.json for example.
+ * </p>
+ * <p>
+ *     With --topK the path tree holds only the K most requested pages, plus an "(other)" node for the rest, and the
+ *     referrers are the top K referrers. The query results are streamed through a Space-Saving summary of
+ *     TOP_K_CAPACITY_FACTOR * K entries, so the client memory does not depend on the number of distinct paths and
+ *     referrers. The counts are printed with their error bounds.
+ * </p>
+ * <p>
+ *     With --approxDays the report includes the approximate unique visitors and request time percentiles for the
+ *     domain, and the pages with the most unique visitors, over the last N days. With --sketchPath a daily sketch
+ *     table is built (or brought up to date) in the S3 path and these facets are computed by merging the stored
+ *     sketches (see LogSketches):
+ * </p>
+ * <pre>
+ *     --approxDays 30 --sketchPath ianlkaplan-logs.orc/user/iank/http_logs_sketches ...
+ * </pre>
+ * <p>
+ *     With --startDate and --endDate (a date, or a date and time such as 2021-07-01T12:00), or with --days, the
+ *     facets only count the requests in the time range (see TimeRange). With --datePartitioned the log table is
+ *     partitioned by domain and by day, from the &lt;domain&gt;/dt=yyyy-MM-dd directories under the ORC path, so a
+ *     time range query only reads the days in the range. With --series hour or --series day the report includes the
+ *     request counts and request time percentiles for each hour or day in the range (the last DEFAULT_SERIES_DAYS
+ *     days if there is no range), for the domain or for the pages under --pathPrefix:
+ * </p>
+ * <pre>
+ *     --datePartitioned --days 2 --series hour --pathPrefix software/java/ ...
+ * </pre>
+ * <p>
+ *     With --serve the program does not print a report. It serves the facets over HTTP on a local port until it is
+ *     stopped, with the connections, result cache and path trees kept warm between requests (see FacetServer):
+ * </p>
+ * <pre>
+ *     --orcPath ianlkaplan-logs.orc/user/iank/http_logs --dbName orclogdb --tableName httplogs --serve 8080
+ *     curl 'http://localhost:8080/tree?domain=bearcave.com&amp;maxDepth=2'
+ * </pre>
+ * <p>
+ *     With --scanBudget (for example 20G) the estimated bytes of each query are charged to a budget for the run
+ *     before the query starts, from a listing of the ORC files (see ScanEstimator). A path or referrer facet that
+ *     would exceed the budget is read from the rollup alone, if there is one, and the report is marked as
+ *     incomplete. Otherwise the report stops before the query runs. With --dryRun the queries the run would start
+ *     are printed with their estimates and nothing is run (see QueryPlanner). --localListing reads the listing from
+ *     a local copy of the S3 layout, rather than from S3:
+ * </p>
+ * <pre>
+ *     --dryRun --scanBudget 5G --localListing /data/listing ...
+ * </pre>
+ * <p>
+ *     With --compactPath a date partitioned table is compacted, rather than queried: each complete day partition
+ *     of many small ORC files is rewritten into a few large files, sorted by bucket and key, under the compact path
+ *     and the partition is pointed at the new files (see LogCompactor). A day is compacted --compactSettleHours
+ *     (6 by default) after it ends, so that the late log files for the day are in place. With --bloomFilters the
+ *     compacted files also hold bloom filters for the key and referrer columns:
+ * </p>
+ * <pre>
+ *     --orcPath ianlkaplan-logs.orc/user/iank/http_logs --dbName orclogdb --tableName httplogs --datePartitioned
+ *     --compactPath ianlkaplan-logs.orc/user/iank/http_logs_compact
+ * </pre>
+ * <p>
+ *     After the report a table of the queries is printed, with the Athena queue and engine times, the bytes
+ *     scanned, the rows fetched and the client processing time for each query (see QueryMetrics).
+ * </p>
  */
 @Slf4j
 @Builder
@@ -46,71 +172,600 @@ public class Main {
     private static final String DB_NAME = "dbName";
     private static final String TABLE_NAME = "tableName";
     private static final String DOMAIN_NAME = "domain";
+    private static final String PARTITIONED = "partitioned";
+    private static final String CONCURRENT = "concurrent";
+    private static final String COMBINED = "combined";
+    private static final String POOL_SIZE = "poolSize";
+    private static final String CACHE_DIR = "cacheDir";
+    private static final String CACHE_TTL = "cacheTtlMinutes";
+    private static final String LOCAL_ORC = "localOrc";
+    private static final String ROLLUP_PATH = "rollupPath";
+    private static final String ASYNC = "async";
+    private static final String ALL_DOMAINS = "allDomains";
+    private static final String OUTPUT_DIR = "outputDir";
+    private static final String APPROX_DAYS = "approxDays";
+    private static final String SKETCH_PATH = "sketchPath";
+    private static final int TOP_VISITOR_PAGES = 10;
+    /** The number of query measurements that the server keeps (the totals include every query) */
+    private static final int SERVER_MAX_QUERIES = 1000;
+    private static final String TOP_K = "topK";
+    private static final String TREE_FORMAT = "treeFormat";
+    private static final String MAX_DEPTH = "maxDepth";
+    private static final String MIN_COUNT = "minCount";
+    private static final String TOP_CHILDREN = "topChildren";
+    private static final String TREE_FILE = "treeFile";
+    private static final String SERVE = "serve";
+    private static final String CATALOG_FILE = "catalogFile";
+    private static final String CATALOG_TTL = "catalogTtlMinutes";
+    private static final String QUERY_LIMIT = "queryLimit";
+    private static final String HEDGE_MILLIS = "hedgeMillis";
+    private static final String DATE_PARTITIONED = "datePartitioned";
+    private static final String START_DATE = "startDate";
+    private static final String END_DATE = "endDate";
+    private static final String DAYS = "days";
+    private static final String SERIES = "series";
+    private static final String PATH_PREFIX = "pathPrefix";
+    private static final int DEFAULT_SERIES_DAYS = 7;
+    private static final String SCAN_BUDGET = "scanBudget";
+    private static final String DRY_RUN = "dryRun";
+    private static final String LOCAL_LISTING = "localListing";
+    private static final String COMPACT_PATH = "compactPath";
+    private static final String COMPACT_SETTLE_HOURS = "compactSettleHours";
+    private static final String BLOOM_FILTERS = "bloomFilters";
+    private static final int TOP_K_CAPACITY_FACTOR = 10;
+    private static final String REPORT_SUFFIX = ".txt";
+    private static final int ASYNC_READ_THREADS = 8;
+    private static final long DEFAULT_CACHE_TTL_MINUTES = 24 * 60;
+    private static final long DEFAULT_CATALOG_TTL_MINUTES = 7 * 24 * 60;
     private static final String HELP = "help";
+    private static final int TOP_REFERRERS = 10;
 
-    @NonNull
     String orcPath;
-    @NonNull
     String dbName;
-    @NonNull
     String tableName;
-    @NonNull
     String domainName;
+    String localOrcDir;
+    boolean partitioned;
+    boolean concurrent;
+    boolean combined;
+    int poolSize;
+    String cacheDir;
+    long cacheTtlMinutes;
+    String rollupPath;
+    boolean async;
+    boolean allDomains;
+    String outputDir;
+    int approxDays;
+    int topK;
+    TreeRenderer treeRenderer;
+    String treeFile;
+    int servePort;
+    String sketchPath;
+    String catalogFile;
+    long catalogTtlMinutes;
+    int queryLimit;
+    long hedgeMillis;
+    boolean datePartitioned;
+    TimeRange timeRange;
+    TrafficPoint.Interval seriesInterval;
+    String pathPrefix;
+    long scanBudget;
+    boolean dryRun;
+    String localListing;
+    String compactPath;
+    long compactSettleHours;
+    boolean bloomFilters;
 
-    private void listDomains(List<String> domains) {
-        System.out.println("Domains:");
+    private void listDomains(PrintStream out, List<String> domains) {
+        out.println("Domains:");
         if (domains.isEmpty()) {
-            System.out.println("No domains found");
+            out.println("No domains found");
         } else {
             for (String domain : domains) {
-                System.out.println(domain);
+                out.println(domain);
             }
         }
     }
 
-    private void printTree(DirTreeNode root, int level) {
-        final int spaces = 4;
-        int padding = spaces + spaces * level;
-        String formatStr = "%" + padding + "s%s %d%n";
-        System.out.format(formatStr, "", root.getDirName(), root.getPageRefCnt());
-        List<DirTreeNode> children = root.getChildren();
-        if (! children.isEmpty()) {
-            for (DirTreeNode node : children) {
-                printTree(node, level + 1);
+    /**
+     * Render a path tree to a report, or to its own file if a tree file is given.
+     *
+     * @param treePath the file for the tree, or null
+     */
+    private void printPathTree(PrintStream out, String title, DirTreeNode tree, Path treePath) {
+        if (treePath != null) {
+            try (Writer writer = Files.newBufferedWriter(treePath, StandardCharsets.UTF_8)) {
+                treeRenderer.render(tree, writer);
+                out.println(title + ": " + treePath);
+            } catch (IOException e) {
+                logger.error("printPathTree: {}", e.getLocalizedMessage());
             }
+        } else {
+            out.println(title);
+            treeRenderer.render(tree, out);
         }
     }
 
+    private Path getTreeFilePath() {
+        return (treeFile != null) ? Paths.get(treeFile) : null;
+    }
+
     /**
-     * Print a directory tree built from S3 paths
+     * @param scanEstimator the scan estimator for the run, or null. If a facet of the report was read from the
+     *                      rollup alone (see ScanEstimator.getRollupOnlyThrough) the report is marked as incomplete.
      */
-    private void printTree(DirTreeNode root) {
-        printTree(root, 0);
+    private void printDomainReport(PrintStream out, String domain, FacetReport report, Path treePath,
+                                   ScanEstimator scanEstimator) {
+        if (scanEstimator != null) {
+            scanEstimator.getRollupOnlyThrough(domain).ifPresent(day ->
+                    out.println("Incomplete report: the scan budget was too small for the log table, so facets were " +
+                                "read from the rollup alone and only count the requests through " + day));
+        }
+        printPathTree(out, "Path tree for " + domain, report.getPathTree(), treePath);
+        List<Pair<String, Integer>> referrerPairs = report.getReferrers();
+        out.println("Referrer sites:");
+        for (int i = 0; i < Math.min(TOP_REFERRERS, referrerPairs.size()); i++) {
+            out.println(referrerPairs.get(i).getLeft() + ", " + referrerPairs.get(i).getRight());
+        }
     }
 
-    private void runQueries() {
-        AthenaDB athenaDB = new AthenaDB();
+    private void printReport(FacetReport report, ScanEstimator scanEstimator) {
+        listDomains(System.out, report.getDomains());
+        printDomainReport(System.out, domainName, report, getTreeFilePath(), scanEstimator);
+    }
+
+    private static void printHeavyHitters(PrintStream out, SpaceSaving<String> summary, int k) {
+        out.format("total: %d, maximum error: %d%n", summary.getTotalCount(), summary.getMaxError());
+        for (SpaceSaving.HeavyHitter<String> hitter : summary.getTop(k)) {
+            out.format("%s, %d (at least %d)%n", hitter.getItem(), hitter.getCount(), hitter.getLowerBound());
+        }
+        out.format("%s, %d%n", LogDataFacets.OTHER_PATHS, summary.getOtherCount(k));
+    }
+
+    /**
+     * Print the top K report: the path tree for the top K paths and the top K paths and referrers with their error
+     * bounds (see LogDataFacets.getPathHeavyHitters).
+     */
+    private void printTopKReport(Connection conn, LogDataFacets dataFacets) {
+        int capacity = topK * TOP_K_CAPACITY_FACTOR;
+        SpaceSaving<String> pathSummary = dataFacets.getPathHeavyHitters(conn, domainName, capacity);
+        SpaceSaving<String> referrerSummary = dataFacets.getReferrerHeavyHitters(conn, domainName, capacity);
+        listDomains(System.out, dataFacets.getEndPoints());
+        printPathTree(System.out, "Top " + topK + " path tree for " + domainName,
+                LogDataFacets.buildTopKPathTree(pathSummary, topK), getTreeFilePath());
+        System.out.println("Top " + topK + " paths:");
+        printHeavyHitters(System.out, pathSummary, topK);
+        System.out.println("Top " + topK + " referrer sites:");
+        printHeavyHitters(System.out, referrerSummary, topK);
+    }
+
+    /**
+     * Print the domain list and then the report for each domain. If an output directory was given, each domain
+     * report is written to its own file in the directory, rather than to System.out. A tree in a machine readable
+     * format is written to a separate file, with the extension for the format.
+     *
+     * @param reports the reports, by domain
+     * @param scanEstimator the scan estimator for the run, or null
+     */
+    private void printDomainReports(Map<String, FacetReport> reports, ScanEstimator scanEstimator) {
+        listDomains(System.out, List.copyOf(reports.keySet()));
         try {
+            Path reportDir = (outputDir != null) ? Files.createDirectories(Paths.get(outputDir)) : null;
+            for (Map.Entry<String, FacetReport> entry : reports.entrySet()) {
+                if (reportDir != null) {
+                    Path reportFile = reportDir.resolve(entry.getKey() + REPORT_SUFFIX);
+                    Path treePath = (treeRenderer.getFormat() != TreeRenderer.Format.TEXT)
+                            ? reportDir.resolve(entry.getKey() + "." + treeRenderer.getFormat().getFileExtension()) : null;
+                    try (PrintStream out = new PrintStream(Files.newOutputStream(reportFile), false, StandardCharsets.UTF_8)) {
+                        printDomainReport(out, entry.getKey(), entry.getValue(), treePath, scanEstimator);
+                    }
+                    System.out.println("Wrote " + reportFile);
+                } else {
+                    printDomainReport(System.out, entry.getKey(), entry.getValue(), null, scanEstimator);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("printDomainReports: {}", e.getLocalizedMessage());
+        }
+    }
+
+    private void buildTable(Connection conn) throws SQLException {
+        CatalogCache catalog = (catalogFile != null)
+                ? new CatalogCache(Paths.get(catalogFile), TimeUnit.MINUTES.toMillis(catalogTtlMinutes))
+                : CatalogCache.empty();
+        if (datePartitioned) {
+            Map<String, List<String>> domainDays = S3Lister.fromEnvironment()
+                    .map(lister -> lister.listDatePartitions(orcPath))
+                    .orElse(Collections.emptyMap());
+            AthenaDB.buildDatabaseAndDatedTable(conn, catalog, dbName, tableName, orcPath, domainDays);
+        } else if (partitioned) {
+            List<String> partitionDomains = S3Lister.fromEnvironment()
+                    .map(lister -> lister.listSubDirectories(orcPath))
+                    .orElse(Collections.emptyList());
+            AthenaDB.buildDatabaseAndTable(conn, catalog, dbName, tableName, orcPath, partitionDomains);
+        } else {
+            AthenaDB.buildDatabaseAndTable(conn, catalog, dbName, tableName, orcPath);
+        }
+    }
+
+    /**
+     * Build or refresh the daily rollup table, if a rollup path was given. If the refresh fails the facets are
+     * computed from the log table.
+     *
+     * @return the rollup and its last day, or an empty Optional if there is no rollup to read from
+     */
+    private Optional<Pair<LogRollup, LocalDate>> refreshRollup(Connection conn) {
+        return (rollupPath != null) ? refreshDaily(conn, new LogRollup(dbName, tableName, rollupPath)) : Optional.empty();
+    }
+
+    /**
+     * Build or refresh the daily sketch table, if a sketch path was given (see refreshRollup)
+     */
+    private Optional<Pair<LogRollup, LocalDate>> refreshSketches(Connection conn) {
+        return (sketchPath != null) ? refreshDaily(conn, new LogSketches(dbName, tableName, sketchPath)) : Optional.empty();
+    }
+
+    private Optional<Pair<LogRollup, LocalDate>> refreshDaily(Connection conn, LogRollup rollup) {
+        Optional<Pair<LogRollup, LocalDate>> optRollup = Optional.empty();
+        try {
+            optRollup = rollup.refresh(conn).map(lastDay -> new ImmutablePair<>(rollup, lastDay));
+        } catch (SQLException e) {
+            logger.error("refreshDaily: {}", e.getLocalizedMessage());
+        }
+        return optRollup;
+    }
+
+    /**
+     * Print the approximate unique visitor and request time facets for the last approxDays days, including the
+     * current day.
+     */
+    private void printApproxFacets(Connection conn, LogDataFacets dataFacets) {
+        LocalDate endDay = LocalDate.now(ZoneOffset.UTC);
+        LocalDate startDay = endDay.minusDays(approxDays - 1L);
+        refreshSketches(conn).ifPresent(s -> dataFacets.setSketches(s.getLeft().getRollupTable(), s.getRight()));
+        dataFacets.getDomainSummary(conn, domainName, startDay, endDay).ifPresent(summary -> {
+            System.out.println("Traffic for " + domainName + " from " + startDay + " to " + endDay + " (approximate):");
+            System.out.println("requests: " + summary.getRequests() + ", unique visitors: " + summary.getUniqueVisitors());
+            for (Pair<Double, Long> percentile : summary.getLatencyPercentiles()) {
+                System.out.format("request time p%d: %d ms%n", Math.round(percentile.getLeft() * 100), percentile.getRight());
+            }
+        });
+        System.out.println("Pages by unique visitors:");
+        for (Pair<String, Integer> page : dataFacets.getPageVisitors(conn, domainName, startDay, endDay, TOP_VISITOR_PAGES)) {
+            System.out.println(page.getLeft() + ", " + page.getRight());
+        }
+    }
+
+    /**
+     * Print the hourly or daily traffic series for the domain, or for the pages under the path prefix, in the time
+     * range (see LogDataFacets.getTrafficSeries)
+     */
+    private void printTrafficSeries(Connection conn, LogDataFacets dataFacets) {
+        TimeRange range = (timeRange != null) ? timeRange : TimeRange.lastDays(DEFAULT_SERIES_DAYS);
+        String target = (pathPrefix != null) ? domainName + "/" + pathPrefix : domainName;
+        System.out.println("Requests per " + seriesInterval.getSqlUnit() + " for " + target + " in " + range + ":");
+        for (TrafficPoint point : dataFacets.getTrafficSeries(conn, domainName, pathPrefix, seriesInterval, range)) {
+            StringBuilder line = new StringBuilder(point.getBucketStart() + ", " + point.getRequests());
+            for (Pair<Double, Long> percentile : point.getLatencyPercentiles()) {
+                line.append(", p").append(Math.round(percentile.getLeft() * 100)).append(": ")
+                    .append(percentile.getRight()).append(" ms");
+            }
+            System.out.println(line);
+        }
+    }
+
+    /**
+     * Build the facet result cache, if a cache directory was given. The cache key includes a fingerprint of the
+     * ORC files, so cached results are not used once new log data is written.
+     */
+    private Optional<FacetCache> buildResultCache() {
+        Optional<FacetCache> optCache = Optional.empty();
+        if (cacheDir != null) {
+            try {
+                optCache = Optional.of(new FacetCache(Paths.get(cacheDir), TimeUnit.MINUTES.toMillis(cacheTtlMinutes)));
+            } catch (IOException e) {
+                logger.error("buildResultCache: {}", e.getLocalizedMessage());
+            }
+        }
+        return optCache;
+    }
+
+    private String getTableFingerprint() {
+        return S3Lister.fromEnvironment()
+                .map(lister -> lister.getPathFingerprint(orcPath))
+                .orElse("");
+    }
+
+    /**
+     * Build the scan estimator, if there is a scan budget or a dry run (see ScanEstimator). The ORC path is listed
+     * in S3, or in a local copy of the S3 layout.
+     */
+    private Optional<ScanEstimator> buildScanEstimator() {
+        if (scanBudget == ScanEstimator.NO_BUDGET && !dryRun) {
+            return Optional.empty();
+        }
+        Optional<ObjectLister> optLister = (localListing != null)
+                ? Optional.of(new LocalObjectLister(Paths.get(localListing)))
+                : S3Lister.fromEnvironment().map(lister -> lister);
+        return optLister.map(lister -> {
+            ScanEstimator estimator = new ScanEstimator(lister, orcPath, partitioned, datePartitioned, scanBudget);
+            if (rollupPath != null) {
+                estimator.addDailyTable(new LogRollup(dbName, tableName, rollupPath).getRollupTable(), rollupPath);
+            }
+            if (sketchPath != null) {
+                estimator.addDailyTable(new LogSketches(dbName, tableName, sketchPath).getRollupTable(), sketchPath);
+            }
+            return estimator;
+        });
+    }
+
+    /**
+     * Print the facet queries that the run would start, with their estimated scans, without running them (see
+     * QueryPlanner). The rollup and sketch tables are assumed to be current through the previous (UTC) day, which
+     * is where a refresh leaves them.
+     */
+    private void planQueries() {
+        buildScanEstimator().ifPresent(estimator -> QueryPlanner.builder()
+                .estimator(estimator)
+                .database(dbName)
+                .logTable(tableName)
+                .domain(domainName)
+                .partitioned(partitioned)
+                .datePartitioned(datePartitioned)
+                .rollupPath(rollupPath)
+                .sketchPath(sketchPath)
+                .dailyThrough(LocalDate.now(ZoneOffset.UTC).minusDays(1))
+                .timeRange(timeRange)
+                .allDomains(allDomains)
+                .combined(combined)
+                .async(async)
+                .topK(topK)
+                .approxDays(approxDays)
+                .seriesRange((seriesInterval == null) ? null
+                        : (timeRange != null) ? timeRange : TimeRange.lastDays(DEFAULT_SERIES_DAYS))
+                .build()
+                .printPlan(System.out));
+    }
+
+    /**
+     * Compute the report facets from local ORC files (see OrcFileFacets)
+     */
+    private void runLocalQueries() {
+        FacetSource facets = new OrcFileFacets(new File(localOrcDir));
+        facets.setTimeRange(timeRange);
+        try {
+            List<String> domainList = facets.getEndPoints();
+            if (allDomains) {
+                Map<String, FacetReport> reports = new TreeMap<>();
+                for (String domain : domainList) {
+                    reports.put(domain, new FacetReport(domainList, facets.buildPathTree(domain), facets.getReferrers(domain)));
+                }
+                printDomainReports(reports, null);
+                return;
+            }
+            DirTreeNode pathTree = facets.buildPathTree(domainName);
+            List<Pair<String, Integer>> referrerPairs = facets.getReferrers(domainName);
+            printReport(new FacetReport(domainList, pathTree, referrerPairs), null);
+        } catch (FacetQueryException e) {
+            logger.error("runLocalQueries: the report was not written, {}", e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Record the query measurements for the run (see QueryMetrics). The Athena statistics for each query are read
+     * with the Athena API and the totals are available through JMX while the program runs.
+     */
+    private QueryMetrics startQueryMetrics() {
+        QueryMetrics metrics = QueryMetrics.global();
+        metrics.registerMBean();
+        AthenaStatistics.fromEnvironment().ifPresent(metrics::setAthenaStatistics);
+        return metrics;
+    }
+
+    /**
+     * Compute the path tree and referrers with asynchronous queries (see AsyncFacets). The domain list is read
+     * over JDBC while the asynchronous queries run.
+     *
+     * @throws FacetQueryException if a query failed, or the AWS clients for the asynchronous queries are not set up
+     */
+    private FacetReport runAsyncFacets(LogDataFacets dataFacets, QueryScheduler scheduler, String workgroup,
+                                       QueryScheduler.Priority priority) {
+        Optional<AthenaQueryExecutor> optExecutor = AthenaQueryExecutor.fromEnvironment(dbName);
+        Optional<S3ObjectStore> optStore = S3ObjectStore.fromEnvironment();
+        if (optExecutor.isEmpty() || optStore.isEmpty()) {
+            throw new FacetQueryException("runAsyncFacets", "the AWS region and credentials are not set");
+        }
+        ExecutorService readPool = Executors.newFixedThreadPool(ASYNC_READ_THREADS);
+        try (AthenaQueryExecutor queryExecutor = optExecutor.get()) {
+            AsyncFacets asyncFacets = new AsyncFacets(dataFacets, queryExecutor, new CsvResultReader(optStore.get(), readPool));
+            asyncFacets.setScheduler(scheduler, workgroup, priority);
+            CompletableFuture<DirTreeNode> treeFuture = asyncFacets.buildPathTree(domainName);
+            CompletableFuture<List<Pair<String, Integer>>> referrerFuture = asyncFacets.getReferrers(domainName);
+            List<String> domainList = dataFacets.getEndPoints();
+            try {
+                return new FacetReport(domainList, treeFuture.join(), referrerFuture.join());
+            } catch (CompletionException e) {
+                throw FacetQueryException.wrap("runAsyncFacets", e);
+            }
+        } finally {
+            readPool.shutdown();
+        }
+    }
+
+    /**
+     * Build the query scheduler for the Athena queries (see QueryScheduler). Hedged queries borrow their
+     * connections from the AthenaDB.
+     */
+    private QueryScheduler buildScheduler(AthenaDB athenaDB) {
+        QueryScheduler scheduler = QueryScheduler.builder()
+                .defaultConcurrency(queryLimit)
+                .hedgeDelayMillis(hedgeMillis)
+                .connectionSource(athenaDB::getAthenaConnection)
+                .build();
+        scheduler.registerMBean();
+        return scheduler;
+    }
+
+    private void runQueries() {
+        QueryMetrics metrics = startQueryMetrics();
+        Optional<FacetCache> resultCache = buildResultCache();
+        String tableFingerprint = resultCache.isPresent() ? getTableFingerprint() : "";
+        ScanEstimator scanEstimator = buildScanEstimator().orElse(null);
+        try (AthenaDB athenaDB = new AthenaDB(poolSize)) {
             Optional<Connection> optConn = athenaDB.getAthenaConnection();
             if (optConn.isPresent()) {
+                QueryScheduler scheduler = buildScheduler(athenaDB);
+                String workgroup = athenaDB.getWorkgroup();
+                // An all domain report is batch work, a single domain report is waited for
+                QueryScheduler.Priority priority = allDomains ? QueryScheduler.Priority.BATCH : QueryScheduler.Priority.INTERACTIVE;
+                FacetReport report = null;
+                Map<String, FacetReport> domainReports = null;
+                Optional<Pair<LogRollup, LocalDate>> rollup;
                 try (Connection conn = optConn.get()) {
-                    AthenaDB.buildDatabaseAndTable(conn, dbName, tableName, orcPath);
-                    LogDataFacets dataFacets = new LogDataFacets(conn, dbName, tableName);
-                    List<String> domainList = dataFacets.getEndPoints();
-                    listDomains(domainList);
-                    List<Pair<String, Integer>> pathPairs = dataFacets.getPaths(conn, dbName, tableName, domainName);
-                    DirTreeNode root = dataFacets.buildDirTree(pathPairs);
-                    System.out.println("Path tree for " + domainName);
-                    printTree(root);
-                    List<Pair<String, Integer>> referrerPairs = dataFacets.getReferrers(conn, dbName, tableName, domainName);
-                    System.out.println("Referrer sites:");
-                    for (int i = 0; i < Math.min(10, referrerPairs.size()); i++) {
-                        System.out.println(referrerPairs.get(i).getLeft() + ", " + referrerPairs.get(i).getRight());
+                    buildTable(conn);
+                    rollup = refreshRollup(conn);
+                    LogDataFacets dataFacets = new LogDataFacets(conn, dbName, tableName, partitioned, datePartitioned);
+                    dataFacets.setTimeRange(timeRange);
+                    resultCache.ifPresent(cache -> dataFacets.setResultCache(cache, tableFingerprint));
+                    rollup.ifPresent(r -> dataFacets.setRollup(r.getLeft().getRollupTable(), r.getRight()));
+                    dataFacets.setScheduler(scheduler, workgroup, priority);
+                    dataFacets.setScanEstimator(scanEstimator);
+                    if (allDomains) {
+                        domainReports = dataFacets.getAllDomainReports(conn);
+                    } else if (combined) {
+                        report = dataFacets.getCombinedReport(conn, domainName);
+                    } else if (async) {
+                        report = runAsyncFacets(dataFacets, scheduler, workgroup, priority);
+                    } else if (topK > 0) {
+                        printTopKReport(conn, dataFacets);
+                    } else if (! concurrent) {
+                        List<String> domainList = dataFacets.getEndPoints();
+                        DirTreeNode pathTree = dataFacets.buildPathTree(conn, dbName, tableName, domainName);
+                        List<Pair<String, Integer>> referrerPairs = dataFacets.getTopReferrers(conn, dbName, tableName, domainName, TOP_REFERRERS).getReferrers();
+                        report = new FacetReport(domainList, pathTree, referrerPairs);
                     }
                 }
+                // The concurrent queries run after the setup connection is closed (returned to the pool), so that
+                // they do not wait on it for a pooled connection.
+                if (concurrent && !combined && !async && !allDomains && topK == 0) {
+                    ConcurrentFacets concurrentFacets = new ConcurrentFacets(athenaDB, dbName, tableName, partitioned);
+                    concurrentFacets.setDatePartitioned(datePartitioned);
+                    concurrentFacets.setTimeRange(timeRange);
+                    resultCache.ifPresent(cache -> concurrentFacets.setResultCache(cache, tableFingerprint));
+                    rollup.ifPresent(r -> concurrentFacets.setRollup(r.getLeft().getRollupTable(), r.getRight()));
+                    concurrentFacets.setScheduler(scheduler, workgroup, priority);
+                    concurrentFacets.setScanEstimator(scanEstimator);
+                    report = concurrentFacets.runFacets(domainName);
+                }
+                if (domainReports != null) {
+                    printDomainReports(domainReports, scanEstimator);
+                } else if (report != null) {
+                    printReport(report, scanEstimator);
+                }
+                if ((approxDays > 0 || seriesInterval != null) && !allDomains) {
+                    Optional<Connection> optApproxConn = athenaDB.getAthenaConnection();
+                    if (optApproxConn.isPresent()) {
+                        try (Connection conn = optApproxConn.get()) {
+                            LogDataFacets dataFacets = new LogDataFacets(conn, dbName, tableName, partitioned, datePartitioned);
+                            dataFacets.setScheduler(scheduler, workgroup, priority);
+                            dataFacets.setScanEstimator(scanEstimator);
+                            if (approxDays > 0) {
+                                printApproxFacets(conn, dataFacets);
+                            }
+                            if (seriesInterval != null) {
+                                printTrafficSeries(conn, dataFacets);
+                            }
+                        }
+                    }
+                }
+                resultCache.ifPresent(cache -> logger.info("Result cache: {}", cache));
+                System.out.println("Queries:");
+                metrics.printSummary(System.out);
+                scheduler.printSummary(System.out);
+                if (scanEstimator != null) {
+                    System.out.println("Scan estimates:");
+                    scanEstimator.printSummary(System.out, metrics.getQueries());
+                }
             }
         } catch (SQLException e) {
             logger.error("runQueries: {}", e.getLocalizedMessage());
+        } catch (FacetQueryException | ScanBudgetException e) {
+            logger.error("runQueries: the report was not written, {}", e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Compact the small files of the complete day partitions (see LogCompactor). The partitions are found from a
+     * listing of the ORC path in S3, or in a local copy of the S3 layout, and their locations in the catalog.
+     */
+    private void runCompaction() {
+        Optional<ObjectLister> optLister = (localListing != null)
+                ? Optional.of(new LocalObjectLister(Paths.get(localListing)))
+                : S3Lister.fromEnvironment().map(lister -> lister);
+        if (optLister.isEmpty()) {
+            logger.error("runCompaction: could not list {}", orcPath);
+            return;
+        }
+        QueryMetrics metrics = startQueryMetrics();
+        try (AthenaDB athenaDB = new AthenaDB(poolSize)) {
+            Optional<Connection> optConn = athenaDB.getAthenaConnection();
+            if (optConn.isPresent()) {
+                try (Connection conn = optConn.get()) {
+                    buildTable(conn);
+                    LogCompactor compactor = new LogCompactor(dbName, tableName, orcPath, compactPath,
+                            LogCompactor.DEFAULT_SMALL_FILE_BYTES, LogCompactor.DEFAULT_MIN_FILES, compactSettleHours,
+                            bloomFilters);
+                    int compacted = compactor.compact(conn, optLister.get());
+                    System.out.println("Compacted " + compacted + " partitions of " + dbName + "." + tableName);
+                }
+            }
+        } catch (SQLException e) {
+            logger.error("runCompaction: {}", e.getLocalizedMessage());
+        }
+        metrics.printSummary(System.out);
+    }
+
+    /**
+     * Serve the facets over HTTP until the program is stopped (see FacetServer). The result cache is kept in
+     * memory if no cache directory was given.
+     */
+    private void runServer() {
+        // The server runs until it is stopped, so only the recent query measurements are kept and the Athena
+        // statistics are read off of the request threads
+        QueryMetrics metrics = startQueryMetrics();
+        metrics.setMaxQueries(SERVER_MAX_QUERIES);
+        metrics.readStatisticsInBackground();
+        long ttlMillis = TimeUnit.MINUTES.toMillis(cacheTtlMinutes);
+        int threads = FacetServer.DEFAULT_THREADS;
+        try (AthenaDB athenaDB = new AthenaDB(Math.max(poolSize, threads))) {
+            Optional<Connection> optConn = athenaDB.getAthenaConnection();
+            if (optConn.isPresent()) {
+                Optional<Pair<LogRollup, LocalDate>> rollup;
+                try (Connection conn = optConn.get()) {
+                    buildTable(conn);
+                    rollup = refreshRollup(conn);
+                }
+                FacetCache resultCache = buildResultCache().orElse(new FacetCache(null, ttlMillis));
+                FacetServer server = new FacetServer(athenaDB, dbName, tableName, partitioned, threads,
+                        TimeUnit.MINUTES.toMillis(FacetServer.DEFAULT_WARM_TTL_MINUTES));
+                server.setDatePartitioned(datePartitioned);
+                server.setResultCache(resultCache, this::getTableFingerprint,
+                        TimeUnit.MINUTES.toMillis(FacetServer.DEFAULT_FINGERPRINT_REFRESH_MINUTES));
+                server.setScheduler(buildScheduler(athenaDB), athenaDB.getWorkgroup());
+                rollup.ifPresent(r -> server.setRollup(r.getLeft().getRollupTable(), r.getRight()));
+                int port = server.start(servePort);
+                System.out.println("Serving facets on http://localhost:" + port + "/");
+                CountDownLatch stopped = new CountDownLatch(1);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    server.stop();
+                    stopped.countDown();
+                }));
+                stopped.await();
+            }
+        } catch (SQLException | IOException e) {
+            logger.error("runServer: {}", e.getLocalizedMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -119,31 +774,284 @@ public class Main {
         Option orcPath = Option.builder()
                 .longOpt( ORC_PATH )
                 .hasArg()
-                .desc("The S3 bucket and path for the ORC files. Example: ianlkaplan-logs.orc/user/iank/http_logs Bucket is ianlkaplan-logs.orc")
-                .required()
+                .desc("The S3 bucket and path for the ORC files. Example: ianlkaplan-logs.orc/user/iank/http_logs Bucket is ianlkaplan-logs.orc (required unless --localOrc is used)")
+                .required(false)
                 .build();
         options.addOption( orcPath);
         Option dbName = Option.builder()
                 .longOpt( DB_NAME )
                 .hasArg()
-                .desc("The database name")
-                .required()
+                .desc("The database name (required unless --localOrc is used)")
+                .required(false)
                 .build();
         options.addOption(dbName);
         Option dbTableName = Option.builder()
                 .longOpt( TABLE_NAME )
                 .hasArg()
-                .desc("The database table name")
-                .required()
+                .desc("The database table name (required unless --localOrc is used)")
+                .required(false)
                 .build();
         options.addOption(dbTableName);
         Option domainName = Option.builder()
                 .longOpt( DOMAIN_NAME )
                 .hasArg()
-                .desc("The domain name to be selected (e.g., example.com)")
-                .required()
+                .desc("The domain name to be selected (e.g., example.com). Required unless --allDomains is used")
+                .required(false)
                 .build();
         options.addOption(domainName);
+        Option partitionedOpt = Option.builder()
+                .longOpt( PARTITIONED )
+                .hasArg(false)
+                .desc("Partition the log table by domain, so that queries only scan the ORC files for the domain")
+                .required(false)
+                .build();
+        options.addOption(partitionedOpt);
+        Option concurrentOpt = Option.builder()
+                .longOpt( CONCURRENT )
+                .hasArg(false)
+                .desc("Run the facet queries concurrently, each on its own connection")
+                .required(false)
+                .build();
+        options.addOption(concurrentOpt);
+        Option combinedOpt = Option.builder()
+                .longOpt( COMBINED )
+                .hasArg(false)
+                .desc("Compute the domain, path and referrer facets with a single query (one scan of the log data)")
+                .required(false)
+                .build();
+        options.addOption(combinedOpt);
+        Option poolSizeOpt = Option.builder()
+                .longOpt( POOL_SIZE )
+                .hasArg()
+                .desc("The size of the Athena connection pool. Connections are not pooled if this is not set")
+                .required(false)
+                .build();
+        options.addOption(poolSizeOpt);
+        Option cacheDirOpt = Option.builder()
+                .longOpt( CACHE_DIR )
+                .hasArg()
+                .desc("A directory for the facet query result cache. Results are not cached if this is not set")
+                .required(false)
+                .build();
+        options.addOption(cacheDirOpt);
+        Option cacheTtlOpt = Option.builder()
+                .longOpt( CACHE_TTL )
+                .hasArg()
+                .desc("The time-to-live, in minutes, for cached query results (default: one day)")
+                .required(false)
+                .build();
+        options.addOption(cacheTtlOpt);
+        Option localOrcOpt = Option.builder()
+                .longOpt( LOCAL_ORC )
+                .hasArg()
+                .desc("Compute the facets from ORC files in a local directory, rather than with Athena")
+                .required(false)
+                .build();
+        options.addOption(localOrcOpt);
+        Option rollupPathOpt = Option.builder()
+                .longOpt( ROLLUP_PATH )
+                .hasArg()
+                .desc("The S3 bucket and path for a daily rollup of the log table. The path and referrer facets are read from the rollup")
+                .required(false)
+                .build();
+        options.addOption(rollupPathOpt);
+        Option asyncOpt = Option.builder()
+                .longOpt( ASYNC )
+                .hasArg(false)
+                .desc("Run the path and referrer queries asynchronously and read their results from the S3 query output location")
+                .required(false)
+                .build();
+        options.addOption(asyncOpt);
+        Option allDomainsOpt = Option.builder()
+                .longOpt( ALL_DOMAINS )
+                .hasArg(false)
+                .desc("Report on every domain in the log table, with one scan of the log data")
+                .required(false)
+                .build();
+        options.addOption(allDomainsOpt);
+        Option outputDirOpt = Option.builder()
+                .longOpt( OUTPUT_DIR )
+                .hasArg()
+                .desc("With --allDomains, write each domain report to <domain>.txt in this directory")
+                .required(false)
+                .build();
+        options.addOption(outputDirOpt);
+        Option topKOpt = Option.builder()
+                .longOpt( TOP_K )
+                .hasArg()
+                .desc("Report only the top K paths and referrers, with error bounds, in a fixed amount of memory")
+                .required(false)
+                .build();
+        options.addOption(topKOpt);
+        Option catalogFileOpt = Option.builder()
+                .longOpt( CATALOG_FILE )
+                .hasArg()
+                .desc("A file for the catalog cache. The database and table DDL is skipped at startup if it has not changed")
+                .required(false)
+                .build();
+        options.addOption(catalogFileOpt);
+        Option catalogTtlOpt = Option.builder()
+                .longOpt( CATALOG_TTL )
+                .hasArg()
+                .desc("The time-to-live, in minutes, for the catalog cache entries (default: one week)")
+                .required(false)
+                .build();
+        options.addOption(catalogTtlOpt);
+        Option queryLimitOpt = Option.builder()
+                .longOpt( QUERY_LIMIT )
+                .hasArg()
+                .desc("The maximum number of Athena queries that run at the same time in the workgroup (default: "
+                      + QueryScheduler.DEFAULT_CONCURRENCY + ")")
+                .required(false)
+                .build();
+        options.addOption(queryLimitOpt);
+        Option hedgeMillisOpt = Option.builder()
+                .longOpt( HEDGE_MILLIS )
+                .hasArg()
+                .desc("Start a duplicate of a report query that has not finished after this many milliseconds and use the first result")
+                .required(false)
+                .build();
+        options.addOption(hedgeMillisOpt);
+        Option datePartitionedOpt = Option.builder()
+                .longOpt( DATE_PARTITIONED )
+                .hasArg(false)
+                .desc("The log table is partitioned by domain and by day (the <domain>/dt=yyyy-MM-dd directories under the ORC path)")
+                .required(false)
+                .build();
+        options.addOption(datePartitionedOpt);
+        Option startDateOpt = Option.builder()
+                .longOpt( START_DATE )
+                .hasArg()
+                .desc("The start of the report time range, a date (2021-07-01) or a date and time (2021-07-01T12:00)")
+                .required(false)
+                .build();
+        options.addOption(startDateOpt);
+        Option endDateOpt = Option.builder()
+                .longOpt( END_DATE )
+                .hasArg()
+                .desc("The end of the report time range. A date includes the whole day")
+                .required(false)
+                .build();
+        options.addOption(endDateOpt);
+        Option daysOpt = Option.builder()
+                .longOpt( DAYS )
+                .hasArg()
+                .desc("Report on the last N days, including the current (UTC) day")
+                .required(false)
+                .build();
+        options.addOption(daysOpt);
+        Option seriesOpt = Option.builder()
+                .longOpt( SERIES )
+                .hasArg()
+                .desc("Report the request counts and request times for each hour or day")
+                .required(false)
+                .build();
+        options.addOption(seriesOpt);
+        Option pathPrefixOpt = Option.builder()
+                .longOpt( PATH_PREFIX )
+                .hasArg()
+                .desc("Limit the series to the requests under this path (e.g., software/java/)")
+                .required(false)
+                .build();
+        options.addOption(pathPrefixOpt);
+        Option scanBudgetOpt = Option.builder()
+                .longOpt( SCAN_BUDGET )
+                .hasArg()
+                .desc("The bytes the queries in the run may scan, with an optional K, M, G or T suffix (e.g., 20G)")
+                .required(false)
+                .build();
+        options.addOption(scanBudgetOpt);
+        Option dryRunOpt = Option.builder()
+                .longOpt( DRY_RUN )
+                .hasArg(false)
+                .desc("Print the queries the run would start, with their estimated scans, without running them")
+                .required(false)
+                .build();
+        options.addOption(dryRunOpt);
+        Option localListingOpt = Option.builder()
+                .longOpt( LOCAL_LISTING )
+                .hasArg()
+                .desc("A local directory that holds a copy of the S3 layout, listed in place of S3 for the scan estimates")
+                .required(false)
+                .build();
+        options.addOption(localListingOpt);
+        Option compactPathOpt = Option.builder()
+                .longOpt( COMPACT_PATH )
+                .hasArg()
+                .desc("Compact the small ORC files of a date partitioned table into this S3 bucket and path, outside of the orcPath")
+                .required(false)
+                .build();
+        options.addOption(compactPathOpt);
+        Option compactSettleOpt = Option.builder()
+                .longOpt( COMPACT_SETTLE_HOURS )
+                .hasArg()
+                .desc("The number of hours after the end of a day (UTC) before the day is compacted (default: " + LogCompactor.DEFAULT_SETTLE_HOURS + ")")
+                .required(false)
+                .build();
+        options.addOption(compactSettleOpt);
+        Option bloomFiltersOpt = Option.builder()
+                .longOpt( BLOOM_FILTERS )
+                .hasArg(false)
+                .desc("Write bloom filters for the key and referrer columns into the compacted ORC files")
+                .required(false)
+                .build();
+        options.addOption(bloomFiltersOpt);
+        Option treeFormatOpt = Option.builder()
+                .longOpt( TREE_FORMAT )
+                .hasArg()
+                .desc("The path tree format: text (the default), json, ndjson or csv")
+                .required(false)
+                .build();
+        options.addOption(treeFormatOpt);
+        Option maxDepthOpt = Option.builder()
+                .longOpt( MAX_DEPTH )
+                .hasArg()
+                .desc("The maximum depth of the path tree nodes that are output (the root is at depth 0)")
+                .required(false)
+                .build();
+        options.addOption(maxDepthOpt);
+        Option minCountOpt = Option.builder()
+                .longOpt( MIN_COUNT )
+                .hasArg()
+                .desc("The minimum reference count of the path tree nodes that are output")
+                .required(false)
+                .build();
+        options.addOption(minCountOpt);
+        Option topChildrenOpt = Option.builder()
+                .longOpt( TOP_CHILDREN )
+                .hasArg()
+                .desc("Output only the N children with the largest reference counts for each path tree node")
+                .required(false)
+                .build();
+        options.addOption(topChildrenOpt);
+        Option treeFileOpt = Option.builder()
+                .longOpt( TREE_FILE )
+                .hasArg()
+                .desc("Write the path tree to this file, rather than to the report")
+                .required(false)
+                .build();
+        options.addOption(treeFileOpt);
+        Option serveOpt = Option.builder()
+                .longOpt( SERVE )
+                .hasArg()
+                .desc("Serve the facets over HTTP on this local port, rather than printing a report")
+                .required(false)
+                .build();
+        options.addOption(serveOpt);
+        Option approxDaysOpt = Option.builder()
+                .longOpt( APPROX_DAYS )
+                .hasArg()
+                .desc("Report the approximate unique visitors and request time percentiles for the last N days")
+                .required(false)
+                .build();
+        options.addOption(approxDaysOpt);
+        Option sketchPathOpt = Option.builder()
+                .longOpt( SKETCH_PATH )
+                .hasArg()
+                .desc("The S3 bucket and path for a daily sketch table. The approximate facets are merged from the stored sketches")
+                .required(false)
+                .build();
+        options.addOption(sketchPathOpt);
         Option helpOpt = Option.builder()
                 .longOpt( HELP )
                 .hasArg(false)
@@ -159,30 +1067,122 @@ public class Main {
         formatter.printHelp( "athena_logs", cliOptions );
     }
 
+    /**
+     * Build the Main object from the command line options.
+     *
+     * @throws ParseException if a required option is missing or the options can not be used together
+     * @throws IllegalArgumentException if an option value can not be parsed
+     */
+    private static Main fromCommandLine(CommandLine commandLine) throws ParseException {
+        String orcPathArg = commandLine.getOptionValue( ORC_PATH );
+        String dbNameArg = commandLine.getOptionValue( DB_NAME );
+        String tableNameArg = commandLine.getOptionValue( TABLE_NAME );
+        String domainNameArg = commandLine.getOptionValue( DOMAIN_NAME );
+        String localOrcArg = commandLine.getOptionValue( LOCAL_ORC );
+        if (localOrcArg == null && (orcPathArg == null || dbNameArg == null || tableNameArg == null)) {
+            throw new MissingOptionException("The orcPath, dbName and tableName options are required for Athena queries");
+        }
+        if (domainNameArg == null && !commandLine.hasOption( ALL_DOMAINS ) && !commandLine.hasOption( SERVE ) &&
+            !commandLine.hasOption( COMPACT_PATH )) {
+            throw new MissingOptionException("The domain option is required unless allDomains, serve or compactPath is used");
+        }
+        if (commandLine.hasOption( COMPACT_PATH ) && (localOrcArg != null || !commandLine.hasOption( DATE_PARTITIONED ))) {
+            throw new ParseException("The compactPath option requires datePartitioned and is not supported with localOrc");
+        }
+        if (localOrcArg != null && commandLine.hasOption( SERVE )) {
+            throw new ParseException("The serve option is not supported with localOrc");
+        }
+        TimeRange timeRange = null;
+        if (commandLine.hasOption( START_DATE ) || commandLine.hasOption( END_DATE )) {
+            if (!commandLine.hasOption( START_DATE ) || !commandLine.hasOption( END_DATE )) {
+                throw new MissingOptionException("The startDate and endDate options are used together");
+            }
+            timeRange = TimeRange.parse(commandLine.getOptionValue( START_DATE ), commandLine.getOptionValue( END_DATE ));
+        } else if (commandLine.hasOption( DAYS )) {
+            timeRange = TimeRange.lastDays(Integer.parseInt(commandLine.getOptionValue( DAYS )));
+        }
+        if (commandLine.hasOption( DRY_RUN ) && (localOrcArg != null || commandLine.hasOption( SERVE ))) {
+            throw new ParseException("The dryRun option is not supported with localOrc or serve");
+        }
+        TrafficPoint.Interval seriesInterval = commandLine.hasOption( SERIES )
+                ? TrafficPoint.Interval.valueOf(commandLine.getOptionValue( SERIES ).toUpperCase(Locale.ROOT))
+                : null;
+        TreeRenderer treeRenderer = TreeRenderer.builder()
+                .format(TreeRenderer.Format.valueOf(commandLine.getOptionValue( TREE_FORMAT, "text" ).toUpperCase(Locale.ROOT)))
+                .maxDepth( Integer.parseInt(commandLine.getOptionValue( MAX_DEPTH, String.valueOf(Integer.MAX_VALUE) )))
+                .minCount( Long.parseLong(commandLine.getOptionValue( MIN_COUNT, "0" )))
+                .topChildren( Integer.parseInt(commandLine.getOptionValue( TOP_CHILDREN, "0" )))
+                .build();
+        return Main.builder()
+                .orcPath(orcPathArg)
+                .dbName(dbNameArg)
+                .tableName(tableNameArg)
+                .domainName( domainNameArg)
+                .localOrcDir( localOrcArg )
+                .partitioned( commandLine.hasOption( PARTITIONED ))
+                .concurrent( commandLine.hasOption( CONCURRENT ))
+                .combined( commandLine.hasOption( COMBINED ))
+                .poolSize( Integer.parseInt(commandLine.getOptionValue( POOL_SIZE, "0" )))
+                .cacheDir( commandLine.getOptionValue( CACHE_DIR ))
+                .cacheTtlMinutes( Long.parseLong(commandLine.getOptionValue( CACHE_TTL, String.valueOf(DEFAULT_CACHE_TTL_MINUTES) )))
+                .rollupPath( commandLine.getOptionValue( ROLLUP_PATH ))
+                .async( commandLine.hasOption( ASYNC ))
+                .allDomains( commandLine.hasOption( ALL_DOMAINS ))
+                .outputDir( commandLine.getOptionValue( OUTPUT_DIR ))
+                .treeRenderer( treeRenderer )
+                .treeFile( commandLine.getOptionValue( TREE_FILE ))
+                .servePort( Integer.parseInt(commandLine.getOptionValue( SERVE, "0" )))
+                .topK( Integer.parseInt(commandLine.getOptionValue( TOP_K, "0" )))
+                .approxDays( Integer.parseInt(commandLine.getOptionValue( APPROX_DAYS, "0" )))
+                .sketchPath( commandLine.getOptionValue( SKETCH_PATH ))
+                .catalogFile( commandLine.getOptionValue( CATALOG_FILE ))
+                .catalogTtlMinutes( Long.parseLong(commandLine.getOptionValue( CATALOG_TTL, String.valueOf(DEFAULT_CATALOG_TTL_MINUTES) )))
+                .queryLimit( Integer.parseInt(commandLine.getOptionValue( QUERY_LIMIT, String.valueOf(QueryScheduler.DEFAULT_CONCURRENCY) )))
+                .hedgeMillis( Long.parseLong(commandLine.getOptionValue( HEDGE_MILLIS, "0" )))
+                .datePartitioned( commandLine.hasOption( DATE_PARTITIONED ))
+                .timeRange( timeRange )
+                .seriesInterval( seriesInterval )
+                .pathPrefix( commandLine.getOptionValue( PATH_PREFIX ))
+                .scanBudget( commandLine.hasOption( SCAN_BUDGET )
+                        ? ScanEstimator.parseBytes(commandLine.getOptionValue( SCAN_BUDGET )) : ScanEstimator.NO_BUDGET)
+                .dryRun( commandLine.hasOption( DRY_RUN ))
+                .localListing( commandLine.getOptionValue( LOCAL_LISTING ))
+                .compactPath( commandLine.getOptionValue( COMPACT_PATH ))
+                .compactSettleHours( Long.parseLong(commandLine.getOptionValue( COMPACT_SETTLE_HOURS, String.valueOf(LogCompactor.DEFAULT_SETTLE_HOURS) )))
+                .bloomFilters( commandLine.hasOption( BLOOM_FILTERS ))
+                .build();
+    }
+
     public static void main(String[] args) {
         Options cliOptions = buildOptions();
+        CommandLine commandLine = null;
+        Main main = null;
+        // Only the option parsing is in the try block, so that an IllegalArgumentException from the run is not
+        // reported as a command line error
         try {
             CommandLineParser parser = new DefaultParser();
-            CommandLine commandLine = parser.parse(cliOptions, args);
+            commandLine = parser.parse(cliOptions, args);
             if (commandLine.hasOption("help")) {
                 help(cliOptions);
             } else {
-                String orcPathArg = commandLine.getOptionValue( ORC_PATH );
-                String dbNameArg = commandLine.getOptionValue( DB_NAME );
-                String tableNameArg = commandLine.getOptionValue( TABLE_NAME );
-                String domainNameArg = commandLine.getOptionValue( DOMAIN_NAME );
-                Main main = Main.builder()
-                        .orcPath(orcPathArg)
-                        .dbName(dbNameArg)
-                        .tableName(tableNameArg)
-                        .domainName( domainNameArg)
-                        .build();
-                main.runQueries();
+                main = fromCommandLine(commandLine);
             }
-
-        } catch (ParseException e) {
+        } catch (ParseException | IllegalArgumentException e) {
             logger.error("Error parsing command line arguments: {}", e.getLocalizedMessage());
             help(cliOptions);
         }
+        if (main != null) {
+            if (main.localOrcDir != null) {
+                main.runLocalQueries();
+            } else if (commandLine.hasOption( COMPACT_PATH )) {
+                main.runCompaction();
+            } else if (commandLine.hasOption( SERVE )) {
+                main.runServer();
+            } else if (commandLine.hasOption( DRY_RUN )) {
+                main.planQueries();
+            } else {
+                main.runQueries();
+            }
+        }
     }
 }
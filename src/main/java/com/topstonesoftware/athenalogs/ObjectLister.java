@@ -0,0 +1,31 @@
+package com.topstonesoftware.athenalogs;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * List the objects under a path with their sizes, so that the bytes a query will scan can be estimated before it
+ * runs (see ScanEstimator), and delete the objects under a path, such as the files of a compaction that was not
+ * used (see LogCompactor). See S3Lister for S3 and LocalObjectLister for a local directory.
+ */
+public interface ObjectLister {
+    /**
+     * @param path the path, for example an S3 bucket and path without the s3:// prefix
+     * @return the size in bytes of each object under the path, by the object key relative to the path (e.g.,
+     * bearcave.com/dt=2021-07-01/part-00000.orc)
+     */
+    Map<String, Long> listObjectSizes(String path);
+
+    /**
+     * @param path the path, for example an S3 bucket and path without the s3:// prefix
+     * @return the last modification time (epoch milliseconds) of each object under the path, by the object key
+     * relative to the path
+     */
+    Map<String, Long> listModifiedTimes(String path);
+
+    /**
+     * @param path the path, for example an S3 bucket and path without the s3:// prefix
+     * @throws IOException if an object could not be deleted
+     */
+    void deleteObjects(String path) throws IOException;
+}
@@ -0,0 +1,24 @@
+package com.topstonesoftware.athenalogs;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Read byte ranges of a stored object, so that a large query result file can be read in parallel chunks (see
+ * CsvResultReader). See S3ObjectStore for S3 and LocalObjectStore for local files.
+ */
+public interface ObjectStore {
+    /**
+     * @param location the object location (e.g., s3://bucket/key)
+     * @return the size of the object in bytes
+     */
+    long getSize(String location) throws IOException;
+
+    /**
+     * @param location the object location
+     * @param start the offset of the first byte
+     * @param end the offset after the last byte. This may be past the end of the object.
+     * @return a stream of the bytes in [start, end)
+     */
+    InputStream openRange(String location, long start, long end) throws IOException;
+}
@@ -0,0 +1,444 @@
+package com.topstonesoftware.athenalogs;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hive.ql.exec.vector.BytesColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.ColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.LongColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.TimestampColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatch;
+import org.apache.hadoop.hive.ql.io.sarg.PredicateLeaf;
+import org.apache.hadoop.hive.ql.io.sarg.SearchArgument;
+import org.apache.hadoop.hive.ql.io.sarg.SearchArgumentFactory;
+import org.apache.orc.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * <p>
+ * Compute the web log facets directly from ORC files in the local file system (for example, a downloaded copy of
+ * the ORC log files). This allows reports to be run, and the facet code to be tested, without an Athena
+ * connection.
+ * </p>
+ * <p>
+ *     The results are the same as the results of the Athena queries in LogDataFacets: the same filters are applied
+ *     to the same columns. To keep the reads fast:
+ * </p>
+ * <ul>
+ *     <li>The rows are read in vectorized batches (VectorizedRowBatch).</li>
+ *     <li>Only the columns that a facet uses are read (bucket_name, key, http_status and referrer).</li>
+ *     <li>A search argument on bucket_name and http_status is pushed down to the reader, so row groups whose
+ *     statistics do not match the domain are skipped. The end point list is read from the stripe statistics when
+ *     a stripe only contains one domain.</li>
+ *     <li>Each stripe of each file is read as a separate task on a thread pool.</li>
+ * </ul>
+ * <p>
+ *     With a time range (see setTimeRange) the path and referrer facets only count the rows whose request_date is
+ *     in the range, as the request_date predicate does in the Athena queries. The range is added to the search
+ *     argument, so the row groups outside of the range are skipped, and the dt=yyyy-MM-dd directories of a date
+ *     partitioned copy are only read for the days in the range. The end points are not limited by the range.
+ * </p>
+ * <p>
+ *     If the ORC directory has a sub-directory with the domain name (the S3 partition layout) only that
+ *     sub-directory is read for the domain facets. If a file or a stripe can not be read the facet methods throw a
+ *     FacetQueryException, as LogDataFacets does for a failed query, rather than counting the rows that were read.
+ * </p>
+ */
+@Slf4j
+public class OrcFileFacets implements FacetSource {
+    private static final Logger logger = LoggerFactory.getLogger(OrcFileFacets.class);
+    private static final String BUCKET_NAME = "bucket_name";
+    private static final String KEY = "key";
+    private static final String HTTP_STATUS = "http_status";
+    private static final String REFERRER = "referrer";
+    private static final String REQUEST_DATE = "request_date";
+    private final File orcDir;
+    private final int threads;
+    private final Configuration conf = new Configuration();
+    private TimeRange timeRange = null;
+
+    public OrcFileFacets(File orcDir, int threads) {
+        this.orcDir = orcDir;
+        this.threads = threads;
+    }
+
+    public OrcFileFacets(File orcDir) {
+        this(orcDir, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Limit the path and referrer facets to the requests in a time range.
+     *
+     * @param timeRange the time range, or null for all of the requests
+     */
+    @Override
+    public void setTimeRange(TimeRange timeRange) {
+        this.timeRange = timeRange;
+    }
+
+    /**
+     * Reads the rows from one stripe. Each task has its own visitor, so a visitor is not shared between threads.
+     */
+    private interface RowVisitor {
+        /**
+         * @param cols the column vectors, in the order of the column names passed to scan()
+         * @param row the row index in the batch
+         */
+        void visit(ColumnVector[] cols, int row);
+    }
+
+    private static class PageCounter implements RowVisitor {
+        private final String domain;
+        final Map<String, Long> counts = new HashMap<>();
+
+        PageCounter(String domain) {
+            this.domain = domain;
+        }
+
+        @Override
+        public void visit(ColumnVector[] cols, int row) {
+            String key = getString(cols[1], row);
+            if (domain.equals(getString(cols[0], row)) && isPage(key) && isStatus200(cols[2], row)) {
+                counts.merge(key, 1L, Long::sum);
+            }
+        }
+    }
+
+    private static class ReferrerCounter implements RowVisitor {
+        private final String domain;
+        final Map<String, Long> counts = new HashMap<>();
+
+        ReferrerCounter(String domain) {
+            this.domain = domain;
+        }
+
+        @Override
+        public void visit(ColumnVector[] cols, int row) {
+            String key = getString(cols[1], row);
+            String referrer = getString(cols[3], row);
+            if (referrer != null && domain.equals(getString(cols[0], row)) && isPage(key) && isStatus200(cols[2], row)
+                    && !referrer.contains("52.219.") && !referrer.contains("search") && !referrer.contains(domain)) {
+                counts.merge(referrer, 1L, Long::sum);
+            }
+        }
+    }
+
+    private static class DomainCollector implements RowVisitor {
+        final Set<String> domains = new HashSet<>();
+
+        @Override
+        public void visit(ColumnVector[] cols, int row) {
+            String domain = getString(cols[0], row);
+            if (domain != null) {
+                domains.add(domain);
+            }
+        }
+    }
+
+    private static int rowIndex(ColumnVector vec, int row) {
+        return vec.isRepeating ? 0 : row;
+    }
+
+    private static String getString(ColumnVector vec, int row) {
+        int r = rowIndex(vec, row);
+        String str = null;
+        if (vec.noNulls || !vec.isNull[r]) {
+            BytesColumnVector bytes = (BytesColumnVector) vec;
+            str = new String(bytes.vector[r], bytes.start[r], bytes.length[r], StandardCharsets.UTF_8);
+        }
+        return str;
+    }
+
+    /**
+     * The same test as TimeRange.requestDatePredicate(). A null request_date is not in the range.
+     */
+    private static boolean inRange(TimeRange range, ColumnVector vec, int row) {
+        int r = rowIndex(vec, row);
+        boolean inRange = false;
+        if (vec.noNulls || !vec.isNull[r]) {
+            LocalDateTime requestDate = ((TimestampColumnVector) vec).asScratchTimestamp(r).toLocalDateTime();
+            inRange = !requestDate.isBefore(range.getStart()) && requestDate.isBefore(range.getEnd());
+        }
+        return inRange;
+    }
+
+    private static boolean isStatus200(ColumnVector vec, int row) {
+        int r = rowIndex(vec, row);
+        return (vec.noNulls || !vec.isNull[r]) && ((LongColumnVector) vec).vector[r] == 200;
+    }
+
+    /**
+     * The same test as the SQL (key like '%.html' or key like '%.htm')
+     */
+    private static boolean isPage(String key) {
+        return key != null && (key.endsWith(".html") || key.endsWith(".htm"));
+    }
+
+    /**
+     * The same normalization as the SQL replace() calls in LogDataFacets
+     */
+    static String normalizeReferrer(String referrer) {
+        return referrer.replace("http://", "").replace("https://", "").replace("www.", "").replace("\"", "");
+    }
+
+    /**
+     * @param range the time range for the day partition directories, or null to list the files of every day
+     */
+    private static List<File> listOrcFiles(File dir, TimeRange range) {
+        List<File> files = new ArrayList<>();
+        File[] entries = dir.listFiles();
+        if (entries != null) {
+            Arrays.sort(entries);
+            for (File entry : entries) {
+                String name = entry.getName();
+                // Skip hidden files and Hadoop marker files such as _SUCCESS and .crc files
+                if (name.startsWith(".") || name.startsWith("_")) {
+                    continue;
+                }
+                if (entry.isDirectory()) {
+                    if (isDayInRange(name, range)) {
+                        files.addAll(listOrcFiles(entry, range));
+                    }
+                } else {
+                    files.add(entry);
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * @param dirName a directory name
+     * @param range the time range, or null
+     * @return false if the directory is a dt=yyyy-MM-dd day partition outside of the time range
+     */
+    private static boolean isDayInRange(String dirName, TimeRange range) {
+        String dayPrefix = LogDDL.DATE_PARTITION_COLUMN + "=";
+        boolean inRange = true;
+        if (range != null && dirName.startsWith(dayPrefix)) {
+            String day = dirName.substring(dayPrefix.length());
+            inRange = day.compareTo(range.getFirstDay().toString()) >= 0 &&
+                      day.compareTo(range.getLastDay().toString()) <= 0;
+        }
+        return inRange;
+    }
+
+    /**
+     * @return the ORC files for a domain. If there is a domain sub-directory, only its files are used.
+     */
+    private List<File> listDomainFiles(String domain) {
+        File domainDir = new File(orcDir, domain);
+        return domainDir.isDirectory() ? listOrcFiles(domainDir, timeRange) : listOrcFiles(orcDir, timeRange);
+    }
+
+    /**
+     * Find the column id of a top level column. The ORC files written by the Hive writer may have the column names
+     * _col0, _col1, ... in which case the column position in the log table is used.
+     */
+    private static int fieldIndex(TypeDescription schema, String columnName) {
+        int index = schema.getFieldNames().indexOf(columnName);
+        if (index < 0) {
+            index = LogDDL.columnIndex(columnName);
+        }
+        return index;
+    }
+
+    /**
+     * @param range the time range, or null
+     */
+    private static SearchArgument domainSearchArgument(String domain, TimeRange range) {
+        SearchArgument.Builder builder = SearchArgumentFactory.newBuilder()
+                .startAnd()
+                .equals(BUCKET_NAME, PredicateLeaf.Type.STRING, domain)
+                .equals(HTTP_STATUS, PredicateLeaf.Type.LONG, 200L);
+        if (range != null) {
+            builder.startNot()
+                   .lessThan(REQUEST_DATE, PredicateLeaf.Type.TIMESTAMP, Timestamp.valueOf(range.getStart()))
+                   .end()
+                   .lessThan(REQUEST_DATE, PredicateLeaf.Type.TIMESTAMP, Timestamp.valueOf(range.getEnd()));
+        }
+        return builder.end().build();
+    }
+
+    /**
+     * Read one stripe of an ORC file. With a time range the request_date column is read after the visitor's
+     * columns, and only the rows in the range are visited.
+     */
+    private <V extends RowVisitor> V readStripe(File file, StripeInformation stripe, String domain, TimeRange range,
+                                                String[] columns, V visitor) throws IOException {
+        String[] readColumns = columns;
+        if (range != null) {
+            readColumns = Arrays.copyOf(columns, columns.length + 1);
+            readColumns[columns.length] = REQUEST_DATE;
+        }
+        try (Reader reader = OrcFile.createReader(new Path(file.getAbsolutePath()), OrcFile.readerOptions(conf))) {
+            TypeDescription schema = reader.getSchema();
+            List<TypeDescription> fields = schema.getChildren();
+            boolean[] include = new boolean[schema.getMaximumId() + 1];
+            include[0] = true;
+            int[] fieldIx = new int[readColumns.length];
+            for (int i = 0; i < readColumns.length; i++) {
+                fieldIx[i] = fieldIndex(schema, readColumns[i]);
+                include[fields.get(fieldIx[i]).getId()] = true;
+            }
+            Reader.Options options = reader.options()
+                    .include(include)
+                    .range(stripe.getOffset(), stripe.getLength());
+            if (domain != null && schema.getFieldNames().contains(BUCKET_NAME)) {
+                options.searchArgument(domainSearchArgument(domain, range), new String[]{ BUCKET_NAME, HTTP_STATUS, REQUEST_DATE });
+            }
+            VectorizedRowBatch batch = schema.createRowBatch();
+            ColumnVector[] cols = new ColumnVector[readColumns.length];
+            try (RecordReader rows = reader.rows(options)) {
+                while (rows.nextBatch(batch)) {
+                    for (int i = 0; i < readColumns.length; i++) {
+                        cols[i] = batch.cols[fieldIx[i]];
+                    }
+                    for (int i = 0; i < batch.size; i++) {
+                        int row = batch.selectedInUse ? batch.selected[i] : i;
+                        if (range == null || inRange(range, cols[columns.length], row)) {
+                            visitor.visit(cols, row);
+                        }
+                    }
+                }
+            }
+        }
+        return visitor;
+    }
+
+    /**
+     * Read the stripes of the ORC files in parallel.
+     *
+     * @param label the name of the facet, for the exception if a file can not be read
+     * @param files the ORC files
+     * @param domain the domain for a search argument, or null to read all of the rows
+     * @param range the time range of the rows, or null to read the rows of every time
+     * @param columns the columns to read
+     * @param visitorFactory builds a visitor for each stripe
+     * @return the visitors for the stripes, in file and stripe order
+     * @throws FacetQueryException if a file or a stripe can not be read, so that the facet is not computed from
+     * part of the data
+     */
+    private <V extends RowVisitor> List<V> scan(String label, List<File> files, String domain, TimeRange range,
+                                                String[] columns, Supplier<V> visitorFactory) {
+        List<V> visitors = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<V>> futures = new ArrayList<>();
+            for (File file : files) {
+                List<StripeInformation> stripes;
+                try (Reader reader = OrcFile.createReader(new Path(file.getAbsolutePath()), OrcFile.readerOptions(conf))) {
+                    stripes = reader.getStripes();
+                } catch (IOException e) {
+                    throw new FacetQueryException(label, new IOException("could not read " + file, e));
+                }
+                for (StripeInformation stripe : stripes) {
+                    futures.add(executor.submit(() -> readStripe(file, stripe, domain, range, columns, visitorFactory.get())));
+                }
+            }
+            for (Future<V> future : futures) {
+                visitors.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FacetQueryException(label, "interrupted");
+        } catch (ExecutionException e) {
+            throw FacetQueryException.wrap(label, e);
+        } finally {
+            executor.shutdownNow();
+        }
+        return visitors;
+    }
+
+    private static List<Pair<String, Integer>> sortedCounts(Map<String, Long> counts) {
+        List<Pair<String, Integer>> pairList = new ArrayList<>(counts.size());
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            pairList.add(new ImmutablePair<>(entry.getKey(), Math.toIntExact(entry.getValue())));
+        }
+        pairList.sort(Comparator.comparing((Pair<String, Integer> pair) -> pair.getRight()).reversed()
+                .thenComparing(Pair::getLeft));
+        return pairList;
+    }
+
+    /**
+     * The domains are read from the stripe statistics where a stripe has a single bucket_name value. The rows are
+     * only read for the files that have a stripe with more than one domain.
+     */
+    @Override
+    public List<String> getEndPoints() {
+        Set<String> domains = new TreeSet<>();
+        List<File> statsUnknown = new ArrayList<>();
+        for (File file : listOrcFiles(orcDir, null)) {
+            try (Reader reader = OrcFile.createReader(new Path(file.getAbsolutePath()), OrcFile.readerOptions(conf))) {
+                TypeDescription schema = reader.getSchema();
+                int columnId = schema.getChildren().get(fieldIndex(schema, BUCKET_NAME)).getId();
+                for (StripeStatistics stats : reader.getStripeStatistics()) {
+                    ColumnStatistics colStats = stats.getColumnStatistics()[columnId];
+                    if (colStats instanceof StringColumnStatistics) {
+                        StringColumnStatistics strStats = (StringColumnStatistics) colStats;
+                        String min = strStats.getMinimum();
+                        if (min != null && min.equals(strStats.getMaximum()) && !colStats.hasNull()) {
+                            domains.add(min);
+                            continue;
+                        }
+                    }
+                    statsUnknown.add(file);
+                    break;
+                }
+            } catch (IOException e) {
+                throw new FacetQueryException("getEndPoints", new IOException("could not read " + file, e));
+            }
+        }
+        if (!statsUnknown.isEmpty()) {
+            for (DomainCollector collector : scan("getEndPoints", statsUnknown, null, null, new String[]{ BUCKET_NAME }, DomainCollector::new)) {
+                domains.addAll(collector.domains);
+            }
+        }
+        return new ArrayList<>(domains);
+    }
+
+    private Map<String, Long> countPages(String domain) {
+        Map<String, Long> counts = new HashMap<>();
+        String[] columns = { BUCKET_NAME, KEY, HTTP_STATUS };
+        for (PageCounter counter : scan("getPaths", listDomainFiles(domain), domain, timeRange, columns, () -> new PageCounter(domain))) {
+            counter.counts.forEach((key, count) -> counts.merge(key, count, Long::sum));
+        }
+        return counts;
+    }
+
+    @Override
+    public List<Pair<String, Integer>> getPaths(String domain) {
+        return sortedCounts(countPages(domain));
+    }
+
+    @Override
+    public DirTreeNode buildPathTree(String domain) {
+        DirTreeNode root = new DirTreeNode("/");
+        SegmentDictionary segments = new SegmentDictionary();
+        countPages(domain).forEach((path, count) -> root.addPathCount(path, count, segments));
+        return root;
+    }
+
+    @Override
+    public List<Pair<String, Integer>> getReferrers(String domain) {
+        Map<String, Long> counts = new HashMap<>();
+        String[] columns = { BUCKET_NAME, KEY, HTTP_STATUS, REFERRER };
+        for (ReferrerCounter counter : scan("getReferrers", listDomainFiles(domain), domain, timeRange, columns, () -> new ReferrerCounter(domain))) {
+            counter.counts.forEach((referrer, count) -> counts.merge(normalizeReferrer(referrer), count, Long::sum));
+        }
+        counts.remove("-");
+        return sortedCounts(counts);
+    }
+}
@@ -0,0 +1,17 @@
+package com.topstonesoftware.athenalogs;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * <p>
+ * Run queries asynchronously. A query is started and the caller gets a future, rather than waiting on a JDBC
+ * executeQuery call. The future completes with the location of the query result file (a CSV file) when the query
+ * is done, or completes exceptionally with an SQLException if the query fails.
+ * </p>
+ * <p>
+ *     See AthenaQueryExecutor for Athena and LocalQueryExecutor for a local stand-in.
+ * </p>
+ */
+public interface QueryExecutor {
+    CompletableFuture<AsyncQueryResult> submit(String sql);
+}
@@ -0,0 +1,279 @@
+package com.topstonesoftware.athenalogs;
+
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * <p>
+ * The measurements for the queries in a run (see QueryStats). The queries are recorded by InstrumentedQuery.
+ * When Athena statistics are set (see setAthenaStatistics) the queue time, engine time and bytes scanned are read
+ * for each query as it is recorded, which shows whether a slow query was waiting in the Athena queue, scanning
+ * data or fetching its result rows, and whether partition pruning reduced the data scanned.
+ * </p>
+ * <p>
+ *     The totals can be read through JMX (see registerMBean) and printSummary prints a table of the queries.
+ *     The totals are kept as running sums, so they cover every query that was recorded. A long running process
+ *     (see FacetServer) should limit the number of query measurements that are kept (see setMaxQueries) and read
+ *     the Athena statistics in the background (see readStatisticsInBackground), so that the memory for the
+ *     measurements is bounded and a request does not wait for the Athena API.
+ * </p>
+ */
+@Slf4j
+public class QueryMetrics implements QueryMetricsMBean {
+    private static final Logger logger = LoggerFactory.getLogger(QueryMetrics.class);
+    private static final QueryMetrics GLOBAL_METRICS = new QueryMetrics();
+    private static final String MBEAN_NAME = "com.topstonesoftware.athenalogs:type=QueryMetrics";
+    private static final int MAX_LABEL_LENGTH = 20;
+    /** The number of queries whose statistics can wait to be read in the background */
+    private static final int MAX_PENDING_STATISTICS = 1000;
+    private final Deque<QueryStats> queries = new ArrayDeque<>();
+    private int maxQueries = Integer.MAX_VALUE;
+    private AthenaStatistics athenaStatistics = null;
+    private ExecutorService statisticsExecutor = null;
+    private long queryCount = 0;
+    private long failedQueryCount = 0;
+    private final Total wallMillis = new Total();
+    private final Total queueMillis = new Total();
+    private final Total engineMillis = new Total();
+    private final Total fetchMillis = new Total();
+    private final Total clientMillis = new Total();
+    private final Total rowsFetched = new Total();
+    private final Total bytesScanned = new Total();
+
+    /**
+     * The running sum of a measurement. The sum is UNKNOWN until a query with a known value is added, and unknown
+     * values are not included in the sum.
+     */
+    private static class Total {
+        long sum = QueryStats.UNKNOWN;
+
+        void add(long value) {
+            if (value != QueryStats.UNKNOWN) {
+                sum = (sum == QueryStats.UNKNOWN) ? value : sum + value;
+            }
+        }
+    }
+
+    /**
+     * @return the metrics that InstrumentedQuery records the queries in
+     */
+    public static QueryMetrics global() {
+        return GLOBAL_METRICS;
+    }
+
+    public synchronized void setAthenaStatistics(AthenaStatistics athenaStatistics) {
+        this.athenaStatistics = athenaStatistics;
+    }
+
+    /**
+     * Keep the measurements for the last maxQueries queries (for printSummary and getQueries). The totals still
+     * include every query.
+     */
+    public synchronized void setMaxQueries(int maxQueries) {
+        this.maxQueries = maxQueries;
+        while (queries.size() > maxQueries) {
+            queries.removeFirst();
+        }
+    }
+
+    /**
+     * Read the Athena statistics on a background thread, so that record does not wait for the Athena API. A query
+     * is added to the measurements when its statistics have been read. If MAX_PENDING_STATISTICS queries are
+     * already waiting, a query is added without its statistics.
+     */
+    public synchronized void readStatisticsInBackground() {
+        if (statisticsExecutor == null) {
+            statisticsExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(MAX_PENDING_STATISTICS), runnable -> {
+                        Thread thread = new Thread(runnable, "query-statistics");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        }
+    }
+
+    public void record(QueryStats stats) {
+        AthenaStatistics statistics;
+        ExecutorService executor;
+        synchronized (this) {
+            statistics = athenaStatistics;
+            executor = statisticsExecutor;
+        }
+        if (statistics != null && executor != null) {
+            try {
+                executor.execute(() -> {
+                    statistics.addStatistics(stats);
+                    add(stats);
+                });
+                return;
+            } catch (RejectedExecutionException e) {
+                logger.warn("record: {} statistics are waiting to be read, {} is recorded without statistics",
+                        MAX_PENDING_STATISTICS, stats.getLabel());
+            }
+        } else if (statistics != null) {
+            // The statistics are read outside of the lock, since this is a call to the Athena API
+            statistics.addStatistics(stats);
+        }
+        add(stats);
+    }
+
+    private synchronized void add(QueryStats stats) {
+        queries.addLast(stats);
+        if (queries.size() > maxQueries) {
+            queries.removeFirst();
+        }
+        queryCount++;
+        failedQueryCount += stats.isFailed() ? 1 : 0;
+        wallMillis.add(stats.getWallMillis());
+        queueMillis.add(stats.getQueueMillis());
+        engineMillis.add(stats.getEngineMillis());
+        fetchMillis.add(stats.getFetchMillis());
+        clientMillis.add(stats.getClientMillis());
+        rowsFetched.add(stats.getRowsFetched());
+        bytesScanned.add(stats.getBytesScanned());
+    }
+
+    /**
+     * @return a copy of the recorded query measurements, in the order they were recorded. If the number of
+     * measurements is limited (see setMaxQueries) these are the most recent queries.
+     */
+    public synchronized List<QueryStats> getQueries() {
+        return new ArrayList<>(queries);
+    }
+
+    public synchronized void clear() {
+        queries.clear();
+        queryCount = 0;
+        failedQueryCount = 0;
+        for (Total total : List.of(wallMillis, queueMillis, engineMillis, fetchMillis, clientMillis, rowsFetched, bytesScanned)) {
+            total.sum = QueryStats.UNKNOWN;
+        }
+    }
+
+    /**
+     * Register the metrics with the platform MBean server, so that the totals can be read with a JMX client
+     * (e.g., jconsole).
+     */
+    public void registerMBean() {
+        try {
+            ObjectName name = new ObjectName(MBEAN_NAME);
+            if (! ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            logger.error("registerMBean: {}", e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * @return the sum of a measurement over the queries, or UNKNOWN if the value is not known for any query
+     */
+    private synchronized long knownTotal(Total total) {
+        return total.sum;
+    }
+
+    private long total(Total total) {
+        return Math.max(0, knownTotal(total));
+    }
+
+    @Override
+    public synchronized long getQueryCount() {
+        return queryCount;
+    }
+
+    @Override
+    public synchronized long getFailedQueryCount() {
+        return failedQueryCount;
+    }
+
+    @Override
+    public long getWallMillis() {
+        return total(wallMillis);
+    }
+
+    @Override
+    public long getQueueMillis() {
+        return total(queueMillis);
+    }
+
+    @Override
+    public long getEngineMillis() {
+        return total(engineMillis);
+    }
+
+    @Override
+    public long getFetchMillis() {
+        return total(fetchMillis);
+    }
+
+    @Override
+    public long getClientMillis() {
+        return total(clientMillis);
+    }
+
+    @Override
+    public long getRowsFetched() {
+        return total(rowsFetched);
+    }
+
+    @Override
+    public long getBytesScanned() {
+        return total(bytesScanned);
+    }
+
+    private static String formatValue(long value) {
+        return (value == QueryStats.UNKNOWN) ? "-" : String.valueOf(value);
+    }
+
+    static String formatBytes(long bytes) {
+        String formatted;
+        if (bytes == QueryStats.UNKNOWN) {
+            formatted = "-";
+        } else if (bytes < 1024) {
+            formatted = bytes + " B";
+        } else if (bytes < 1024 * 1024) {
+            formatted = String.format("%.1f KB", bytes / 1024.0);
+        } else if (bytes < 1024L * 1024 * 1024) {
+            formatted = String.format("%.1f MB", bytes / (1024.0 * 1024));
+        } else {
+            formatted = String.format("%.2f GB", bytes / (1024.0 * 1024 * 1024));
+        }
+        return formatted;
+    }
+
+    /**
+     * Print a table of the query measurements, with the totals on the last line. For example:
+     * <pre>
+     * Query                Query ID                              Wall ms  Queue ms Engine ms  Fetch ms Client ms       Rows    Scanned
+     * getPaths             0b1c2d3e-4f50-6172-8394-a5b6c7d8e9f0     3210       120      2104       412        85       1520     2.4 MB
+     * </pre>
+     */
+    public void printSummary(PrintStream out) {
+        final String format = "%-" + MAX_LABEL_LENGTH + "s %-36s %9s %9s %9s %9s %9s %10s %10s%n";
+        out.format(format, "Query", "Query ID", "Wall ms", "Queue ms", "Engine ms", "Fetch ms", "Client ms", "Rows", "Scanned");
+        for (QueryStats stats : getQueries()) {
+            String label = stats.isFailed() ? stats.getLabel() + " (failed)" : stats.getLabel();
+            if (label.length() > MAX_LABEL_LENGTH) {
+                label = label.substring(0, MAX_LABEL_LENGTH);
+            }
+            out.format(format, label, (stats.getQueryId() != null) ? stats.getQueryId() : "-",
+                    stats.getWallMillis(), formatValue(stats.getQueueMillis()), formatValue(stats.getEngineMillis()),
+                    stats.getFetchMillis(), stats.getClientMillis(), stats.getRowsFetched(),
+                    formatBytes(stats.getBytesScanned()));
+        }
+        out.format(format, "Total (" + getQueryCount() + ")", "", getWallMillis(),
+                formatValue(knownTotal(queueMillis)), formatValue(knownTotal(engineMillis)),
+                getFetchMillis(), getClientMillis(), getRowsFetched(), formatBytes(knownTotal(bytesScanned)));
+    }
+}
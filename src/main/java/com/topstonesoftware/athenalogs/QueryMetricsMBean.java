@@ -0,0 +1,24 @@
+package com.topstonesoftware.athenalogs;
+
+/**
+ * The JMX view of QueryMetrics. The values are totals over the queries that have been recorded.
+ */
+public interface QueryMetricsMBean {
+    long getQueryCount();
+
+    long getFailedQueryCount();
+
+    long getWallMillis();
+
+    long getQueueMillis();
+
+    long getEngineMillis();
+
+    long getFetchMillis();
+
+    long getClientMillis();
+
+    long getRowsFetched();
+
+    long getBytesScanned();
+}
@@ -0,0 +1,116 @@
+package com.topstonesoftware.athenalogs;
+
+import lombok.Builder;
+
+import java.io.PrintStream;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+
+/**
+ * <p>
+ * Plan the facet queries of a run without running them (the --dryRun option). Each query that the run would
+ * start is charged to the scan budget (see ScanEstimator) and printed with its estimate and its plan: run it, read
+ * the facet from the rollup alone, or stop the run because the query would exceed the budget. For example:
+ * </p>
+ * <pre>
+ * Query                    Domain                    Estimated  Plan
+ * buildPathTree            bearcave.com                48.2 MB  run
+ * getTopReferrers          bearcave.com                 1.2 MB  over budget at 48.2 MB, read from httplogs_daily
+ * Total                                                49.4 MB  budget 50.0 MB
+ * </pre>
+ * <p>
+ *     The rollup and sketch tables are assumed to be current through dailyThrough, which is where a refresh on the
+ *     next day leaves them, and the result cache is not consulted.
+ * </p>
+ */
+@Builder
+public class QueryPlanner {
+    private static final String FORMAT = "%-24s %-24s %10s  %s%n";
+    private final ScanEstimator estimator;
+    private final String database;
+    private final String logTable;
+    private final String domain;
+    private final boolean partitioned;
+    private final boolean datePartitioned;
+    /** The S3 path of the rollup table, or null if there is no rollup */
+    private final String rollupPath;
+    /** The S3 path of the sketch table, or null if there are no sketches */
+    private final String sketchPath;
+    /** The last day in the rollup and sketch tables */
+    private final LocalDate dailyThrough;
+    /** The time range of the report, or null for all of the log data */
+    private final TimeRange timeRange;
+    private final boolean allDomains;
+    private final boolean combined;
+    private final boolean async;
+    private final int topK;
+    /** The number of days for the approximate facets, or 0 if they are not computed */
+    private final int approxDays;
+    /** The time range of the traffic series, or null if there is no series */
+    private final TimeRange seriesRange;
+
+    /**
+     * Print the plan for one query: charge it to the budget, or to the budget for the daily table alone if the
+     * facet can be read from it, or mark it as over the budget.
+     *
+     * @param dailyTable the rollup or sketch table the query reads, or null
+     * @param canReadDailyOnly true if the facet can be read from the daily table alone
+     */
+    static void planQuery(PrintStream out, ScanEstimator estimator, String label, String domain, TimeRange range,
+                          String dailyTable, LocalDate dailyThrough, boolean canReadDailyOnly) {
+        String domainName = (domain != null) ? domain : "(all)";
+        long bytes = estimator.estimateBytes(domain, range, dailyTable, dailyThrough, false);
+        long dailyBytes = (dailyTable != null) ? estimator.estimateBytes(domain, range, dailyTable, dailyThrough, true) : 0;
+        if (estimator.fits(bytes)) {
+            estimator.charge(label, domain, ScanEstimator.Source.LOG_TABLE, bytes);
+            out.format(FORMAT, label, domainName, QueryMetrics.formatBytes(bytes), "run");
+        } else if (canReadDailyOnly && dailyTable != null && estimator.fits(dailyBytes)) {
+            estimator.charge(label, domain, ScanEstimator.Source.ROLLUP, dailyBytes, dailyThrough);
+            out.format(FORMAT, label, domainName, QueryMetrics.formatBytes(dailyBytes),
+                    "over budget at " + QueryMetrics.formatBytes(bytes) + ", read from " + dailyTable);
+        } else {
+            out.format(FORMAT, label, domainName, QueryMetrics.formatBytes(bytes), "over budget, the run stops here");
+        }
+    }
+
+    /**
+     * Print the facet queries that the run would start, with their estimated scans.
+     */
+    public void printPlan(PrintStream out) {
+        boolean tablePartitioned = partitioned || datePartitioned;
+        String rollupTable = (rollupPath != null && (timeRange == null || timeRange.isWholeDays()))
+                ? new LogRollup(database, logTable, rollupPath).getRollupTable() : null;
+        out.format(FORMAT, "Query", "Domain", "Estimated", "Plan");
+        if (allDomains) {
+            planQuery(out, estimator, "getAllDomainReports", null, timeRange, null, null, false);
+        } else if (combined) {
+            planQuery(out, estimator, "getCombinedReport", tablePartitioned ? domain : null, timeRange, null, null, false);
+        } else if (topK > 0) {
+            planQuery(out, estimator, "getPathHeavyHitters", domain, timeRange, rollupTable, dailyThrough, true);
+            planQuery(out, estimator, "getReferrerHeavyHitters", domain, timeRange, rollupTable, dailyThrough, true);
+        } else {
+            if (!tablePartitioned) {
+                planQuery(out, estimator, "getEndPoints", null, timeRange, null, null, false);
+            }
+            planQuery(out, estimator, "buildPathTree", domain, timeRange, rollupTable, dailyThrough, true);
+            planQuery(out, estimator, async ? "getReferrers" : "getTopReferrers", domain, timeRange, rollupTable,
+                    dailyThrough, true);
+        }
+        if (approxDays > 0 && !allDomains) {
+            LocalDate endDay = LocalDate.now(ZoneOffset.UTC);
+            TimeRange approxRange = TimeRange.ofDays(endDay.minusDays(approxDays - 1L), endDay);
+            String sketchTable = (sketchPath != null && !approxRange.getFirstDay().isAfter(dailyThrough))
+                    ? new LogSketches(database, logTable, sketchPath).getRollupTable() : null;
+            planQuery(out, estimator, "getDomainSummary", domain, approxRange, sketchTable, dailyThrough, false);
+            planQuery(out, estimator, "getPageVisitors", domain, approxRange, sketchTable, dailyThrough, false);
+        }
+        if (seriesRange != null && !allDomains) {
+            planQuery(out, estimator, "getTrafficSeries", domain, seriesRange, null, null, false);
+        }
+        long budgetBytes = estimator.getBudgetBytes();
+        out.format(FORMAT, "Total", "", QueryMetrics.formatBytes(estimator.getChargedBytes()),
+                (budgetBytes == ScanEstimator.NO_BUDGET) ? "no budget" : "budget " + QueryMetrics.formatBytes(budgetBytes));
+        estimator.getRollupOnlyThrough(allDomains ? null : domain).ifPresent(day ->
+                out.println("The report would be incomplete: the facets read from the rollup alone count the requests through " + day));
+    }
+}
@@ -0,0 +1,501 @@
+package com.topstonesoftware.athenalogs;
+
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * <p>
+ * Schedule the Athena queries of the program. Athena limits the number of queries that run at the same time in
+ * an account and throttles the API calls of a client that starts too many. The scheduler:
+ * </p>
+ * <ul>
+ *     <li>Limits the number of queries that run at the same time in each workgroup. A query waits for a slot
+ *     before it is started.</li>
+ *     <li>Admits INTERACTIVE queries (e.g., a dashboard request) ahead of BATCH queries (e.g., an all domain
+ *     report). A batch query waits while an interactive query is waiting, and the batch queries can use all but
+ *     one of the slots, so an interactive query does not wait for a long batch run. A workgroup with a limit of
+ *     one query has no slot to keep free: a batch query runs in the single slot when no interactive query is
+ *     waiting, and an interactive query that arrives waits for it to finish.</li>
+ *     <li>Retries a query that fails with a throttling error, after a backoff with "full jitter": a random time
+ *     between zero and baseBackoffMillis * 2^(attempt - 1), up to maxBackoffMillis. The jitter keeps the
+ *     throttled queries from being retried at the same time.</li>
+ *     <li>Optionally hedges interactive queries: if a query has not finished after hedgeDelayMillis, a duplicate
+ *     is started on another connection (if a slot is free) and the result of the query that finishes first is
+ *     used. The other query is cancelled. A hedged duplicate is paid for in the data that it scans, so the delay
+ *     should be set near the tail (e.g., the 95th percentile) of the query times.</li>
+ *     <li>Admits and retries the asynchronous queries (see QueryExecutor and submit) in the same way, with the
+ *     slot held until the query future completes. The asynchronous queries are not hedged.</li>
+ *     <li>Records the queue depth, wait times, retries and hedges, which can be read through JMX (see
+ *     registerMBean).</li>
+ * </ul>
+ * <p>
+ *     A query task is run with a connection and must build its result from scratch each time it is run, since it
+ *     can be run more than once.
+ * </p>
+ */
+@Slf4j
+@Builder
+public class QueryScheduler implements QuerySchedulerMBean {
+    private static final Logger logger = LoggerFactory.getLogger(QueryScheduler.class);
+    private static final String MBEAN_NAME = "com.topstonesoftware.athenalogs:type=QueryScheduler";
+    /** The error messages of the Athena and AWS SDK throttling errors */
+    private static final String[] THROTTLING_MESSAGES = {
+            "ThrottlingException", "TooManyRequestsException", "Rate exceeded", "TOO_MANY_REQUESTS",
+            "exceeded the limit for the number of queries"
+    };
+    /** The default number of queries that run at the same time in a workgroup */
+    public static final int DEFAULT_CONCURRENCY = 5;
+
+    public enum Priority {
+        INTERACTIVE, BATCH
+    }
+
+    /**
+     * A query, or a group of queries, run on a connection. The task may be run more than once.
+     */
+    public interface QueryTask<T> {
+        T run(Connection conn) throws SQLException;
+    }
+
+    /**
+     * The connections for hedged queries (e.g., AthenaDB::getAthenaConnection). Each hedged query closes its
+     * connection when it is done.
+     */
+    public interface ConnectionSource {
+        Optional<Connection> getConnection() throws SQLException;
+    }
+
+    /** The number of queries that run at the same time in a workgroup without a workgroup limit */
+    @Builder.Default
+    private final int defaultConcurrency = DEFAULT_CONCURRENCY;
+    /** The number of queries that run at the same time, by workgroup name */
+    @Builder.Default
+    private final Map<String, Integer> workgroupConcurrency = Map.of();
+    /** The maximum number of times a throttled query is run */
+    @Builder.Default
+    private final int maxAttempts = 5;
+    @Builder.Default
+    private final long baseBackoffMillis = 1000;
+    @Builder.Default
+    private final long maxBackoffMillis = 30_000;
+    /** The time after which an interactive query is hedged, or 0 for no hedging */
+    @Builder.Default
+    private final long hedgeDelayMillis = 0;
+    /** The connections for the hedged queries. Queries are not hedged if this is not set. */
+    private final ConnectionSource connectionSource;
+
+    private final ConcurrentMap<String, Admission> admissions = new ConcurrentHashMap<>();
+    private final ExecutorService hedgeExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "query-hedge");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService admissionExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "query-admission");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final LongAdder admittedCount = new LongAdder();
+    private final LongAdder totalWaitMillis = new LongAdder();
+    private final AtomicLong maxWaitMillis = new AtomicLong();
+    private final LongAdder throttledCount = new LongAdder();
+    private final LongAdder retryCount = new LongAdder();
+    private final LongAdder hedgeCount = new LongAdder();
+    private final LongAdder hedgeWinCount = new LongAdder();
+
+    /**
+     * The query slots for a workgroup.
+     */
+    private static class Admission {
+        private final int limit;
+        private final int[] waiting = new int[Priority.values().length];
+        private int running = 0;
+
+        Admission(int limit) {
+            this.limit = Math.max(1, limit);
+        }
+
+        /**
+         * A batch query keeps one slot free for the interactive queries. With a limit of one, the batch queries
+         * use the single slot, since otherwise they would never run.
+         */
+        private boolean canRun(Priority priority) {
+            boolean canRun;
+            if (priority == Priority.INTERACTIVE) {
+                canRun = running < limit;
+            } else {
+                canRun = waiting[Priority.INTERACTIVE.ordinal()] == 0 && running < Math.max(1, limit - 1);
+            }
+            return canRun;
+        }
+
+        synchronized void acquire(Priority priority) throws InterruptedException {
+            waiting[priority.ordinal()]++;
+            try {
+                while (!canRun(priority)) {
+                    wait();
+                }
+                running++;
+            } finally {
+                waiting[priority.ordinal()]--;
+                if (priority == Priority.INTERACTIVE) {
+                    // The batch queries wait while an interactive query is waiting, so they are woken when it
+                    // leaves the queue (it was admitted or interrupted)
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Take a slot for a hedged query, if one is free and no query is waiting for it.
+         */
+        synchronized boolean tryAcquireHedge() {
+            boolean acquired = false;
+            if (running < limit && waiting[Priority.INTERACTIVE.ordinal()] == 0 && waiting[Priority.BATCH.ordinal()] == 0) {
+                running++;
+                acquired = true;
+            }
+            return acquired;
+        }
+
+        synchronized void release() {
+            running--;
+            notifyAll();
+        }
+
+        synchronized int getWaiting() {
+            return waiting[Priority.INTERACTIVE.ordinal()] + waiting[Priority.BATCH.ordinal()];
+        }
+
+        synchronized int getRunning() {
+            return running;
+        }
+    }
+
+    /**
+     * A run of a query task. The statement that the task is running is kept, so that it can be cancelled.
+     */
+    private static class Attempt {
+        private volatile Statement statement = null;
+        private volatile boolean cancelled = false;
+
+        void setStatement(Statement stmt) {
+            statement = stmt;
+            if (cancelled) {
+                cancelStatement(stmt);
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            Statement stmt = statement;
+            if (stmt != null) {
+                cancelStatement(stmt);
+            }
+        }
+
+        private static void cancelStatement(Statement stmt) {
+            try {
+                stmt.cancel();
+            } catch (SQLException e) {
+                logger.debug("cancel: {}", e.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * @return true if the error, or one of its causes, is an Athena or AWS throttling error
+     */
+    public static boolean isThrottlingError(SQLException e) {
+        boolean throttled = false;
+        for (Throwable cause = e; cause != null && !throttled; cause = cause.getCause()) {
+            String message = cause.getMessage();
+            for (int i = 0; i < THROTTLING_MESSAGES.length && message != null && !throttled; i++) {
+                throttled = message.contains(THROTTLING_MESSAGES[i]);
+            }
+        }
+        SQLException next = e.getNextException();
+        return throttled || (next != null && next != e && isThrottlingError(next));
+    }
+
+    private Admission getAdmission(String workgroup) {
+        return admissions.computeIfAbsent(workgroup,
+                name -> new Admission(workgroupConcurrency.getOrDefault(name, defaultConcurrency)));
+    }
+
+    private void acquire(Admission admission, Priority priority, String label) throws SQLException {
+        long start = System.currentTimeMillis();
+        try {
+            admission.acquire(priority);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(label + ": interrupted while waiting to run", e);
+        }
+        long waitMillis = System.currentTimeMillis() - start;
+        admittedCount.increment();
+        totalWaitMillis.add(waitMillis);
+        maxWaitMillis.accumulateAndGet(waitMillis, Math::max);
+    }
+
+    /**
+     * @return the backoff time, with full jitter, before a retry
+     */
+    private long backoffMillis(int attempt) {
+        long ceiling = Math.min(maxBackoffMillis, baseBackoffMillis << Math.min(attempt - 1, 30));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private static <T> T runAttempt(Attempt attempt, Connection conn, QueryTask<T> task) throws SQLException {
+        InstrumentedQuery.setStatementListener(attempt::setStatement);
+        try {
+            return task.run(conn);
+        } finally {
+            InstrumentedQuery.setStatementListener(null);
+        }
+    }
+
+    /**
+     * Run a query task and, if it has not finished after the hedge delay, a duplicate of the task on another
+     * connection. The result of the task that finishes first is returned and the other task is cancelled.
+     */
+    private <T> T runHedged(Admission admission, String label, Connection conn, QueryTask<T> task) throws SQLException {
+        AtomicBoolean done = new AtomicBoolean(false);
+        CompletableFuture<T> hedgeResult = new CompletableFuture<>();
+        Attempt primary = new Attempt();
+        Attempt hedge = new Attempt();
+        Executor delayedExecutor = CompletableFuture.delayedExecutor(hedgeDelayMillis, TimeUnit.MILLISECONDS, hedgeExecutor);
+        delayedExecutor.execute(() -> {
+            if (done.get() || !admission.tryAcquireHedge()) {
+                return;
+            }
+            hedgeCount.increment();
+            try {
+                Optional<Connection> optConn = connectionSource.getConnection();
+                if (optConn.isPresent()) {
+                    try (Connection hedgeConn = optConn.get()) {
+                        T result = runAttempt(hedge, hedgeConn, task);
+                        if (done.compareAndSet(false, true)) {
+                            hedgeWinCount.increment();
+                            hedgeResult.complete(result);
+                            primary.cancel();
+                        }
+                    }
+                }
+            } catch (SQLException | RuntimeException e) {
+                // A hedged query that lost the race fails when it is cancelled
+                if (!done.get()) {
+                    logger.info("runHedged: hedged {} failed: {}", label, e.getLocalizedMessage());
+                }
+            } finally {
+                admission.release();
+            }
+        });
+        try {
+            T result = runAttempt(primary, conn, task);
+            if (done.compareAndSet(false, true)) {
+                hedge.cancel();
+            }
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            if (done.compareAndSet(false, true)) {
+                hedge.cancel();
+                throw e;
+            }
+            // The hedged query finished first and the primary query was cancelled
+            return hedgeResult.join();
+        }
+    }
+
+    /**
+     * Run a query task when a slot is free in the workgroup. A task that fails with a throttling error is run
+     * again, after a backoff, up to maxAttempts times.
+     *
+     * @param workgroup the Athena workgroup of the connection
+     * @param priority the query priority
+     * @param label the name of the task, for the log
+     * @param conn the connection for the task
+     * @param task the query task
+     * @return the task result
+     * @throws SQLException the task error, or the last throttling error if the task was throttled on every attempt
+     */
+    public <T> T run(String workgroup, Priority priority, String label, Connection conn, QueryTask<T> task) throws SQLException {
+        Admission admission = getAdmission(workgroup);
+        boolean hedged = priority == Priority.INTERACTIVE && hedgeDelayMillis > 0 && connectionSource != null;
+        for (int attempt = 1; ; attempt++) {
+            acquire(admission, priority, label);
+            try {
+                return hedged ? runHedged(admission, label, conn, task) : task.run(conn);
+            } catch (SQLException e) {
+                if (!isThrottlingError(e)) {
+                    throw e;
+                }
+                throttledCount.increment();
+                if (attempt >= maxAttempts) {
+                    logger.error("run: {} was throttled {} times", label, attempt);
+                    throw e;
+                }
+            } finally {
+                admission.release();
+            }
+            long backoff = backoffMillis(attempt);
+            logger.info("run: {} was throttled, retrying in {} ms", label, backoff);
+            retryCount.increment();
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException(label + ": interrupted while waiting to retry", e);
+            }
+        }
+    }
+
+    /**
+     * Start an asynchronous query (see QueryExecutor) when a slot is free in the workgroup. The wait for the slot
+     * is done on an admission thread, so the caller does not block, and the slot is held until the query future
+     * completes. A query that fails with a throttling error is started again, after a backoff, up to maxAttempts
+     * times.
+     *
+     * @param workgroup the Athena workgroup of the queries
+     * @param priority the query priority
+     * @param label the name of the query, for the log
+     * @param query starts the query. It is called again for each retry.
+     * @return the query result. The future completes exceptionally with the query error, or the last throttling
+     * error if the query was throttled on every attempt.
+     */
+    public <T> CompletableFuture<T> submit(String workgroup, Priority priority, String label,
+                                           Supplier<CompletableFuture<T>> query) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Admission admission = getAdmission(workgroup);
+        admissionExecutor.execute(() -> submitAttempt(admission, priority, label, query, 1, result));
+        return result;
+    }
+
+    private <T> void submitAttempt(Admission admission, Priority priority, String label,
+                                   Supplier<CompletableFuture<T>> query, int attempt, CompletableFuture<T> result) {
+        CompletableFuture<T> started;
+        try {
+            acquire(admission, priority, label);
+        } catch (SQLException e) {
+            result.completeExceptionally(e);
+            return;
+        }
+        try {
+            started = query.get();
+        } catch (RuntimeException e) {
+            admission.release();
+            result.completeExceptionally(e);
+            return;
+        }
+        started.whenComplete((value, error) -> {
+            admission.release();
+            Throwable cause = (error instanceof CompletionException && error.getCause() != null) ? error.getCause() : error;
+            if (cause == null) {
+                result.complete(value);
+            } else if (!(cause instanceof SQLException) || !isThrottlingError((SQLException) cause)) {
+                result.completeExceptionally(cause);
+            } else {
+                throttledCount.increment();
+                if (attempt >= maxAttempts) {
+                    logger.error("submit: {} was throttled {} times", label, attempt);
+                    result.completeExceptionally(cause);
+                } else {
+                    long backoff = backoffMillis(attempt);
+                    logger.info("submit: {} was throttled, retrying in {} ms", label, backoff);
+                    retryCount.increment();
+                    CompletableFuture.delayedExecutor(backoff, TimeUnit.MILLISECONDS, admissionExecutor)
+                            .execute(() -> submitAttempt(admission, priority, label, query, attempt + 1, result));
+                }
+            }
+        });
+    }
+
+    /**
+     * Register the scheduler with the platform MBean server (see QueryMetrics.registerMBean)
+     */
+    public void registerMBean() {
+        try {
+            ObjectName name = new ObjectName(MBEAN_NAME);
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        } catch (JMException e) {
+            logger.error("registerMBean: {}", e.getLocalizedMessage());
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return admissions.values().stream().mapToInt(Admission::getWaiting).sum();
+    }
+
+    @Override
+    public int getRunningQueries() {
+        return admissions.values().stream().mapToInt(Admission::getRunning).sum();
+    }
+
+    @Override
+    public long getAdmittedCount() {
+        return admittedCount.sum();
+    }
+
+    @Override
+    public long getAverageWaitMillis() {
+        long admitted = admittedCount.sum();
+        return (admitted > 0) ? totalWaitMillis.sum() / admitted : 0;
+    }
+
+    @Override
+    public long getMaxWaitMillis() {
+        return maxWaitMillis.get();
+    }
+
+    @Override
+    public long getThrottledCount() {
+        return throttledCount.sum();
+    }
+
+    @Override
+    public long getRetryCount() {
+        return retryCount.sum();
+    }
+
+    @Override
+    public long getHedgeCount() {
+        return hedgeCount.sum();
+    }
+
+    @Override
+    public long getHedgeWinCount() {
+        return hedgeWinCount.sum();
+    }
+
+    /**
+     * Print the scheduler counts. For example:
+     * <pre>
+     * Scheduler: 12 admitted, wait avg 340 ms max 2100 ms, 3 throttled, 3 retries, 2 hedged (1 won)
+     * </pre>
+     */
+    public void printSummary(PrintStream out) {
+        out.format("Scheduler: %d admitted, wait avg %d ms max %d ms, %d throttled, %d retries, %d hedged (%d won)%n",
+                getAdmittedCount(), getAverageWaitMillis(), getMaxWaitMillis(), getThrottledCount(), getRetryCount(),
+                getHedgeCount(), getHedgeWinCount());
+    }
+}
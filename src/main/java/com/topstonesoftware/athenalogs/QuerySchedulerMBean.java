@@ -0,0 +1,24 @@
+package com.topstonesoftware.athenalogs;
+
+/**
+ * The JMX view of QueryScheduler. The counts are totals since the scheduler was built.
+ */
+public interface QuerySchedulerMBean {
+    int getQueueDepth();
+
+    int getRunningQueries();
+
+    long getAdmittedCount();
+
+    long getAverageWaitMillis();
+
+    long getMaxWaitMillis();
+
+    long getThrottledCount();
+
+    long getRetryCount();
+
+    long getHedgeCount();
+
+    long getHedgeWinCount();
+}
@@ -0,0 +1,46 @@
+package com.topstonesoftware.athenalogs;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * <p>
+ * The measurements for one query (see InstrumentedQuery and QueryMetrics).
+ * </p>
+ * <ul>
+ *     <li>wallMillis: the time from the start of the statement until the last result row is read</li>
+ *     <li>executeMillis: the time until executeQuery (or execute) returns. For Athena this is the time the query
+ *     waits in the queue and runs in the engine, plus the time to fetch the first result page.</li>
+ *     <li>fetchMillis: the time in ResultSet.next(), which is the time spent fetching the result pages</li>
+ *     <li>clientMillis: the time spent processing the result rows (e.g., building the path tree)</li>
+ *     <li>queueMillis, engineMillis and bytesScanned: the Athena query execution statistics. These are UNKNOWN if
+ *     the query ID or the statistics could not be read.</li>
+ * </ul>
+ */
+@Getter
+@Setter(AccessLevel.PACKAGE)
+public class QueryStats {
+    public static final long UNKNOWN = -1;
+    private final String label;
+    private final String sql;
+    private String queryId = null;
+    private long wallMillis = 0;
+    private long executeMillis = 0;
+    private long fetchMillis = 0;
+    private long clientMillis = 0;
+    private long rowsFetched = 0;
+    private long queueMillis = UNKNOWN;
+    private long engineMillis = UNKNOWN;
+    private long bytesScanned = UNKNOWN;
+    private boolean failed = false;
+
+    /**
+     * @param label the name of the query, for example the facet method name (getPaths)
+     * @param sql the SQL statement
+     */
+    public QueryStats(String label, String sql) {
+        this.label = label;
+        this.sql = sql;
+    }
+}
@@ -0,0 +1,131 @@
+package com.topstonesoftware.athenalogs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * <p>
+ * Propagate the page reference counts at the leaves of a DirTreeNode tree upward, so that each interior node has
+ * the sum of the counts of its children.
+ * </p>
+ * <p>
+ *     The tree is walked in post-order with an explicit stack, rather than by recursion, so the depth of the tree
+ *     is not limited by the thread stack size. The counts are summed as primitive longs.
+ * </p>
+ * <p>
+ *     For a very large tree the sub-trees near the root can be aggregated in parallel on a ForkJoinPool. Each
+ *     forked task aggregates its sub-tree with the sequential walk.
+ * </p>
+ */
+public class RefCountAggregator {
+    /** Sub-trees are only forked as separate tasks down to this depth */
+    private static final int MAX_FORK_DEPTH = 3;
+    private static final int INITIAL_STACK_SIZE = 64;
+
+    private RefCountAggregator() {}
+
+    /**
+     * Fill in the reference counts for the interior nodes of a tree. A leaf node keeps its own count.
+     *
+     * @param root the root of the tree (or sub-tree)
+     * @return the reference count for the root
+     */
+    public static long aggregate(DirTreeNode root) {
+        DirTreeNode[] nodes = new DirTreeNode[INITIAL_STACK_SIZE];
+        int[] nextChild = new int[INITIAL_STACK_SIZE];
+        long[] sums = new long[INITIAL_STACK_SIZE];
+        int top = 0;
+        nodes[0] = root;
+        long rootCount = 0;
+        while (top >= 0) {
+            DirTreeNode node = nodes[top];
+            int childCount = node.getChildCount();
+            if (nextChild[top] < childCount) {
+                DirTreeNode child = node.getChild(nextChild[top]++);
+                if (child.getChildCount() == 0) {
+                    sums[top] += child.getPageRefCnt();
+                } else {
+                    top++;
+                    if (top == nodes.length) {
+                        nodes = Arrays.copyOf(nodes, nodes.length * 2);
+                        nextChild = Arrays.copyOf(nextChild, nextChild.length * 2);
+                        sums = Arrays.copyOf(sums, sums.length * 2);
+                    }
+                    nodes[top] = child;
+                    nextChild[top] = 0;
+                    sums[top] = 0;
+                }
+            } else {
+                long count = node.getPageRefCnt();
+                if (childCount > 0) {
+                    count = sums[top];
+                    node.setPageRefCnt(count);
+                }
+                nodes[top] = null;
+                top--;
+                if (top >= 0) {
+                    sums[top] += count;
+                } else {
+                    rootCount = count;
+                }
+            }
+        }
+        return rootCount;
+    }
+
+    private static class AggregateTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+        private final transient DirTreeNode node;
+        private final int depth;
+
+        AggregateTask(DirTreeNode node, int depth) {
+            this.node = node;
+            this.depth = depth;
+        }
+
+        @Override
+        protected Long compute() {
+            int childCount = node.getChildCount();
+            long sum;
+            if (childCount < 2 || depth >= MAX_FORK_DEPTH) {
+                sum = aggregate(node);
+            } else {
+                sum = 0;
+                List<AggregateTask> tasks = new ArrayList<>();
+                for (int i = 0; i < childCount; i++) {
+                    DirTreeNode child = node.getChild(i);
+                    if (child.getChildCount() == 0) {
+                        sum += child.getPageRefCnt();
+                    } else {
+                        tasks.add(new AggregateTask(child, depth + 1));
+                    }
+                }
+                for (AggregateTask task : ForkJoinTask.invokeAll(tasks)) {
+                    sum += task.join();
+                }
+                node.setPageRefCnt(sum);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Fill in the reference counts for the interior nodes of a tree, aggregating the sub-trees near the root
+     * in parallel.
+     *
+     * @param root the root of the tree
+     * @param pool the pool for the aggregation tasks
+     * @return the reference count for the root
+     */
+    public static long aggregateParallel(DirTreeNode root, ForkJoinPool pool) {
+        return pool.invoke(new AggregateTask(root, 0));
+    }
+
+    public static long aggregateParallel(DirTreeNode root) {
+        return aggregateParallel(root, ForkJoinPool.commonPool());
+    }
+}
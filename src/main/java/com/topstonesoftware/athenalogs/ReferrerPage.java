@@ -0,0 +1,55 @@
+package com.topstonesoftware.athenalogs;
+
+import lombok.Getter;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * <p>
+ * A page of referrer counts, in descending count order (see LogDataFacets.getTopReferrers).
+ * </p>
+ * <p>
+ *     If there may be more referrers after this page, getNextCursor() returns the cursor for the next page. The
+ *     cursor is the count and name of the last referrer on the page. Referrers with the same count are ordered by
+ *     name, so the cursor marks a unique position in the ordered result.
+ * </p>
+ */
+public class ReferrerPage {
+    @Getter
+    private final List<Pair<String, Integer>> referrers;
+    private final Cursor nextCursor;
+
+    /**
+     * A position in the referrer list: the next page starts after the referrer with this count and name.
+     */
+    @Getter
+    public static class Cursor {
+        private final int count;
+        private final String referrer;
+
+        public Cursor(int count, String referrer) {
+            this.count = count;
+            this.referrer = referrer;
+        }
+    }
+
+    /**
+     * @param referrers the referrers on this page
+     * @param pageSize the requested page size. If the page is full there may be another page.
+     */
+    public ReferrerPage(List<Pair<String, Integer>> referrers, int pageSize) {
+        this.referrers = referrers;
+        if (!referrers.isEmpty() && referrers.size() == pageSize) {
+            Pair<String, Integer> last = referrers.get(referrers.size() - 1);
+            this.nextCursor = new Cursor(last.getRight(), last.getLeft());
+        } else {
+            this.nextCursor = null;
+        }
+    }
+
+    public Optional<Cursor> getNextCursor() {
+        return Optional.ofNullable(nextCursor);
+    }
+}
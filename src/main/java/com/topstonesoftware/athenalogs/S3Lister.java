@@ -0,0 +1,207 @@
+package com.topstonesoftware.athenalogs;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ * List the "directories" (S3 key prefixes) under an S3 path. The ORC log files are written with the domain name
+ * as a path prefix, for example:
+ * </p>
+ * <pre>
+ *     s3://ianlkaplan-logs.orc/user/iank/http_logs/bearcave.com/
+ *     s3://ianlkaplan-logs.orc/user/iank/http_logs/topstonesoftware.com/
+ * </pre>
+ * <p>
+ *     So the sub-directories of the ORC path are the domain partitions of the log table. For a table that is
+ *     also partitioned by date the sub-directories of a domain are the day partitions (dt=2021-07-01).
+ * </p>
+ * <p>
+ *     The object sizes under the path are used to estimate the bytes a query will scan (see ScanEstimator).
+ * </p>
+ */
+public class S3Lister implements ObjectLister {
+    private final AmazonS3 s3Client;
+
+    public S3Lister(AmazonS3 s3Client) {
+        this.s3Client = s3Client;
+    }
+
+    /**
+     * Build an S3 lister with the shared S3 client (see AthenaDB.s3Client), which uses the same environment
+     * variables as the Athena connection.
+     */
+    public static Optional<S3Lister> fromEnvironment() {
+        return AthenaDB.s3Client().map(S3Lister::new);
+    }
+
+    private static String bucketName(String s3Path) {
+        String path = s3Path.startsWith("s3://") ? s3Path.substring("s3://".length()) : s3Path;
+        int slash = path.indexOf('/');
+        return slash < 0 ? path : path.substring(0, slash);
+    }
+
+    /**
+     * @return the key prefix for an S3 path, ending with a "/" (or the empty string for a bucket)
+     */
+    private static String keyPrefix(String s3Path) {
+        String path = s3Path.startsWith("s3://") ? s3Path.substring("s3://".length()) : s3Path;
+        int slash = path.indexOf('/');
+        String prefix = slash < 0 ? "" : path.substring(slash + 1);
+        if (!prefix.isEmpty() && !prefix.endsWith("/")) {
+            prefix = prefix + "/";
+        }
+        return prefix;
+    }
+
+    /**
+     * @param s3Path a bucket and path without the s3:// prefix. Example: ianlkaplan-logs.orc/user/iank/http_logs
+     * @return the names of the sub-directories directly under the path (e.g., bearcave.com)
+     */
+    public List<String> listSubDirectories(String s3Path) {
+        String bucket = bucketName(s3Path);
+        String prefix = keyPrefix(s3Path);
+        List<String> dirList = new ArrayList<>();
+        ListObjectsV2Request request = new ListObjectsV2Request()
+                .withBucketName(bucket)
+                .withPrefix(prefix)
+                .withDelimiter("/");
+        ListObjectsV2Result result;
+        do {
+            result = s3Client.listObjectsV2(request);
+            for (String commonPrefix : result.getCommonPrefixes()) {
+                String name = commonPrefix.substring(prefix.length());
+                if (name.endsWith("/")) {
+                    name = name.substring(0, name.length() - 1);
+                }
+                if (!name.isEmpty()) {
+                    dirList.add(name);
+                }
+            }
+            request.setContinuationToken(result.getNextContinuationToken());
+        } while (result.isTruncated());
+        return dirList;
+    }
+
+    /**
+     * List the day partitions of each domain for a date partitioned log table (see
+     * LogDDL.getDatePartitionedLogTableDDL). The day partitions are the dt=yyyy-MM-dd sub-directories of a domain.
+     *
+     * @param s3Path the ORC file path, a bucket and path without the s3:// prefix
+     * @return the days (yyyy-MM-dd) for each domain, in domain and day order
+     */
+    public Map<String, List<String>> listDatePartitions(String s3Path) {
+        String basePath = s3Path.endsWith("/") ? s3Path : s3Path + "/";
+        String dayPrefix = LogDDL.DATE_PARTITION_COLUMN + "=";
+        Map<String, List<String>> domainDays = new TreeMap<>();
+        for (String domain : listSubDirectories(s3Path)) {
+            List<String> days = new ArrayList<>();
+            for (String dir : listSubDirectories(basePath + domain)) {
+                if (dir.startsWith(dayPrefix)) {
+                    days.add(dir.substring(dayPrefix.length()));
+                }
+            }
+            days.sort(null);
+            domainDays.put(domain, days);
+        }
+        return domainDays;
+    }
+
+    @Override
+    public Map<String, Long> listObjectSizes(String s3Path) {
+        String prefix = keyPrefix(s3Path);
+        ListObjectsV2Request request = new ListObjectsV2Request()
+                .withBucketName(bucketName(s3Path))
+                .withPrefix(prefix);
+        Map<String, Long> sizes = new TreeMap<>();
+        ListObjectsV2Result result;
+        do {
+            result = s3Client.listObjectsV2(request);
+            for (S3ObjectSummary summary : result.getObjectSummaries()) {
+                sizes.put(summary.getKey().substring(prefix.length()), summary.getSize());
+            }
+            request.setContinuationToken(result.getNextContinuationToken());
+        } while (result.isTruncated());
+        return sizes;
+    }
+
+    @Override
+    public Map<String, Long> listModifiedTimes(String s3Path) {
+        String prefix = keyPrefix(s3Path);
+        ListObjectsV2Request request = new ListObjectsV2Request()
+                .withBucketName(bucketName(s3Path))
+                .withPrefix(prefix);
+        Map<String, Long> times = new TreeMap<>();
+        ListObjectsV2Result result;
+        do {
+            result = s3Client.listObjectsV2(request);
+            for (S3ObjectSummary summary : result.getObjectSummaries()) {
+                times.put(summary.getKey().substring(prefix.length()), summary.getLastModified().getTime());
+            }
+            request.setContinuationToken(result.getNextContinuationToken());
+        } while (result.isTruncated());
+        return times;
+    }
+
+    /**
+     * Delete the objects under an S3 path. The keys are deleted in batches of up to 1000, the limit of a
+     * DeleteObjects request.
+     */
+    @Override
+    public void deleteObjects(String s3Path) throws IOException {
+        final int maxKeys = 1000;
+        String prefix = keyPrefix(s3Path);
+        List<DeleteObjectsRequest.KeyVersion> keys = new ArrayList<>();
+        for (String key : listObjectSizes(s3Path).keySet()) {
+            keys.add(new DeleteObjectsRequest.KeyVersion(prefix + key));
+        }
+        try {
+            for (int i = 0; i < keys.size(); i += maxKeys) {
+                s3Client.deleteObjects(new DeleteObjectsRequest(bucketName(s3Path))
+                        .withKeys(keys.subList(i, Math.min(i + maxKeys, keys.size())))
+                        .withQuiet(true));
+            }
+        } catch (AmazonClientException e) {
+            throw new IOException("deleteObjects: " + e.getLocalizedMessage(), e);
+        }
+    }
+
+    /**
+     * Build a fingerprint for the files under an S3 path from the number of objects, their total size and the
+     * latest modification time. When an ORC file is added or replaced the fingerprint changes, so it can be used
+     * to invalidate cached query results (see FacetCache).
+     *
+     * @param s3Path a bucket and path without the s3:// prefix
+     * @return a fingerprint string, for example 1024:73400320:1626825600000
+     */
+    public String getPathFingerprint(String s3Path) {
+        ListObjectsV2Request request = new ListObjectsV2Request()
+                .withBucketName(bucketName(s3Path))
+                .withPrefix(keyPrefix(s3Path));
+        long objectCount = 0;
+        long totalSize = 0;
+        long latestModified = 0;
+        ListObjectsV2Result result;
+        do {
+            result = s3Client.listObjectsV2(request);
+            for (S3ObjectSummary summary : result.getObjectSummaries()) {
+                objectCount++;
+                totalSize += summary.getSize();
+                latestModified = Math.max(latestModified, summary.getLastModified().getTime());
+            }
+            request.setContinuationToken(result.getNextContinuationToken());
+        } while (result.isTruncated());
+        return objectCount + ":" + totalSize + ":" + latestModified;
+    }
+}
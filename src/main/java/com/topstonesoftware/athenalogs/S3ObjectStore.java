@@ -0,0 +1,60 @@
+package com.topstonesoftware.athenalogs;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Optional;
+
+/**
+ * Read byte ranges of S3 objects with ranged GET requests. The locations have the form s3://bucket/key
+ */
+public class S3ObjectStore implements ObjectStore {
+    private static final String S3_SCHEME = "s3://";
+    private final AmazonS3 s3Client;
+
+    public S3ObjectStore(AmazonS3 s3Client) {
+        this.s3Client = s3Client;
+    }
+
+    /**
+     * Build an S3 object store with the shared S3 client (see AthenaDB.s3Client), which uses the same environment
+     * variables as the Athena connection.
+     */
+    public static Optional<S3ObjectStore> fromEnvironment() {
+        return AthenaDB.s3Client().map(S3ObjectStore::new);
+    }
+
+    private static String[] bucketAndKey(String location) throws IOException {
+        String path = location.startsWith(S3_SCHEME) ? location.substring(S3_SCHEME.length()) : location;
+        int slash = path.indexOf('/');
+        if (slash <= 0) {
+            throw new IOException("Not an S3 object location: " + location);
+        }
+        return new String[]{ path.substring(0, slash), path.substring(slash + 1) };
+    }
+
+    @Override
+    public long getSize(String location) throws IOException {
+        String[] bucketAndKey = bucketAndKey(location);
+        try {
+            return s3Client.getObjectMetadata(bucketAndKey[0], bucketAndKey[1]).getContentLength();
+        } catch (AmazonClientException e) {
+            throw new IOException("getSize: " + e.getLocalizedMessage(), e);
+        }
+    }
+
+    @Override
+    public InputStream openRange(String location, long start, long end) throws IOException {
+        String[] bucketAndKey = bucketAndKey(location);
+        try {
+            // The S3 range is inclusive
+            GetObjectRequest request = new GetObjectRequest(bucketAndKey[0], bucketAndKey[1]).withRange(start, end - 1);
+            return s3Client.getObject(request).getObjectContent();
+        } catch (AmazonClientException e) {
+            throw new IOException("openRange: " + e.getLocalizedMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.topstonesoftware.athenalogs;
+
+/**
+ * A query was not run because its estimated scan would exceed the scan budget for the run (see ScanEstimator).
+ */
+public class ScanBudgetException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    private final String label;
+    private final long estimatedBytes;
+    private final long remainingBytes;
+
+    /**
+     * @param label the name of the query (e.g., getPaths)
+     * @param estimatedBytes the estimated bytes the query would scan
+     * @param remainingBytes the bytes left in the budget
+     */
+    public ScanBudgetException(String label, long estimatedBytes, long remainingBytes) {
+        super(label + ": the estimated scan of " + QueryMetrics.formatBytes(estimatedBytes) +
+              " is over the remaining scan budget of " + QueryMetrics.formatBytes(remainingBytes));
+        this.label = label;
+        this.estimatedBytes = estimatedBytes;
+        this.remainingBytes = remainingBytes;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    public long getRemainingBytes() {
+        return remainingBytes;
+    }
+}
@@ -0,0 +1,345 @@
+package com.topstonesoftware.athenalogs;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.PrintStream;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * <p>
+ * Estimate the bytes that a facet query will scan before it runs, and hold the queries in a run to a scan budget.
+ * Athena charges by the bytes scanned, and a query on a large log table can scan far more than expected. The
+ * estimate is the size of the ORC files that the query can read after partition pruning, from a listing of the
+ * ORC path (see ObjectLister):
+ * </p>
+ * <ul>
+ *     <li>A table that is not partitioned: every file.</li>
+ *     <li>A table that is partitioned by domain: the files under the domain directory.</li>
+ *     <li>A table that is partitioned by domain and day: the files under the dt=yyyy-MM-dd directories for the days
+ *     in the time range.</li>
+ * </ul>
+ * <p>
+ *     The estimate is an upper bound. ORC is a columnar format, so Athena reads only the columns a query uses and
+ *     may skip the stripes outside of a time range. A query that reads a daily table (a rollup) is charged for the
+ *     whole daily table and for the log files of the days after it.
+ * </p>
+ * <p>
+ *     A query is charged to the budget before it runs (see charge). If the charge would exceed the budget a
+ *     ScanBudgetException is thrown, so the query never starts. The facets that can be read from a rollup are
+ *     read from the rollup alone when the log files would not fit (see LogDataFacets.setScanEstimator). Such a
+ *     facet does not count the requests after the last rolled up day, so the report is marked as incomplete (see
+ *     getRollupOnlyThrough). After the run printSummary compares the estimates with the bytes Athena reports as
+ *     scanned.
+ * </p>
+ */
+@Slf4j
+public class ScanEstimator {
+    private static final Logger logger = LoggerFactory.getLogger(ScanEstimator.class);
+    /** A budget of NO_BUDGET bytes does not limit the scans */
+    public static final long NO_BUDGET = 0;
+    private static final int MAX_LABEL_LENGTH = 20;
+    private final ObjectLister lister;
+    private final String logPath;
+    private final boolean partitioned;
+    private final boolean datePartitioned;
+    @Getter
+    private final long budgetBytes;
+    private final Map<String, String> dailyTablePaths = new HashMap<>();
+    private final Map<String, Map<String, Long>> listings = new HashMap<>();
+    private final List<Estimate> estimates = new ArrayList<>();
+    private long chargedBytes = 0;
+
+    /**
+     * Where the data for a facet query is read from
+     */
+    public enum Source {
+        LOG_TABLE("log table"), ROLLUP("rollup only"), CACHE("cache");
+
+        private final String description;
+
+        Source(String description) {
+            this.description = description;
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+    }
+
+    /**
+     * The estimate for a query that was charged to the budget, or for a facet read from the result cache
+     */
+    @Getter
+    public static class Estimate {
+        private final String label;
+        private final String domain;
+        private final Source source;
+        private final long bytes;
+        /** For a facet that is read from the rollup alone, the last day that it counts. Otherwise null. */
+        private final LocalDate countedThrough;
+
+        Estimate(String label, String domain, Source source, long bytes, LocalDate countedThrough) {
+            this.label = label;
+            this.domain = domain;
+            this.source = source;
+            this.bytes = bytes;
+            this.countedThrough = countedThrough;
+        }
+    }
+
+    /**
+     * @param lister the object listing for the ORC path
+     * @param logPath the ORC path of the log table, a bucket and path without the s3:// prefix
+     * @param partitioned true if the log table is partitioned by domain
+     * @param datePartitioned true if the log table is partitioned by domain and day (see
+     *                        LogDDL.getDatePartitionedLogTableDDL)
+     * @param budgetBytes the bytes the queries in the run may scan, or NO_BUDGET
+     */
+    public ScanEstimator(ObjectLister lister, String logPath, boolean partitioned, boolean datePartitioned,
+                         long budgetBytes) {
+        this.lister = lister;
+        this.logPath = logPath;
+        this.partitioned = partitioned || datePartitioned;
+        this.datePartitioned = datePartitioned;
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Add a daily table (see LogRollup), so that the queries that read it are charged for its size.
+     *
+     * @param table the table name
+     * @param path the S3 path of the table data
+     */
+    public synchronized void addDailyTable(String table, String path) {
+        dailyTablePaths.put(table, path);
+    }
+
+    /**
+     * @return the object sizes under a path. Each path is listed once.
+     */
+    private synchronized Map<String, Long> listing(String path) {
+        return listings.computeIfAbsent(path, p -> {
+            Map<String, Long> sizes = lister.listObjectSizes(p);
+            logger.info("listing: {} objects under {}", sizes.size(), p);
+            return sizes;
+        });
+    }
+
+    /**
+     * @param key an object key relative to the log path, for example bearcave.com/dt=2021-07-01/part-00000.orc
+     * @return true if a query on the domain and days can read the object
+     */
+    private boolean isReadable(String key, String domain, LocalDate firstDay, LocalDate lastDay) {
+        String[] parts = key.split("/");
+        if (partitioned && domain != null && !parts[0].equals(domain)) {
+            return false;
+        }
+        if (datePartitioned && parts.length > 2 && parts[1].startsWith(LogDDL.DATE_PARTITION_COLUMN + "=")) {
+            String day = parts[1].substring(LogDDL.DATE_PARTITION_COLUMN.length() + 1);
+            return (firstDay == null || day.compareTo(firstDay.toString()) >= 0) &&
+                   (lastDay == null || day.compareTo(lastDay.toString()) <= 0);
+        }
+        return true;
+    }
+
+    /**
+     * @param domain the domain, or null for a query over all of the domains
+     * @param firstDay the first day of the query, or null for no lower bound
+     * @param lastDay the last day of the query (inclusive), or null for no upper bound
+     * @return the size of the log table files that a query on the domain and days can read
+     */
+    public long getLogBytes(String domain, LocalDate firstDay, LocalDate lastDay) {
+        if (firstDay != null && lastDay != null && firstDay.isAfter(lastDay)) {
+            return 0;
+        }
+        long bytes = 0;
+        for (Map.Entry<String, Long> object : listing(logPath).entrySet()) {
+            if (isReadable(object.getKey(), domain, firstDay, lastDay)) {
+                bytes += object.getValue();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the size of a daily table (see addDailyTable), or 0 if the table was not added
+     */
+    public long getDailyTableBytes(String table) {
+        String path;
+        synchronized (this) {
+            path = dailyTablePaths.get(table);
+        }
+        return (path != null) ? listing(path).values().stream().mapToLong(Long::longValue).sum() : 0;
+    }
+
+    /**
+     * Estimate the bytes a facet query will scan.
+     *
+     * @param domain the domain, or null for a query over all of the domains
+     * @param range the time range of the query, or null for all of the log data
+     * @param dailyTable the daily table the query reads for the days through dailyThrough, or null
+     * @param dailyThrough the last day in the daily table
+     * @param dailyOnly true if the query reads the daily table alone
+     * @return the estimated bytes
+     */
+    public long estimateBytes(String domain, TimeRange range, String dailyTable, LocalDate dailyThrough,
+                              boolean dailyOnly) {
+        long dailyBytes = (dailyTable != null) ? getDailyTableBytes(dailyTable) : 0;
+        if (dailyOnly) {
+            return dailyBytes;
+        }
+        LocalDate firstDay = (range != null) ? range.getFirstDay() : null;
+        LocalDate lastDay = (range != null) ? range.getLastDay() : null;
+        if (dailyTable != null && (firstDay == null || !firstDay.isAfter(dailyThrough))) {
+            firstDay = dailyThrough.plusDays(1);
+        }
+        return dailyBytes + getLogBytes(domain, firstDay, lastDay);
+    }
+
+    /**
+     * @return true if a query of this many bytes fits in the remaining budget
+     */
+    public synchronized boolean fits(long bytes) {
+        return budgetBytes == NO_BUDGET || chargedBytes + bytes <= budgetBytes;
+    }
+
+    /**
+     * Charge a query to the budget before it runs.
+     *
+     * @param label the name of the query (e.g., getPaths)
+     * @param domain the domain, or null for a query over all of the domains
+     * @param source where the query reads its data
+     * @param bytes the estimated bytes
+     * @throws ScanBudgetException if the query would exceed the budget
+     */
+    public void charge(String label, String domain, Source source, long bytes) {
+        charge(label, domain, source, bytes, null);
+    }
+
+    /**
+     * Charge a query to the budget before it runs.
+     *
+     * @param countedThrough for a query that reads the rollup alone, the last day in the rollup. The facet does
+     *                       not count the requests after this day (see getRollupOnlyThrough).
+     * @throws ScanBudgetException if the query would exceed the budget
+     */
+    public synchronized void charge(String label, String domain, Source source, long bytes, LocalDate countedThrough) {
+        if (!fits(bytes)) {
+            throw new ScanBudgetException(label, bytes, budgetBytes - chargedBytes);
+        }
+        chargedBytes += bytes;
+        estimates.add(new Estimate(label, domain, source, bytes, countedThrough));
+    }
+
+    /**
+     * Record a facet that was read from the result cache, which scans nothing
+     */
+    public synchronized void recordCached(String label, String domain) {
+        estimates.add(new Estimate(label, domain, Source.CACHE, 0, null));
+    }
+
+    /**
+     * A report with a facet that was read from the rollup alone is incomplete: the facet does not count the
+     * requests after the last rolled up day.
+     *
+     * @param domain the domain of the report, or null for every domain
+     * @return the earliest last counted day of the domain's rollup only facets (including the facets over all of
+     * the domains), or empty if the report is complete
+     */
+    public synchronized Optional<LocalDate> getRollupOnlyThrough(String domain) {
+        return estimates.stream()
+                .filter(estimate -> estimate.getSource() == Source.ROLLUP && estimate.getCountedThrough() != null)
+                .filter(estimate -> domain == null || estimate.getDomain() == null || estimate.getDomain().equals(domain))
+                .map(Estimate::getCountedThrough)
+                .min(Comparator.naturalOrder());
+    }
+
+    public synchronized long getChargedBytes() {
+        return chargedBytes;
+    }
+
+    /**
+     * @return a copy of the estimates, in the order they were charged
+     */
+    public synchronized List<Estimate> getEstimates() {
+        return new ArrayList<>(estimates);
+    }
+
+    /**
+     * Print the estimated and the scanned bytes for each query label. The scanned bytes are the Athena statistics
+     * recorded in the query measurements (see QueryMetrics), so they are only known if the statistics were read.
+     * For example:
+     * <pre>
+     * Query                Source                    Estimated    Scanned
+     * buildPathTree        log table                   48.2 MB     3.1 MB
+     * getReferrers         rollup only                  1.2 MB   640.0 KB
+     * </pre>
+     *
+     * @param queries the query measurements for the run (see QueryMetrics.getQueries)
+     */
+    public void printSummary(PrintStream out, List<QueryStats> queries) {
+        Map<String, Long> estimatedBytes = new LinkedHashMap<>();
+        Map<String, Set<Source>> sources = new HashMap<>();
+        for (Estimate estimate : getEstimates()) {
+            estimatedBytes.merge(estimate.getLabel(), estimate.getBytes(), Long::sum);
+            sources.computeIfAbsent(estimate.getLabel(), l -> new TreeSet<>()).add(estimate.getSource());
+        }
+        Map<String, Long> scannedBytes = new HashMap<>();
+        for (QueryStats stats : queries) {
+            if (stats.getBytesScanned() != QueryStats.UNKNOWN) {
+                scannedBytes.merge(stats.getLabel(), stats.getBytesScanned(), Long::sum);
+            }
+        }
+        final String format = "%-" + MAX_LABEL_LENGTH + "s %-24s %10s %10s%n";
+        out.format(format, "Query", "Source", "Estimated", "Scanned");
+        long totalScanned = QueryStats.UNKNOWN;
+        for (Map.Entry<String, Long> entry : estimatedBytes.entrySet()) {
+            String label = entry.getKey();
+            long scanned = scannedBytes.getOrDefault(label, QueryStats.UNKNOWN);
+            if (scanned != QueryStats.UNKNOWN) {
+                totalScanned = Math.max(0, totalScanned) + scanned;
+            }
+            StringJoiner sourceNames = new StringJoiner(", ");
+            sources.get(label).forEach(source -> sourceNames.add(source.toString()));
+            out.format(format, (label.length() > MAX_LABEL_LENGTH) ? label.substring(0, MAX_LABEL_LENGTH) : label,
+                    sourceNames, QueryMetrics.formatBytes(entry.getValue()), QueryMetrics.formatBytes(scanned));
+        }
+        out.format(format, "Total", (budgetBytes == NO_BUDGET) ? "" : "budget " + QueryMetrics.formatBytes(budgetBytes),
+                QueryMetrics.formatBytes(getChargedBytes()), QueryMetrics.formatBytes(totalScanned));
+    }
+
+    /**
+     * Parse a byte count with an optional K, M, G or T (binary) suffix, for example 500M or 20G.
+     *
+     * @throws IllegalArgumentException if the value can not be parsed
+     */
+    public static long parseBytes(String value) {
+        String trimmed = value.trim().toUpperCase(Locale.ROOT);
+        if (trimmed.endsWith("B")) {
+            trimmed = trimmed.substring(0, trimmed.length() - 1);
+        }
+        int shift = 0;
+        if (!trimmed.isEmpty()) {
+            switch (trimmed.charAt(trimmed.length() - 1)) {
+                case 'K': shift = 10; break;
+                case 'M': shift = 20; break;
+                case 'G': shift = 30; break;
+                case 'T': shift = 40; break;
+                default: break;
+            }
+        }
+        if (shift > 0) {
+            trimmed = trimmed.substring(0, trimmed.length() - 1);
+        }
+        try {
+            return Long.parseLong(trimmed.trim()) << shift;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Could not parse the byte count " + value, e);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.topstonesoftware.athenalogs;
+
+/**
+ * <p>
+ * A dictionary of the directory names in a path tree. Names like images, software or docs occur under many
+ * directories, so the nodes for them can share one String. The dictionary is passed to DirTreeNode.addPath (or
+ * addPathCount) while a tree is built, and it is not referenced by the nodes, so it can be dropped when the tree
+ * is built.
+ * </p>
+ * <p>
+ *     The names are kept in an open addressing hash table of Strings, so an entry costs one or two array slots
+ *     rather than a HashMap entry object. A name is looked up by comparing the characters of a region of the path
+ *     in place, so a name that is already in the dictionary does not allocate a String.
+ * </p>
+ */
+public class SegmentDictionary {
+    private static final int INITIAL_CAPACITY = 64;
+    private String[] table = new String[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /**
+     * @return the hash code of a region of a string. This is the same as the hash code of the substring.
+     */
+    static int regionHash(String str, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + str.charAt(i);
+        }
+        return hash;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static void insert(String[] index, String name) {
+        int mask = index.length - 1;
+        int slot = spread(name.hashCode()) & mask;
+        while (index[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = name;
+    }
+
+    /**
+     * @return the dictionary copy of the name str[start, end). If the name is not in the dictionary the substring
+     * is added.
+     */
+    public String intern(String str, int start, int end) {
+        int hash = regionHash(str, start, end);
+        int length = end - start;
+        int mask = table.length - 1;
+        int slot = spread(hash) & mask;
+        for (String name = table[slot]; name != null; name = table[slot]) {
+            if (name.hashCode() == hash && name.length() == length && name.regionMatches(0, str, start, length)) {
+                return name;
+            }
+            slot = (slot + 1) & mask;
+        }
+        String name = str.substring(start, end);
+        table[slot] = name;
+        size++;
+        if (size * 2 > table.length) {
+            // Grow the table so that the load factor is at most 1/2
+            String[] index = new String[table.length << 1];
+            for (String entry : table) {
+                if (entry != null) {
+                    insert(index, entry);
+                }
+            }
+            table = index;
+        }
+        return name;
+    }
+
+    /**
+     * @return the dictionary copy of the name
+     */
+    public String intern(String name) {
+        return intern(name, 0, name.length());
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,62 @@
+package com.topstonesoftware.athenalogs;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * <p>
+ * Merge identical requests that are in flight at the same time. The first caller for a key runs the request and
+ * the callers that arrive for the same key before it finishes wait for its result, rather than running the same
+ * Athena query again. Once the request is done the key is removed, so a later call runs the request again (a
+ * result cache can be used to keep the result).
+ * </p>
+ * <p>
+ *     If the request throws an exception, every caller that waited for it gets the exception.
+ * </p>
+ *
+ * @param <K> the request key type
+ * @param <V> the result type
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Run a request, or wait for the identical request that is already running.
+     *
+     * @param key the request key
+     * @param request the request
+     * @return the request result
+     */
+    public V run(K key, Supplier<V> request) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                throw (cause instanceof RuntimeException) ? (RuntimeException) cause : e;
+            }
+        }
+        try {
+            V result = request.get();
+            future.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * @return the number of requests in flight
+     */
+    public int size() {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,209 @@
+package com.topstonesoftware.athenalogs;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Find the heavy hitters (the items with the largest counts) in a stream of weighted items with the Space-Saving
+ * algorithm (A. Metwally, D. Agrawal and A. El Abbadi, "Efficient Computation of Frequent and Top-k Elements in
+ * Data Streams", 2005). At most capacity items are kept, no matter how many distinct items are in the stream.
+ * </p>
+ * <p>
+ *     When an item that is not kept arrives and the summary is full, the item with the smallest count is replaced.
+ *     The new item takes over the smallest count, as its error, and adds its own weight. So an item's count is an
+ *     upper bound on its true count and count - error is a lower bound. With a stream total of N:
+ * </p>
+ * <ul>
+ *     <li>The error of any item is at most N / capacity (and at most the smallest count in the summary).</li>
+ *     <li>Every item with a true count greater than N / capacity is in the summary.</li>
+ * </ul>
+ * <p>
+ *     The items are kept in a binary min-heap on the count, with a map from the item to its heap entry, so an add
+ *     takes O(log capacity) time.
+ * </p>
+ *
+ * @param <T> the item type, which must have equals and hashCode
+ */
+public class SpaceSaving<T> {
+    private final int capacity;
+    private final Map<T, Entry<T>> entries;
+    private final List<Entry<T>> heap;
+    /** The sum of the weights of all of the items added */
+    @Getter
+    private long totalCount = 0;
+
+    /**
+     * An item in the summary. The item's true count is in [count - error, count].
+     */
+    @Getter
+    public static class HeavyHitter<T> {
+        private final T item;
+        private final long count;
+        private final long error;
+
+        public HeavyHitter(T item, long count, long error) {
+            this.item = item;
+            this.count = count;
+            this.error = error;
+        }
+
+        /**
+         * @return the guaranteed minimum of the item's true count
+         */
+        public long getLowerBound() {
+            return count - error;
+        }
+    }
+
+    private static class Entry<T> {
+        private final T item;
+        private long count;
+        private long error;
+        private int heapIndex;
+
+        Entry(T item, long count, long error) {
+            this.item = item;
+            this.count = count;
+            this.error = error;
+        }
+    }
+
+    /**
+     * @param capacity the maximum number of items that are kept
+     */
+    public SpaceSaving(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity = " + capacity);
+        }
+        this.capacity = capacity;
+        this.entries = new HashMap<>();
+        this.heap = new ArrayList<>();
+    }
+
+    /**
+     * Add an item to the summary.
+     *
+     * @param item the item
+     * @param weight the item's count in this part of the stream (for example, a row count from a grouped query)
+     */
+    public void add(T item, long weight) {
+        if (weight <= 0) {
+            return;
+        }
+        totalCount += weight;
+        Entry<T> entry = entries.get(item);
+        if (entry != null) {
+            entry.count += weight;
+            siftDown(entry.heapIndex);
+        } else if (heap.size() < capacity) {
+            entry = new Entry<>(item, weight, 0);
+            entries.put(item, entry);
+            entry.heapIndex = heap.size();
+            heap.add(entry);
+            siftUp(entry.heapIndex);
+        } else {
+            Entry<T> min = heap.get(0);
+            entries.remove(min.item);
+            entry = new Entry<>(item, min.count + weight, min.count);
+            entry.heapIndex = 0;
+            heap.set(0, entry);
+            entries.put(item, entry);
+            siftDown(0);
+        }
+    }
+
+    public void add(T item) {
+        add(item, 1);
+    }
+
+    /**
+     * @return the largest possible error of a count in the summary. This is zero until the summary is full.
+     */
+    public long getMaxError() {
+        return (heap.size() < capacity) ? 0 : heap.get(0).count;
+    }
+
+    /**
+     * @return the number of items in the summary
+     */
+    public int size() {
+        return heap.size();
+    }
+
+    /**
+     * @param k the number of items
+     * @return the k items with the largest counts, in descending count order
+     */
+    public List<HeavyHitter<T>> getTop(int k) {
+        List<Entry<T>> sorted = new ArrayList<>(heap);
+        sorted.sort(Comparator.comparingLong((Entry<T> entry) -> entry.count).reversed());
+        List<HeavyHitter<T>> top = new ArrayList<>();
+        for (int i = 0; i < Math.min(k, sorted.size()); i++) {
+            Entry<T> entry = sorted.get(i);
+            top.add(new HeavyHitter<>(entry.item, entry.count, entry.error));
+        }
+        return top;
+    }
+
+    /**
+     * The count for the items that are not in the top k. Since the top k counts are upper bounds, this is a lower
+     * bound on the true count of the other items.
+     *
+     * @param k the number of items in the top k
+     */
+    public long getOtherCount(int k) {
+        long topCount = 0;
+        for (HeavyHitter<T> hitter : getTop(k)) {
+            topCount += hitter.getCount();
+        }
+        return Math.max(0, totalCount - topCount);
+    }
+
+    private void swap(int i, int j) {
+        Entry<T> entryI = heap.get(i);
+        Entry<T> entryJ = heap.get(j);
+        heap.set(i, entryJ);
+        heap.set(j, entryI);
+        entryJ.heapIndex = i;
+        entryI.heapIndex = j;
+    }
+
+    private void siftUp(int index) {
+        int i = index;
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (heap.get(parent).count <= heap.get(i).count) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        int i = index;
+        int size = heap.size();
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < size && heap.get(left).count < heap.get(smallest).count) {
+                smallest = left;
+            }
+            if (right < size && heap.get(right).count < heap.get(smallest).count) {
+                smallest = right;
+            }
+            if (smallest == i) {
+                break;
+            }
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+}
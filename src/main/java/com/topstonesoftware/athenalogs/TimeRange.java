@@ -0,0 +1,128 @@
+package com.topstonesoftware.athenalogs;
+
+import lombok.Getter;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * <p>
+ * A range of request times, [start, end), for the facet queries (see LogDataFacets.setTimeRange). The times are
+ * compared with the request_date column, which holds the UTC time of the request.
+ * </p>
+ * <p>
+ *     The range is written into the queries as literal values, so that Athena can prune the partitions (and the
+ *     ORC stripes) outside of the range. For a table that is partitioned by date (see
+ *     LogDDL.getDatePartitionedLogTableDDL) the range is also written as a predicate on the dt partition column:
+ * </p>
+ * <pre>
+ *     request_date >= timestamp '2021-07-01 00:00:00' and request_date &lt; timestamp '2021-07-08 00:00:00'
+ *     and dt >= '2021-07-01' and dt &lt;= '2021-07-07'
+ * </pre>
+ */
+@Getter
+public class TimeRange {
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    /** The first request time in the range */
+    private final LocalDateTime start;
+    /** The end of the range. Requests at this time are not in the range. */
+    private final LocalDateTime end;
+
+    public TimeRange(LocalDateTime start, LocalDateTime end) {
+        if (!start.isBefore(end)) {
+            throw new IllegalArgumentException("The time range start " + start + " is not before the end " + end);
+        }
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * @return the range of whole days from firstDay to lastDay, inclusive
+     */
+    public static TimeRange ofDays(LocalDate firstDay, LocalDate lastDay) {
+        return new TimeRange(firstDay.atStartOfDay(), lastDay.plusDays(1).atStartOfDay());
+    }
+
+    /**
+     * @param days the number of days
+     * @return the range of the last days, including the current (UTC) day
+     */
+    public static TimeRange lastDays(int days) {
+        LocalDate today = LocalDate.now(ZoneOffset.UTC);
+        return ofDays(today.minusDays(days - 1L), today);
+    }
+
+    /**
+     * Parse a time range. Each time is a date (2021-07-01) or a date and time (2021-07-01T12:00). A date as
+     * the end of the range includes the whole day.
+     *
+     * @param start the start of the range
+     * @param end the end of the range
+     * @return the time range
+     * @throws IllegalArgumentException if a time can not be parsed or the start is not before the end
+     */
+    public static TimeRange parse(String start, String end) {
+        try {
+            LocalDateTime startTime = start.contains("T") ? LocalDateTime.parse(start) : LocalDate.parse(start).atStartOfDay();
+            LocalDateTime endTime = end.contains("T") ? LocalDateTime.parse(end) : LocalDate.parse(end).plusDays(1).atStartOfDay();
+            return new TimeRange(startTime, endTime);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Could not parse the time range " + start + " to " + end, e);
+        }
+    }
+
+    /**
+     * @return true if the range starts and ends at midnight, so it can be read from a daily rollup
+     */
+    public boolean isWholeDays() {
+        return start.toLocalTime().equals(LocalTime.MIDNIGHT) && end.toLocalTime().equals(LocalTime.MIDNIGHT);
+    }
+
+    /**
+     * @return the day of the start of the range
+     */
+    public LocalDate getFirstDay() {
+        return start.toLocalDate();
+    }
+
+    /**
+     * @return the last day with a request time in the range
+     */
+    public LocalDate getLastDay() {
+        return end.minusNanos(1).toLocalDate();
+    }
+
+    /**
+     * @return the predicate on the request_date column
+     */
+    public String requestDatePredicate() {
+        return "request_date >= timestamp '" + start.format(TIMESTAMP_FORMAT) + "' and request_date < timestamp '" +
+               end.format(TIMESTAMP_FORMAT) + "'";
+    }
+
+    /**
+     * @param dayColumn a yyyy-MM-dd string column, such as the dt partition column or a rollup day column
+     * @return the predicate that selects the days of the range
+     */
+    public String dayPredicate(String dayColumn) {
+        return dayColumn + " >= '" + getFirstDay() + "' and " + dayColumn + " <= '" + getLastDay() + "'";
+    }
+
+    /**
+     * @param datePartitioned true if the log table is partitioned by date
+     * @return the predicate that selects the log rows in the range
+     */
+    public String logPredicate(boolean datePartitioned) {
+        return datePartitioned ? requestDatePredicate() + " and " + dayPredicate(LogDDL.DATE_PARTITION_COLUMN)
+                               : requestDatePredicate();
+    }
+
+    @Override
+    public String toString() {
+        return "[" + start + ", " + end + ")";
+    }
+}
@@ -0,0 +1,55 @@
+package com.topstonesoftware.athenalogs;
+
+import lombok.Getter;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+/**
+ * One point of a traffic series (see LogDataFacets.getTrafficSeries): the number of requests in an hour or a day
+ * and the approximate request time percentiles for the requests.
+ */
+@Getter
+public class TrafficPoint {
+    /** The start of the hour or day */
+    private final LocalDateTime bucketStart;
+    private final long requests;
+    /** (percentile, request time in milliseconds) pairs, for example (0.9, 38). Empty if there are no requests. */
+    private final List<Pair<Double, Long>> latencyPercentiles;
+
+    /**
+     * The time bucket of a traffic series
+     */
+    public enum Interval {
+        HOUR(ChronoUnit.HOURS), DAY(ChronoUnit.DAYS);
+
+        @Getter
+        private final ChronoUnit unit;
+
+        Interval(ChronoUnit unit) {
+            this.unit = unit;
+        }
+
+        /**
+         * @return the date_trunc unit for the interval
+         */
+        public String getSqlUnit() {
+            return name().toLowerCase();
+        }
+
+        /**
+         * @return the start of the bucket that holds a time
+         */
+        public LocalDateTime truncate(LocalDateTime time) {
+            return time.truncatedTo(unit);
+        }
+    }
+
+    public TrafficPoint(LocalDateTime bucketStart, long requests, List<Pair<Double, Long>> latencyPercentiles) {
+        this.bucketStart = bucketStart;
+        this.requests = requests;
+        this.latencyPercentiles = latencyPercentiles;
+    }
+}
@@ -0,0 +1,245 @@
+package com.topstonesoftware.athenalogs;
+
+import lombok.Builder;
+import lombok.Getter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * <p>
+ * Render a page path tree (see DirTreeNode) as text or in a machine readable format:
+ * </p>
+ * <ul>
+ *     <li>TEXT: an indented line for each node with the directory name and reference count.</li>
+ *     <li>JSON: one nested document, {"name":"/","count":1200,"children":[{"name":"software",...}]}</li>
+ *     <li>NDJSON: a JSON object for each node, one per line: {"path":"/software/java","depth":2,"count":310}</li>
+ *     <li>CSV: a path,depth,count header line and a line for each node.</li>
+ * </ul>
+ * <p>
+ *     The tree can be pruned: maxDepth limits the depth of the nodes that are rendered (the root is at depth 0),
+ *     minCount drops the nodes with a smaller reference count and topChildren keeps only the children of each node
+ *     with the largest counts. Since a node's count is the sum of the counts under it, a pruned node's sub-tree is
+ *     skipped without being visited.
+ * </p>
+ * <p>
+ *     The tree is walked with an explicit stack, so the depth of the tree is not limited by the thread stack size,
+ *     and the output goes through one buffered writer.
+ * </p>
+ */
+@Builder
+public class TreeRenderer {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int INDENT = 4;
+    private static final DirTreeNode[] NO_CHILDREN = new DirTreeNode[0];
+    private static final Comparator<DirTreeNode> BY_COUNT_DESCENDING =
+            Comparator.comparingLong(DirTreeNode::getPageRefCnt).reversed();
+
+    public enum Format {
+        TEXT("txt"), JSON("json"), NDJSON("ndjson"), CSV("csv");
+
+        /** The file name extension for the format */
+        @Getter
+        private final String fileExtension;
+
+        Format(String fileExtension) {
+            this.fileExtension = fileExtension;
+        }
+    }
+
+    @Getter
+    @Builder.Default
+    private final Format format = Format.TEXT;
+    /** The maximum depth of a rendered node. The root is at depth 0. */
+    @Builder.Default
+    private final int maxDepth = Integer.MAX_VALUE;
+    /** The minimum reference count of a rendered node */
+    @Builder.Default
+    private final long minCount = 0;
+    /** The maximum number of children rendered for each node, or 0 for all of the children */
+    @Builder.Default
+    private final int topChildren = 0;
+
+    private static class Frame {
+        private final DirTreeNode node;
+        private final DirTreeNode[] children;
+        private final int depth;
+        private final String path;
+        private int nextChild = 0;
+
+        Frame(DirTreeNode node, DirTreeNode[] children, int depth, String path) {
+            this.node = node;
+            this.children = children;
+            this.depth = depth;
+            this.path = path;
+        }
+    }
+
+    /**
+     * @return the children of a node that are rendered, in the order they are rendered
+     */
+    private DirTreeNode[] selectChildren(DirTreeNode node, int depth) {
+        int childCount = node.getChildCount();
+        if (depth >= maxDepth || childCount == 0) {
+            return NO_CHILDREN;
+        }
+        DirTreeNode[] selected = new DirTreeNode[childCount];
+        int numSelected = 0;
+        for (int i = 0; i < childCount; i++) {
+            DirTreeNode child = node.getChild(i);
+            if (child.getPageRefCnt() >= minCount) {
+                selected[numSelected++] = child;
+            }
+        }
+        if (topChildren > 0 && numSelected > topChildren) {
+            Arrays.sort(selected, 0, numSelected, BY_COUNT_DESCENDING);
+            numSelected = topChildren;
+        }
+        return (numSelected == childCount) ? selected : Arrays.copyOf(selected, numSelected);
+    }
+
+    private boolean needsPath() {
+        return format == Format.NDJSON || format == Format.CSV;
+    }
+
+    private static String childPath(String parentPath, String name) {
+        return parentPath.endsWith("/") ? parentPath + name : parentPath + "/" + name;
+    }
+
+    /**
+     * Write a string as a quoted JSON string
+     */
+    static void writeJsonString(Writer out, String str) throws IOException {
+        out.write('"');
+        for (int i = 0; i < str.length(); i++) {
+            char ch = str.charAt(i);
+            if (ch == '"' || ch == '\\') {
+                out.write('\\');
+                out.write(ch);
+            } else if (ch < 0x20) {
+                out.write(String.format("\\u%04x", (int) ch));
+            } else {
+                out.write(ch);
+            }
+        }
+        out.write('"');
+    }
+
+    private static void writeCsvString(Writer out, String str) throws IOException {
+        if (str.indexOf(',') >= 0 || str.indexOf('"') >= 0 || str.indexOf('\n') >= 0) {
+            out.write('"');
+            out.write(str.replace("\"", "\"\""));
+            out.write('"');
+        } else {
+            out.write(str);
+        }
+    }
+
+    private static void writeIndent(Writer out, int depth) throws IOException {
+        for (int i = 0; i < INDENT + INDENT * depth; i++) {
+            out.write(' ');
+        }
+    }
+
+    /**
+     * Write the start of a node. For JSON the node is closed by endNode, after its children.
+     */
+    private void startNode(Writer out, Frame frame) throws IOException {
+        DirTreeNode node = frame.node;
+        switch (format) {
+            case TEXT:
+                writeIndent(out, frame.depth);
+                out.write(node.getDirName());
+                out.write(' ');
+                out.write(Long.toString(node.getPageRefCnt()));
+                out.write('\n');
+                break;
+            case JSON:
+                out.write("{\"name\":");
+                writeJsonString(out, node.getDirName());
+                out.write(",\"count\":");
+                out.write(Long.toString(node.getPageRefCnt()));
+                if (frame.children.length > 0) {
+                    out.write(",\"children\":[");
+                }
+                break;
+            case NDJSON:
+                out.write("{\"path\":");
+                writeJsonString(out, frame.path);
+                out.write(",\"depth\":");
+                out.write(Integer.toString(frame.depth));
+                out.write(",\"count\":");
+                out.write(Long.toString(node.getPageRefCnt()));
+                out.write("}\n");
+                break;
+            case CSV:
+                writeCsvString(out, frame.path);
+                out.write(',');
+                out.write(Integer.toString(frame.depth));
+                out.write(',');
+                out.write(Long.toString(node.getPageRefCnt()));
+                out.write('\n');
+                break;
+        }
+    }
+
+    private void endNode(Writer out, Frame frame) throws IOException {
+        if (format == Format.JSON) {
+            out.write(frame.children.length > 0 ? "]}" : "}");
+        }
+    }
+
+    /**
+     * Render a tree.
+     *
+     * @param root the root of the tree (or sub-tree), with the reference counts filled in
+     * @param out the output. The output is flushed, but not closed.
+     */
+    public void render(DirTreeNode root, Writer out) throws IOException {
+        Writer writer = (out instanceof BufferedWriter) ? out : new BufferedWriter(out, BUFFER_SIZE);
+        if (format == Format.CSV) {
+            writer.write("path,depth,count\n");
+        }
+        boolean withPath = needsPath();
+        List<Frame> stack = new ArrayList<>();
+        Frame rootFrame = new Frame(root, selectChildren(root, 0), 0, withPath ? root.getDirName() : null);
+        startNode(writer, rootFrame);
+        stack.add(rootFrame);
+        while (!stack.isEmpty()) {
+            Frame frame = stack.get(stack.size() - 1);
+            if (frame.nextChild < frame.children.length) {
+                DirTreeNode child = frame.children[frame.nextChild++];
+                if (format == Format.JSON && frame.nextChild > 1) {
+                    writer.write(',');
+                }
+                int depth = frame.depth + 1;
+                Frame childFrame = new Frame(child, selectChildren(child, depth), depth,
+                        withPath ? childPath(frame.path, child.getDirName()) : null);
+                startNode(writer, childFrame);
+                stack.add(childFrame);
+            } else {
+                endNode(writer, frame);
+                stack.remove(stack.size() - 1);
+            }
+        }
+        if (format == Format.JSON) {
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    /**
+     * Render a tree to a PrintStream (e.g., System.out). The stream is flushed, but not closed.
+     */
+    public void render(DirTreeNode root, PrintStream out) {
+        try {
+            render(root, new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
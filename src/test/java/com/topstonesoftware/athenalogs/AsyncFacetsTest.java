@@ -0,0 +1,150 @@
+package com.topstonesoftware.athenalogs;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compare the AsyncFacets tree and referrers with the LogDataFacets JDBC facets. The asynchronous queries run
+ * through LocalQueryExecutor: each query is run on the in-memory H2 database (see TestLogData) and its result is
+ * written to a CSV file in the Athena result format, which is read with LocalObjectStore in small chunks.
+ */
+public class AsyncFacetsTest {
+    private static final long SEED = 29;
+    private static final int NUM_ROWS = 3000;
+    private static final long CHUNK_SIZE = 512;
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+    private Connection conn;
+    private ExecutorService pool;
+    private LogDataFacets sqlFacets;
+
+    @Before
+    public void setUp() throws Exception {
+        conn = TestLogData.openH2("async_facets");
+        TestLogData.loadTable(conn, TestLogData.generate(SEED, NUM_ROWS));
+        pool = Executors.newFixedThreadPool(4);
+        sqlFacets = new LogDataFacets(conn, TestLogData.DATABASE, TestLogData.TABLE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.shutdownNow();
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("drop schema " + TestLogData.DATABASE + " cascade");
+        }
+        conn.close();
+    }
+
+    private static String quote(String value) {
+        return (value == null) ? "" : "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * Run a query on H2 and write its result as Athena does: a header line, every field quoted and a null as an
+     * empty field.
+     */
+    private Path runQuery(String sql) {
+        try (Statement stmt = conn.createStatement(); ResultSet rslt = stmt.executeQuery(sql)) {
+            Path resultFile = tempDir.newFile().toPath();
+            try (BufferedWriter out = Files.newBufferedWriter(resultFile, StandardCharsets.UTF_8)) {
+                ResultSetMetaData metaData = rslt.getMetaData();
+                int columns = metaData.getColumnCount();
+                for (int i = 1; i <= columns; i++) {
+                    out.write(((i > 1) ? "," : "") + quote(metaData.getColumnLabel(i).toLowerCase()));
+                }
+                out.write('\n');
+                while (rslt.next()) {
+                    for (int i = 1; i <= columns; i++) {
+                        out.write(((i > 1) ? "," : "") + quote(rslt.getString(i)));
+                    }
+                    out.write('\n');
+                }
+            }
+            return resultFile;
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private AsyncFacets asyncFacets() {
+        return new AsyncFacets(sqlFacets, new LocalQueryExecutor(this::runQuery, pool),
+                               new CsvResultReader(new LocalObjectStore(), pool, CHUNK_SIZE));
+    }
+
+    @Test
+    public void testPathTreeMatchesJdbc() {
+        DirTreeNode asyncTree = asyncFacets().buildPathTree(TestLogData.DOMAIN).join();
+        assertTrue(asyncTree.getChildren().size() > 0);
+        assertEquals(TestLogData.flatten(sqlFacets.buildPathTree(TestLogData.DOMAIN)), TestLogData.flatten(asyncTree));
+    }
+
+    @Test
+    public void testReferrersMatchJdbc() {
+        for (String domain : List.of(TestLogData.DOMAIN, TestLogData.OTHER_DOMAIN)) {
+            List<Pair<String, Integer>> referrers = asyncFacets().getReferrers(domain).join();
+            assertFalse(referrers.isEmpty());
+            assertEquals(TestLogData.toMap(sqlFacets.getReferrers(domain)), TestLogData.toMap(referrers));
+            for (int i = 1; i < referrers.size(); i++) {
+                assertTrue(referrers.get(i - 1).getRight() >= referrers.get(i).getRight());
+            }
+        }
+    }
+
+    /**
+     * A query that is throttled when it is started is started again by the query scheduler
+     */
+    @Test
+    public void testThrottledQueryIsRetried() {
+        QueryExecutor local = new LocalQueryExecutor(this::runQuery, pool);
+        AtomicInteger starts = new AtomicInteger();
+        QueryExecutor throttling = sql -> (starts.getAndIncrement() == 0)
+                ? CompletableFuture.failedFuture(new SQLException("submit: Rate exceeded (Service: AmazonAthena; Status Code: 400; Error Code: ThrottlingException)"))
+                : local.submit(sql);
+        QueryScheduler scheduler = QueryScheduler.builder().baseBackoffMillis(1).build();
+        AsyncFacets scheduled = new AsyncFacets(sqlFacets, throttling, new CsvResultReader(new LocalObjectStore(), pool, CHUNK_SIZE));
+        scheduled.setScheduler(scheduler, "primary", QueryScheduler.Priority.INTERACTIVE);
+        DirTreeNode asyncTree = scheduled.buildPathTree(TestLogData.DOMAIN).join();
+        assertEquals(TestLogData.flatten(sqlFacets.buildPathTree(TestLogData.DOMAIN)), TestLogData.flatten(asyncTree));
+        assertEquals(2, starts.get());
+        assertEquals(1, scheduler.getRetryCount());
+        assertEquals(0, scheduler.getRunningQueries());
+    }
+
+    /**
+     * A query without a result fails the future with a FacetQueryException, rather than returning an empty tree
+     */
+    @Test
+    public void testFailedQuery() {
+        AsyncFacets failing = new AsyncFacets(sqlFacets, new LocalQueryExecutor(sql -> null, pool),
+                                              new CsvResultReader(new LocalObjectStore(), pool, CHUNK_SIZE));
+        try {
+            failing.buildPathTree(TestLogData.DOMAIN).join();
+            fail("The tree should not be built without a query result");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof FacetQueryException);
+            assertEquals("buildPathTree", ((FacetQueryException) e.getCause()).getFacet());
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.topstonesoftware.athenalogs;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the CatalogCache fingerprints, expiry and invalidation, with the cache saved to a temporary file and
+ * read back, as it is between runs of the program.
+ */
+public class CatalogCacheTest {
+    private static final String ORC_PATH = "ianlkaplan-logs.orc/user/iank/http_logs";
+    private static final long TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+    private Path cacheFile;
+    private String tableDDL;
+    private String partitionsDDL;
+
+    @Before
+    public void setUp() {
+        cacheFile = tempDir.getRoot().toPath().resolve("catalog.properties");
+        tableDDL = LogDDL.getPartitionedLogTableDDL(TestLogData.DATABASE, TestLogData.TABLE, ORC_PATH);
+        partitionsDDL = LogDDL.getAddPartitionsDDL(TestLogData.DATABASE, TestLogData.TABLE, ORC_PATH,
+                List.of(TestLogData.DOMAIN));
+    }
+
+    private CatalogCache savedCache() {
+        CatalogCache cache = new CatalogCache(cacheFile, TTL_MILLIS);
+        cache.putDatabase(TestLogData.DATABASE);
+        cache.putTable(TestLogData.DATABASE, TestLogData.TABLE, tableDDL);
+        cache.putPartitions(TestLogData.DATABASE, TestLogData.TABLE, partitionsDDL);
+        cache.save();
+        return cache;
+    }
+
+    /**
+     * Move the creation time of every entry in the cache file back by ageMillis
+     */
+    private void ageEntries(long ageMillis) throws Exception {
+        Properties entries = new Properties();
+        try (InputStream in = Files.newInputStream(cacheFile)) {
+            entries.load(in);
+        }
+        for (Map.Entry<Object, Object> entry : entries.entrySet()) {
+            String value = (String) entry.getValue();
+            int comma = value.lastIndexOf(',');
+            long createdMillis = Long.parseLong(value.substring(comma + 1));
+            entry.setValue(value.substring(0, comma + 1) + (createdMillis - ageMillis));
+        }
+        try (OutputStream out = Files.newOutputStream(cacheFile)) {
+            entries.store(out, null);
+        }
+    }
+
+    @Test
+    public void testFingerprintMatch() {
+        savedCache();
+        CatalogCache cache = new CatalogCache(cacheFile, TTL_MILLIS);
+        assertTrue(cache.hasDatabase(TestLogData.DATABASE));
+        assertTrue(cache.isTableCurrent(TestLogData.DATABASE, TestLogData.TABLE, tableDDL));
+        // The fingerprint ignores the white space layout of the DDL
+        assertTrue(cache.isTableCurrent(TestLogData.DATABASE, TestLogData.TABLE, "  " + tableDDL.replace("\n", "\n    ")));
+        assertTrue(cache.isPartitionsCurrent(TestLogData.DATABASE, TestLogData.TABLE, partitionsDDL));
+        assertFalse(cache.hasDatabase("otherdb"));
+    }
+
+    /**
+     * A new domain partition changes the DDL, so the partitions are added again
+     */
+    @Test
+    public void testChangedDDLIsNotCurrent() {
+        savedCache();
+        CatalogCache cache = new CatalogCache(cacheFile, TTL_MILLIS);
+        String newPartitionsDDL = LogDDL.getAddPartitionsDDL(TestLogData.DATABASE, TestLogData.TABLE, ORC_PATH,
+                List.of(TestLogData.DOMAIN, TestLogData.OTHER_DOMAIN));
+        assertFalse(cache.isPartitionsCurrent(TestLogData.DATABASE, TestLogData.TABLE, newPartitionsDDL));
+        String datedTableDDL = LogDDL.getDatePartitionedLogTableDDL(TestLogData.DATABASE, TestLogData.TABLE, ORC_PATH);
+        assertFalse(cache.isTableCurrent(TestLogData.DATABASE, TestLogData.TABLE, datedTableDDL));
+        assertFalse(cache.isTableCurrent(TestLogData.DATABASE, "otherlogs", tableDDL));
+    }
+
+    @Test
+    public void testEntriesExpire() throws Exception {
+        savedCache();
+        ageEntries(TimeUnit.HOURS.toMillis(2));
+        CatalogCache expired = new CatalogCache(cacheFile, TTL_MILLIS);
+        assertFalse(expired.hasDatabase(TestLogData.DATABASE));
+        assertFalse(expired.isTableCurrent(TestLogData.DATABASE, TestLogData.TABLE, tableDDL));
+        assertFalse(expired.isPartitionsCurrent(TestLogData.DATABASE, TestLogData.TABLE, partitionsDDL));
+        // The same entries are current with a longer time-to-live
+        CatalogCache longerTtl = new CatalogCache(cacheFile, TimeUnit.HOURS.toMillis(3));
+        assertTrue(longerTtl.isTableCurrent(TestLogData.DATABASE, TestLogData.TABLE, tableDDL));
+        assertFalse(CatalogCache.empty().hasDatabase(TestLogData.DATABASE));
+    }
+
+    @Test
+    public void testInvalidateTable() {
+        CatalogCache cache = savedCache();
+        cache.invalidateTable(TestLogData.DATABASE, TestLogData.TABLE);
+        assertFalse(cache.isTableCurrent(TestLogData.DATABASE, TestLogData.TABLE, tableDDL));
+        assertFalse(cache.isPartitionsCurrent(TestLogData.DATABASE, TestLogData.TABLE, partitionsDDL));
+        assertTrue(cache.hasDatabase(TestLogData.DATABASE));
+        // The invalidation is saved, so the next run builds the table again
+        cache.save();
+        CatalogCache reloaded = new CatalogCache(cacheFile, TTL_MILLIS);
+        assertFalse(reloaded.isTableCurrent(TestLogData.DATABASE, TestLogData.TABLE, tableDDL));
+        assertTrue(reloaded.hasDatabase(TestLogData.DATABASE));
+    }
+
+    /**
+     * A cache file that can not be parsed is treated as an empty cache
+     */
+    @Test
+    public void testCorruptFileIsEmpty() throws Exception {
+        Files.write(cacheFile, "table.orclogdb.httplogs=abc,not-a-time\n\\u00zz".getBytes(StandardCharsets.UTF_8));
+        CatalogCache cache = new CatalogCache(cacheFile, TTL_MILLIS);
+        assertFalse(cache.isTableCurrent(TestLogData.DATABASE, TestLogData.TABLE, tableDDL));
+    }
+}
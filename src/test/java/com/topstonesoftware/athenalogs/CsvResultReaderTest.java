@@ -0,0 +1,145 @@
+package com.topstonesoftware.athenalogs;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Read CSV files in the Athena result format with LocalObjectStore, with chunk sizes that put the chunk
+ * boundaries at and inside of the lines.
+ */
+public class CsvResultReaderTest {
+    private static final String HEADER = "\"path\",\"count\"\n";
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+    private ExecutorService readPool;
+
+    @Before
+    public void setUp() {
+        readPool = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        readPool.shutdownNow();
+    }
+
+    /**
+     * Collect the rows in file order, as a list of lines with the fields joined by "|" (a null field is "null")
+     */
+    private static Collector<String[], List<String>, List<String>> rowCollector() {
+        return Collector.of(ArrayList::new,
+                (rows, row) -> rows.add(Arrays.stream(row).map(String::valueOf).collect(Collectors.joining("|"))),
+                (rows, other) -> {
+                    rows.addAll(other);
+                    return rows;
+                });
+    }
+
+    private List<String> read(String content, long chunkSize) throws Exception {
+        File file = tempDir.newFile();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        CsvResultReader reader = new CsvResultReader(new LocalObjectStore(), readPool, chunkSize);
+        return reader.read(file.toURI().toString(), rowCollector()).join();
+    }
+
+    /**
+     * Every chunk size, from one byte to the file size, reads the same rows
+     */
+    private void assertRowsForEveryChunkSize(String content, List<String> expected) throws Exception {
+        int fileSize = content.getBytes(StandardCharsets.UTF_8).length;
+        for (int chunkSize = 1; chunkSize <= fileSize + 1; chunkSize++) {
+            assertEquals("chunk size " + chunkSize, expected, read(content, chunkSize));
+        }
+    }
+
+    @Test
+    public void testLinesEndOnChunkBoundaries() throws Exception {
+        // The header and each row are 16 bytes, so a chunk of 16 bytes ends exactly after each newline
+        String content = "\"path\",\"counts\"\n" + "\"a.html\",\"1111\"\n" + "\"b.html\",\"2222\"\n" + "\"c.html\",\"3333\"\n";
+        List<String> expected = List.of("a.html|1111", "b.html|2222", "c.html|3333");
+        assertEquals(expected, read(content, 16));
+        assertEquals(expected, read(content, 32));
+        assertRowsForEveryChunkSize(content, expected);
+    }
+
+    @Test
+    public void testLastLineWithoutNewline() throws Exception {
+        assertRowsForEveryChunkSize(HEADER + "\"a.html\",\"1\"\n\"b.html\",\"2\"", List.of("a.html|1", "b.html|2"));
+    }
+
+    @Test
+    public void testHeaderOnly() throws Exception {
+        assertRowsForEveryChunkSize(HEADER, List.of());
+        assertRowsForEveryChunkSize("\"path\",\"count\"", List.of());
+        assertEquals(List.of(), read("", CsvResultReader.DEFAULT_CHUNK_SIZE));
+    }
+
+    @Test
+    public void testQuotedCommasAndQuotes() throws Exception {
+        String content = HEADER +
+                "\"software/a,b.html\",\"1\"\n" +
+                "\"say \"\"hello\"\"\",\"2\"\n" +
+                "\"\"\"\",\"3\"\n" +
+                "\"a,\"\"b\"\",c\",\"4\"\r\n";
+        assertRowsForEveryChunkSize(content, List.of("software/a,b.html|1", "say \"hello\"|2", "\"|3", "a,\"b\",c|4"));
+    }
+
+    @Test
+    public void testNullFields() throws Exception {
+        String content = "\"a\",\"b\",\"c\"\n" +
+                "\"x\",,\"z\"\n" +
+                ",\"y\",\n" +
+                "\"\",,\n";
+        assertRowsForEveryChunkSize(content, List.of("x|null|z", "null|y|null", "|null|null"));
+    }
+
+    @Test
+    public void testLineLongerThanChunk() throws Exception {
+        String longPath = "p".repeat(10_000);
+        String content = HEADER + "\"" + longPath + "\",\"1\"\n\"b.html\",\"2\"\n";
+        List<String> expected = List.of(longPath + "|1", "b.html|2");
+        assertEquals(expected, read(content, 100));
+        assertEquals(expected, read(content, 4096));
+    }
+
+    /**
+     * A line that extends more than the maximum line length past the end of its chunk is an error, rather than a
+     * truncated row
+     */
+    @Test
+    public void testLineOverMaximumLengthFails() throws Exception {
+        String content = HEADER + "\"" + "p".repeat(200_000) + "\",\"1\"\n\"b.html\",\"2\"\n";
+        try {
+            read(content, 1024);
+            fail("The read should fail for a line over the maximum line length");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof UncheckedIOException);
+        }
+    }
+
+    @Test
+    public void testParseCsvLine() {
+        assertArrayEquals(new String[]{ "a", null, "c" }, CsvResultReader.parseCsvLine("\"a\",,\"c\""));
+        assertArrayEquals(new String[]{ "a", null }, CsvResultReader.parseCsvLine("\"a\","));
+        assertArrayEquals(new String[]{ "" }, CsvResultReader.parseCsvLine("\"\""));
+        assertArrayEquals(new String[]{ "1", "x,y" }, CsvResultReader.parseCsvLine("1,\"x,y\""));
+    }
+}
@@ -0,0 +1,64 @@
+package com.topstonesoftware.athenalogs;
+
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the FacetCache disk tier size limit, which is kept from the sizes of the files that were written
+ * rather than by listing the cache directory.
+ */
+public class FacetCacheTest {
+    private static final long TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final int ENTRIES = 20;
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private static List<Pair<String, Integer>> values(int entry) {
+        List<Pair<String, Integer>> values = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            values.add(new ImmutablePair<>("/entry" + entry + "/page" + i + ".html", i));
+        }
+        return values;
+    }
+
+    private static long directoryBytes(Path dir) throws Exception {
+        long total = 0;
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                total += Files.size(file);
+            }
+        }
+        return total;
+    }
+
+    @Test
+    public void testDiskTierIsBounded() throws Exception {
+        Path cacheDir = tempDir.newFolder("cache").toPath();
+        long maxDiskBytes = 4096;
+        FacetCache cache = new FacetCache(cacheDir, TTL_MILLIS, 1, maxDiskBytes);
+        for (int i = 0; i < ENTRIES; i++) {
+            cache.put("key" + i, values(i));
+        }
+        assertTrue(cache.getDiskBytes() > 0);
+        assertTrue(cache.getDiskBytes() <= maxDiskBytes);
+        assertEquals(directoryBytes(cacheDir), cache.getDiskBytes());
+        // The newest entry is on disk and the oldest was evicted
+        FacetCache laterRun = new FacetCache(cacheDir, TTL_MILLIS, 1, maxDiskBytes);
+        assertEquals(cache.getDiskBytes(), laterRun.getDiskBytes());
+        assertEquals(values(ENTRIES - 1), laterRun.get("key" + (ENTRIES - 1)).orElseThrow());
+        assertTrue(laterRun.get("key0").isEmpty());
+        assertEquals(1, laterRun.getDiskHits());
+    }
+}
@@ -0,0 +1,76 @@
+package com.topstonesoftware.athenalogs;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the LogDataFacets result cache, with the queries run on an in-memory H2 database (see TestLogData)
+ */
+public class LogDataFacetsTest {
+    private static final long SEED = 23;
+    private static final int NUM_ROWS = 2000;
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+    private Connection conn;
+
+    @Before
+    public void setUp() throws Exception {
+        conn = TestLogData.openH2("log_data_facets");
+        TestLogData.loadTable(conn, TestLogData.generate(SEED, NUM_ROWS));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("drop schema " + TestLogData.DATABASE + " cascade");
+        }
+        conn.close();
+    }
+
+    private LogDataFacets cachedFacets(FacetCache cache) {
+        LogDataFacets facets = new LogDataFacets(conn, TestLogData.DATABASE, TestLogData.TABLE);
+        facets.setResultCache(cache, "fingerprint");
+        return facets;
+    }
+
+    /**
+     * The path tree query result is cached, so a later tree or path list is read from the cache, and the tree
+     * built from the cache is the same as the tree built from the query.
+     */
+    @Test
+    public void testPathTreeIsCached() throws Exception {
+        FacetCache cache = new FacetCache(tempDir.newFolder("cache").toPath(), TimeUnit.HOURS.toMillis(1));
+        DirTreeNode queryTree = cachedFacets(cache).buildPathTree(TestLogData.DOMAIN);
+        assertEquals(1, cache.getMisses());
+        DirTreeNode cachedTree = cachedFacets(cache).buildPathTree(TestLogData.DOMAIN);
+        assertEquals(1, cache.getMemoryHits());
+        assertEquals(TestLogData.flatten(queryTree), TestLogData.flatten(cachedTree));
+        LogDataFacets uncached = new LogDataFacets(conn, TestLogData.DATABASE, TestLogData.TABLE);
+        assertEquals(TestLogData.toMap(uncached.getPaths(TestLogData.DOMAIN)),
+                     TestLogData.toMap(cachedFacets(cache).getPaths(TestLogData.DOMAIN)));
+        assertEquals(2, cache.getMemoryHits());
+    }
+
+    /**
+     * The disk tier holds the tree query result for a new cache on the same directory (a later run)
+     */
+    @Test
+    public void testPathTreeIsCachedOnDisk() throws Exception {
+        Path cacheDir = tempDir.newFolder("disk").toPath();
+        DirTreeNode queryTree = cachedFacets(new FacetCache(cacheDir, TimeUnit.HOURS.toMillis(1))).buildPathTree(TestLogData.DOMAIN);
+        FacetCache laterRun = new FacetCache(cacheDir, TimeUnit.HOURS.toMillis(1));
+        DirTreeNode cachedTree = cachedFacets(laterRun).buildPathTree(TestLogData.DOMAIN);
+        assertEquals(1, laterRun.getDiskHits());
+        assertEquals(TestLogData.flatten(queryTree), TestLogData.flatten(cachedTree));
+    }
+}
@@ -0,0 +1,160 @@
+package com.topstonesoftware.athenalogs;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compare the OrcFileFacets facets with the LogDataFacets SQL facets over the same log rows. The SQL runs on an
+ * in-memory H2 database (see TestLogData).
+ */
+public class OrcFileFacetsTest {
+    private static final long SEED = 17;
+    private static final int NUM_ROWS = 5000;
+    private static final int NUM_FILES = 3;
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+    private Connection conn;
+    private LogDataFacets sqlFacets;
+    private OrcFileFacets orcFacets;
+    private File orcDir;
+    private List<TestLogData.LogRow> rows;
+
+    @Before
+    public void setUp() throws Exception {
+        rows = TestLogData.generate(SEED, NUM_ROWS);
+        conn = TestLogData.openH2("orc_facets");
+        TestLogData.loadTable(conn, rows);
+        sqlFacets = new LogDataFacets(conn, TestLogData.DATABASE, TestLogData.TABLE);
+        orcDir = tempDir.newFolder("orc");
+        int filesRows = NUM_ROWS / NUM_FILES;
+        for (int i = 0; i < NUM_FILES; i++) {
+            int end = (i == NUM_FILES - 1) ? NUM_ROWS : (i + 1) * filesRows;
+            TestLogData.writeOrc(new File(orcDir, "part-" + i + ".orc"), rows.subList(i * filesRows, end));
+        }
+        orcFacets = new OrcFileFacets(orcDir, 2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        conn.close();
+    }
+
+    @Test
+    public void testEndPointsMatchSql() {
+        assertEquals(sqlFacets.getEndPoints().stream().sorted().collect(Collectors.toList()), orcFacets.getEndPoints());
+    }
+
+    @Test
+    public void testPathsMatchSql() {
+        List<Pair<String, Integer>> paths = orcFacets.getPaths(TestLogData.DOMAIN);
+        assertFalse(paths.isEmpty());
+        assertEquals(TestLogData.toMap(sqlFacets.getPaths(TestLogData.DOMAIN)), TestLogData.toMap(paths));
+        for (int i = 1; i < paths.size(); i++) {
+            assertTrue(paths.get(i - 1).getRight() >= paths.get(i).getRight());
+        }
+    }
+
+    @Test
+    public void testPathTreeMatchesSql() {
+        assertEquals(TestLogData.flatten(sqlFacets.buildPathTree(TestLogData.DOMAIN)),
+                     TestLogData.flatten(orcFacets.buildPathTree(TestLogData.DOMAIN)));
+    }
+
+    @Test
+    public void testReferrersMatchSql() {
+        for (String domain : List.of(TestLogData.DOMAIN, TestLogData.OTHER_DOMAIN)) {
+            List<Pair<String, Integer>> referrers = orcFacets.getReferrers(domain);
+            assertFalse(referrers.isEmpty());
+            assertEquals(TestLogData.toMap(sqlFacets.getReferrers(domain)), TestLogData.toMap(referrers));
+        }
+    }
+
+    @Test
+    public void testDomainSubDirectory() throws Exception {
+        File partitioned = tempDir.newFolder("partitioned");
+        File domainDir = new File(partitioned, TestLogData.DOMAIN);
+        assertTrue(domainDir.mkdir());
+        for (File file : orcDir.listFiles()) {
+            Files.copy(file.toPath(), new File(domainDir, file.getName()).toPath());
+        }
+        OrcFileFacets domainFacets = new OrcFileFacets(partitioned, 2);
+        assertEquals(TestLogData.toMap(sqlFacets.getPaths(TestLogData.DOMAIN)),
+                     TestLogData.toMap(domainFacets.getPaths(TestLogData.DOMAIN)));
+    }
+
+    /**
+     * A range that starts and ends inside of a day is applied to the rows, as the request_date predicate is
+     */
+    @Test
+    public void testTimeRangeMatchesSql() {
+        TimeRange range = new TimeRange(LocalDateTime.of(2021, 7, 3, 6, 30), LocalDateTime.of(2021, 7, 6, 12, 0));
+        sqlFacets.setTimeRange(range);
+        orcFacets.setTimeRange(range);
+        List<Pair<String, Integer>> paths = orcFacets.getPaths(TestLogData.DOMAIN);
+        assertFalse(paths.isEmpty());
+        assertEquals(TestLogData.toMap(sqlFacets.getPaths(TestLogData.DOMAIN)), TestLogData.toMap(paths));
+        assertEquals(TestLogData.flatten(sqlFacets.buildPathTree(TestLogData.DOMAIN)),
+                     TestLogData.flatten(orcFacets.buildPathTree(TestLogData.DOMAIN)));
+        assertEquals(TestLogData.toMap(sqlFacets.getReferrers(TestLogData.DOMAIN)),
+                     TestLogData.toMap(orcFacets.getReferrers(TestLogData.DOMAIN)));
+        // The range removes some of the page references
+        OrcFileFacets allRows = new OrcFileFacets(orcDir, 2);
+        int allCount = allRows.getPaths(TestLogData.DOMAIN).stream().mapToInt(Pair::getRight).sum();
+        assertTrue(paths.stream().mapToInt(Pair::getRight).sum() < allCount);
+    }
+
+    /**
+     * With a domain/dt=yyyy-MM-dd copy of the log files only the day directories in the range are read. The
+     * unreadable file in a day outside of the range is not read.
+     */
+    @Test
+    public void testDayDirectoriesOutsideRangeSkipped() throws Exception {
+        File partitioned = tempDir.newFolder("date_partitioned");
+        Map<LocalDate, List<TestLogData.LogRow>> days = rows.stream()
+                .filter(row -> row.bucketName.equals(TestLogData.DOMAIN))
+                .collect(Collectors.groupingBy(row -> row.requestDate.toLocalDate()));
+        for (Map.Entry<LocalDate, List<TestLogData.LogRow>> day : days.entrySet()) {
+            File dayDir = new File(partitioned, TestLogData.DOMAIN + "/" + LogDDL.DATE_PARTITION_COLUMN + "=" + day.getKey());
+            assertTrue(dayDir.mkdirs());
+            TestLogData.writeOrc(new File(dayDir, "part-0.orc"), day.getValue());
+        }
+        File firstDay = new File(partitioned, TestLogData.DOMAIN + "/" + LogDDL.DATE_PARTITION_COLUMN + "=2021-07-01");
+        Files.write(new File(firstDay, "part-9.orc").toPath(), "not an ORC file".getBytes(StandardCharsets.UTF_8));
+        TimeRange range = TimeRange.ofDays(LocalDate.of(2021, 7, 3), LocalDate.of(2021, 7, 4));
+        sqlFacets.setTimeRange(range);
+        OrcFileFacets dayFacets = new OrcFileFacets(partitioned, 2);
+        dayFacets.setTimeRange(range);
+        assertEquals(TestLogData.flatten(sqlFacets.buildPathTree(TestLogData.DOMAIN)),
+                     TestLogData.flatten(dayFacets.buildPathTree(TestLogData.DOMAIN)));
+        assertEquals(TestLogData.toMap(sqlFacets.getReferrers(TestLogData.DOMAIN)),
+                     TestLogData.toMap(dayFacets.getReferrers(TestLogData.DOMAIN)));
+    }
+
+    @Test(expected = FacetQueryException.class)
+    public void testUnreadableFileFails() throws Exception {
+        Files.write(new File(orcDir, "part-9.orc").toPath(), "not an ORC file".getBytes(StandardCharsets.UTF_8));
+        orcFacets.getPaths(TestLogData.DOMAIN);
+    }
+
+    @Test(expected = FacetQueryException.class)
+    public void testUnreadableFileFailsEndPoints() throws Exception {
+        Files.write(new File(orcDir, "part-9.orc").toPath(), "not an ORC file".getBytes(StandardCharsets.UTF_8));
+        orcFacets.getEndPoints();
+    }
+}
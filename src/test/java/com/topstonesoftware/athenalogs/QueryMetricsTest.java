@@ -0,0 +1,56 @@
+package com.topstonesoftware.athenalogs;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class QueryMetricsTest {
+    private QueryMetrics metrics;
+
+    @Before
+    public void setUp() {
+        metrics = new QueryMetrics();
+    }
+
+    private static QueryStats query(String label, long wallMillis, long bytesScanned, boolean failed) {
+        QueryStats stats = new QueryStats(label, "select 1");
+        stats.setWallMillis(wallMillis);
+        stats.setRowsFetched(1);
+        stats.setBytesScanned(bytesScanned);
+        stats.setFailed(failed);
+        return stats;
+    }
+
+    @Test
+    public void testTotalsIncludeEvictedQueries() {
+        metrics.setMaxQueries(3);
+        for (int i = 0; i < 10; i++) {
+            metrics.record(query("q" + i, 100, 1000, i == 0));
+        }
+        List<QueryStats> queries = metrics.getQueries();
+        assertEquals(3, queries.size());
+        assertEquals("q7", queries.get(0).getLabel());
+        assertEquals("q9", queries.get(2).getLabel());
+        assertEquals(10, metrics.getQueryCount());
+        assertEquals(1, metrics.getFailedQueryCount());
+        assertEquals(1000, metrics.getWallMillis());
+        assertEquals(10, metrics.getRowsFetched());
+        assertEquals(10000, metrics.getBytesScanned());
+    }
+
+    @Test
+    public void testUnknownValues() {
+        metrics.record(query("unknown", 50, QueryStats.UNKNOWN, false));
+        assertEquals(0, metrics.getBytesScanned());
+        assertEquals(0, metrics.getQueueMillis());
+        metrics.record(query("known", 50, 2048, false));
+        assertEquals(2048, metrics.getBytesScanned());
+        metrics.clear();
+        assertEquals(0, metrics.getQueryCount());
+        assertEquals(0, metrics.getWallMillis());
+        assertTrue(metrics.getQueries().isEmpty());
+    }
+}
@@ -0,0 +1,188 @@
+package com.topstonesoftware.athenalogs;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the ScanEstimator estimates and budget, with the listing read from a local copy of the S3 layout (see
+ * LocalObjectLister). The files are empty files of the listed sizes.
+ */
+public class ScanEstimatorTest {
+    private static final String LOG_PATH = "ianlkaplan-logs.orc/user/iank/http_logs";
+    private static final String ROLLUP_PATH = "ianlkaplan-logs.orc/user/iank/http_logs_daily";
+    private static final String ROLLUP_TABLE = TestLogData.TABLE + "_daily";
+    private static final LocalDate JULY_1 = LocalDate.of(2021, 7, 1);
+    private static final LocalDate JULY_2 = LocalDate.of(2021, 7, 2);
+    private static final LocalDate JULY_3 = LocalDate.of(2021, 7, 3);
+    private static final LocalDate ROLLED_UP_THROUGH = LocalDate.of(2021, 7, 5);
+    private static final long ROLLUP_BYTES = 300;
+    private static final long LOG_BYTES = 31000;
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+    private LocalObjectLister lister;
+    private Connection conn;
+
+    private void addFile(String path, long size) throws IOException {
+        Path file = tempDir.getRoot().toPath().resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, new byte[(int) size]);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        addFile(LOG_PATH + "/bearcave.com/dt=2021-07-01/part-00000.orc", 1000);
+        addFile(LOG_PATH + "/bearcave.com/dt=2021-07-02/part-00000.orc", 2000);
+        addFile(LOG_PATH + "/bearcave.com/dt=2021-07-03/part-00000.orc", 4000);
+        addFile(LOG_PATH + "/topstonesoftware.com/dt=2021-07-01/part-00000.orc", 8000);
+        addFile(LOG_PATH + "/topstonesoftware.com/dt=2021-07-02/part-00000.orc", 16000);
+        addFile(ROLLUP_PATH + "/request_day=2021-07-01/part-00000.orc", 100);
+        addFile(ROLLUP_PATH + "/request_day=2021-07-02/part-00000.orc", 200);
+        lister = new LocalObjectLister(tempDir.getRoot().toPath());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (conn != null) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("drop schema " + TestLogData.DATABASE + " cascade");
+            }
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testDomainPruning() {
+        ScanEstimator partitioned = new ScanEstimator(lister, LOG_PATH, true, false, ScanEstimator.NO_BUDGET);
+        assertEquals(7000, partitioned.getLogBytes(TestLogData.DOMAIN, null, null));
+        assertEquals(24000, partitioned.getLogBytes(TestLogData.OTHER_DOMAIN, null, null));
+        assertEquals(LOG_BYTES, partitioned.getLogBytes(null, null, null));
+        // A table that is not partitioned is read in full for any domain
+        ScanEstimator unpartitioned = new ScanEstimator(lister, LOG_PATH, false, false, ScanEstimator.NO_BUDGET);
+        assertEquals(LOG_BYTES, unpartitioned.getLogBytes(TestLogData.DOMAIN, null, null));
+    }
+
+    @Test
+    public void testDayPruning() {
+        ScanEstimator estimator = new ScanEstimator(lister, LOG_PATH, false, true, ScanEstimator.NO_BUDGET);
+        assertEquals(6000, estimator.getLogBytes(TestLogData.DOMAIN, JULY_2, JULY_3));
+        assertEquals(9000, estimator.getLogBytes(null, JULY_1, JULY_1));
+        assertEquals(3000, estimator.getLogBytes(TestLogData.DOMAIN, null, JULY_2));
+        assertEquals(0, estimator.getLogBytes(TestLogData.DOMAIN, JULY_3, JULY_1));
+        assertEquals(6000, estimator.estimateBytes(TestLogData.DOMAIN, TimeRange.ofDays(JULY_2, JULY_3), null, null, false));
+        // Without date partitions every day is read
+        ScanEstimator domainOnly = new ScanEstimator(lister, LOG_PATH, true, false, ScanEstimator.NO_BUDGET);
+        assertEquals(7000, domainOnly.getLogBytes(TestLogData.DOMAIN, JULY_2, JULY_3));
+    }
+
+    /**
+     * A query that reads a rollup is charged for the rollup and for the log files of the days after it
+     */
+    @Test
+    public void testLogTailAfterRollup() {
+        ScanEstimator estimator = new ScanEstimator(lister, LOG_PATH, false, true, ScanEstimator.NO_BUDGET);
+        estimator.addDailyTable(ROLLUP_TABLE, ROLLUP_PATH);
+        assertEquals(ROLLUP_BYTES, estimator.getDailyTableBytes(ROLLUP_TABLE));
+        assertEquals(0, estimator.getDailyTableBytes("unknown_daily"));
+        assertEquals(ROLLUP_BYTES + 4000, estimator.estimateBytes(TestLogData.DOMAIN, null, ROLLUP_TABLE, JULY_2, false));
+        assertEquals(ROLLUP_BYTES + 2000 + 4000 + 16000, estimator.estimateBytes(null, null, ROLLUP_TABLE, JULY_1, false));
+        assertEquals(ROLLUP_BYTES, estimator.estimateBytes(TestLogData.DOMAIN, null, ROLLUP_TABLE, JULY_2, true));
+        // A range that starts after the rollup reads the log files for the range
+        assertEquals(ROLLUP_BYTES + 4000,
+                estimator.estimateBytes(TestLogData.DOMAIN, TimeRange.ofDays(JULY_3, JULY_3), ROLLUP_TABLE, JULY_2, false));
+    }
+
+    @Test
+    public void testBudgetExceeded() {
+        ScanEstimator estimator = new ScanEstimator(lister, LOG_PATH, true, false, 10_000);
+        estimator.charge("buildPathTree", TestLogData.DOMAIN, ScanEstimator.Source.LOG_TABLE, 7000);
+        assertTrue(estimator.fits(3000));
+        assertFalse(estimator.fits(3001));
+        try {
+            estimator.charge("getReferrers", TestLogData.DOMAIN, ScanEstimator.Source.LOG_TABLE, 7000);
+            fail("The charge should exceed the budget");
+        } catch (ScanBudgetException e) {
+            assertEquals("getReferrers", e.getLabel());
+            assertEquals(7000, e.getEstimatedBytes());
+            assertEquals(3000, e.getRemainingBytes());
+        }
+        assertEquals(7000, estimator.getChargedBytes());
+        assertEquals(1, estimator.getEstimates().size());
+        assertTrue(new ScanEstimator(lister, LOG_PATH, true, false, ScanEstimator.NO_BUDGET).fits(Long.MAX_VALUE / 2));
+    }
+
+    /**
+     * Build an H2 log table and a rollup of its days through ROLLED_UP_THROUGH, with the LogRollup columns
+     */
+    private LogDataFacets rollupFacets(ScanEstimator estimator) throws Exception {
+        conn = TestLogData.openH2("scan_estimator");
+        TestLogData.loadTable(conn, TestLogData.generate(31, 2000));
+        String rollup = """
+        create table DATABASE.ROLLUP_TABLE as
+        select bucket_name, key, referrer, count(*) as hits, count(log_referrer) as referrer_hits, request_day
+        from (
+            select bucket_name, key, referrer as log_referrer, NORMALIZED_REFERRER as referrer,
+                   cast(cast(request_date as date) as varchar) as request_day
+            from DATABASE.LOG_TABLE
+            where http_status = 200 and (key like '%.html' or key like '%.htm')
+            and request_date < timestamp 'END_DAY 00:00:00'
+        ) as log_rows
+        group by bucket_name, key, referrer, request_day""";
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(rollup.replace("DATABASE", TestLogData.DATABASE)
+                               .replace("ROLLUP_TABLE", ROLLUP_TABLE)
+                               .replace("LOG_TABLE", TestLogData.TABLE)
+                               .replace("NORMALIZED_REFERRER", LogDataFacets.NORMALIZED_REFERRER)
+                               .replace("END_DAY", ROLLED_UP_THROUGH.plusDays(1).toString()));
+        }
+        estimator.addDailyTable(ROLLUP_TABLE, ROLLUP_PATH);
+        LogDataFacets facets = new LogDataFacets(conn, TestLogData.DATABASE, TestLogData.TABLE);
+        facets.setRollup(ROLLUP_TABLE, ROLLED_UP_THROUGH);
+        facets.setScanEstimator(estimator);
+        return facets;
+    }
+
+    /**
+     * A path tree that would exceed the budget with the log table is read from the rollup alone, and the report is
+     * marked as incomplete after the rolled up days
+     */
+    @Test
+    public void testRedirectToRollupOnly() throws Exception {
+        ScanEstimator estimator = new ScanEstimator(lister, LOG_PATH, false, false, 1000);
+        LogDataFacets facets = rollupFacets(estimator);
+        DirTreeNode rollupTree = facets.buildPathTree(TestLogData.DOMAIN);
+        ScanEstimator.Estimate estimate = estimator.getEstimates().get(0);
+        assertEquals(ScanEstimator.Source.ROLLUP, estimate.getSource());
+        assertEquals(ROLLUP_BYTES, estimate.getBytes());
+        assertEquals(Optional.of(ROLLED_UP_THROUGH), estimator.getRollupOnlyThrough(TestLogData.DOMAIN));
+        assertEquals(Optional.empty(), estimator.getRollupOnlyThrough(TestLogData.OTHER_DOMAIN));
+        // The tree counts the rolled up days only
+        LogDataFacets rolledUpDays = new LogDataFacets(conn, TestLogData.DATABASE, TestLogData.TABLE);
+        rolledUpDays.setTimeRange(TimeRange.ofDays(JULY_1, ROLLED_UP_THROUGH));
+        assertEquals(TestLogData.flatten(rolledUpDays.buildPathTree(TestLogData.DOMAIN)), TestLogData.flatten(rollupTree));
+    }
+
+    @Test
+    public void testNoRedirectWithinBudget() throws Exception {
+        ScanEstimator estimator = new ScanEstimator(lister, LOG_PATH, false, false, 100_000);
+        LogDataFacets facets = rollupFacets(estimator);
+        DirTreeNode tree = facets.buildPathTree(TestLogData.DOMAIN);
+        assertEquals(ScanEstimator.Source.LOG_TABLE, estimator.getEstimates().get(0).getSource());
+        assertEquals(ROLLUP_BYTES + LOG_BYTES, estimator.getChargedBytes());
+        assertEquals(Optional.empty(), estimator.getRollupOnlyThrough(TestLogData.DOMAIN));
+        LogDataFacets logOnly = new LogDataFacets(conn, TestLogData.DATABASE, TestLogData.TABLE);
+        assertEquals(TestLogData.flatten(logOnly.buildPathTree(TestLogData.DOMAIN)), TestLogData.flatten(tree));
+    }
+}
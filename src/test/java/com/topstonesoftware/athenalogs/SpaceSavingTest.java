@@ -0,0 +1,136 @@
+package com.topstonesoftware.athenalogs;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check the Space-Saving error bounds against the true counts of seeded random streams. The streams have a few
+ * heavy items and a long tail of light items, like the page paths of a site.
+ */
+public class SpaceSavingTest {
+    private static final long[] SEEDS = { 3, 7, 11, 19 };
+    private static final int CAPACITY = 50;
+    private static final int NUM_ITEMS = 2000;
+    private static final int STREAM_LENGTH = 20_000;
+
+    /**
+     * Add a stream of weighted items to the summary.
+     *
+     * @return the true count of each item
+     */
+    private static Map<String, Long> addStream(SpaceSaving<String> summary, long seed) {
+        Random random = new Random(seed);
+        Map<String, Long> trueCounts = new HashMap<>();
+        for (int i = 0; i < STREAM_LENGTH; i++) {
+            // About a third of the stream is on ten heavy items, the rest is spread over the tail
+            String item = (random.nextInt(3) == 0) ? "heavy/page" + random.nextInt(10) + ".html"
+                                                   : "tail/page" + random.nextInt(NUM_ITEMS) + ".html";
+            long weight = 1 + random.nextInt(4);
+            summary.add(item, weight);
+            trueCounts.merge(item, weight, Long::sum);
+        }
+        return trueCounts;
+    }
+
+    private static long total(Map<String, Long> trueCounts) {
+        return trueCounts.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    @Test
+    public void testCountBounds() {
+        for (long seed : SEEDS) {
+            SpaceSaving<String> summary = new SpaceSaving<>(CAPACITY);
+            Map<String, Long> trueCounts = addStream(summary, seed);
+            long n = total(trueCounts);
+            assertEquals(n, summary.getTotalCount());
+            assertEquals(CAPACITY, summary.size());
+            for (SpaceSaving.HeavyHitter<String> hitter : summary.getTop(CAPACITY)) {
+                long trueCount = trueCounts.get(hitter.getItem());
+                assertTrue("count >= true count for " + hitter.getItem(), hitter.getCount() >= trueCount);
+                assertTrue("true count >= count - error for " + hitter.getItem(), trueCount >= hitter.getLowerBound());
+                assertTrue("error <= N / capacity for " + hitter.getItem(), hitter.getError() <= n / CAPACITY);
+                assertTrue(hitter.getError() <= summary.getMaxError());
+            }
+            assertTrue(summary.getMaxError() <= n / CAPACITY);
+        }
+    }
+
+    @Test
+    public void testHeavyItemsAreKept() {
+        for (long seed : SEEDS) {
+            SpaceSaving<String> summary = new SpaceSaving<>(CAPACITY);
+            Map<String, Long> trueCounts = addStream(summary, seed);
+            long threshold = total(trueCounts) / CAPACITY;
+            Map<String, Long> kept = new HashMap<>();
+            summary.getTop(CAPACITY).forEach(hitter -> kept.put(hitter.getItem(), hitter.getCount()));
+            int heavyItems = 0;
+            for (Map.Entry<String, Long> entry : trueCounts.entrySet()) {
+                if (entry.getValue() > threshold) {
+                    heavyItems++;
+                    assertTrue(entry.getKey() + " is above N / capacity", kept.containsKey(entry.getKey()));
+                }
+            }
+            assertTrue(heavyItems > 0);
+        }
+    }
+
+    @Test
+    public void testTopIsInCountOrder() {
+        SpaceSaving<String> summary = new SpaceSaving<>(CAPACITY);
+        addStream(summary, SEEDS[0]);
+        List<SpaceSaving.HeavyHitter<String>> top = summary.getTop(10);
+        assertEquals(10, top.size());
+        for (int i = 1; i < top.size(); i++) {
+            assertTrue(top.get(i - 1).getCount() >= top.get(i).getCount());
+        }
+        assertEquals(CAPACITY, summary.getTop(CAPACITY * 2).size());
+    }
+
+    /**
+     * Until the summary is full the counts are exact
+     */
+    @Test
+    public void testExactBelowCapacity() {
+        SpaceSaving<String> summary = new SpaceSaving<>(10);
+        summary.add("a", 5);
+        summary.add("b");
+        summary.add("a", 2);
+        summary.add("c", 0);
+        assertEquals(0, summary.getMaxError());
+        assertEquals(2, summary.size());
+        List<SpaceSaving.HeavyHitter<String>> top = summary.getTop(2);
+        assertEquals("a", top.get(0).getItem());
+        assertEquals(7, top.get(0).getCount());
+        assertEquals(0, top.get(0).getError());
+        assertEquals(1, summary.getOtherCount(1));
+    }
+
+    /**
+     * The top K tree holds the top K paths, and the "(other)" node holds the rest of the count, so the root count
+     * is the stream total
+     */
+    @Test
+    public void testTopKPathTree() {
+        final int k = 10;
+        for (long seed : SEEDS) {
+            SpaceSaving<String> summary = new SpaceSaving<>(CAPACITY);
+            Map<String, Long> trueCounts = addStream(summary, seed);
+            DirTreeNode tree = LogDataFacets.buildTopKPathTree(summary, k);
+            Map<String, Long> nodes = TestLogData.flatten(tree);
+            assertEquals(Long.valueOf(total(trueCounts)), nodes.get(""));
+            long topCount = 0;
+            for (SpaceSaving.HeavyHitter<String> hitter : summary.getTop(k)) {
+                assertEquals(Long.valueOf(hitter.getCount()), nodes.get("/" + hitter.getItem()));
+                topCount += hitter.getCount();
+            }
+            assertEquals(Long.valueOf(summary.getOtherCount(k)), nodes.get("/" + LogDataFacets.OTHER_PATHS));
+            assertEquals(total(trueCounts), topCount + summary.getOtherCount(k));
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.topstonesoftware.athenalogs;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hive.ql.exec.vector.BytesColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.LongColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.TimestampColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatch;
+import org.apache.orc.OrcFile;
+import org.apache.orc.TypeDescription;
+import org.apache.orc.Writer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.util.*;
+
+/**
+ * <p>
+ * Log rows for the tests, which can be loaded into an in-memory H2 database that stands in for Athena (as in the
+ * benchmarks) and written to local ORC files, so that the facets computed by the different facet sources can be
+ * compared. The rows are generated from a seeded random number generator.
+ * </p>
+ * <p>
+ *     The referrers include the cases the referrer filters and normalization handle: the "-" marker, search URLs,
+ *     Amazon 52.219 addresses, references from the domain itself, http and https, www. and quoted strings.
+ * </p>
+ */
+class TestLogData {
+    static final String DATABASE = "orclogdb";
+    static final String TABLE = "httplogs";
+    static final String DOMAIN = "bearcave.com";
+    static final String OTHER_DOMAIN = "topstonesoftware.com";
+    private static final LocalDateTime FIRST_REQUEST = LocalDateTime.of(2021, 7, 1, 0, 0);
+    private static final int REQUEST_DAYS = 10;
+    private static final String[] PAGES = {
+            "index.html", "links.htm", "software/divide.htm", "software/java/xml/xmlpull_license.html",
+            "misl/misl_tech/wavelets/hurst/index.html", "misl/misl_tech/signal/idft/index.html",
+            "bookrev/neuromancer/neuromancer_audio.html", "finance/wrds_data.html", "software/"
+    };
+    private static final String[] OTHER_KEYS = { "images/logo.jpg", "css/site.css", "software/index.html.bak" };
+    private static final String[] REFERRER_SITES = { "google.com/", "duckduckgo.com/", "news.ycombinator.com/item", "bing.com/" };
+
+    /**
+     * A log row, with the columns that the facets read
+     */
+    static class LogRow {
+        final String bucketName;
+        final LocalDateTime requestDate;
+        final String key;
+        final int httpStatus;
+        final String referrer;
+
+        LogRow(String bucketName, LocalDateTime requestDate, String key, int httpStatus, String referrer) {
+            this.bucketName = bucketName;
+            this.requestDate = requestDate;
+            this.key = key;
+            this.httpStatus = httpStatus;
+            this.referrer = referrer;
+        }
+    }
+
+    private TestLogData() {}
+
+    private static String nextReferrer(Random random, String domain) {
+        int select = random.nextInt(10);
+        String site = REFERRER_SITES[random.nextInt(REFERRER_SITES.length)];
+        switch (select) {
+            case 0: return "-";
+            case 1: return null;
+            case 2: return "https://www.google.com/search?q=wavelets";
+            case 3: return "http://52.219.10." + random.nextInt(256) + "/";
+            case 4: return "https://" + domain + "/index.html";
+            case 5: return "\"https://www." + site + "\"";
+            case 6: return "http://www." + site;
+            default: return (random.nextBoolean() ? "https://" : "http://") + site;
+        }
+    }
+
+    /**
+     * @param seed the random number generator seed
+     * @param numRows the number of rows
+     * @return log rows for DOMAIN and OTHER_DOMAIN
+     */
+    static List<LogRow> generate(long seed, int numRows) {
+        Random random = new Random(seed);
+        List<LogRow> rows = new ArrayList<>(numRows);
+        for (int i = 0; i < numRows; i++) {
+            String bucket = (random.nextInt(5) == 0) ? OTHER_DOMAIN : DOMAIN;
+            String key = (random.nextInt(10) < 8) ? PAGES[random.nextInt(PAGES.length)]
+                                                  : OTHER_KEYS[random.nextInt(OTHER_KEYS.length)];
+            int status = (random.nextInt(10) < 8) ? 200 : 404;
+            LocalDateTime requestDate = FIRST_REQUEST.plusSeconds(random.nextInt(REQUEST_DAYS * 24 * 60 * 60));
+            rows.add(new LogRow(bucket, requestDate, key, status, nextReferrer(random, bucket)));
+        }
+        return rows;
+    }
+
+    /**
+     * Open an in-memory H2 database. NON_KEYWORDS allows key, value and day as column names.
+     */
+    static Connection openH2(String name) throws SQLException {
+        return DriverManager.getConnection("jdbc:h2:mem:" + name + ";NON_KEYWORDS=KEY,VALUE,DAY");
+    }
+
+    /**
+     * Create the log table, with the LogDDL columns, and insert the rows
+     */
+    static void loadTable(Connection conn, List<LogRow> rows) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("create schema if not exists " + DATABASE);
+            stmt.execute("create table " + DATABASE + "." + TABLE + " (bucket_name varchar, request_date timestamp, " +
+                         "remote_ip varchar, operation varchar, key varchar, request_uri varchar, http_status int, " +
+                         "total_time int, referrer varchar, user_agent varchar, version_id varchar, end_point varchar)");
+        }
+        String insert = "insert into " + DATABASE + "." + TABLE + " values (?, ?, '10.0.0.1', 'REST.GET.OBJECT', ?, ?, ?, 10, ?, 'test', '-', ?)";
+        try (PreparedStatement stmt = conn.prepareStatement(insert)) {
+            for (LogRow row : rows) {
+                stmt.setString(1, row.bucketName);
+                stmt.setTimestamp(2, Timestamp.valueOf(row.requestDate));
+                stmt.setString(3, row.key);
+                stmt.setString(4, "GET /" + row.key + " HTTP/1.1");
+                stmt.setInt(5, row.httpStatus);
+                stmt.setString(6, row.referrer);
+                stmt.setString(7, row.bucketName);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+    }
+
+    private static TypeDescription logSchema() {
+        StringJoiner fields = new StringJoiner(",", "struct<", ">");
+        for (String column : LogDDL.getColumnList().split(", ")) {
+            String type = (column.equals("request_date")) ? "timestamp"
+                        : (column.equals("http_status") || column.equals("total_time")) ? "int" : "string";
+            fields.add(column + ":" + type);
+        }
+        return TypeDescription.fromString(fields.toString());
+    }
+
+    private static void setString(BytesColumnVector vec, int row, String value) {
+        if (value == null) {
+            vec.noNulls = false;
+            vec.isNull[row] = true;
+        } else {
+            vec.setVal(row, value.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Write the rows to an ORC file with the log table schema
+     */
+    static void writeOrc(File file, List<LogRow> rows) throws IOException {
+        TypeDescription schema = logSchema();
+        Configuration conf = new Configuration();
+        try (Writer writer = OrcFile.createWriter(new Path(file.getAbsolutePath()),
+                OrcFile.writerOptions(conf).setSchema(schema).overwrite(true))) {
+            VectorizedRowBatch batch = schema.createRowBatch();
+            for (LogRow logRow : rows) {
+                int row = batch.size++;
+                setString((BytesColumnVector) batch.cols[0], row, logRow.bucketName);
+                ((TimestampColumnVector) batch.cols[1]).set(row, Timestamp.valueOf(logRow.requestDate));
+                setString((BytesColumnVector) batch.cols[2], row, "10.0.0.1");
+                setString((BytesColumnVector) batch.cols[3], row, "REST.GET.OBJECT");
+                setString((BytesColumnVector) batch.cols[4], row, logRow.key);
+                setString((BytesColumnVector) batch.cols[5], row, "GET /" + logRow.key + " HTTP/1.1");
+                ((LongColumnVector) batch.cols[6]).vector[row] = logRow.httpStatus;
+                ((LongColumnVector) batch.cols[7]).vector[row] = 10;
+                setString((BytesColumnVector) batch.cols[8], row, logRow.referrer);
+                setString((BytesColumnVector) batch.cols[9], row, "test");
+                setString((BytesColumnVector) batch.cols[10], row, "-");
+                setString((BytesColumnVector) batch.cols[11], row, logRow.bucketName);
+                if (batch.size == batch.getMaxSize()) {
+                    writer.addRowBatch(batch);
+                    batch.reset();
+                }
+            }
+            if (batch.size > 0) {
+                writer.addRowBatch(batch);
+            }
+        }
+    }
+
+    /**
+     * @return the counts as a map, so that lists with ties in a different order can be compared
+     */
+    static Map<String, Integer> toMap(List<Pair<String, Integer>> counts) {
+        Map<String, Integer> map = new TreeMap<>();
+        counts.forEach(pair -> map.put(pair.getLeft(), pair.getRight()));
+        return map;
+    }
+
+    /**
+     * @return the count of every node in a path tree, by the path from the root
+     */
+    static Map<String, Long> flatten(DirTreeNode root) {
+        Map<String, Long> nodes = new TreeMap<>();
+        Deque<Object[]> stack = new ArrayDeque<>();
+        stack.push(new Object[]{ root, "" });
+        while (!stack.isEmpty()) {
+            Object[] entry = stack.pop();
+            DirTreeNode node = (DirTreeNode) entry[0];
+            String path = (String) entry[1];
+            nodes.put(path, node.getPageRefCnt());
+            for (DirTreeNode child : node.getChildren()) {
+                stack.push(new Object[]{ child, path + "/" + child.getDirName() });
+            }
+        }
+        return nodes;
+    }
+}